@@ -0,0 +1,119 @@
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.imaging.filters.CLAHE;
+import ini.trakem2.imaging.filters.FilterChain;
+import ini.trakem2.imaging.filters.GaussianBlur;
+import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.imaging.filters.Invert;
+import ini.trakem2.imaging.filters.RankFilter;
+import ini.trakem2.imaging.filters.ValueToNoise;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.util.Timer;
+
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+/**
+ * Times each patch filter, and some chains of them, applied one after the
+ * other to the whole image versus through {@link FilterChain}, and checks that
+ * both give identical pixels.
+ *
+ * Usage: FilterChainBenchmark [side length, default 8192] [repetitions, default 5]
+ */
+public class FilterChainBenchmark
+{
+	final static private ImageProcessor createImage( final String type, final int size )
+	{
+		final Random rnd = new Random( 1234 );
+		final FloatProcessor fp = new FloatProcessor( size, size );
+		final float[] pixels = ( float[] )fp.getPixels();
+		for ( int y = 0; y < size; ++y )
+			for ( int x = 0; x < size; ++x )
+				pixels[ y * size + x ] = ( float )( 127 + 60 * Math.sin( x / 50.0 ) * Math.cos( y / 70.0 ) + 30 * rnd.nextGaussian() );
+		fp.resetMinAndMax();
+		if ( type.equals( "byte" ) )
+			return fp.convertToByte( true );
+		if ( type.equals( "short" ) )
+			return fp.convertToShort( true );
+		if ( type.equals( "color" ) )
+		{
+			final ByteProcessor bp = ( ByteProcessor )fp.convertToByte( true );
+			final ColorProcessor cp = new ColorProcessor( size, size );
+			cp.setRGB( ( byte[] )bp.getPixels(), ( byte[] )bp.duplicate().getPixels(), ( byte[] )bp.getPixels() );
+			return cp;
+		}
+		return fp;
+	}
+
+	final static private boolean equal( final ImageProcessor a, final ImageProcessor b )
+	{
+		final Object pa = a.getPixels(), pb = b.getPixels();
+		if ( pa instanceof byte[] ) return Arrays.equals( ( byte[] )pa, ( byte[] )pb );
+		if ( pa instanceof short[] ) return Arrays.equals( ( short[] )pa, ( short[] )pb );
+		if ( pa instanceof int[] ) return Arrays.equals( ( int[] )pa, ( int[] )pb );
+		return Arrays.equals( ( float[] )pa, ( float[] )pb );
+	}
+
+	final static private void run( final String name, final ImageProcessor ip, final IFilter[] filters, final int n, final Timer timer )
+	{
+		long tOld = 0, tNew = 0;
+		boolean identical = true;
+		for ( int i = 0; i < n; ++i )
+		{
+			ImageProcessor a = ip.duplicate();
+			timer.start();
+			for ( final IFilter filter : filters )
+				a = filter.process( a );
+			tOld += timer.stop();
+
+			ImageProcessor b = ip.duplicate();
+			timer.start();
+			b = FilterChain.process( b, filters );
+			tNew += timer.stop();
+
+			identical &= equal( a, b ) && a.getMin() == b.getMin() && a.getMax() == b.getMax();
+		}
+		System.out.println( name + ": sequential " + ( tOld / n ) + "ms, chain " + ( tNew / n ) + "ms" + ( identical ? "" : "  *** RESULTS DIFFER ***" ) );
+	}
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 8192;
+		final int n = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 5;
+		final Timer timer = new Timer();
+
+		for ( final String type : new String[]{ "byte", "short", "float", "color" } )
+		{
+			System.out.println( type + " " + size + "x" + size );
+			final ImageProcessor ip = createImage( type, size );
+
+			run( "Invert", ip, new IFilter[]{ new Invert() }, n, timer );
+			run( "ValueToNoise", ip, new IFilter[]{ new ValueToNoise( -1, 0, 255 ) }, n, timer );
+			run( "GaussianBlur(2)", ip, new IFilter[]{ new GaussianBlur( 2, 2, 0.002 ) }, n, timer );
+			run( "RankFilter(2)", ip, new IFilter[]{ new RankFilter( 2, 0 ) }, n, timer );
+			run( "CLAHE", ip, new IFilter[]{ new CLAHE() }, n, timer );
+			run( "Invert + ValueToNoise", ip, new IFilter[]{ new Invert(), new ValueToNoise( -1, 0, 255 ) }, n, timer );
+			run( "RankFilter(2) + GaussianBlur(2) + Invert", ip, new IFilter[]{ new RankFilter( 2, 0 ), new GaussianBlur( 2, 2, 0.002 ), new Invert() }, n, timer );
+		}
+	}
+}
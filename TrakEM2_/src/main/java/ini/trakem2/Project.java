@@ -36,6 +36,7 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Dissector;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerOverview;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Pipe;
@@ -63,6 +64,7 @@ import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
@@ -767,6 +769,11 @@ public class Project extends DBObject {
 		if (null == loader) {
 			return true;
 		}
+		if (loader instanceof DBLoader && !((DBLoader)loader).flushUpdates()) {
+			// closing would lose them: they stay queued, to be written when the database is reachable again
+			Utils.showMessage("Could not write " + ((DBLoader)loader).getQueuedUpdatesCount() + " pending updates of project " + title + " to the database:\nthe project was not closed.");
+			return false;
+		}
 		if (loader.hasChanges() && !getBooleanProperty("no_shutdown_hook")) { // DBLoader always returns false
 			if (ControlWindow.isGUIEnabled()) {
 				final YesNoDialog yn = ControlWindow.makeYesNoDialog("TrakEM2", "There are unsaved changes in project " + title + ". Save them?");
@@ -781,6 +788,8 @@ public class Project extends DBObject {
 			if (null != autosaving) autosaving.cancel(true);
 		} catch (Throwable t) {}
 		al_open_projects.remove(this);
+		// save the layer overviews while the loader still knows where
+		LayerOverview.release(this);
 		// flush all memory
 		if (null != loader) { // the last project is destroyed twice for some reason, if several are open. This is a PATCH
 			loader.destroy(); // and disconnect
@@ -796,6 +805,7 @@ public class Project extends DBObject {
 		// close all open Displays
 		Display.close(this);
 		Search.removeTabs(this);
+		SearchIndex.remove(this);
 		synchronized (ptcache) { ptcache.clear(); }
 		return true;
 	}
@@ -1490,6 +1500,8 @@ public class Project extends DBObject {
 		gd.addCheckbox("Zoom-invariant markers for Dissector", dissector_zoom);
 		gd.addChoice("Image_resizing_mode: ", Loader.MIPMAP_MODES.values().toArray(new String[Loader.MIPMAP_MODES.size()]), Loader.getMipMapModeName(mipmaps_mode));
 		gd.addChoice("mipmaps format:", FSLoader.MIPMAP_FORMATS, FSLoader.MIPMAP_FORMATS[loader.getMipMapFormat()]);
+		final boolean mipmaps_sharded = loader.isMipMapsSharded();
+		gd.addCheckbox("Store_mipmaps_in_shards", mipmaps_sharded);
 		boolean layer_mipmaps = "true".equals(ht_props.get("layer_mipmaps"));
 		gd.addCheckbox("Layer_mipmaps", layer_mipmaps);
 		boolean keep_mipmaps = "true".equals(ht_props.get("keep_mipmaps"));
@@ -1528,6 +1540,7 @@ public class Project extends DBObject {
 
 		final int new_mipmap_format = gd.getNextChoiceIndex();
 		final int old_mipmap_format = loader.getMipMapFormat();
+		final boolean mipmaps_sharded2 = gd.getNextBoolean();
 		if (new_mipmap_format != old_mipmap_format) {
 			YesNoDialog yn = new YesNoDialog("MipMaps format", "Changing mipmaps format to '" + FSLoader.MIPMAP_FORMATS[new_mipmap_format] + "'requires regenerating all mipmaps. Proceed?");
 			if (yn.yesPressed()) {
@@ -1535,6 +1548,11 @@ public class Project extends DBObject {
 					loader.updateMipMapsFormat(old_mipmap_format, new_mipmap_format);
 				}
 			}
+			if (mipmaps_sharded != mipmaps_sharded2) {
+				Utils.log("Change where mipmaps are stored once the mipmaps have been regenerated in the new format.");
+			}
+		} else if (mipmaps_sharded != mipmaps_sharded2) {
+			loader.setMipMapsSharded(mipmaps_sharded2);
 		}
 
 		boolean layer_mipmaps2 = gd.getNextBoolean();
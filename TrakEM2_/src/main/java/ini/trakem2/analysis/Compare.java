@@ -47,8 +47,6 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -81,6 +79,7 @@ import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Line3D;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -89,7 +88,6 @@ import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.VectorString3D;
-import mpi.fruitfly.general.MultiThreading;
 import mpicbg.imglib.container.cell.Cell;
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.MovingLeastSquaresTransform;
@@ -1496,9 +1494,10 @@ public class Compare {
 
 		final AtomicInteger ai = new AtomicInteger(0);
 
-		final Thread[] threads = MultiThreading.newThreads();
-		for (int ithread=0; ithread<threads.length; ithread++) {
-			threads[ithread] = new Thread() { @Override
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Compare-scoreAllToAll");
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		for (int ithread=Runtime.getRuntime().availableProcessors(); ithread>0; ithread--) {
+			fus.add(job.submit(new Runnable() { @Override
             public void run() {
 				////
 
@@ -1540,9 +1539,10 @@ public class Compare {
 		}
 
 			////
-			}};
+			}}));
 		}
-		MultiThreading.startAndJoin(threads);
+		job.shutdown();
+		Utils.wait(fus);
 
 		if (null != worker && worker.hasQuitted()) return null;
 
@@ -2322,7 +2322,7 @@ public class Compare {
 		//    - score against all other brains in which that pipe name exists,
 		//    - record the score position within that brain.
 		//
-		final ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final Scheduler.Job exec = Scheduler.getInstance().newJob("Compare-lineages");
 
 		// for each individual lineage:
 		final TreeMap<String,ArrayList<Integer>> indices = new TreeMap<String,ArrayList<Integer>>();
@@ -2591,7 +2591,7 @@ public class Compare {
 		for (final Future fu : fus) {
 			try { fu.get(); } catch (final Exception e) { IJError.print(e); }
 		}
-		exec.shutdownNow();
+		exec.shutdown();
 
 		if (weka_classify) {
 			// so stateful ... it's a sin.
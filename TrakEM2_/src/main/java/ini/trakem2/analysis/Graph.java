@@ -15,14 +15,20 @@ import ini.trakem2.display.Polyline;
 import ini.trakem2.display.Profile;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Point;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingUtilities;
 
@@ -37,19 +43,50 @@ public class Graph {
 		
 		final Set<Displayable> seen = new HashSet<Displayable>();
 
-		for (final Connector con : ls.getAll(Connector.class)) {
-			Set<Displayable> origins = con.getOrigins();
+		// Look up what lays under each connector in parallel; the graph is then written in connector order
+		final List<Connector> connectors = ls.getAll(Connector.class);
+		final ArrayList<Future<Object[]>> fus = new ArrayList<Future<Object[]>>(connectors.size());
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Extracting graph");
+		for (final Connector con : connectors) {
+			fus.add(job.submit(new Callable<Object[]>() {
+				@Override
+				public Object[] call() {
+					final Set<Displayable> origins = con.getOrigins();
+					return new Object[]{origins, origins.isEmpty() ? null : con.getTargets()};
+				}
+			}));
+		}
+		job.shutdown();
+
+		for (int i=0; i<connectors.size(); ++i) {
+			final Connector con = connectors.get(i);
+			final Object[] ot;
+			try {
+				ot = fus.get(i).get();
+			} catch (final InterruptedException ie) {
+				job.cancel();
+				return null;
+			} catch (final ExecutionException ee) {
+				IJError.print(ee.getCause());
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			final Set<Displayable> origins = (Set<Displayable>) ot[0];
 			if (origins.isEmpty()) {
 				Utils.log("Graph: ignoring connector without origins: #" + con.getId());
 				continue;
 			}
-			List<Set<Displayable>> target_lists = con.getTargets();
+			@SuppressWarnings("unchecked")
+			final List<Set<Displayable>> target_lists = (List<Set<Displayable>>) ot[1];
 			if (target_lists.isEmpty()) {
 				Utils.log("Graph: ignoring connector without targets: #" + con.getId());
 				continue;
 			}
 			for (final Displayable origin : origins) {
-				if (Thread.currentThread().isInterrupted()) return null;
+				if (Thread.currentThread().isInterrupted()) {
+					job.cancel();
+					return null;
+				}
 				if (null != only && !only.contains(origin.getClass())) continue;
 				seen.add(origin);
 				for (final Set<Displayable> targets : target_lists) {
@@ -440,6 +440,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			return true;
 		} finally {
 			updateBucket(la);
+			Display3D.layerChanged(this, la);
 		}
 	}
 
@@ -717,11 +718,21 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 
 
 	public List<Point3f> generateTriangles(final double scale, final int resample) {
+		return AreaUtils.generateTriangles(this, scale, resample, getLayerAreas());
+	}
+
+	/** Generate the triangles of only the cubes from {@code first_cube} (inclusive) to {@code last_cube} (exclusive),
+	 *  counting from the first layer with an area; see {@link AreaUtils#generateTriangles(Displayable, double, int, Map, int, int)}. */
+	public List<Point3f> generateTriangles(final double scale, final int resample, final int first_cube, final int last_cube) {
+		return AreaUtils.generateTriangles(this, scale, resample, getLayerAreas(), first_cube, last_cube);
+	}
+
+	private HashMap<Layer,Area> getLayerAreas() {
 		final HashMap<Layer,Area> areas = new HashMap<Layer,Area>();
 		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
 			areas.put(layer_set.getLayer((Long)e.getKey()), (Area)e.getValue());
 		}
-		return AreaUtils.generateTriangles(this, scale, resample, areas);
+		return areas;
 	}
 
 	/** Directly place an Area for the specified layer. Keep in mind it will be added in this AreaList coordinate space, not the overall LayerSet coordinate space. Does not make it local, you should call calculateBoundingBox() after setting an area. */
@@ -863,6 +874,145 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		return false;
 	}
 
+	/** Label values for each {@link AreaList}: the value of its "label" property, if any,
+	 * or else consecutive values above the highest of those, in list order. Zero is the background. */
+	static public HashMap<AreaList,Integer> assignLabels(final List<AreaList> list) {
+		int highest = 0;
+		boolean labeled = false;
+		for (final AreaList d : list) {
+			final String label = d.getProperty("label");
+			if (null == label) continue;
+			final int value = Integer.parseInt(label);
+			highest = labeled ? Math.max(highest, value) : value;
+			labeled = true;
+		}
+		final HashMap<AreaList,Integer> labels = new HashMap<AreaList,Integer>();
+		for (final AreaList d : list) {
+			final String slabel = d.getProperty("label");
+			labels.put(d, null != slabel ? Integer.parseInt(slabel) : ++highest);
+		}
+		return labels;
+	}
+
+	/** Paint the areas of the given {@link AreaList} instances at {@code la} with their label values, in list order,
+	 * into a new image of {@code width} and {@code height} pixels.
+	 * @param broi The world bounds of the region to paint, or null for the whole layer.
+	 * @param type One of {@link ImagePlus#GRAY8}, {@link ImagePlus#GRAY16} or {@link ImagePlus#GRAY32}, according to the highest label value. */
+	static public ImageProcessor renderLabels(final List<AreaList> list, final Map<AreaList,Integer> labels, final Layer la, final Rectangle broi, final float scale, final int width, final int height, final int type) {
+		final ImageProcessor ip;
+
+		if (ImagePlus.GRAY8 == type) {
+			final BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			final Graphics2D g = bi.createGraphics();
+
+			for (final AreaList ali : list) {
+				final Area area = ali.getArea(la);
+				if (null == area || area.isEmpty()) continue;
+				// Transform: the scale and the roi
+				final AffineTransform aff = new AffineTransform();
+				// reverse order of transformations:
+				/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
+				/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
+				/* 1 - To world coordinates: */ aff.concatenate(ali.at);
+				g.setTransform(aff);
+				final int label = labels.get(ali);
+				g.setColor(new Color(label, label, label));
+				g.fill(area);
+			}
+			g.dispose();
+			ip = new ByteProcessor(bi);
+			bi.flush();
+
+		} else if (ImagePlus.GRAY16 == type) {
+			final USHORTPaint paint = new USHORTPaint((short)0);
+			final BufferedImage bi = new BufferedImage(paint.getComponentColorModel(), paint.getComponentColorModel().createCompatibleWritableRaster(width, height), false, null);
+			final Graphics2D g = bi.createGraphics();
+			//final ColorSpace ugray = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+
+			for (final AreaList ali : list) {
+				final Area area = ali.getArea(la);
+				if (null == area || area.isEmpty()) continue;
+				// Transform: the scale and the roi
+				final AffineTransform aff = new AffineTransform();
+				// reverse order of transformations:
+				/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
+				/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
+				/* 1 - To world coordinates: */ aff.concatenate(ali.at);
+				// Fill
+				g.setTransform(aff);
+
+				// The color doesn't work: paints in a stretched 8-bit mode
+				//g.setColor(new Color(ugray, new float[]{((float)labels.get(d)) / range}, 1));
+
+				paint.setValue(labels.get(ali).shortValue());
+				g.setPaint(paint);
+
+				g.fill(area); //.createTransformedArea(aff));
+			}
+			g.dispose();
+			ip = new ShortProcessor(bi);
+			bi.flush();
+
+		} else {
+			// Option 1: could use the same as above, but shifted by 65536, so that 65537 is 1, 65538 is 2, etc.
+			//           and keep doing it until no more need to be shifted.
+			//           The PROBLEM: cannot keep the order without complicated gymnastics to remember
+			//           which label in which image has to be merged to the final image, which prevent
+			//           a simple one-pass blitter.
+			//
+			// Option 2: paint each arealist, extract the image, use it as a mask for filling:
+
+			final FloatProcessor fp = new FloatProcessor(width, height);
+			final float[] fpix = (float[]) fp.getPixels();
+			ip = fp;
+
+			final BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			final Graphics2D gbi = bi.createGraphics();
+
+			for (final AreaList ali : list) {
+				final Area area = ali.getArea(la);
+				if (null == area || area.isEmpty()) {
+					continue;
+				}
+				// Transform: the scale and the roi
+				// reverse order of transformations:
+				final AffineTransform aff = new AffineTransform();
+				/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
+				/* 2 - To ROI coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
+				/* 1 - To world coordinates: */ aff.concatenate(ali.at);
+				final Area s = area.createTransformedArea(aff);
+				final Rectangle sBounds = s.getBounds();
+				// Need to paint at all?
+				if (0 == sBounds.width || 0 == sBounds.height || !sBounds.intersects(0, 0, width, height)) continue;
+				// Paint shape
+				gbi.setColor(Color.white);
+				gbi.fill(s);
+				// Read out painted region
+				final int x0 = Math.max(0, sBounds.x);
+				final int y0 = Math.max(0, sBounds.y);
+				final int xN = Math.min(width, sBounds.x + sBounds.width);
+				final int yN = Math.min(height, sBounds.y + sBounds.height);
+				// Get the array
+				final byte[] bpix = ((DataBufferByte)bi.getRaster().getDataBuffer()).getData();
+				final float value = labels.get(ali);
+				// For every non-black pixel, set a 'value' pixel in the FloatProcessor
+				for (int y = y0; y < yN; ++y) {
+					for (int x = x0; x < xN; ++x) {
+						final int pos = y * width + x;
+						if (0 == bpix[pos]) continue; // black
+						fpix[pos] = value;
+					}
+				}
+				// Clear image region
+				gbi.setColor(Color.black);
+				gbi.fill(s);
+			}
+			gbi.dispose();
+			bi.flush();
+		}
+		return ip;
+	}
+
 	/** Export all given AreaLists as one per pixel value, what is called a "labels" file; a file dialog is offered to save the image as a tiff stack. */
 	static public void exportAsLabels(final List<Displayable> listToPaint, final ij.gui.Roi roi, final float scale, int first_layer, int last_layer, final boolean visible_only, final boolean to_file, final boolean as_amira_labels) {
 		// survive everything:
@@ -932,7 +1082,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			final String label = d.getProperty("label");
 			if (null != label) label_values.add(Integer.parseInt(label));
 		}
-		int lowest=0, highest=0;
+		int lowest=0, highest=0; // of the "label" properties
 		if (label_values.size() > 0) {
 			lowest = label_values.first();
 			highest = label_values.last();
@@ -974,17 +1124,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		final float len = last_layer - first_layer + 1;
 
 		// Assign labels
-		final HashMap<AreaList,Integer> labels = new HashMap<AreaList,Integer>();
-		for (final AreaList d : list) {
-			final String slabel = d.getProperty("label");
-			int label;
-			if (null != slabel) {
-				label = Integer.parseInt(slabel);
-			} else {
-				label = (++highest); // 0 is background
-			}
-			labels.put(d, label);
-		}
+		final HashMap<AreaList,Integer> labels = assignLabels(list);
 
 		final ExecutorService exec = Utils.newFixedThreadPool("labels");
 		final Map<Integer,ImageProcessor> slices = Collections.synchronizedMap(new TreeMap<Integer,ImageProcessor>());
@@ -999,126 +1139,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 				public void run() {
 					Utils.showProgress(slice / len);
 
-					final ImageProcessor ip;
-
-					if (ImagePlus.GRAY8 == type) {
-						final BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-						final Graphics2D g = bi.createGraphics();
-
-						for (final AreaList ali : list) {
-							final Area area = ali.getArea(la);
-							if (null == area || area.isEmpty()) continue;
-							// Transform: the scale and the roi
-							final AffineTransform aff = new AffineTransform();
-							// reverse order of transformations:
-							/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
-							/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
-							/* 1 - To world coordinates: */ aff.concatenate(ali.at);
-							g.setTransform(aff);
-							final int label = labels.get(ali);
-							g.setColor(new Color(label, label, label));
-							g.fill(area);
-						}
-						g.dispose();
-						ip = new ByteProcessor(bi);
-						bi.flush();
-
-					} else if (ImagePlus.GRAY16 == type) {
-						final USHORTPaint paint = new USHORTPaint((short)0);
-						final BufferedImage bi = new BufferedImage(paint.getComponentColorModel(), paint.getComponentColorModel().createCompatibleWritableRaster(width, height), false, null);
-						final Graphics2D g = bi.createGraphics();
-						//final ColorSpace ugray = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-
-						int painted = 0;
-
-						for (final AreaList ali : list) {
-							final Area area = ali.getArea(la);
-							if (null == area || area.isEmpty()) continue;
-							// Transform: the scale and the roi
-							final AffineTransform aff = new AffineTransform();
-							// reverse order of transformations:
-							/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
-							/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
-							/* 1 - To world coordinates: */ aff.concatenate(ali.at);
-							// Fill
-							g.setTransform(aff);
-
-							// The color doesn't work: paints in a stretched 8-bit mode
-							//g.setColor(new Color(ugray, new float[]{((float)labels.get(d)) / range}, 1));
-
-							Utils.log2("value: " + labels.get(ali).shortValue());
-							paint.setValue(labels.get(ali).shortValue());
-							g.setPaint(paint);
-
-							g.fill(area); //.createTransformedArea(aff));
-
-							painted += 1;
-						}
-						g.dispose();
-						ip = new ShortProcessor(bi);
-						bi.flush();
-
-						Utils.log2("painted: " + painted);
-
-					} else {
-						// Option 1: could use the same as above, but shifted by 65536, so that 65537 is 1, 65538 is 2, etc.
-						//           and keep doing it until no more need to be shifted.
-						//           The PROBLEM: cannot keep the order without complicated gymnastics to remember
-						//           which label in which image has to be merged to the final image, which prevent
-						//           a simple one-pass blitter.
-						//
-						// Option 2: paint each arealist, extract the image, use it as a mask for filling:
-
-						final FloatProcessor fp = new FloatProcessor(width, height);
-						final float[] fpix = (float[]) fp.getPixels();
-						ip = fp;
-
-						final BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-						final Graphics2D gbi = bi.createGraphics();
-
-						for (final AreaList ali : list) {
-							final Area area = ali.getArea(la);
-							if (null == area || area.isEmpty()) {
-								continue;
-							}
-							// Transform: the scale and the roi
-							// reverse order of transformations:
-							final AffineTransform aff = new AffineTransform();
-							/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
-							/* 2 - To ROI coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
-							/* 1 - To world coordinates: */ aff.concatenate(ali.at);
-							final Area s = area.createTransformedArea(aff);
-							final Rectangle sBounds = s.getBounds();
-							// Need to paint at all?
-							if (0 == sBounds.width || 0 == sBounds.height || !sBounds.intersects(0, 0, width, height)) continue;
-							// Paint shape
-							gbi.setColor(Color.white);
-							gbi.fill(s);
-							// Read out painted region
-							final int x0 = Math.max(0, sBounds.x);
-							final int y0 = Math.max(0, sBounds.y);
-							final int xN = Math.min(width, sBounds.x + sBounds.width);
-							final int yN = Math.min(height, sBounds.y + sBounds.height);
-							// Get the array
-							final byte[] bpix = ((DataBufferByte)bi.getRaster().getDataBuffer()).getData();
-							final float value = labels.get(ali);
-							// For every non-black pixel, set a 'value' pixel in the FloatProcessor
-							for (int y = y0; y < yN; ++y) {
-								for (int x = x0; x < xN; ++x) {
-									final int pos = y * width + x;
-									if (0 == bpix[pos]) continue; // black
-									fpix[pos] = value;
-								}
-							}
-							// Clear image region
-							gbi.setColor(Color.black);
-							gbi.fill(s);
-						}
-						gbi.dispose();
-						bi.flush();
-					}
-
-					slices.put(slice, ip);
+					slices.put(slice, renderLabels(list, labels, la, broi, scale, width, height, type));
 				}
 			}));
 		}
@@ -1130,7 +1151,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			final Layer la = layers.get(e.getKey());
 			stack.addSlice(la.getZ() * cal.pixelWidth + "", e.getValue());
 			if (ImagePlus.GRAY8 != type) {
-				e.getValue().setMinAndMax(lowest, highest);
+				e.getValue().setMinAndMax(lowest, max_label_value);
 			}
 		}
 
@@ -1587,13 +1608,34 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 
 	@Override
 	public boolean apply(final Layer la, final Area roi, final mpicbg.models.CoordinateTransform ct) throws Exception {
-		final Area a = getArea(la);
-		if (null == a) return true;
+		if (applyAt(la, roi, ct, this.at.createInverse())) calculateBoundingBox(la);
+		return true;
+	}
+
+	/** As {@link #apply(Layer, Area, mpicbg.models.CoordinateTransform)} for each layer of {@code transforms} with its transform,
+	 *  but recalculating the bounding box, which translates the areas of all layers, only once at the end. */
+	public boolean apply(final Map<Layer,mpicbg.models.CoordinateTransform> transforms, final Area roi) throws Exception {
 		final AffineTransform inverse = this.at.createInverse();
-		if (M.intersects(a, roi.createTransformedArea(inverse))) {
-			M.apply(M.wrap(this.at, ct, inverse), roi, a);
-			calculateBoundingBox(la);
+		boolean changed = false;
+		for (final Map.Entry<Layer,mpicbg.models.CoordinateTransform> e : transforms.entrySet()) {
+			if (applyAt(e.getKey(), roi, e.getValue(), inverse)) changed = true;
+		}
+		if (changed) calculateBoundingBox(null);
+		return true;
+	}
+
+	/** Transform the area at {@code la}, leaving the bounding box to the caller.
+	 *  @return whether there was any area within the {@code roi} to transform. */
+	private boolean applyAt(final Layer la, final Area roi, final mpicbg.models.CoordinateTransform ct, final AffineTransform inverse) throws Exception {
+		final Area a = getArea(la);
+		if (null == a || a.isEmpty()) return false;
+		if (roi.contains(this.at.createTransformedShape(a.getBounds2D()).getBounds2D())) {
+			// Entirely within the roi: no need to cut and paste the intersection, which for large areas costs more than transforming them
+			ht_areas.put(la.getId(), M.transform(M.wrap(this.at, ct, inverse), a));
+			return true;
 		}
+		if (!M.intersects(a, roi.createTransformedArea(inverse))) return false;
+		M.apply(M.wrap(this.at, ct, inverse), roi, a);
 		return true;
 	}
 
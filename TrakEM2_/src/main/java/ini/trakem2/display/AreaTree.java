@@ -138,6 +138,11 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 			return a;
 		}
 
+		@Override
+		protected boolean hasPaintableData() {
+			return null != aw && !aw.getArea().isEmpty();
+		}
+
 		@Override
 		public void paintData(final Graphics2D g, final Rectangle srcRect,
 				final Tree<Area> tree, final AffineTransform to_screen, final Color cc,
@@ -324,6 +329,7 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 					Utils.wait(fus);
 					exe.shutdown();
 				}
+				paint_index.invalidate();
 			}
 			this.at.translate(box.x, box.y); // not using super.translate(...) because a preConcatenation is not needed; here we deal with the data.
 
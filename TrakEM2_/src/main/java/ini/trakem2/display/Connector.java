@@ -76,6 +76,11 @@ public class Connector extends Treeline {
 		public final Node<Float> newInstance(final float lx, final float ly, final Layer layer) {
 			return new ConnectorNode(lx, ly, layer, 0);
 		}
+		@Override
+		protected boolean hasPaintableData() {
+			return true;
+		}
+
 		@Override
 		public void paintData(final Graphics2D g, final Rectangle srcRect,
 				final Tree<Float> tree, final AffineTransform to_screen, final Color cc,
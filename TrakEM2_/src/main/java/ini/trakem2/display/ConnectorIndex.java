@@ -0,0 +1,313 @@
+package ini.trakem2.display;
+
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.utils.IJError;
+
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-{@link Layer} spatial index of the origin and target nodes of all {@link Connector} instances of a {@link LayerSet},
+ * in world coordinates, for joining them against the nodes of many {@link Tree} instances at once.
+ *
+ * The index is built lazily on first query. The {@link LayerSet} reports added, removed and modified connectors
+ * (the latter through {@link LayerSet#updateBucket(Displayable, Layer)}), which are reindexed before the next query;
+ * whenever the buckets are recreated, the index is rebuilt as well.
+ *
+ * Candidate connectors are found by bounding box and then tested exactly with {@link Connector#intersects(Layer, Area)}
+ * and {@link Connector#intersectsOrigin(Area, Layer)}, so that results are those of querying the buckets node by node.
+ */
+public final class ConnectorIndex
+{
+	/** Side, in world pixels, of the square cells of the per-layer grid. */
+	static public int CELL_SIDE = 512;
+
+	static private final class Entry {
+		final Connector c;
+		final double x0, y0, x1, y1;
+		Entry(final Connector c, final Rectangle2D b) {
+			this.c = c;
+			this.x0 = b.getMinX();
+			this.y0 = b.getMinY();
+			this.x1 = b.getMaxX();
+			this.y1 = b.getMaxY();
+		}
+		final boolean intersects(final Rectangle2D b) {
+			return x0 <= b.getMaxX() && b.getMinX() <= x1 && y0 <= b.getMaxY() && b.getMinY() <= y1;
+		}
+	}
+
+	/** Node entries of one connector, and the layer of each. */
+	static private final class Record {
+		final ArrayList<Entry> entries = new ArrayList<Entry>(4);
+		final ArrayList<Layer> layers = new ArrayList<Layer>(4);
+	}
+
+	private final LayerSet ls;
+
+	/** Per layer, a grid of cells keyed by {@link #key(int, int)}. */
+	private final HashMap<Layer,HashMap<Long,ArrayList<Entry>>> grids = new HashMap<Layer,HashMap<Long,ArrayList<Entry>>>();
+	private final ConcurrentHashMap<Connector,Record> records = new ConcurrentHashMap<Connector,Record>();
+
+	/** Connectors to reindex: true when present in the LayerSet, false when removed. */
+	private final ConcurrentHashMap<Connector,Boolean> pending = new ConcurrentHashMap<Connector,Boolean>();
+	private volatile boolean rebuild = true;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	ConnectorIndex(final LayerSet ls) {
+		this.ls = ls;
+	}
+
+	/** Reindex {@code c} before the next query, if it is indexed already. */
+	void changed(final Connector c) {
+		if (records.containsKey(c)) pending.put(c, Boolean.TRUE);
+	}
+
+	void added(final Connector c) {
+		pending.put(c, Boolean.TRUE);
+	}
+
+	void removed(final Connector c) {
+		pending.put(c, Boolean.FALSE);
+	}
+
+	/** Rebuild the whole index before the next query. */
+	void invalidate() {
+		rebuild = true;
+	}
+
+	static private final long key(final int cx, final int cy) {
+		return (((long)cx) << 32) | (cy & 0xffffffffL);
+	}
+
+	static private final int cell(final double v) {
+		return (int)Math.floor(v / CELL_SIDE);
+	}
+
+	/** Bring the index up to date; must be called while holding the write lock. */
+	private void update() {
+		if (rebuild) {
+			rebuild = false;
+			pending.clear();
+			grids.clear();
+			records.clear();
+			for (final Displayable d : ls.getDisplayableList()) {
+				if (d instanceof Connector) insert((Connector)d);
+			}
+			return;
+		}
+		if (pending.isEmpty()) return;
+		for (final Map.Entry<Connector,Boolean> e : new ArrayList<Map.Entry<Connector,Boolean>>(pending.entrySet())) {
+			final Connector c = e.getKey();
+			pending.remove(c);
+			delete(c);
+			if (e.getValue() && c.getLayerSet() == ls) insert(c);
+		}
+	}
+
+	private void insert(final Connector c) {
+		final Node<Float> root = c.getRoot();
+		if (null == root) return;
+		final Record r = new Record();
+		for (final Node<Float> nd : root.getSubtreeNodes()) {
+			if (null == nd.la) continue;
+			final Area a = nd.getArea();
+			a.transform(c.at);
+			final Entry en = new Entry(c, a.getBounds2D());
+			r.entries.add(en);
+			r.layers.add(nd.la);
+			HashMap<Long,ArrayList<Entry>> grid = grids.get(nd.la);
+			if (null == grid) {
+				grid = new HashMap<Long,ArrayList<Entry>>();
+				grids.put(nd.la, grid);
+			}
+			for (int cy=cell(en.y0), cy1=cell(en.y1); cy<=cy1; ++cy) {
+				for (int cx=cell(en.x0), cx1=cell(en.x1); cx<=cx1; ++cx) {
+					final Long k = key(cx, cy);
+					ArrayList<Entry> list = grid.get(k);
+					if (null == list) {
+						list = new ArrayList<Entry>(4);
+						grid.put(k, list);
+					}
+					list.add(en);
+				}
+			}
+		}
+		records.put(c, r);
+	}
+
+	private void delete(final Connector c) {
+		final Record r = records.remove(c);
+		if (null == r) return;
+		for (int i=0; i<r.entries.size(); ++i) {
+			final Entry en = r.entries.get(i);
+			final HashMap<Long,ArrayList<Entry>> grid = grids.get(r.layers.get(i));
+			if (null == grid) continue;
+			for (int cy=cell(en.y0), cy1=cell(en.y1); cy<=cy1; ++cy) {
+				for (int cx=cell(en.x0), cx1=cell(en.x1); cx<=cx1; ++cx) {
+					final Long k = key(cx, cy);
+					final ArrayList<Entry> list = grid.get(k);
+					if (null == list) continue;
+					list.remove(en);
+					if (list.isEmpty()) grid.remove(k);
+				}
+			}
+		}
+	}
+
+	/** Lock for reading, after bringing the index up to date. */
+	private void lockForQuery() {
+		if (rebuild || !pending.isEmpty()) {
+			lock.writeLock().lock();
+			try {
+				update();
+			} finally {
+				// Downgrade
+				lock.readLock().lock();
+				lock.writeLock().unlock();
+			}
+		} else {
+			lock.readLock().lock();
+		}
+	}
+
+	/** Must be called while holding the read lock.
+	 * @param wa The world area of a node at {@code la}.
+	 * @param seen Reused to avoid testing the same connector twice. */
+	private void query(final Layer la, final Area wa, final IdentityHashMap<Connector,Boolean> seen, final Collection<Connector> found) {
+		final HashMap<Long,ArrayList<Entry>> grid = grids.get(la);
+		if (null == grid) return;
+		final Rectangle2D b = wa.getBounds2D();
+		seen.clear();
+		for (int cy=cell(b.getMinY()), cy1=cell(b.getMaxY()); cy<=cy1; ++cy) {
+			for (int cx=cell(b.getMinX()), cx1=cell(b.getMaxX()); cx<=cx1; ++cx) {
+				final ArrayList<Entry> list = grid.get(key(cx, cy));
+				if (null == list) continue;
+				for (final Entry en : list) {
+					if (!en.intersects(b) || null != seen.put(en.c, Boolean.TRUE)) continue;
+					if (en.c.intersects(la, wa)) found.add(en.c);
+				}
+			}
+		}
+	}
+
+	/** The connectors with a node at the {@link Layer} of each node of {@code tree} that intersects it,
+	 * as would be returned by {@link LayerSet#findZDisplayables(Class, Layer, Area, boolean, boolean)} for
+	 * {@link Connector} and each node's area. Nodes without any are not included. */
+	public <T> Map<Node<T>,Collection<Connector>> findIntersecting(final Tree<T> tree) {
+		final HashMap<Node<T>,Collection<Connector>> m = new HashMap<Node<T>,Collection<Connector>>();
+		final Node<T> root = tree.getRoot();
+		if (null == root) return m;
+		lockForQuery();
+		try {
+			final IdentityHashMap<Connector,Boolean> seen = new IdentityHashMap<Connector,Boolean>();
+			for (final Node<T> nd : root.getSubtreeNodes()) {
+				final Area a = nd.getArea();
+				a.transform(tree.at);
+				final ArrayList<Connector> found = new ArrayList<Connector>();
+				query(nd.la, a, seen, found);
+				if (!found.isEmpty()) m.put(nd, found);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return m;
+	}
+
+	/** Returns an array of two lists of connectors: those whose origin intersects a node of {@code tree}, and those
+	 * that intersect a node of {@code tree} at any other of their nodes. Like {@link Tree#findConnectors()},
+	 * a connector is listed once for every node of {@code tree} that it intersects. */
+	@SuppressWarnings("unchecked")
+	public <T> List<Connector>[] findConnectors(final Tree<T> tree) {
+		final ArrayList<Connector> outgoing = new ArrayList<Connector>(),
+		                           incoming = new ArrayList<Connector>();
+		final Node<T> root = tree.getRoot();
+		if (null != root) {
+			lockForQuery();
+			try {
+				join(tree, root.getSubtreeNodes(), outgoing, incoming);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		return (List<Connector>[]) new List[]{outgoing, incoming};
+	}
+
+	/** Must be called while holding the read lock. */
+	private <T> void join(final Tree<T> tree, final Collection<Node<T>> nodes, final List<Connector> outgoing, final List<Connector> incoming) {
+		final IdentityHashMap<Connector,Boolean> seen = new IdentityHashMap<Connector,Boolean>();
+		final ArrayList<Connector> found = new ArrayList<Connector>();
+		for (final Node<T> nd : nodes) {
+			final Area a = nd.getArea();
+			a.transform(tree.at);
+			found.clear();
+			query(nd.la, a, seen, found);
+			for (final Connector c : found) {
+				if (c.intersectsOrigin(a, nd.la)) outgoing.add(c);
+				else incoming.add(c);
+			}
+		}
+	}
+
+	/** Batch version of {@link #findConnectors(Tree)}: joins the nodes of all {@code trees} against the index in parallel.
+	 * @return For each tree, its outgoing and incoming connectors; null if interrupted. */
+	@SuppressWarnings("unchecked")
+	public Map<Tree<?>,List<Connector>[]> findConnectors(final Collection<? extends Tree<?>> trees) {
+		final HashMap<Tree<?>,List<Connector>[]> m = new HashMap<Tree<?>,List<Connector>[]>();
+		lockForQuery();
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Joining connectors");
+		try {
+			final ArrayList<Future<?>> fus = new ArrayList<Future<?>>(trees.size());
+			for (final Tree<?> tree : trees) {
+				final List<Connector>[] io = (List<Connector>[]) new List[]{new ArrayList<Connector>(), new ArrayList<Connector>()};
+				m.put(tree, io);
+				fus.add(job.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						joinAll(tree, io);
+						return null;
+					}
+				}));
+			}
+			job.shutdown();
+			job.join(fus);
+		} catch (final InterruptedException ie) {
+			job.cancel();
+			return null;
+		} catch (final Exception e) {
+			IJError.print(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return m;
+	}
+
+	private <T> void joinAll(final Tree<T> tree, final List<Connector>[] io) {
+		final Node<T> root = tree.getRoot();
+		if (null == root) return;
+		join(tree, root.getSubtreeNodes(), io[0], io[1]);
+	}
+
+	/** The number of indexed connector nodes, for diagnostics. */
+	public int size() {
+		lockForQuery();
+		try {
+			int n = 0;
+			for (final Record r : records.values()) n += r.entries.size();
+			return n;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
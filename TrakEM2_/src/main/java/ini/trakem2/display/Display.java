@@ -143,6 +143,7 @@ import ini.trakem2.imaging.LayerStack;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.Segmentation;
 import ini.trakem2.imaging.filters.FilterEditor;
+import ini.trakem2.io.LabelSliceExporter;
 import ini.trakem2.io.NeuroML;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
@@ -3267,6 +3268,8 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		item.setEnabled(has_arealists);
 		item = new JMenuItem("Arealists as labels (amira)"); item.addActionListener(this); menu.add(item);
 		item.setEnabled(has_arealists);
+		item = new JMenuItem("Arealists as labels (slices to folder)"); item.addActionListener(this); menu.add(item);
+		item.setEnabled(has_arealists);
 		item = new JMenuItem("Image stack under selected Arealist"); item.addActionListener(this); menu.add(item);
 		item.setEnabled(null != active && AreaList.class == active.getClass());
 		item = new JMenuItem("Fly through selected Treeline/AreaTree"); item.addActionListener(this); menu.add(item);
@@ -5515,9 +5518,10 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			if (patches.size() > 1) {
 				final GenericDialog gd = new GenericDialog("Blending");
 				gd.addCheckbox("Respect current alpha mask", true);
+				gd.addSlider("Scale of overlap weights:", 0.05, 1, 1);
 				gd.showDialog();
 				if (gd.wasCanceled()) return;
-				Blending.blend(patches, gd.getNextBoolean());
+				Blending.blend(patches, gd.getNextBoolean(), gd.getNextNumber());
 			} else {
 				IJ.log("Please select more than one overlapping image.");
 			}
@@ -5528,12 +5532,14 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			gd.addMessage("Filter:");
 			gd.addStringField("Use only images whose title matches:", "", 30);
 			gd.addCheckbox("Blend visible patches only", true);
+			gd.addSlider("Scale of overlap weights:", 0.05, 1, 1);
 			gd.showDialog();
 			if (gd.wasCanceled()) return;
 			final boolean respect_alpha_mask = gd.getNextBoolean();
 			final String toMatch = gd.getNextString().trim();
 			final String regex = 0 == toMatch.length() ? null : ".*" + toMatch + ".*";
 			final boolean visible_only = gd.getNextBoolean();
+			final double scale = gd.getNextNumber();
 			Blending.blendLayerWise(getLayerSet().getLayers(gd.getNextChoiceIndex(), gd.getNextChoiceIndex()),
 					respect_alpha_mask,
 					new Filter<Patch>() {
@@ -5543,7 +5549,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 							if (null == regex) return true;
 							return patch.getTitle().matches(regex);
 						}
-					});
+					}, scale);
 		} else if (command.equals("Match intensities (layer-wise)...")) {
 			Bureaucrat.createAndStart(new Worker.Task("Match intensities") {
 				@Override
@@ -6021,6 +6027,9 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			gd.addChoice("Export: ", options, options[0]);
 			Utils.addLayerRangeChoices(layer, gd);
 			gd.addCheckbox("Visible only", true);
+			final boolean to_folder = -1 != command.indexOf("(slices to folder)");
+			final String[] formats = {"TIFF", "Raw"};
+			if (to_folder) gd.addChoice("Format: ", formats, formats[0]);
 			gd.showDialog();
 			if (gd.wasCanceled()) return;
 			final float scale = (float)(gd.getNextNumber() / 100);
@@ -6034,7 +6043,29 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			final int first = gd.getNextChoiceIndex();
 			final int last  = gd.getNextChoiceIndex();
 			final boolean visible_only = gd.getNextBoolean();
-			if (-1 != command.indexOf("(amira)")) {
+			if (to_folder) {
+				final LabelSliceExporter.Format format = 0 == gd.getNextChoiceIndex() ? LabelSliceExporter.Format.TIFF : LabelSliceExporter.Format.RAW;
+				final DirectoryChooser dc = new DirectoryChooser("Target folder");
+				if (null == dc.getDirectory()) return; // canceled
+				final ArrayList<AreaList> list = new ArrayList<AreaList>();
+				for (final Displayable d : al) {
+					if (visible_only && !d.isVisible()) continue;
+					list.add((AreaList)d);
+				}
+				if (list.isEmpty()) {
+					Utils.log("No area lists found to export.");
+					return;
+				}
+				final Roi roi = canvas.getFakeImagePlus().getRoi();
+				final java.util.List<Layer> range = layer.getParent().getLayers().subList(Math.min(first, last), Math.max(first, last) + 1);
+				Bureaucrat.createAndStart(new Worker.Task("Exporting labels") {
+					@Override
+					public void exec() {
+						final int n = new LabelSliceExporter(list, null == roi ? null : roi.getBounds(), scale, range, dc.getDirectory(), format).export();
+						if (n >= 0) Utils.log("Wrote " + n + " label slices to " + dc.getDirectory());
+					}
+				}, project);
+			} else if (-1 != command.indexOf("(amira)")) {
 				AreaList.exportAsLabels(al, canvas.getFakeImagePlus().getRoi(), scale, first, last, visible_only, true, true);
 			} else if (-1 != command.indexOf("(tif)")) {
 				AreaList.exportAsLabels(al, canvas.getFakeImagePlus().getRoi(), scale, first, last, visible_only, false, false);
@@ -2,6 +2,7 @@ package ini.trakem2.display;
 
 import java.awt.Color;
 import java.awt.Cursor;
+import java.awt.Rectangle;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
@@ -23,6 +24,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.scijava.java3d.PolygonAttributes;
@@ -45,7 +47,9 @@ import ij3d.UniverseListener;
 import ini.trakem2.display.d3d.ControlClickBehavior;
 import ini.trakem2.display.d3d.Display3DGUI;
 import ini.trakem2.imaging.PatchStack;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.ProjectThing;
+import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.vector.VectorString3D;
@@ -67,6 +71,9 @@ public final class Display3D {
 	/** Table of ProjectThing keys versus names of Content objects in the universe. */
 	private Map<ProjectThing,String> ht_pt_meshes = Collections.synchronizedMap(new HashMap<ProjectThing,String>());
 
+	/** Table of AreaList instances versus their meshes, split in chunks of sections, as shown in the universe. */
+	private Map<AreaList,ChunkedMesh> chunked_meshes = Collections.synchronizedMap(new HashMap<AreaList,ChunkedMesh>());
+
 	private Image3DUniverse universe;
 
 	private LayerSet layer_set;
@@ -129,6 +136,7 @@ public final class Display3D {
 				synchronized (ht_pt_meshes) {
 					ht_pt_meshes.clear();
 				}
+				chunked_meshes.clear();
 			}
 			@Override
 			public void transformationUpdated(final View arg0) {
@@ -154,6 +162,14 @@ public final class Display3D {
 						}
 					}
 				}
+				synchronized (chunked_meshes) {
+					for (final Iterator<ChunkedMesh> it = chunked_meshes.values().iterator(); it.hasNext(); ) {
+						if (name.equals(it.next().title)) {
+							it.remove();
+							break;
+						}
+					}
+				}
 			}
 			@Override
 			public void contentChanged(final Content arg0) {
@@ -794,6 +810,7 @@ public final class Display3D {
 			else line_mesh_mode = Integer.MAX_VALUE; // disabled
 		}
 
+		ChunkedMesh chunked = null;
 		List<Point3f> extra_triangles = null;
 		List<Color3f> triangle_colors = null,
 					  extra_triangle_colors = null;
@@ -804,7 +821,8 @@ public final class Display3D {
 			else rs = Display3D.this.resample;
 		}
 		if (AreaList.class == c) {
-			triangles = ((AreaList)displ).generateTriangles(scale, rs);
+			chunked = new ChunkedMesh((AreaList)displ, scale, rs);
+			triangles = chunked.generate();
 			//triangles = removeNonManifold(triangles);
 		} else if (Ball.class == c) {
 			final double[][][] globe = Ball.generateGlobe(12, 12);
@@ -885,43 +903,41 @@ public final class Display3D {
 			// If it exists, remove and add as new:
 			universe.removeContent(title);
 
-			final CustomMesh cm;
-
-			if (line_mesh) {
-				//ct = universe.createContent(new CustomLineMesh(triangles, line_mesh_mode, c3, 0), title);
-				cm = new CustomLineMesh(triangles, line_mesh_mode, c3, 0);
-			} else if (no_culling) {
-				// create a mesh with the same color and zero transparency (that is, full opacity)
-				final CustomTriangleMesh mesh = new CustomTriangleMesh(triangles, c3, 0);
-				// Set mesh properties for double-sided triangles
-				final PolygonAttributes pa = mesh.getAppearance().getPolygonAttributes();
-				pa.setCullFace(PolygonAttributes.CULL_NONE);
-				pa.setBackFaceNormalFlip(true);
-				mesh.setColor(c3);
-				// After setting properties, add to the viewer
-				//ct = universe.createContent(mesh, title);
-				cm = mesh;
+			if (null != chunked) {
+				// One mesh per chunk of sections, to replace only those with edited layers
+				ct = chunked.createContent(universe, c3, title);
+				chunked_meshes.put((AreaList)displ, chunked);
 			} else {
-				//ct = universe.createContent(new CustomTriangleMesh(triangles, c3, 0), title);
-				cm = new CustomTriangleMesh(triangles, c3, 0);
-			}
+				final CustomMesh cm;
+
+				if (line_mesh) {
+					//ct = universe.createContent(new CustomLineMesh(triangles, line_mesh_mode, c3, 0), title);
+					cm = new CustomLineMesh(triangles, line_mesh_mode, c3, 0);
+				} else if (no_culling) {
+					// create a mesh with the same color and zero transparency (that is, full opacity)
+					cm = createDoubleSidedMesh(triangles, c3);
+				} else {
+					//ct = universe.createContent(new CustomTriangleMesh(triangles, c3, 0), title);
+					cm = new CustomTriangleMesh(triangles, c3, 0);
+				}
 
-			if (null != triangle_colors) cm.setColor(triangle_colors);
+				if (null != triangle_colors) cm.setColor(triangle_colors);
 
-			//if (null == cm) return null;
+				//if (null == cm) return null;
 
-			if (null == extra_triangles || 0 == extra_triangles.size()) {
-				ct = universe.createContent(cm, title);
-			} else {
-				final CustomTriangleMesh extra = new CustomTriangleMesh(extra_triangles, c3, 0);
-				if (null != extra_triangle_colors) {
-					// Set mesh properties for double-sided triangles
-					final PolygonAttributes pa = extra.getAppearance().getPolygonAttributes();
-					pa.setCullFace(PolygonAttributes.CULL_NONE);
-					pa.setBackFaceNormalFlip(true);
-					extra.setColor(extra_triangle_colors);
+				if (null == extra_triangles || 0 == extra_triangles.size()) {
+					ct = universe.createContent(cm, title);
+				} else {
+					final CustomTriangleMesh extra = new CustomTriangleMesh(extra_triangles, c3, 0);
+					if (null != extra_triangle_colors) {
+						// Set mesh properties for double-sided triangles
+						final PolygonAttributes pa = extra.getAppearance().getPolygonAttributes();
+						pa.setCullFace(PolygonAttributes.CULL_NONE);
+						pa.setBackFaceNormalFlip(true);
+						extra.setColor(extra_triangle_colors);
+					}
+					ct = universe.createContent(new CustomMultiMesh(Arrays.asList(new CustomMesh[]{cm, extra})), title);
 				}
-				ct = universe.createContent(new CustomMultiMesh(Arrays.asList(new CustomMesh[]{cm, extra})), title);
 			}
 
 			// Set general content properties
@@ -952,6 +968,188 @@ public final class Display3D {
 		}};
 	}
 
+	/** A mesh of the given color and zero transparency (that is, full opacity), with double-sided triangles. */
+	static private CustomTriangleMesh createDoubleSidedMesh(final List<Point3f> triangles, final Color3f c3) {
+		final CustomTriangleMesh mesh = new CustomTriangleMesh(triangles, c3, 0);
+		// Set mesh properties for double-sided triangles
+		final PolygonAttributes pa = mesh.getAppearance().getPolygonAttributes();
+		pa.setCullFace(PolygonAttributes.CULL_NONE);
+		pa.setBackFaceNormalFlip(true);
+		mesh.setColor(c3);
+		return mesh;
+	}
+
+	/** The mesh of an {@link AreaList} in chunks of {@link AreaUtils#MESH_BLOCK_DEPTH} cubes in Z, each shown as a mesh of its own,
+	 *  so that editing the areas of a few layers remeshes and replaces only the chunks that include them.
+	 *  Any change to the bounding box, the transform or the first and last layers of the {@link AreaList},
+	 *  or a chunk that becomes empty or stops being empty, requires a new mesh instead. */
+	static private final class ChunkedMesh {
+		final AreaList ali;
+		final double scale;
+		final int resample;
+		/** Cubes per chunk. */
+		final int chunk_depth;
+		final Layer first;
+		/** Number of sections, from the first to the last layer with an area. */
+		final int depth;
+		/** The bounding box, transform and range of layers for which the chunks were meshed. */
+		final String key;
+		final CustomTriangleMesh[] meshes;
+		/** Chunks to remesh. */
+		final HashSet<Integer> dirty = new HashSet<Integer>();
+		boolean all_dirty = false;
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final Object update_lock = new Object();
+		/** The name of the Content in the universe. */
+		String title = null;
+		private List<List<Point3f>> chunks = null;
+
+		ChunkedMesh(final AreaList ali, final double scale, final int resample) {
+			this.ali = ali;
+			this.scale = scale;
+			this.resample = resample;
+			this.chunk_depth = Math.max(1, AreaUtils.MESH_BLOCK_DEPTH);
+			this.first = ali.getFirstLayer();
+			final LayerSet ls = ali.getLayerSet();
+			this.depth = null == first ? 0 : ls.indexOf(ali.getLastLayer()) - ls.indexOf(first) + 1;
+			this.key = makeKey();
+			// Cubes range from -1 to depth -1
+			this.meshes = new CustomTriangleMesh[(depth + chunk_depth) / chunk_depth];
+		}
+
+		private String makeKey() {
+			final Rectangle r = ali.getBoundingBox(null);
+			final double[] m = new double[6];
+			ali.getAffineTransform().getMatrix(m);
+			final Layer fl = ali.getFirstLayer(),
+			            ll = ali.getLastLayer();
+			return new StringBuilder().append(r).append(Arrays.toString(m))
+				.append(null == fl ? -1 : fl.getId()).append(' ').append(null == ll ? -1 : ll.getId()).toString();
+		}
+
+		/** Mesh the given chunks in parallel.
+		 *  @return The list of triangles of each chunk, or null if interrupted. */
+		private List<List<Point3f>> generate(final List<Integer> indices) throws Exception {
+			final Scheduler.Job job = Scheduler.getInstance().newJob("Meshing " + ali);
+			final ArrayList<Future<List<Point3f>>> fus = new ArrayList<Future<List<Point3f>>>(indices.size());
+			for (final Integer i : indices) {
+				final int first_cube = -1 + i * chunk_depth;
+				fus.add(job.submit(new Callable<List<Point3f>>() {
+					@Override
+					public List<Point3f> call() {
+						return ali.generateTriangles(scale, resample, first_cube, first_cube + chunk_depth);
+					}
+				}));
+			}
+			job.shutdown();
+			final ArrayList<List<Point3f>> lists = new ArrayList<List<Point3f>>(fus.size());
+			try {
+				for (final Future<List<Point3f>> fu : fus) lists.add(fu.get());
+			} catch (final InterruptedException ie) {
+				job.cancel();
+				return null;
+			}
+			return lists;
+		}
+
+		/** Mesh all chunks.
+		 *  @return The triangles of all chunks, or null if any could not be meshed. */
+		List<Point3f> generate() throws Exception {
+			final ArrayList<Integer> indices = new ArrayList<Integer>(meshes.length);
+			for (int i = 0; i < meshes.length; ++i) indices.add(i);
+			chunks = generate(indices);
+			if (null == chunks) return null;
+			final ArrayList<Point3f> all = new ArrayList<Point3f>();
+			for (final List<Point3f> chunk : chunks) {
+				if (null == chunk) return null;
+				all.addAll(chunk);
+			}
+			return all;
+		}
+
+		/** Create the content with one mesh per non-empty chunk, as generated by {@link #generate()}. */
+		Content createContent(final Image3DUniverse universe, final Color3f c3, final String title) {
+			final ArrayList<CustomMesh> list = new ArrayList<CustomMesh>();
+			for (int i = 0; i < meshes.length; ++i) {
+				if (chunks.get(i).isEmpty()) continue;
+				meshes[i] = createDoubleSidedMesh(chunks.get(i), c3);
+				list.add(meshes[i]);
+			}
+			chunks = null;
+			this.title = title;
+			return 1 == list.size() ? universe.createContent(list.get(0), title)
+			                        : universe.createContent(new CustomMultiMesh(list), title);
+		}
+
+		/** Mark as dirty the chunks with cubes that span the section of {@code la}, or all when {@code la} is null. */
+		synchronized void invalidate(final Layer la) {
+			final int section = null == la || null == first ? -1 : ali.getLayerSet().indexOf(la) - ali.getLayerSet().indexOf(first);
+			if (section < 0 || section >= depth) {
+				all_dirty = true;
+				return;
+			}
+			// Cubes section -1 and section, of chunks (cube + 1) / chunk_depth
+			dirty.add(section / chunk_depth);
+			dirty.add(Math.min(meshes.length - 1, (section + 1) / chunk_depth));
+		}
+
+		/** Remesh the dirty chunks and replace their meshes in the universe.
+		 *  @return false if a new mesh of the whole {@link AreaList} is needed instead. */
+		boolean update() throws Exception {
+			// One update at a time, so that an older one doesn't overwrite the chunks of a newer one
+			synchronized (update_lock) {
+				final ArrayList<Integer> indices;
+				synchronized (this) {
+					if (all_dirty) return false;
+					indices = new ArrayList<Integer>(dirty);
+					dirty.clear();
+				}
+				if (!key.equals(makeKey())) return false;
+				if (indices.isEmpty()) return true;
+				final List<List<Point3f>> lists = generate(indices);
+				if (null == lists) return true; // interrupted
+				for (int k = 0; k < indices.size(); ++k) {
+					final List<Point3f> list = lists.get(k);
+					if (null == list || list.isEmpty() || null == meshes[indices.get(k)]) return false;
+				}
+				for (int k = 0; k < indices.size(); ++k) {
+					meshes[indices.get(k)].setMesh(lists.get(k));
+				}
+				Utils.log2("Remeshed " + indices.size() + " of " + meshes.length + " chunks of " + ali);
+				return true;
+			}
+		}
+	}
+
+	/** Notify that the areas of {@code ali} at {@code la}, or at any layer when {@code la} is null, have changed.
+	 *  If {@code ali} is shown in a Display3D, the chunks of its mesh that include {@code la} are remeshed and replaced in the background,
+	 *  coalescing the changes that arrive in the meantime. */
+	static public void layerChanged(final AreaList ali, final Layer la) {
+		if (ht_layer_sets.isEmpty()) return;
+		final LayerSet ls = ali.getLayerSet();
+		if (null == ls) return;
+		final Display3D d3d = ht_layer_sets.get(ls);
+		if (null == d3d) return;
+		final ChunkedMesh chunked = d3d.chunked_meshes.get(ali);
+		if (null == chunked) return;
+		chunked.invalidate(la);
+		if (!chunked.scheduled.compareAndSet(false, true)) return; // the pending update will include it
+		d3d.executors.submit(new Runnable() {
+			@Override
+			public void run() {
+				chunked.scheduled.set(false);
+				try {
+					if (chunked.update()) return;
+					// Remesh all, unless already being remeshed
+					if (d3d.chunked_meshes.remove(ali) != chunked) return;
+					d3d.addMesh(ali.getProject().findProjectThing(ali), ali, d3d.resample);
+				} catch (final Exception e) {
+					IJError.print(e);
+				}
+			}
+		});
+	}
+
 	static public class VectorStringContent {
 		VectorString3D vs;
 		String title;
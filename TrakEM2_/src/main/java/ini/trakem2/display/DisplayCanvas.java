@@ -92,6 +92,7 @@ import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Lock;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
 import ini.trakem2.utils.Utils;
@@ -2410,6 +2411,8 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		}
 	}
 
+	static private final Metrics.Histogram OFFSCREEN_RENDER = Metrics.histogram("display.offscreen.render");
+
 	private final class OffscreenThread extends AbstractOffscreenThread {
 
 		OffscreenThread() {
@@ -2482,7 +2485,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			//Utils.log2("Found target " + target + "\n  with al_top.size() = " + al_top.size());
 
 			if (null == target) {
+				final long t = OFFSCREEN_RENDER.start();
 				target = paintOffscreen(active_layer, layers, g_width, g_height, srcRect, magnification, active, c_alphas, clipRect, loader, hm, blending_list, mode, graphics_source, active_layer.getParent().prepaint, al_top, true);
+				OFFSCREEN_RENDER.stop(t);
 				// Store it:
 				/* CAN'T, may have prePaint in it
 				if (null != sc && display.getProject().getProperty("look_ahead_cache", 0) > 0) {
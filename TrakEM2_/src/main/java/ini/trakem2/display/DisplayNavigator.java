@@ -216,6 +216,13 @@ public final class DisplayNavigator extends JPanel implements MouseListener, Mou
 					if (scale >= 0.4D) g.setStroke(new BasicStroke((float)scale));
 					else g.setStroke(new BasicStroke(0.4f));
 
+					if (0 == snapshots_mode) {
+						// all images at once, repainting only the parts that changed
+						final LayerOverview overview = LayerOverview.get(layer);
+						overview.update();
+						overview.paint(g, scale);
+					}
+
 					g.scale(scale, scale);
 
 					final ArrayList<Displayable> al = display.getLayer().getDisplayables();
@@ -238,20 +245,8 @@ public final class DisplayNavigator extends JPanel implements MouseListener, Mou
 							// paint the label too!
 							d.paint(g, srcRect, scale, false, 1, DisplayNavigator.this.layer, layers);
 						} else if (Patch.class == c) {
-							if (0 == snapshots_mode) {
-								// paint fully
-								final Patch p = (Patch)d;
-								final MipMapImage mipMap = d.getProject().getLoader().getCachedClosestAboveImage(p, scale);
-								if (null != mipMap) {
-									if (d.isVisible()) d.paint(g, srcRect, scale, false, p.getChannelAlphas(), layer, layers);
-									hs_painted.add(d);
-								} else  {
-									d.paintAsBox(g);
-								}
-							} else {
-								// paint as outlines
-								d.paintAsBox(g);
-							}
+							// painted fully by the overview, or else as outlines
+							if (0 != snapshots_mode) d.paintAsBox(g);
 						} else {
 							if (d.isVisible()) d.paint(g, srcRect, scale, false, 1, layer, layers);
 						}
@@ -429,6 +424,8 @@ public final class DisplayNavigator extends JPanel implements MouseListener, Mou
 
 	/** Returns true if the given Displayable has been painted as an image and false if as a box or not at all. */
 	public boolean isPainted(Displayable d) {
+		// Images are painted from the LayerOverview, which loads them as needed
+		if (Patch.class == d.getClass()) return 0 == snapshots_mode;
 		return hs_painted.contains(d);
 	}
 }
@@ -35,6 +35,7 @@ import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.Search;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 
 import java.awt.AlphaComposite;
@@ -164,6 +165,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			if (null == props) props = new HashMap<String,String>();
 			props.put(key, value);
 		}
+		SearchIndex.changed(this);
 		return true;
 	}
 
@@ -212,6 +214,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		} else {
 			linkedProps(target).put(key, value);
 		}
+		SearchIndex.changed(this);
 		return true;
 	}
 
@@ -2207,7 +2210,10 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		return a.getBounds().intersects(r);
 	}
 
-	public void setAnnotation(final String annotation) { this.annotation = annotation; }
+	public void setAnnotation(final String annotation) {
+		this.annotation = annotation;
+		SearchIndex.changed(this);
+	}
 
 	/** Returns null if none. */
 	public String getAnnotation() { return this.annotation; }
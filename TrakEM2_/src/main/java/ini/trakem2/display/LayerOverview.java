@@ -0,0 +1,365 @@
+package ini.trakem2.display;
+
+import ini.trakem2.Project;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A small image of the visible {@link Patch} instances of a {@link Layer}, and a pyramid of coarser levels made from it,
+ * for painting overviews such as that of the {@link DisplayNavigator} without painting every Patch each time.
+ *
+ * The largest level is divided into tiles. For each tile, a signature of the Patch instances that intersect it
+ * is recorded: their order, identity, transform, dimensions, alpha, min and max, channels and composite mode.
+ * {@link #update()} repaints only the tiles whose signature changed, and then the coarser levels under them.
+ * Changes to the pixels that leave the signature intact, such as regenerated mipmaps, are reported with
+ * {@link #invalidate(Layer, Rectangle)}.
+ *
+ * Up to {@link #MAX_CACHED} overviews are kept in memory. When the {@link Project} has a storage folder for them,
+ * overviews are saved there when dropped from memory and when the project is closed, and loaded again on demand,
+ * so that only the tiles that changed meanwhile are repainted.
+ */
+public final class LayerOverview
+{
+	/** The maximum width and height of the largest level, in pixels. */
+	static public final int SIDE = 512;
+	/** Number of tiles per side of the largest level. */
+	static private final int TILES = 8;
+	/** The coarsest level is the first whose width and height are not larger than this. */
+	static private final int MIN_SIDE = 32;
+	static private final long UNPAINTED = Long.MIN_VALUE;
+	static private final int VERSION = 1;
+
+	/** Number of overviews kept in memory. */
+	static public int MAX_CACHED = 32;
+
+	static private final LinkedHashMap<Layer,LayerOverview> cache = new LinkedHashMap<Layer,LayerOverview>(16, 0.75f, true);
+	/** Layers invalidated while their overview was not in memory, and whose files have been deleted. */
+	static private final Set<Layer> stale = Collections.newSetFromMap(new WeakHashMap<Layer,Boolean>());
+
+	private final Layer layer;
+	private double lw = -1, lh = -1, scale;
+	private int w, h;
+	private BufferedImage[] levels = null;
+	private long[] signatures = null;
+	private boolean modified = false;
+
+	private LayerOverview(final Layer layer) {
+		this.layer = layer;
+	}
+
+	/** Returns the overview of {@code layer}, creating it if necessary. Call {@link #update()} before painting it. */
+	static public LayerOverview get(final Layer layer) {
+		final ArrayList<LayerOverview> evicted = new ArrayList<LayerOverview>();
+		LayerOverview lo;
+		synchronized (cache) {
+			lo = cache.get(layer);
+			if (null == lo) {
+				lo = new LayerOverview(layer);
+				cache.put(layer, lo);
+				stale.remove(layer);
+				final Iterator<LayerOverview> it = cache.values().iterator();
+				while (cache.size() > MAX_CACHED && it.hasNext()) {
+					evicted.add(it.next());
+					it.remove();
+				}
+			}
+		}
+		for (final LayerOverview e : evicted) e.save();
+		return lo;
+	}
+
+	/** Repaint the part of the overview of {@code layer} under {@code box}, in world coordinates, on its next update,
+	 * even if its Patch instances are the same as when it was last painted. */
+	static public void invalidate(final Layer layer, final Rectangle box) {
+		if (null == layer) return;
+		final LayerOverview lo;
+		synchronized (cache) {
+			lo = cache.get(layer);
+			if (null == lo && !stale.add(layer)) return;
+		}
+		if (null != lo) lo.invalidate(box);
+		else {
+			// Not in memory: the copy on disk, if any, can't be trusted
+			final File[] fs = files(layer);
+			if (null != fs) for (final File f : fs) f.delete();
+		}
+	}
+
+	/** Save to disk and drop from memory the overviews of all layers of {@code project}. */
+	static public void release(final Project project) {
+		final ArrayList<LayerOverview> released = new ArrayList<LayerOverview>();
+		synchronized (cache) {
+			for (final Iterator<Map.Entry<Layer,LayerOverview>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<Layer,LayerOverview> e = it.next();
+				if (e.getKey().getProject() == project) {
+					released.add(e.getValue());
+					it.remove();
+				}
+			}
+		}
+		for (final LayerOverview lo : released) lo.save();
+	}
+
+	/** The image and the tile signatures, or null if the project has no folder for them. */
+	static private File[] files(final Layer layer) {
+		final String dir = layer.getProject().getLoader().getOverviewsFolder();
+		if (null == dir) return null;
+		final String base = dir + layer.getId();
+		return new File[]{new File(base + ".png"), new File(base + ".sig")};
+	}
+
+	synchronized private void invalidate(final Rectangle box) {
+		if (null == levels) return;
+		final int tile_side = tileSide();
+		final int x0 = Math.max(0, (int)(box.x * scale) / tile_side),
+		          y0 = Math.max(0, (int)(box.y * scale) / tile_side),
+		          x1 = Math.min(TILES - 1, (int)Math.ceil((box.x + box.width) * scale) / tile_side),
+		          y1 = Math.min(TILES - 1, (int)Math.ceil((box.y + box.height) * scale) / tile_side);
+		for (int ty=y0; ty<=y1; ++ty) {
+			for (int tx=x0; tx<=x1; ++tx) {
+				signatures[ty * TILES + tx] = UNPAINTED;
+			}
+		}
+	}
+
+	static private final int tileSide() {
+		return (SIDE + TILES - 1) / TILES;
+	}
+
+	/** Sets up empty levels for the current dimensions of the layer, if they changed, and then loads them from disk if possible. */
+	private void checkDimensions() {
+		final double lw = layer.getLayerWidth(),
+		             lh = layer.getLayerHeight();
+		if (null != levels && lw == this.lw && lh == this.lh) return;
+		this.lw = lw;
+		this.lh = lh;
+		this.scale = SIDE / Math.max(lw, lh);
+		this.w = Math.max(1, (int)Math.ceil(lw * scale));
+		this.h = Math.max(1, (int)Math.ceil(lh * scale));
+		final ArrayList<BufferedImage> al = new ArrayList<BufferedImage>();
+		int lev_w = w, lev_h = h;
+		while (true) {
+			al.add(new BufferedImage(lev_w, lev_h, BufferedImage.TYPE_INT_RGB));
+			if ((lev_w <= MIN_SIDE && lev_h <= MIN_SIDE) || (1 == lev_w && 1 == lev_h)) break;
+			lev_w = (lev_w + 1) / 2;
+			lev_h = (lev_h + 1) / 2;
+		}
+		if (null != levels) for (final BufferedImage bi : levels) bi.flush();
+		this.levels = al.toArray(new BufferedImage[al.size()]);
+		this.signatures = new long[TILES * TILES];
+		Arrays.fill(signatures, UNPAINTED);
+		load();
+	}
+
+	/** Repaints the tiles whose Patch instances changed since they were last painted, and the coarser levels under them.
+	 * Returns true if anything was repainted. */
+	synchronized public boolean update() {
+		checkDimensions();
+		final int tile_side = tileSide();
+		Rectangle dirty = null;
+		final Graphics2D g = levels[0].createGraphics();
+		try {
+			for (int ty=0; ty<TILES; ++ty) {
+				final int py = ty * tile_side;
+				if (py >= h) break;
+				for (int tx=0; tx<TILES; ++tx) {
+					final int px = tx * tile_side;
+					if (px >= w) break;
+					final Rectangle tile = new Rectangle(px, py, Math.min(tile_side, w - px), Math.min(tile_side, h - py));
+					final Rectangle world = new Rectangle((int)Math.floor(tile.x / scale), (int)Math.floor(tile.y / scale),
+					                                      (int)Math.ceil(tile.width / scale) + 1, (int)Math.ceil(tile.height / scale) + 1);
+					final Collection<Displayable> ps = layer.find(Patch.class, world, true);
+					final long sig = signature(ps);
+					final int k = ty * TILES + tx;
+					if (sig == signatures[k]) continue;
+					paintTile(g, tile, world, ps);
+					signatures[k] = sig;
+					if (null == dirty) dirty = tile;
+					else dirty.add(tile);
+				}
+			}
+		} finally {
+			g.dispose();
+		}
+		if (null == dirty) return false;
+		for (int i=1; i<levels.length; ++i) {
+			dirty = downsample(levels[i-1], levels[i], dirty);
+		}
+		modified = true;
+		return true;
+	}
+
+	private final void paintTile(final Graphics2D g, final Rectangle tile, final Rectangle world, final Collection<Displayable> ps) {
+		g.setTransform(new AffineTransform());
+		g.setClip(tile);
+		g.setColor(Color.black);
+		g.fill(tile);
+		g.scale(scale, scale);
+		for (final Displayable d : ps) {
+			final Patch p = (Patch)d;
+			try {
+				p.paint(g, world, scale, false, p.getChannelAlphas(), layer, null);
+			} catch (final Exception e) {
+				IJError.print(e);
+				p.paintAsBox(g);
+			}
+		}
+	}
+
+	static private final long mix(long h, final long v) {
+		h ^= v;
+		h *= 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	/** Of the Patch instances painted into a tile, in order. */
+	static private final long signature(final Collection<Displayable> ps) {
+		long h = ps.size();
+		final double[] m = new double[6];
+		for (final Displayable d : ps) {
+			final Patch p = (Patch)d;
+			h = mix(h, p.getId());
+			p.getAffineTransform().getMatrix(m);
+			for (final double v : m) h = mix(h, Double.doubleToLongBits(v));
+			h = mix(h, Float.floatToIntBits(p.getWidth()));
+			h = mix(h, Float.floatToIntBits(p.getHeight()));
+			h = mix(h, Float.floatToIntBits(p.getAlpha()));
+			h = mix(h, Double.doubleToLongBits(p.getMin()));
+			h = mix(h, Double.doubleToLongBits(p.getMax()));
+			h = mix(h, p.getChannelAlphas());
+			h = mix(h, p.getCompositeMode());
+		}
+		return UNPAINTED == h ? h + 1 : h;
+	}
+
+	/** Average 2x2 blocks of {@code src} within {@code region} into {@code dst}; returns the region of {@code dst} that changed. */
+	static private final Rectangle downsample(final BufferedImage src, final BufferedImage dst, final Rectangle region) {
+		final int sw = src.getWidth(),
+		          sh = src.getHeight();
+		final int x0 = region.x / 2,
+		          y0 = region.y / 2,
+		          x1 = Math.min(dst.getWidth(), (region.x + region.width + 1) / 2),
+		          y1 = Math.min(dst.getHeight(), (region.y + region.height + 1) / 2);
+		final int[] row0 = new int[sw], row1 = new int[sw];
+		final int[] out = new int[x1 - x0];
+		for (int y=y0; y<y1; ++y) {
+			final int sy0 = Math.min(sh - 1, 2 * y),
+			          sy1 = Math.min(sh - 1, 2 * y + 1);
+			src.getRGB(0, sy0, sw, 1, row0, 0, sw);
+			src.getRGB(0, sy1, sw, 1, row1, 0, sw);
+			for (int x=x0; x<x1; ++x) {
+				final int sx0 = Math.min(sw - 1, 2 * x),
+				          sx1 = Math.min(sw - 1, 2 * x + 1);
+				final int a = row0[sx0], b = row0[sx1], c = row1[sx0], d = row1[sx1];
+				final int r = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2,
+				          gr = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2,
+				          bl = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+				out[x - x0] = (r << 16) | (gr << 8) | bl;
+			}
+			dst.setRGB(x0, y, x1 - x0, 1, out, 0, out.length);
+		}
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/** Paint the overview into {@code g} with its top-left corner at 0,0 and at {@code scale}, in pixels per world pixel,
+	 * from the smallest level that is at least as large. Call {@link #update()} first to bring it up to date. */
+	synchronized public void paint(final Graphics2D g, final double scale) {
+		if (null == levels) return;
+		int i = 0;
+		while (i + 1 < levels.length && this.scale / (1 << (i + 1)) >= scale) ++i;
+		final BufferedImage img = levels[i];
+		final Object interpolation = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(img, new AffineTransform(scale * lw / img.getWidth(), 0, 0, scale * lh / img.getHeight(), 0, 0), null);
+		if (null != interpolation) g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+	}
+
+	/** The scale, in pixels per world pixel, of the largest level. */
+	synchronized public double getScale() {
+		return scale;
+	}
+
+	private void load() {
+		final File[] fs = files(layer);
+		if (null == fs || !fs[0].exists() || !fs[1].exists()) return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fs[1])));
+			if (VERSION != in.readInt() || w != in.readInt() || h != in.readInt()
+			 || lw != in.readDouble() || lh != in.readDouble()) return;
+			final long[] sigs = new long[TILES * TILES];
+			for (int k=0; k<sigs.length; ++k) sigs[k] = in.readLong();
+			final BufferedImage img = ImageIO.read(fs[0]);
+			if (null == img || w != img.getWidth() || h != img.getHeight()) return;
+			final Graphics2D g = levels[0].createGraphics();
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+			img.flush();
+			Rectangle all = new Rectangle(0, 0, w, h);
+			for (int i=1; i<levels.length; ++i) {
+				all = downsample(levels[i-1], levels[i], all);
+			}
+			System.arraycopy(sigs, 0, signatures, 0, sigs.length);
+		} catch (final Exception e) {
+			Utils.log2("Could not read the overview of " + layer + ": " + e);
+		} finally {
+			if (null != in) try { in.close(); } catch (final Exception e) {}
+		}
+	}
+
+	/** Write the largest level and the tile signatures, if modified since loaded or saved. */
+	synchronized private void save() {
+		if (!modified || null == levels) return;
+		final File[] fs = files(layer);
+		if (null == fs) return;
+		DataOutputStream out = null;
+		try {
+			fs[0].getParentFile().mkdirs();
+			// Write both to temporary files first, so that an interrupted save never leaves a mismatched pair
+			final File tmp_img = new File(fs[0].getPath() + ".tmp"),
+			           tmp_sig = new File(fs[1].getPath() + ".tmp");
+			if (!ImageIO.write(levels[0], "png", tmp_img)) return;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp_sig)));
+			out.writeInt(VERSION);
+			out.writeInt(w);
+			out.writeInt(h);
+			out.writeDouble(lw);
+			out.writeDouble(lh);
+			for (final long sig : signatures) out.writeLong(sig);
+			out.close();
+			out = null;
+			fs[1].delete();
+			fs[0].delete();
+			if (tmp_img.renameTo(fs[0]) && tmp_sig.renameTo(fs[1])) modified = false;
+		} catch (final Exception e) {
+			IJError.print(e);
+		} finally {
+			if (null != out) try { out.close(); } catch (final Exception e) {}
+		}
+	}
+}
@@ -548,6 +548,20 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return setDimensions(r.width, r.height, anchor);
 	}
 
+	/** Enlarges the display in the given direction to fit all the given objects, resizing at most once; see {@link #enlargeToFit(Displayable, int)}. */
+	synchronized public boolean enlargeToFit(final Collection<? extends Displayable> ds, final int anchor) {
+		final Rectangle r = new Rectangle(0, 0, (int)Math.ceil(layer_width), (int)Math.ceil(layer_height));
+		boolean fits = true;
+		for (final Displayable d : ds) {
+			final Rectangle b = d.getBoundingBox(null);
+			if (r.contains(b)) continue;
+			r.add(b);
+			fits = false;
+		}
+		if (fits) return false;
+		return setDimensions(r.width, r.height, anchor);
+	}
+
 	/** May leave objects beyond the visible window. */
 	public void setDimensions(float x, float y, float layer_width, float layer_height) {
 		// Record previous state
@@ -861,6 +875,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		}
 		*/
 		addToBuckets(zdispl, al_zdispl.size()-1);
+		if (zdispl instanceof Connector) connector_index.added((Connector)zdispl);
 
 		Display.add(this, zdispl);
 	}
@@ -885,6 +900,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			zdispl.setLayerSet(this, false);
 			//Utils.log2("setLayerSet to ZDipl id=" + zdispl.getId());
 			al_zdispl.add(zdispl);
+			if (zdispl instanceof Connector) connector_index.added((Connector)zdispl);
 		} catch (Exception e) {
 			Utils.log("LayerSet.addSilently: not adding ZDisplayable with id=" + zdispl.getId());
 			IJError.print(e);
@@ -903,6 +919,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		al_zdispl.remove(old_stack_index);
 		// remove from Bucket AFTER modifying stack index, so it gets reindexed properly
 		removeFromBuckets(zdispl, old_stack_index);
+		if (zdispl instanceof Connector) connector_index.removed((Connector)zdispl);
 		removeFromOffscreens(zdispl);
 		Display.remove(zdispl);
 		return true;
@@ -918,6 +935,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			final ZDisplayable zd = it.next();
 			if (zds.contains(zd)) {
 				it.remove();
+				if (zd instanceof Connector) connector_index.removed((Connector)zd);
 				removeFromOffscreens(zd);
 				Display.remove(zd);
 				count++;
@@ -1719,6 +1737,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** For fast search. */
 	protected HashMap<Layer,LayerBucket> lbucks = new HashMap<Layer,LayerBucket>();
 
+	/** For fast joins of tree nodes and connectors. */
+	private final ConnectorIndex connector_index = new ConnectorIndex(this);
+
+	/** The index of the origin and target nodes of all {@link Connector} instances, kept up to date with their edits. */
+	public ConnectorIndex getConnectorIndex() {
+		return connector_index;
+	}
+
 	final private void addToBuckets(final Displayable zd, final int i) {
 		synchronized (lbucks) {
 			if (lbucks.isEmpty()) return;
@@ -1806,6 +1832,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
+		if (d instanceof Connector) connector_index.changed((Connector)d);
 		synchronized (lbucks) {
 			final LayerBucket lb = lbucks.get(layer);
 			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
@@ -1826,6 +1853,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		synchronized (lbucks) {
 			lbucks.put(layer, lb);
 		}
+		connector_index.invalidate();
 		if (layer_buckets && null != layer.root) layer.recreateBuckets();
 	}
 
@@ -1852,6 +1880,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			lbucks.clear();
 			lbucks.putAll(m);
 		}
+		connector_index.invalidate();
 	}
 
 	/** Checks only buckets for ZDisplayable, not any related to any layer. */
@@ -2230,6 +2259,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				dobuckets = ls.lbucks.isEmpty();
 			}
 			if (dobuckets) ls.recreateBuckets(true);
+			ls.connector_index.invalidate();
 
 			Display.updateSelection();
 			Display.update(ls); //so it's not left out painted beyond borders
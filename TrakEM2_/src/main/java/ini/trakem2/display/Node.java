@@ -183,16 +183,16 @@ public abstract class Node<T> implements Taggable {
 		}
 	}
 
-	/** Paint this node, and edges to parent and children varies according to whether they are included in the to_paint list.
+	/** Paint this node, and edges to parent and children varies according to whether they are included in the to_paint frame.
 	 *  Returns a task (or null) to paint the tags. */
 	final Runnable paint(final Graphics2D g, final Layer active_layer,
 			final boolean active, final Rectangle srcRect,
-			final double magnification, final Collection<Node<T>> to_paint,
+			final double magnification, final TreePaintIndex.Frame<T> to_paint,
 			final Tree<T> tree, final AffineTransform to_screen,
 			final boolean with_arrows, final boolean with_tags,
 			final boolean with_confidence_boxes, final boolean with_data,
 			Color above, Color below) {
-		// The fact that this method is called indicates that this node is to be painted and by definition is inside the Set to_paint.
+		// The fact that this method is called indicates that this node is to be painted and by definition is contained in to_paint.
 
 		final double actZ = active_layer.getZ();
 		final double thisZ = this.la.getZ();
@@ -231,8 +231,10 @@ public abstract class Node<T> implements Taggable {
 			parent_x = parent_y = 0;
 			tree.at.transform(fps, 0, fps, 0, 1);
 		} else {
-			fps[2] = parent.x;
-			fps[3] = parent.y;
+			// When zoomed out, the edge may be merged with those of the closest ancestors
+			final Node<T> pp = to_paint.getPaintParent(this);
+			fps[2] = pp.x;
+			fps[3] = pp.y;
 			tree.at.transform(fps, 0, fps, 0, 2);
 			parent_x = (int)((fps[2] - srcRect.x) * magnification);
 			parent_y = (int)((fps[3] - srcRect.y) * magnification);
@@ -709,6 +711,12 @@ public abstract class Node<T> implements Taggable {
 
 	public abstract Node<T> newInstance(float x, float y, Layer layer);
 
+	/** Whether {@link #paintData(Graphics2D, Rectangle, Tree, AffineTransform, Color, Layer)} paints anything for this node.
+	 *  Nodes without data may be merged with their neighbors when painting zoomed out. */
+	protected boolean hasPaintableData() {
+		return true;
+	}
+
 	abstract public void paintData(final Graphics2D g, final Rectangle srcRect,
 			final Tree<T> tree, final AffineTransform to_screen, final Color cc,
 			final Layer active_layer);
@@ -120,6 +120,9 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	protected final Set<Node<T>> end_nodes = new HashSet<Node<T>>();
 
+	/** Spatial index of the nodes of {@link #node_layer_map}, for painting. */
+	final TreePaintIndex<T> paint_index = new TreePaintIndex<T>(this);
+
 	protected Node<T> root = null;
 
 	protected Tree(final Project project, final String title) {
@@ -202,67 +205,83 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 
 		synchronized (node_layer_map) {
-			// Determine which layers to paint
-			final Set<Node<T>> nodes = getNodesToPaint(active_layer, layers);
-			if (null != nodes) {
-				// Filter nodes outside the srcRect
-				// The DisplayNavigator and the snapshot panels call paint with the full srcRect
-				// so avoid filtering for them:
-				if (srcRect.x > 0 && srcRect.y > 0
-				 && srcRect.width < (int)layer_set.getLayerWidth()
-				 && srcRect.height < (int)layer_set.getLayerHeight()) {
-					try {
-						final Rectangle localRect = this.at.createInverse().createTransformedShape(srcRect).getBounds();
-						for (final Iterator<Node<T>> it = nodes.iterator(); it.hasNext(); ) {
-							final Node<T> nd = it.next();
-							if (nd.isRoughlyInside(localRect)) continue;
-							it.remove();
-						}
-					} catch (final NoninvertibleTransformException nite) {
-						IJError.print(nite);
-					}
-				}
-				// Arrange transparency
-				if (alpha != 1.0f) {
-					original_composite = g.getComposite();
-					g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+			if (node_layer_map.isEmpty()) return;
+			// Determine which layers to paint: null for all
+			final Collection<Layer> paint_layers;
+			if (layer_set.color_cues) {
+				paint_layers = -1 == layer_set.n_layers_color_cue ? null : layers;
+			} else {
+				paint_layers = Collections.singletonList(active_layer);
+			}
+			// Filter nodes outside the srcRect, unless it contains the whole Tree,
+			// as when painting for the DisplayNavigator and the snapshot panels
+			Rectangle localRect = null;
+			if (!srcRect.contains(getBoundingBox(null))) {
+				try {
+					localRect = this.at.createInverse().createTransformedShape(srcRect).getBounds();
+				} catch (final NoninvertibleTransformException nite) {
+					IJError.print(nite);
 				}
-				// Clear transform and stroke
-				gt = g.getTransform();
-				g.setTransform(DisplayCanvas.DEFAULT_AFFINE);
-				stroke = g.getStroke();
-				g.setStroke(DisplayCanvas.DEFAULT_STROKE);
+			}
+			final TreePaintIndex.Frame<T> frame = new TreePaintIndex.Frame<T>(paint_layers, localRect);
 
-				final AffineTransform to_screen = new AffineTransform();
-				to_screen.scale(magnification, magnification);
-				to_screen.translate(-srcRect.x, -srcRect.y);
-				to_screen.concatenate(this.at);
+			// When zoomed out, merge edges shorter than a screen pixel: 1 << level local pixels
+			int level = -1;
+			if (!active && TreePaintIndex.LEVEL_OF_DETAIL) {
+				final double pixel = 1 / (magnification * Math.sqrt(Math.abs(this.at.getDeterminant())));
+				if (pixel >= 2) level = (int)Math.floor(Math.log(pixel) / Math.log(2));
+			}
 
-				final Node<T>[] handles = active ? new Node[nodes.size()] : null;
-				int next = 0;
-				final ArrayList<Runnable> tags_tasks = new ArrayList<Runnable>();
+			// Arrange transparency
+			if (alpha != 1.0f) {
+				original_composite = g.getComposite();
+				g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+			}
+			// Clear transform and stroke
+			gt = g.getTransform();
+			g.setTransform(DisplayCanvas.DEFAULT_AFFINE);
+			stroke = g.getStroke();
+			g.setStroke(DisplayCanvas.DEFAULT_STROKE);
 
-				for (final Node<T> nd : nodes) {
-					final Runnable task = nd.paint(g, active_layer, active, srcRect, magnification, nodes, this, to_screen, with_arrows, with_tags, layer_set.paint_edge_confidence_boxes, true, above, below);
+			final AffineTransform to_screen = new AffineTransform();
+			to_screen.scale(magnification, magnification);
+			to_screen.translate(-srcRect.x, -srcRect.y);
+			to_screen.concatenate(this.at);
+
+			final ArrayList<Node<T>> handles = active ? new ArrayList<Node<T>>() : null;
+			final ArrayList<Runnable> tags_tasks = new ArrayList<Runnable>();
+
+			final TreePaintIndex.Visitor<T> painter = new TreePaintIndex.Visitor<T>() {
+				@Override
+				public void visit(final Node<T> nd) {
+					if (null != frame.localRect && !nd.isRoughlyInside(frame.localRect)) return;
+					if (nd != marked && frame.isSkipped(nd)) return;
+					final Runnable task = nd.paint(g, active_layer, active, srcRect, magnification, frame, Tree.this, to_screen, with_arrows, with_tags, layer_set.paint_edge_confidence_boxes, true, above, below);
 					if (null != task) tags_tasks.add(task);
 					if (nd == marked) {
 						if (null == MARKED_CHILD) createMarks();
 						final Composite c = g.getComposite();
 						g.setXORMode(Color.green);
 						final float[] fps = new float[]{nd.x, nd.y};
-						this.at.transform(fps, 0, fps, 0, 1);
+						Tree.this.at.transform(fps, 0, fps, 0, 1);
 						final AffineTransform aff = new AffineTransform();
 						aff.translate((fps[0] - srcRect.x) * magnification, (fps[1] - srcRect.y) * magnification);
 						g.fill(aff.createTransformedShape(active ? MARKED_PARENT : MARKED_CHILD));
 						g.setComposite(c);
 					}
-					if (active && active_layer == nd.la) handles[next++] = nd;
+					if (active && active_layer == nd.la) handles.add(nd);
 				}
-				for (final Runnable task : tags_tasks) task.run();
-				if (active) {
-					for (int i=0; i<next; i++) {
-						handles[i].paintHandle(g, srcRect, magnification, this);
-					}
+			};
+
+			for (final Layer la : null == paint_layers ? node_layer_map.keySet() : paint_layers) {
+				frame.lod = -1 == level ? null : paint_index.getLevelOfDetail(la, level);
+				paint_index.find(la, localRect, painter);
+			}
+
+			for (final Runnable task : tags_tasks) task.run();
+			if (active) {
+				for (final Node<T> nd : handles) {
+					nd.paintHandle(g, srcRect, magnification, this);
 				}
 			}
 		}
@@ -347,6 +366,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				for (final Collection<Node<T>> nodes : node_layer_map.values()) {
 					for (final Node<T> nd : nodes) {
 						nd.translate(-box.x, -box.y); }}
+				paint_index.invalidate();
 			}
 			this.at.translate(box.x, box.y); // not using super.translate(...) because a preConcatenation is not needed; here we deal with the data.
 
@@ -356,6 +376,14 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 	}
 
+	/** Also discards the paint index of {@code la}, or of all layers when null, whose nodes may have changed. */
+	@Override
+	public void updateBucket(final Layer la) {
+		if (null == la) paint_index.invalidate();
+		else paint_index.invalidate(la);
+		super.updateBucket(la);
+	}
+
 	/**Repaints in the given ImageCanvas only the area corresponding to the bounding box of this Pipe. */
 	public void repaint(final boolean repaint_navigator, final Layer la) {
 		//TODO: this could be further optimized to repaint the bounding box of the last modified segments, i.e. the previous and next set of interpolated points of any given backbone point. This would be trivial if each segment of the Bezier curve was an object.
@@ -702,6 +730,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				t.clearCache();
 				t.cacheSubtree(t.root.getSubtreeNodes());
 				t.updateView();
+				if (t instanceof Connector && null != t.layer_set) t.layer_set.getConnectorIndex().changed((Connector)t);
 			}
 			return true;
 		}
@@ -744,6 +773,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			end_nodes.remove(nd);
 			nd.setRoot();
 			this.root = nd;
+			paint_index.invalidate();
 		}
 		updateView();
 		return true;
@@ -830,6 +860,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	protected void clearCache() {
 		end_nodes.clear();
 		node_layer_map.clear();
+		paint_index.invalidate();
 		setLastAdded(null);
 		setLastEdited(null);
 		setLastMarked(null);
@@ -838,6 +869,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	/** Take @param nodes and add them to @param end_nodes and @param node_layer_map as appropriate. */
 	private final void cache(final Iterable<Node<T>> nodes, final Collection<Node<T>> end_nodes, final Map<Layer,Set<Node<T>>> node_layer_map) {
+		final HashSet<Layer> modified = new HashSet<Layer>();
 		for (final Node<T> child : nodes) {
 			if (null == child.children) end_nodes.add(child);
 			Set<Node<T>> nds = node_layer_map.get(child.la);
@@ -846,7 +878,10 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				node_layer_map.put(child.la, nds);
 			}
 			nds.add(child);
+			modified.add(child.la);
+			if (null != child.parent) modified.add(child.parent.la);
 		}
+		paint_index.invalidate(modified);
 	}
 
 	/** Update the internal {@link Node} cache; you want to invoke this operation
@@ -1235,6 +1270,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				}
 				synchronized (node_layer_map) {
 					node_layer_map.get(node.la).remove(node);
+					paint_index.invalidate();
 				}
 				fireNodeRemoved(node);
 				updateView();
@@ -1276,6 +1312,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				setLastVisited(node.parent);
 				// Finally, remove from parent node
 				node.parent.remove(node);
+				paint_index.invalidate();
 			}
 			fireNodeRemoved(node);
 		}
@@ -1357,6 +1394,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			// Remove from tl cache
 			synchronized (tl.node_layer_map) {
 				tl.node_layer_map.clear();
+				tl.paint_index.invalidate();
 			}
 			tl.end_nodes.clear();
 		}
@@ -2787,6 +2825,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		final Set<Node<T>> nodes;
 		synchronized (node_layer_map) {
 			nodes = node_layer_map.remove(la);
+			paint_index.invalidate();
 		}
 		if (null == nodes) return true;
 		for (final Iterator<Node<T>> it = nodes.iterator(); it.hasNext(); ) {
@@ -2848,13 +2887,40 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 					if (null == chain) {
 						chain = M.wrap(this.at, ict, inverse);
 					}
+					nd.apply(chain, roi);
 				}
-				nd.apply(chain, roi);
 			}
 		}
 		if (null != chain) calculateBoundingBox(la);
 		return true;
 	}
+
+	/** As {@link #apply(Layer, Area, mpicbg.models.CoordinateTransform)} for each layer of {@code transforms} with its transform,
+	 *  but recalculating the bounding box, which translates the nodes of all layers, only once at the end. */
+	public boolean apply(final Map<Layer,mpicbg.models.CoordinateTransform> transforms, final Area roi) throws Exception {
+		boolean changed = false;
+		synchronized (node_layer_map) {
+			if (null == root) return true;
+			final AffineTransform inverse = this.at.createInverse();
+			final Area localroi = roi.createTransformedArea(inverse);
+			for (final Map.Entry<Layer,mpicbg.models.CoordinateTransform> e : transforms.entrySet()) {
+				final Set<Node<T>> nodes = node_layer_map.get(e.getKey());
+				if (null == nodes || nodes.isEmpty()) continue;
+				mpicbg.models.CoordinateTransform chain = null;
+				for (final Node<T> nd : nodes) {
+					if (nd.intersects(localroi)) {
+						if (null == chain) {
+							chain = M.wrap(this.at, e.getValue(), inverse);
+						}
+						nd.apply(chain, roi);
+					}
+				}
+				if (null != chain) changed = true;
+			}
+		}
+		if (changed) calculateBoundingBox(null);
+		return true;
+	}
 	@Override
 	public boolean apply(final VectorDataTransform vdt) throws Exception {
 		synchronized (node_layer_map) {
@@ -2930,6 +2996,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	@Override
 	public boolean crop(final List<Layer> range) {
 		synchronized (node_layer_map) {
+			paint_index.invalidate();
 			// Iterate nodes and when a node sits on a Layer that doesn't belong to the range, then remove it and give its children, if any, to the parent node.
 			final HashSet<Layer> keep = new HashSet<Layer>(range);
 			for (final Iterator<Map.Entry<Layer,Set<Node<T>>>> it = node_layer_map.entrySet().iterator(); it.hasNext(); ) {
@@ -3187,7 +3254,11 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}}, getProject());
 	}
 
+	@SuppressWarnings("unchecked")
 	public Map<Node<T>,Collection<Displayable>> findIntersecting(final Class<?> c) throws Exception {
+		if (Connector.class == c) {
+			return (Map<Node<T>,Collection<Displayable>>)(Map)layer_set.getConnectorIndex().findIntersecting(this);
+		}
 		final HashMap<Node<T>,Collection<Displayable>> m = new HashMap<Node<T>,Collection<Displayable>>();
 		Process.progressive(root.getSubtreeNodes(),
 							new TaskFactory<Node<T>,Object>() {
@@ -3206,37 +3277,10 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return m;
 	}
 
-	/** Returns an array of two Collection of connectors: the first one has the outgoing connectors, and the second one has the incoming connectors. */
-	@SuppressWarnings("unchecked")
+	/** Returns an array of two Collection of connectors: the first one has the outgoing connectors, and the second one has the incoming connectors.
+	 *  See {@link ConnectorIndex#findConnectors(Tree)}. */
 	public List<Connector>[] findConnectors() throws Exception {
-		final ArrayList<Connector> outgoing = new ArrayList<Connector>();
-		final ArrayList<Connector> incoming = new ArrayList<Connector>();
-		if (null != root) {
-			Process.progressive(root.getSubtreeNodes(),
-				     new TaskFactory<Node<T>,Object>() {
-						@Override
-					 	public Object process(final Node<T> nd) {
-							final Area a = nd.getArea();
-							a.transform(Tree.this.at);
-							final Collection<Displayable> col = layer_set.findZDisplayables(Connector.class, nd.la, a, false, false);
-							if (col.isEmpty()) return null;
-							// Outgoing or incoming?
-							for (final Connector c : (Collection<Connector>)(Collection)col) {
-								if (c.intersectsOrigin(a, nd.la)) {
-									synchronized (outgoing) {
-										outgoing.add(c);
-									}
-								} else {
-									synchronized (incoming) {
-										incoming.add(c);
-									}
-								}
-							}
-							return null;
-						}
-					 });
-		}
-		return (List<Connector>[]) new List[]{outgoing, incoming};
+		return layer_set.getConnectorIndex().findConnectors(this);
 	}
 
 	@Override
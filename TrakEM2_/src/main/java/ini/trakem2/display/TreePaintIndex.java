@@ -0,0 +1,280 @@
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Per-{@link Layer} spatial index of the {@link Node} instances of a {@link Tree}, in local coordinates,
+ * to paint only those nodes whose edge to the parent node, or whose data, may intersect the field of view,
+ * without copying the sets of nodes of the {@link Tree} on every repaint.
+ *
+ * Each node is filed in the cell of a regular grid that contains the top-left corner of its painting bounds,
+ * which then are at most one cell wide and tall; nodes with larger bounds are kept aside and tested always.
+ * The grid of a layer is built on first use and discarded when the {@link Tree} reports changes to that layer.
+ *
+ * When zoomed out, {@link #getLevelOfDetail(Layer, int)} merges chains of unbranched nodes closer than a screen pixel
+ * to one another, so that each chain is painted with fewer, longer edges.
+ *
+ * All methods expect the caller to hold the lock of the {@link Tree#node_layer_map}, except the invalidate methods.
+ */
+public final class TreePaintIndex<T>
+{
+	/** Side, in local pixels, of the square cells of the per-layer grids. */
+	static public int CELL_SIDE = 256;
+
+	/** Whether to merge sub-pixel edges when painting zoomed out. */
+	static public boolean LEVEL_OF_DETAIL = true;
+
+	/** Receives the nodes found by {@link TreePaintIndex#find(Layer, Rectangle, Visitor)}. */
+	interface Visitor<T> {
+		void visit(Node<T> nd);
+	}
+
+	/** The layers, field of view and level of detail of one repaint of a {@link Tree}. */
+	static final class Frame<T> {
+		/** The layers whose nodes are painted, or null for all. */
+		final Collection<Layer> layers;
+		/** The field of view in local coordinates, or null when it contains the whole {@link Tree}. */
+		final Rectangle localRect;
+		/** The level of detail for the nodes of the layer being painted, or null to paint all nodes. */
+		IdentityHashMap<Node<T>,Node<T>> lod = null;
+
+		Frame(final Collection<Layer> layers, final Rectangle localRect) {
+			this.layers = layers;
+			this.localRect = localRect;
+		}
+
+		/** Whether {@code nd} is painted in this frame, perhaps merged into the edge of another node. */
+		final boolean contains(final Node<T> nd) {
+			return (null == layers || layers.contains(nd.la))
+			    && (null == localRect || nd.isRoughlyInside(localRect));
+		}
+
+		/** Whether {@code nd}, of the layer being painted, is merged into the edge of another node.
+		 * Tags and colors are checked again, since they may have been set after computing the level of detail. */
+		final boolean isSkipped(final Node<T> nd) {
+			return null != lod && nd == lod.get(nd) && null == nd.tags && null == nd.color;
+		}
+
+		/** The node to paint the edge of {@code nd} to: its parent, or, when merging edges, the closest ancestor that is not skipped. */
+		final Node<T> getPaintParent(final Node<T> nd) {
+			if (null == lod) return nd.parent;
+			final Node<T> p = lod.get(nd);
+			return null == p || nd == p ? nd.parent : p;
+		}
+	}
+
+	static private final class Grid<T> {
+		final int ox, oy, side, cols, rows;
+		/** Nodes sorted by cell: those of cell i are from start[i] to start[i+1]. */
+		final int[] start;
+		final Node<T>[] items;
+		/** Nodes whose painting bounds are larger than a cell. */
+		final Node<T>[] large;
+		/** Layers of the parents and children of the nodes in this layer, when different from it. */
+		final Set<Layer> linked;
+		/** Per level of detail. */
+		final HashMap<Integer,IdentityHashMap<Node<T>,Node<T>>> lods = new HashMap<Integer,IdentityHashMap<Node<T>,Node<T>>>();
+
+		Grid(final int ox, final int oy, final int side, final int cols, final int rows, final int[] start, final Node<T>[] items, final Node<T>[] large, final Set<Layer> linked) {
+			this.ox = ox;
+			this.oy = oy;
+			this.side = side;
+			this.cols = cols;
+			this.rows = rows;
+			this.start = start;
+			this.items = items;
+			this.large = large;
+			this.linked = linked;
+		}
+	}
+
+	private final Tree<T> tree;
+
+	private final HashMap<Layer,Grid<T>> grids = new HashMap<Layer,Grid<T>>();
+
+	TreePaintIndex(final Tree<T> tree) {
+		this.tree = tree;
+	}
+
+	/** Discard the grids of all layers. */
+	synchronized void invalidate() {
+		grids.clear();
+	}
+
+	/** Discard the grid of {@code la} and of any layer with nodes connected to nodes in {@code la}. */
+	synchronized void invalidate(final Layer la) {
+		if (grids.isEmpty()) return;
+		final Grid<T> g = grids.remove(la);
+		if (null != g) {
+			for (final Layer linked : g.linked) grids.remove(linked);
+		}
+		for (final Iterator<Grid<T>> it = grids.values().iterator(); it.hasNext(); ) {
+			if (it.next().linked.contains(la)) it.remove();
+		}
+	}
+
+	/** Discard the grids of all {@code layers}. */
+	synchronized void invalidate(final Collection<Layer> layers) {
+		for (final Layer la : layers) invalidate(la);
+	}
+
+	static private final int cell(final int v, final int origin, final int side) {
+		return (v - origin) / side;
+	}
+
+	private synchronized Grid<T> getGrid(final Layer la) {
+		Grid<T> g = grids.get(la);
+		if (null == g) {
+			final Set<Node<T>> nodes = tree.node_layer_map.get(la);
+			if (null == nodes) return null;
+			g = build(nodes);
+			grids.put(la, g);
+		}
+		return g;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Grid<T> build(final Set<Node<T>> nodes) {
+		final int n = nodes.size();
+		final Node<T>[] all = (Node<T>[]) new Node[n];
+		final int[] x0 = new int[n],
+		            y0 = new int[n];
+		final ArrayList<Node<T>> large = new ArrayList<Node<T>>();
+		final HashSet<Layer> linked = new HashSet<Layer>();
+		int ox = Integer.MAX_VALUE, oy = Integer.MAX_VALUE,
+		    mx = Integer.MIN_VALUE, my = Integer.MIN_VALUE;
+		int k = 0;
+		for (final Node<T> nd : nodes) {
+			final Rectangle b = tree.getBounds(Collections.singletonList(nd));
+			if (null != nd.parent) {
+				b.add((int)Math.floor(nd.parent.x), (int)Math.floor(nd.parent.y));
+				b.add((int)Math.ceil(nd.parent.x), (int)Math.ceil(nd.parent.y));
+				if (nd.parent.la != nd.la) linked.add(nd.parent.la);
+			}
+			if (null != nd.children) {
+				for (final Node<T> child : nd.children) {
+					if (child.la != nd.la) linked.add(child.la);
+				}
+			}
+			// Account for the truncations of float coordinates
+			b.grow(1, 1);
+			if (b.width > CELL_SIDE || b.height > CELL_SIDE) {
+				large.add(nd);
+				continue;
+			}
+			all[k] = nd;
+			x0[k] = b.x;
+			y0[k] = b.y;
+			if (b.x < ox) ox = b.x;
+			if (b.y < oy) oy = b.y;
+			if (b.x > mx) mx = b.x;
+			if (b.y > my) my = b.y;
+			++k;
+		}
+		// Sparse layers get larger cells, so that there are no more cells than a few per node
+		int side = CELL_SIDE;
+		while (k > 0 && ((long)cell(mx, ox, side) + 1) * (cell(my, oy, side) + 1) > Math.max(1024, 4 * k)) side *= 2;
+		final int cols = 0 == k ? 0 : cell(mx, ox, side) + 1,
+		          rows = 0 == k ? 0 : cell(my, oy, side) + 1;
+		// Counting sort of the nodes by cell
+		final int[] start = new int[cols * rows + 1];
+		final int[] cells = new int[k];
+		for (int i=0; i<k; ++i) {
+			cells[i] = cell(y0[i], oy, side) * cols + cell(x0[i], ox, side);
+			++start[cells[i] + 1];
+		}
+		for (int i=1; i<start.length; ++i) start[i] += start[i-1];
+		final int[] next = new int[start.length];
+		System.arraycopy(start, 0, next, 0, start.length);
+		final Node<T>[] items = (Node<T>[]) new Node[k];
+		for (int i=0; i<k; ++i) items[next[cells[i]]++] = all[i];
+
+		return new Grid<T>(ox, oy, side, cols, rows, start, items, large.toArray((Node<T>[]) new Node[large.size()]), linked);
+	}
+
+	/** Visit the nodes at {@code la} whose painting bounds intersect {@code localRect}, or all nodes at {@code la} when {@code localRect} is null.
+	 *  The nodes passed to {@code visitor} may still not intersect {@code localRect}; test them with {@link Node#isRoughlyInside(Rectangle)}.
+	 *  Nodes are visited once, and nothing is allocated unless the grid for {@code la} has to be built. */
+	void find(final Layer la, final Rectangle localRect, final Visitor<T> visitor) {
+		final Grid<T> g = getGrid(la);
+		if (null == g) return;
+		for (final Node<T> nd : g.large) visitor.visit(nd);
+		if (null == localRect) {
+			for (final Node<T> nd : g.items) visitor.visit(nd);
+			return;
+		}
+		if (localRect.x + localRect.width < g.ox || localRect.y + localRect.height < g.oy) return;
+		// Nodes are filed by the top-left corner of their bounds, which are at most one cell wide and tall
+		final int cx0 = Math.max(0, cell(localRect.x - g.side, g.ox, g.side)),
+		          cy0 = Math.max(0, cell(localRect.y - g.side, g.oy, g.side)),
+		          cx1 = Math.min(g.cols - 1, cell(localRect.x + localRect.width, g.ox, g.side)),
+		          cy1 = Math.min(g.rows - 1, cell(localRect.y + localRect.height, g.oy, g.side));
+		if (cx0 > cx1 || cy0 > cy1) return;
+		for (int cy=cy0; cy<=cy1; ++cy) {
+			for (int i=g.start[cy * g.cols + cx0], end=g.start[cy * g.cols + cx1 + 1]; i<end; ++i) {
+				visitor.visit(g.items[i]);
+			}
+		}
+	}
+
+	/** Whether {@code nd} can be merged with its parent and child when zoomed out. */
+	static private final <T> boolean isMergeable(final Node<T> nd) {
+		return null != nd.parent
+			&& nd.parent.la == nd.la
+			&& null != nd.children
+			&& 1 == nd.children.length
+			&& nd.children[0].la == nd.la
+			&& null == nd.tags
+			&& null == nd.color
+			&& !nd.hasPaintableData();
+	}
+
+	/** For painting at a scale where {@code 1 << level} local pixels are at most one screen pixel,
+	 * returns a map of nodes at {@code la} to skip, which map to themselves, and of the nodes whose edge to the parent
+	 * has to be painted instead to the closest ancestor not skipped, which map to that ancestor.
+	 * Only unbranched nodes without tags, color or data, and with parent and child in the same layer, are skipped,
+	 * and only when closer than {@code 1 << level} to the ancestor not skipped. */
+	IdentityHashMap<Node<T>,Node<T>> getLevelOfDetail(final Layer la, final int level) {
+		final Grid<T> g = getGrid(la);
+		if (null == g) return null;
+		synchronized (this) {
+			final Integer key = level;
+			IdentityHashMap<Node<T>,Node<T>> lod = g.lods.get(key);
+			if (null != lod) return lod;
+			lod = new IdentityHashMap<Node<T>,Node<T>>();
+			final float tol = 1 << level;
+			final Set<Node<T>> nodes = tree.node_layer_map.get(la);
+			if (null != nodes) {
+				for (final Node<T> nd : nodes) {
+					// Walk the chains that start at each node that is not mergeable
+					if (null == nd.children || isMergeable(nd)) continue;
+					for (final Node<T> child : nd.children) {
+						if (child.la != la) continue;
+						Node<T> anchor = nd,
+						        c = child;
+						while (isMergeable(c)) {
+							if (Math.abs(c.x - anchor.x) < tol && Math.abs(c.y - anchor.y) < tol) {
+								lod.put(c, c);
+							} else {
+								if (c.parent != anchor) lod.put(c, anchor);
+								anchor = c;
+							}
+							c = c.children[0];
+						}
+						if (c.parent != anchor) lod.put(c, anchor);
+					}
+				}
+			}
+			g.lods.put(key, lod);
+			return lod;
+		}
+	}
+}
@@ -331,6 +331,11 @@ public class Treeline extends Tree<Float> {
 			//	|| localRect.contains((int)(this.x + vx90 * this.r), (int)(this.y + vy90 * this.r));
 		}
 
+		@Override
+		protected boolean hasPaintableData() {
+			return null != this.parent && (0 != this.r || 0 != parent.getData());
+		}
+
 		@Override
 		public void paintData(final Graphics2D g, final Rectangle srcRect,
 				final Tree<Float> tree, final AffineTransform to_screen, final Color cc,
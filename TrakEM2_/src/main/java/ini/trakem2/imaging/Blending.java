@@ -8,16 +8,17 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.NoninvertibleTransformException;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,11 +26,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.TransformMesh;
 
 /** Utility functions for blending images together, to remove contrast seams.
@@ -37,16 +37,26 @@ import mpicbg.trakem2.transform.TransformMesh;
 public final class Blending {
 
 	static public final Bureaucrat blend(final List<Layer> layers, final boolean respect_current_mask, final Filter<Patch> filter) {
+		return blend(layers, respect_current_mask, filter, 1.0);
+	}
+
+	/** @param scale The scale, in (0, 1], at which to compute the weights of overlapping images, which are then interpolated at each pixel. */
+	static public final Bureaucrat blend(final List<Layer> layers, final boolean respect_current_mask, final Filter<Patch> filter, final double scale) {
 		return Bureaucrat.createAndStart(
 				new Worker.Task("Blending layer-wise") {
 					@Override
                     public void exec() {
-						blendLayerWise(layers, respect_current_mask, filter);
+						blendLayerWise(layers, respect_current_mask, filter, scale);
 					}
 				}, layers.get(0).getProject());
 	}
 
 	static public final void blendLayerWise(final List<Layer> layers, final boolean respect_current_mask, final Filter<Patch> filter) {
+		blendLayerWise(layers, respect_current_mask, filter, 1.0);
+	}
+
+	/** @param scale The scale, in (0, 1], at which to compute the weights of overlapping images, which are then interpolated at each pixel. */
+	static public final void blendLayerWise(final List<Layer> layers, final boolean respect_current_mask, final Filter<Patch> filter, final double scale) {
 		for (final Layer layer : layers) {
 			final List<Patch> patches = layer.getAll(Patch.class);
 			final Set<Patch> s = new HashSet<Patch>();
@@ -58,7 +68,7 @@ public final class Blending {
 					if (filter.accept(p)) s.add(p);
 				}
 			}
-			blendPatches(s, respect_current_mask);
+			blendPatches(s, respect_current_mask, scale);
 		}
 	}
 
@@ -69,42 +79,52 @@ public final class Blending {
 	 *  An image that doesn't overlap at all gets no alpha set at all.
 	 */
 	static public final Bureaucrat blend(final Set<Patch> patches, final boolean respect_current_mask) {
+		return blend(patches, respect_current_mask, 1.0);
+	}
+
+	/** @param scale The scale, in (0, 1], at which to compute the weights of overlapping images, which are then interpolated at each pixel. */
+	static public final Bureaucrat blend(final Set<Patch> patches, final boolean respect_current_mask, final double scale) {
 		if (null == patches || patches.size() < 2) return null;
 
 		return Bureaucrat.createAndStart(
 			new Worker.Task("Blending images") {
 				@Override
                 public void exec() {
-					blendPatches(patches, respect_current_mask);
+					blendPatches(patches, respect_current_mask, scale);
 				}
 			}, patches.iterator().next().getProject());
 	}
 
 	static public final void blendPatches(final Set<Patch> patches, final boolean respect_current_mask) {
-		ExecutorService exe = null;
+		blendPatches(patches, respect_current_mask, 1.0);
+	}
+
+	/** Images with a coordinate transform are blended according to the triangles of their {@link TransformMesh}, as they are rendered.
+	 *  @param scale The scale, in (0, 1], at which to compute the weights of overlapping images, which are then interpolated at each pixel. */
+	static public final void blendPatches(final Set<Patch> patches, final boolean respect_current_mask, final double scale) {
+		Scheduler.Job exe = null;
 		try {
 			if (null == patches || patches.size() < 2) return;
+			if (scale <= 0 || scale > 1) {
+				Utils.log("CANNOT blend: the scale must be larger than zero and at most 1.");
+				return;
+			}
 
 			final Layer layer = patches.iterator().next().getLayer();
 
 			for (final Patch p : patches) {
-				if (null != p.getCoordinateTransform()) {
-					Utils.log("CANNOT blend: at least one image has a coordinate transform.\nBlending of coordinate-transformed images will be enabled in the near future.");
-					return;
-				}
 				if (p.getLayer() != layer) {
 					Utils.log("CANNOT blend: all images must belong to the same layer!\n  Otherwise the overlap cannot be computed.");
 					return;
 				}
 			}
 
-			final HashMap<Patch,TransformMesh> meshes = new HashMap<Patch,TransformMesh>();
+			final HashMap<Patch,Triangles> triangles = new HashMap<Patch,Triangles>();
 			for (final Patch p : patches) {
-				meshes.put(p, null == p.getCoordinateTransform() ? null
-						: new TransformMesh(p.getCoordinateTransform(), p.getMeshResolution(), p.getOWidth(), p.getOHeight()));
+				triangles.put(p, new Triangles(p));
 			}
 
-			exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			exe = Scheduler.getInstance().newJob("Blending", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, 0);
 			final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
 			final List<Future<?>> futures2 = Collections.synchronizedList(new ArrayList<Future<?>>());
 
@@ -124,11 +144,13 @@ public final class Blending {
 				futures.add(exe.submit(new Runnable() { @Override
                 public void run() {
 					final int pLayerIndex = indices.get(p);
+					// Only images below in the stack whose bounds intersect, as found by the buckets of the layer
 					final Set<Patch> overlapping = new HashSet<Patch>();
-					for (final Patch op : patches) {
-						if (indices.get(op) < pLayerIndex) overlapping.add(op);
+					for (final Displayable d : layer.find(Patch.class, triangles.get(p).bounds, false)) {
+						final Integer index = indices.get(d);
+						if (null != index && index < pLayerIndex) overlapping.add((Patch)d);
 					}
-					if (setBlendingMask(p, overlapping, meshes, respect_current_mask)) {
+					if (setBlendingMask(p, overlapping, triangles, respect_current_mask, scale)) {
 						futures2.add(p.updateMipMaps());
 					}
 				}}, null));
@@ -146,18 +168,149 @@ public final class Blending {
 		}
 	}
 
-	/** Returns true if a new mask has been set to Patch p. */
-	static private boolean setBlendingMask(final Patch p, Set<Patch> overlapping, final Map<Patch,TransformMesh> meshes, final boolean respect_current_mask) {
+	/** The mapping of the pixels of a {@link Patch} to world coordinates, as a set of triangles that are each transformed by an affine:
+	 *  the two halves of the image when it doesn't have a coordinate transform, or else those of its {@link TransformMesh}. */
+	static private final class Triangles {
+		final int o_width, o_height;
+		/** For each triangle, the x,y coordinates of its three vertices in the image and then in the world. */
+		final double[][] vertices;
+		/** In world coordinates. */
+		final Rectangle bounds;
+
+		Triangles(final Patch p) {
+			this.o_width = p.getOWidth();
+			this.o_height = p.getOHeight();
+			final AffineTransform at = p.getAffineTransform();
+			final CoordinateTransform ct = p.getCoordinateTransform();
+			if (null == ct) {
+				final double[] w = new double[]{0, 0, o_width, 0, o_width, o_height, 0, o_height};
+				at.transform(w, 0, w, 0, 4);
+				this.vertices = new double[][]{
+					{0, 0, o_width, 0, o_width, o_height, w[0], w[1], w[2], w[3], w[4], w[5]},
+					{0, 0, o_width, o_height, 0, o_height, w[0], w[1], w[4], w[5], w[6], w[7]}};
+			} else {
+				final TransformMesh mesh = new TransformMesh(ct, p.getMeshResolution(), o_width, o_height);
+				// The affine of the Patch already includes the translation to the mesh bounds
+				final Rectangle box = mesh.getBoundingBox();
+				final AffineTransform aff = new AffineTransform(at);
+				aff.translate(-box.x, -box.y);
+				this.vertices = new double[mesh.getAV().size()][];
+				int k = 0;
+				for (final ArrayList<PointMatch> pm : mesh.getAV().values()) {
+					final double[] v = new double[12];
+					for (int i=0; i<3; ++i) {
+						final double[] l = pm.get(i).getP1().getL(),
+						               t = pm.get(i).getP2().getW();
+						v[i*2] = l[0];
+						v[i*2 + 1] = l[1];
+						v[6 + i*2] = t[0];
+						v[6 + i*2 + 1] = t[1];
+					}
+					aff.transform(v, 6, v, 6, 3);
+					this.vertices[k++] = v;
+				}
+			}
+			this.bounds = p.getBoundingBox();
+		}
+	}
+
+	/** Receives the pixels found by {@link Blending#rasterize(double[], int, double, double, double, int, int, PixelVisitor)}. */
+	static private interface PixelVisitor {
+		/** @param i The index of the pixel in the raster.
+		 *  @param x The X coordinate of the pixel mapped by the triangle.
+		 *  @param y The Y coordinate of the pixel mapped by the triangle. */
+		void visit(int i, double x, double y);
+	}
+
+	/** Visit the pixels of a raster of {@code width * height} pixels whose pixel i,j is at {@code ox + i / scale, oy + j / scale}
+	 *  and that fall inside the triangle with vertices at {@code v[from] .. v[from+5]}, mapping each pixel with the affine transform
+	 *  from those vertices to the vertices at {@code v[to] .. v[to+5]}, incrementally along each row. */
+	static private void rasterize(final double[] v, final int from, final int to, final double ox, final double oy, final double scale,
+			final int width, final int height, final PixelVisitor visitor) {
+		final double ax = (v[from] - ox) * scale, ay = (v[from+1] - oy) * scale,
+		             bx = (v[from+2] - ox) * scale - ax, by = (v[from+3] - oy) * scale - ay,
+		             cx = (v[from+4] - ox) * scale - ax, cy = (v[from+5] - oy) * scale - ay;
+		final double det = bx * cy - by * cx;
+		if (0 == det) return;
+		// Barycentric coordinates of a raster pixel: u = (dx * cy - dy * cx) / det, w = (bx * dy - by * dx) / det
+		final double du_dx = cy / det, du_dy = -cx / det,
+		             dw_dx = -by / det, dw_dy = bx / det;
+		final double tx = v[to], ty = v[to+1],
+		             tbx = v[to+2] - tx, tby = v[to+3] - ty,
+		             tcx = v[to+4] - tx, tcy = v[to+5] - ty;
+		final double e = 1e-9;
+		final int x0 = Math.max(0, (int)Math.floor(Math.min(ax, Math.min(ax + bx, ax + cx)))),
+		          y0 = Math.max(0, (int)Math.floor(Math.min(ay, Math.min(ay + by, ay + cy)))),
+		          x1 = Math.min(width - 1, (int)Math.ceil(Math.max(ax, Math.max(ax + bx, ax + cx)))),
+		          y1 = Math.min(height - 1, (int)Math.ceil(Math.max(ay, Math.max(ay + by, ay + cy))));
+		for (int y=y0; y<=y1; ++y) {
+			final double dy = y - ay;
+			double u = (x0 - ax) * du_dx + dy * du_dy,
+			       w = (x0 - ax) * dw_dx + dy * dw_dy;
+			for (int x=x0, i=y*width+x0; x<=x1; ++x, ++i, u += du_dx, w += dw_dx) {
+				if (u < -e || w < -e || u + w > 1 + e) continue;
+				visitor.visit(i, tx + u * tbx + w * tcx, ty + u * tby + w * tcy);
+			}
+		}
+	}
 
-		Utils.log2("Blending " + p);
+	/** Returns true if a new mask has been set to Patch p. */
+	static private boolean setBlendingMask(final Patch p, Set<Patch> overlapping, final Map<Patch,Triangles> triangles, final boolean respect_current_mask, final double scale) {
 
 		if (overlapping.contains(p)) {
 			overlapping = new HashSet<Patch>(overlapping);
 			overlapping.remove(p);
 		}
+		if (overlapping.isEmpty()) {
+			Utils.log("Nothing to blend in image " + p);
+			return false;
+		}
 
-		final AffineTransform at = p.getAffineTransform();
-		final TransformMesh mesh = meshes.get(p);
+		final Triangles pt = triangles.get(p);
+
+		// 1 - Sum of the weights of the overlapping images, in world coordinates over the bounds of p, at the given scale
+		final Rectangle box = pt.bounds;
+		final int rw = (int)Math.ceil(box.width * scale) + 1,
+		          rh = (int)Math.ceil(box.height * scale) + 1;
+		final float[] sum = new float[rw * rh],
+		              weights = new float[rw * rh];
+		boolean any = false;
+		for (final Patch other : overlapping) {
+			if (Thread.currentThread().isInterrupted()) return false;
+			final Triangles ot = triangles.get(other);
+			final int o_width = ot.o_width,
+			          o_height = ot.o_height;
+			// The part of the raster within the bounds of the other image
+			final int x0 = Math.max(0, (int)Math.floor((ot.bounds.x - box.x) * scale)),
+			          y0 = Math.max(0, (int)Math.floor((ot.bounds.y - box.y) * scale)),
+			          x1 = Math.min(rw - 1, (int)Math.ceil((ot.bounds.x + ot.bounds.width - box.x) * scale)),
+			          y1 = Math.min(rh - 1, (int)Math.ceil((ot.bounds.y + ot.bounds.height - box.y) * scale));
+			if (x0 > x1 || y0 > y1) continue;
+			// Pixels on the edges shared by two triangles are visited twice: set, don't add
+			for (int y=y0; y<=y1; ++y) Arrays.fill(weights, y * rw + x0, y * rw + x1 + 1, 0);
+			for (final double[] v : ot.vertices) {
+				rasterize(v, 6, 0, box.x, box.y, scale, rw, rh, new PixelVisitor() {
+					@Override
+					public final void visit(final int i, final double x, final double y) {
+						if (x >= 0 && x < o_width && y >= 0 && y < o_height) {
+							weights[i] = (float)computeWeight(x, y, o_width, o_height);
+						}
+					}
+				});
+			}
+			for (int y=y0; y<=y1; ++y) {
+				for (int i=y*rw+x0, end=y*rw+x1; i<=end; ++i) {
+					if (weights[i] > 0) {
+						sum[i] += weights[i];
+						any = true;
+					}
+				}
+			}
+		}
+		if (!any) {
+			Utils.log("Nothing to blend in image " + p);
+			return false;
+		}
 
 		ByteProcessor mask = null;
 		if (respect_current_mask) {
@@ -170,78 +323,32 @@ public final class Blending {
 		}
 
 		final byte[] pix = (byte[]) mask.getPixels();
-
-		final Point2D.Double po = new Point2D.Double();
-		final double[] fo = new double[2];
-
 		final int p_o_width = p.getOWidth();
 		final int p_o_height = p.getOHeight();
 
-		int next = 0;
-		final double[] weights = new double[overlapping.size() + 1]; // the self as well
-		int masked = 0;
-
-		for (int y=0; y<p_o_height; y++) {
-
+		// 2 - Each pixel of p, mapped to world coordinates, gets the fraction of its own weight over the sum with those of the overlapping images
+		final boolean[] done = new boolean[pix.length];
+		final int[] masked = new int[1];
+		for (final double[] v : pt.vertices) {
 			if (Thread.currentThread().isInterrupted()) return false;
-
-			for (int x=0; x<p_o_width; x++) {
-
-				// transform x,y to world coords
-				if (null != mesh) {
-					fo[0] = x;
-					fo[1] = y;
-					mesh.applyInPlace(fo);
-					po.x = fo[0];
-					po.y = fo[1];
-				} else {
-					po.x = x;
-					po.y = y;
-				}
-
-				at.transform(po, po);
-
-				fo[0] = po.x;
-				fo[1] = po.y;
-
-				// debug:
-				if (0 == x && 0 == y) {
-					Utils.log2("point 0,0 goes to " + fo[0] + ", " + fo[1]);
-				}
-
-				// check if it intersects any Patch
-				next = 0;
-				for (final Patch other : overlapping) {
-					final double weight = intersects(fo, other, meshes.get(other));
-					if (weight > 0) weights[next++] = weight;
-				}
-
-				final int i = y * p_o_width + x;
-
-				if (respect_current_mask) {
-					// Don't compute if no overlap or if current mask value is zero
-					if (next > 0 && pix[i] != 0) {
-						weights[next++] = computeWeight(x, y, p_o_width, p_o_height); // the weight of Patch p, added last
-						double sum = 0;
-						for (int f=0; f<next; f++) sum += weights[f];
-						pix[i] = (byte)((int)(255 * (weights[next-1] / sum) * ((pix[i]&0xff) / 255.0f) ));
-						masked++;
-					}
-					// else leave current value untouched
-				} else if (next > 0) {
-					// Overwritting current mask
-					weights[next++] = computeWeight(x, y, p_o_width, p_o_height); // the weight of Patch p, added last
-					double sum = 0;
-					for (int f=0; f<next; f++) sum += weights[f];
-					pix[i] = (byte)((int)(255 * (weights[next-1] / sum)));
-					masked++;
+			rasterize(v, 0, 6, 0, 0, 1, p_o_width, p_o_height, new PixelVisitor() {
+				@Override
+				public final void visit(final int i, final double wx, final double wy) {
+					if (done[i]) return;
+					done[i] = true;
+					// Don't compute if the current mask value is zero
+					if (respect_current_mask && 0 == pix[i]) return;
+					final double others = interpolate(sum, rw, rh, (wx - box.x) * scale, (wy - box.y) * scale);
+					if (others <= 0) return; // no overlap: leave current value untouched
+					final double weight = computeWeight(i % p_o_width, i / p_o_width, p_o_width, p_o_height); // the weight of Patch p
+					final double f = weight / (weight + others);
+					pix[i] = (byte)(int)(respect_current_mask ? 255 * f * ((pix[i]&0xff) / 255.0f) : 255 * f);
+					masked[0]++;
 				}
-			}
+			});
 		}
 
-		Utils.log2("Masked = " + masked + " for " + p);
-
-		if (masked > 0) {
+		if (masked[0] > 0) {
 			p.setAlphaMask(mask);
 
 			//new ij.ImagePlus("mask for " + p.getId(), mask).show();
@@ -255,42 +362,24 @@ public final class Blending {
 		return false;
 	}
 
+	/** Bilinear interpolation of the raster at x,y; zero outside. */
+	static private final double interpolate(final float[] raster, final int width, final int height, final double x, final double y) {
+		final int x0 = (int)Math.floor(x),
+		          y0 = (int)Math.floor(y);
+		if (x0 < 0 || y0 < 0 || x0 >= width || y0 >= height) return 0;
+		final int x1 = Math.min(width - 1, x0 + 1),
+		          y1 = Math.min(height - 1, y0 + 1);
+		final double fx = x - x0,
+		             fy = y - y0;
+		final double top = raster[y0 * width + x0] * (1 - fx) + raster[y0 * width + x1] * fx,
+		             bottom = raster[y1 * width + x0] * (1 - fx) + raster[y1 * width + x1] * fx;
+		return top * (1 - fy) + bottom * fy;
+	}
+
 	static private final double computeWeight(final double x, final double y, final int width, final int height) {
 		//return Math.min(Math.min(x, width - x),
 		//		Math.min(y, height - y));
 		// Normalized, as suggested by Stephan Preibisch:
 		return (Math.min(x, width - x) / (width/2)) * (Math.min(y, height - y) / (height/2));
 	}
-
-	/** Returns true if fo[0,1] x,y world coords intersect the affine and potentially coordinate transformed pixels of the other Patch. */
-	static private double intersects(final double[] fo, final Patch other, final TransformMesh mesh) {
-		// First inverse affine transform
-		final AffineTransform at = other.getAffineTransform();
-		final Point2D.Double po = new Point2D.Double(fo[0], fo[1]);
-		final int o_width = other.getOWidth();
-		final int o_height = other.getOHeight();
-		try {
-			at.inverseTransform(po, po);
-		} catch (final NoninvertibleTransformException nite) {
-			return -1;
-		}
-		if (null == mesh) {
-			if (po.x >= 0 && po.x < o_width
-			 && po.y >= 0 && po.y < o_height) {
-				return computeWeight(po.x, po.y, o_width, o_height);
-			 } else {
-				 return -1;
-			 }
-		}
-		// Then inverse the coordinate transform
-		try {
-			fo[0] = po.x;
-			fo[1] = po.y;
-			mesh.applyInverseInPlace(fo);
-			return computeWeight(fo[0], fo[1], o_width, o_height);
-		} catch (final NoninvertibleModelException nime) {
-			// outside boundaries
-			return -1;
-		}
-	}
 }
@@ -0,0 +1,594 @@
+package ini.trakem2.imaging;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Given two {@link Area} instances, generate an {@link Area} that sits somewhere
+ * in between, as specified by the weight, from the exact Euclidean signed distance
+ * to the outline of each: positive inside, negative outside. Wherever the weighted
+ * sum of both distances is larger than zero, the interpolated {@link Area} is inside.
+ *
+ * A weight of zero means that the first {@link Area} is not present at all
+ * in the interpolated {@link Area}; a weight of one means that the first {@link Area} is present exclusively.
+ *
+ * The distances are first computed, once, on a coarse grid with a linear-time exact distance transform
+ * (Felzenszwalb and Huttenlocher, 2012). Then, for each weight, only the pixels that the coarse distances
+ * cannot tell apart as inside or outside are refined, with exact distances to the outlines.
+ * The interpolated outline is traced at sub-pixel precision from the refined distances,
+ * and simplified to within {@link #TOLERANCE} pixels, so that it has far fewer segments than
+ * an outline that follows the edges of pixels.
+ *
+ * Unlike {@link BinaryInterpolation2D}, {@link #interpolate(float)} is thread safe,
+ * so that many weights can be interpolated in parallel.
+ */
+public final class DistanceInterpolation2D
+{
+	/** The side, in pixels, of the cells of the coarse grid. */
+	static public int COARSE_STEP = 4;
+	/** The maximum distance, in pixels, between the traced outline and its simplified polygons. */
+	static public double TOLERANCE = 0.25;
+
+	static private final float INF = 1e20f;
+
+	/** The world bounds of the grid, padded with one cell outside both areas on every side. */
+	private final Rectangle box;
+	private final int step, cw, ch, width, height;
+	private final Outline o1, o2;
+	/** The signed distances at the centers of the cells of the coarse grid, in pixels. */
+	private final float[] sd1, sd2;
+	/** An upper bound of the difference between the true distances and those interpolated from the coarse grid, plus one. */
+	private final float margin;
+
+	public DistanceInterpolation2D(final Area a1, final Area a2) {
+		final Rectangle b = a1.getBounds();
+		b.add(a2.getBounds());
+		this.step = Math.max(1, Math.min(COARSE_STEP, Math.max(b.width, b.height) / 64));
+		this.cw = (b.width + step - 1) / step + 2;
+		this.ch = (b.height + step - 1) / step + 2;
+		this.width = cw * step;
+		this.height = ch * step;
+		this.box = new Rectangle(b.x - step, b.y - step, width, height);
+		// The coarse distances are off by less than the diagonal of a cell, and their bilinear interpolation,
+		// given that distances change at most by one per pixel, by less than half the diagonal of a cell.
+		this.margin = 2 * step + 1;
+		final AffineTransform translate = new AffineTransform(1, 0, 0, 1, -box.x, -box.y);
+		this.o1 = new Outline(a1.getPathIterator(translate, 0.1), height);
+		this.o2 = new Outline(a2.getPathIterator(translate, 0.1), height);
+		this.sd1 = signedDistances(o1);
+		this.sd2 = signedDistances(o2);
+	}
+
+	/** The segments of the outline of an {@link Area}, in a hierarchy of bounding boxes for distance queries,
+	 * and the crossings of each row of pixel centers, for inside tests. */
+	static private final class Outline {
+		static private final int LEAF = 8;
+		/** Four values per segment: x1, y1, x2, y2. */
+		final float[] s;
+		final int n;
+		/** The segment indices, in the order of the leaves of the hierarchy. */
+		final int[] order;
+		/** Per node: the bounds as min x, min y, max x, max y. */
+		final float[] bounds;
+		/** Per node: the first and last child nodes, or the range in {@link #order} when a leaf, with the first negated minus one. */
+		final int[] children;
+		int n_nodes = 0;
+		/** The sorted X coordinates at which the outline crosses each row of pixel centers. */
+		final float[][] rows;
+
+		Outline(final PathIterator pit, final int height) {
+			float[] s = new float[256];
+			int n = 0;
+			final float[] c = new float[6];
+			float x0 = 0, y0 = 0, px = 0, py = 0;
+			for (; !pit.isDone(); pit.next()) {
+				final int type = pit.currentSegment(c);
+				float x, y;
+				switch (type) {
+					case PathIterator.SEG_MOVETO:
+						x0 = px = c[0];
+						y0 = py = c[1];
+						continue;
+					case PathIterator.SEG_CLOSE:
+						x = x0;
+						y = y0;
+						break;
+					default: // flattened: only SEG_LINETO
+						x = c[0];
+						y = c[1];
+						break;
+				}
+				if (x != px || y != py) {
+					if (s.length == n * 4) s = Arrays.copyOf(s, s.length * 2);
+					s[n*4    ] = px;
+					s[n*4 + 1] = py;
+					s[n*4 + 2] = x;
+					s[n*4 + 3] = y;
+					++n;
+				}
+				px = x;
+				py = y;
+			}
+			this.s = s;
+			this.n = n;
+			this.order = new int[n];
+			for (int i=0; i<n; ++i) order[i] = i;
+			final int max_nodes = 4 * (n / LEAF + 1); // leaves hold at least half of LEAF segments
+			this.bounds = new float[max_nodes * 4];
+			this.children = new int[max_nodes * 2];
+			if (n > 0) build(0, n);
+			this.rows = scan(height, 0.5, 1);
+		}
+
+		/** Create the node for the segments from {@code lo} (inclusive) to {@code hi} (exclusive) in {@link #order}, splitting them at the median along the longer side. */
+		private int build(final int lo, final int hi) {
+			final int node = n_nodes++;
+			float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE,
+			      maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE;
+			for (int k=lo; k<hi; ++k) {
+				final int i = order[k] * 4;
+				minx = Math.min(minx, Math.min(s[i], s[i+2]));
+				maxx = Math.max(maxx, Math.max(s[i], s[i+2]));
+				miny = Math.min(miny, Math.min(s[i+1], s[i+3]));
+				maxy = Math.max(maxy, Math.max(s[i+1], s[i+3]));
+			}
+			bounds[node*4    ] = minx;
+			bounds[node*4 + 1] = miny;
+			bounds[node*4 + 2] = maxx;
+			bounds[node*4 + 3] = maxy;
+			if (hi - lo <= LEAF) {
+				children[node*2    ] = -lo - 1;
+				children[node*2 + 1] = hi;
+				return node;
+			}
+			final int axis = maxx - minx > maxy - miny ? 0 : 1;
+			final int mid = (lo + hi) >>> 1;
+			select(lo, hi - 1, mid, axis);
+			children[node*2    ] = build(lo, mid);
+			children[node*2 + 1] = build(mid, hi);
+			return node;
+		}
+
+		/** Twice the center of segment {@code order[k]} along {@code axis}. */
+		private float center(final int k, final int axis) {
+			final int i = order[k] * 4 + axis;
+			return s[i] + s[i+2];
+		}
+
+		/** Partially sort {@link #order} from {@code lo} to {@code hi}, both inclusive, so that {@code k} holds the median along {@code axis}. */
+		private void select(int lo, int hi, final int k, final int axis) {
+			while (lo < hi) {
+				final float pivot = center((lo + hi) >>> 1, axis);
+				int i = lo,
+				    j = hi;
+				while (i <= j) {
+					while (center(i, axis) < pivot) ++i;
+					while (center(j, axis) > pivot) --j;
+					if (i <= j) {
+						final int t = order[i];
+						order[i] = order[j];
+						order[j] = t;
+						++i;
+						--j;
+					}
+				}
+				if (k <= j) hi = j;
+				else if (k >= i) lo = i;
+				else return;
+			}
+		}
+
+		/** The sorted X coordinates at which the outline crosses each of {@code n_rows} rows, the first at {@code y0} and then every {@code dy}. */
+		float[][] scan(final int n_rows, final double y0, final double dy) {
+			final int[] counts = new int[n_rows];
+			final float[][] xs = new float[n_rows][];
+			for (int pass=0; pass<2; ++pass) {
+				for (int i=0; i<n; ++i) {
+					final float xa = s[i*4], ya = s[i*4+1],
+					            xb = s[i*4+2], yb = s[i*4+3];
+					if (ya == yb) continue;
+					// Rows whose Y is within [min(ya, yb), max(ya, yb)), so that each crossing is counted once
+					final int r0 = Math.max(0, (int)Math.ceil((Math.min(ya, yb) - y0) / dy)),
+					          r1 = Math.min(n_rows, (int)Math.ceil((Math.max(ya, yb) - y0) / dy));
+					for (int r=r0; r<r1; ++r) {
+						if (0 == pass) ++counts[r];
+						else xs[r][--counts[r]] = (float)(xa + (y0 + r * dy - ya) * (xb - xa) / (yb - ya));
+					}
+				}
+				if (0 == pass) {
+					for (int r=0; r<n_rows; ++r) xs[r] = new float[counts[r]];
+				}
+			}
+			for (int r=0; r<n_rows; ++r) Arrays.sort(xs[r]);
+			return xs;
+		}
+
+		/** The distance from x,y to the closest segment, when closer than {@code r}; otherwise {@code r}.
+		 * @param hint Holds the index of a segment likely to be close, such as the closest one to a neighboring pixel, or -1;
+		 *             and is set to the index of the closest segment. */
+		float distance(final float x, final float y, final float r, final int[] hint) {
+			if (0 == n) return r;
+			double min = (double)r * r;
+			if (-1 != hint[0]) {
+				final int i = hint[0] * 4;
+				min = Math.min(min, squaredDistance(x, y, s[i], s[i+1], s[i+2], s[i+3]));
+			}
+			final int[] stack = new int[64];
+			int top = 0;
+			stack[top++] = 0;
+			while (top > 0) {
+				final int node = stack[--top];
+				if (boxDistance(node, x, y) >= min) continue;
+				final int first = children[node*2];
+				if (first < 0) {
+					for (int k=-first-1, hi=children[node*2 + 1]; k<hi; ++k) {
+						final int i = order[k] * 4;
+						final double d = squaredDistance(x, y, s[i], s[i+1], s[i+2], s[i+3]);
+						if (d < min) {
+							min = d;
+							hint[0] = order[k];
+						}
+					}
+				} else {
+					// Visit the closer child first
+					final int second = children[node*2 + 1];
+					if (boxDistance(first, x, y) < boxDistance(second, x, y)) {
+						stack[top++] = second;
+						stack[top++] = first;
+					} else {
+						stack[top++] = first;
+						stack[top++] = second;
+					}
+				}
+			}
+			return (float)Math.sqrt(min);
+		}
+
+		/** The squared distance from x,y to the bounds of {@code node}. */
+		private double boxDistance(final int node, final float x, final float y) {
+			final double dx = Math.max(0, Math.max(bounds[node*4] - x, x - bounds[node*4 + 2])),
+			             dy = Math.max(0, Math.max(bounds[node*4 + 1] - y, y - bounds[node*4 + 3]));
+			return dx * dx + dy * dy;
+		}
+	}
+
+	static private double squaredDistance(final double px, final double py, final double x1, final double y1, final double x2, final double y2) {
+		final double dx = x2 - x1,
+		             dy = y2 - y1;
+		double t = ((px - x1) * dx + (py - y1) * dy) / (dx * dx + dy * dy);
+		if (t < 0) t = 0;
+		else if (t > 1) t = 1;
+		final double ex = x1 + t * dx - px,
+		             ey = y1 + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+
+	/** Whether {@code x} is inside, given the sorted crossings of the outline with its row. */
+	static private boolean inside(final float[] crossings, final float x) {
+		int lo = 0,
+		    hi = crossings.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (crossings[mid] < x) lo = mid + 1;
+			else hi = mid;
+		}
+		return 1 == (lo & 1);
+	}
+
+	/** The signed distance at the center of each cell of the coarse grid to the nearest cell that the outline goes through,
+	 * which differs from the true distance by less than the diagonal of a cell. The sign is exact. */
+	private float[] signedDistances(final Outline o) {
+		final float[][] crossings = o.scan(ch, step / 2.0, step);
+		final float[] d = new float[cw * ch];
+		Arrays.fill(d, INF);
+		// Mark the cells that the outline goes through, sampling each segment at most every half a cell
+		for (int i=0; i<o.n; ++i) {
+			final float x1 = o.s[i*4], y1 = o.s[i*4+1],
+			            x2 = o.s[i*4+2], y2 = o.s[i*4+3];
+			final int n_samples = (int)Math.ceil(Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1)) * 2 / step);
+			for (int k=0; k<=n_samples; ++k) {
+				final float t = 0 == n_samples ? 0 : k / (float)n_samples;
+				final int cx = Math.max(0, Math.min(cw - 1, (int)((x1 + t * (x2 - x1)) / step))),
+				          cy = Math.max(0, Math.min(ch - 1, (int)((y1 + t * (y2 - y1)) / step)));
+				d[cy * cw + cx] = 0;
+			}
+		}
+		edt(d, cw, ch);
+		for (int cy=0, k=0; cy<ch; ++cy) {
+			for (int cx=0; cx<cw; ++cx, ++k) {
+				d[k] = (float)Math.sqrt(d[k]) * step;
+				if (!inside(crossings[cy], (cx + 0.5f) * step)) d[k] = -d[k];
+			}
+		}
+		return d;
+	}
+
+	/** In place, exact squared Euclidean distance transform of a sampled function: zero at the targets, {@link #INF} elsewhere. */
+	static private void edt(final float[] f, final int w, final int h) {
+		final int n = Math.max(w, h);
+		final float[] line = new float[n], d = new float[n], z = new float[n + 1];
+		final int[] v = new int[n];
+		for (int x=0; x<w; ++x) {
+			for (int y=0; y<h; ++y) line[y] = f[y * w + x];
+			edt1d(line, h, d, v, z);
+			for (int y=0; y<h; ++y) f[y * w + x] = d[y];
+		}
+		for (int y=0; y<h; ++y) {
+			System.arraycopy(f, y * w, line, 0, w);
+			edt1d(line, w, d, v, z);
+			System.arraycopy(d, 0, f, y * w, w);
+		}
+	}
+
+	/** Lower envelope of parabolas rooted at each sample of {@code f}. */
+	static private void edt1d(final float[] f, final int n, final float[] d, final int[] v, final float[] z) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = -INF;
+		z[1] = INF;
+		for (int q=1; q<n; ++q) {
+			float s = intersection(f, q, v[k]);
+			while (s <= z[k]) {
+				--k;
+				s = intersection(f, q, v[k]);
+			}
+			++k;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = INF;
+		}
+		k = 0;
+		for (int q=0; q<n; ++q) {
+			while (z[k + 1] < q) ++k;
+			final int dq = q - v[k];
+			d[q] = Math.min(INF, dq * dq + f[v[k]]);
+		}
+	}
+
+	/** Where the parabolas rooted at samples q and p intersect. */
+	static private float intersection(final float[] f, final int q, final int p) {
+		return (float)(((f[q] + (double)q * q) - (f[p] + (double)p * p)) / (2.0 * (q - p)));
+	}
+
+	/** Bilinear interpolation of the coarse grid {@code c} at the center of pixel x,y. */
+	private float coarse(final float[] c, final int x, final int y) {
+		final float u = Math.max(0, Math.min(cw - 1, (x + 0.5f) / step - 0.5f)),
+		            v = Math.max(0, Math.min(ch - 1, (y + 0.5f) / step - 0.5f));
+		final int i = Math.min(cw - 2, (int)u),
+		          j = Math.min(ch - 2, (int)v);
+		final float fu = u - i,
+		            fv = v - j;
+		final int k = j * cw + i;
+		return (c[k] * (1 - fu) + c[k + 1] * fu) * (1 - fv)
+		     + (c[k + cw] * (1 - fu) + c[k + cw + 1] * fu) * fv;
+	}
+
+	/** The exact signed distance from the center of pixel x,y to the outline {@code o}. */
+	private float exact(final Outline o, final float[] sd, final int x, final int y, final int[] hint) {
+		final float estimate = coarse(sd, x, y);
+		if (0 == o.n) return estimate;
+		final float px = x + 0.5f;
+		final float d = o.distance(px, y + 0.5f, Math.abs(estimate) + margin, hint);
+		return inside(o.rows[y], px) ? d : -d;
+	}
+
+	/** @param weight Between 0 and 1, both inclusive: the weight of the first {@link Area}.
+	 * @return The interpolated {@link Area}, in the same coordinates as the two given ones. */
+	public Area interpolate(final float weight) {
+		if (weight < 0 || weight > 1) {
+			throw new IllegalArgumentException("Weight must be between 0 and 1, both inclusive.");
+		}
+		final float w1 = weight,
+		            w2 = 1 - weight;
+		final float[] fc = new float[cw * ch];
+		for (int k=0; k<fc.length; ++k) fc[k] = w1 * sd1[k] + w2 * sd2[k];
+
+		// A cell is inside or outside when so are all the centers around it, by more than the margin;
+		// otherwise it may contain the interpolated outline, and its pixels are refined.
+		final byte[] state = new byte[cw * ch];
+		final HashMap<Integer,float[]> refined = new HashMap<Integer,float[]>();
+		for (int cy=0, k=0; cy<ch; ++cy) {
+			for (int cx=0; cx<cw; ++cx, ++k) {
+				float min = Float.MAX_VALUE,
+				      max = -Float.MAX_VALUE;
+				for (int j=Math.max(0, cy-1); j<=Math.min(ch-1, cy+1); ++j) {
+					for (int i=Math.max(0, cx-1); i<=Math.min(cw-1, cx+1); ++i) {
+						final float v = fc[j * cw + i];
+						if (v < min) min = v;
+						if (v > max) max = v;
+					}
+				}
+				if (min > margin) state[k] = 1;
+				else if (max < -margin) state[k] = -1;
+				else refined.put(k, refine(cx, cy, fc, w1, w2));
+			}
+		}
+		return trace(state, refined);
+	}
+
+	/** The interpolated signed distances for each pixel of cell cx,cy: exact where the sign could be wrong. */
+	private float[] refine(final int cx, final int cy, final float[] fc, final float w1, final float w2) {
+		final float[] f = new float[step * step];
+		final int[] hint1 = new int[]{-1},
+		            hint2 = new int[]{-1};
+		for (int j=0, k=0; j<step; ++j) {
+			final int y = cy * step + j;
+			for (int i=0; i<step; ++i, ++k) {
+				final int x = cx * step + i;
+				final float estimate = coarse(fc, x, y);
+				if (Math.abs(estimate) > margin + 1) f[k] = estimate;
+				else f[k] = w1 * exact(o1, sd1, x, y, hint1) + w2 * exact(o2, sd2, x, y, hint2);
+			}
+		}
+		return f;
+	}
+
+	private float value(final byte[] state, final Map<Integer,float[]> refined, final int x, final int y) {
+		final int k = (y / step) * cw + x / step;
+		if (0 != state[k]) return state[k] * (margin + 2);
+		return refined.get(k)[(y % step) * step + x % step];
+	}
+
+	/** Marching squares over the refined cells, whose pixel centers are the only ones across which the sign may change. */
+	private Area trace(final byte[] state, final Map<Integer,float[]> refined) {
+		// Each point of the outline lies on the edge between two pixel centers, identified by the first pixel and whether the edge is vertical
+		final HashMap<Long,long[]> links = new HashMap<Long,long[]>();
+		for (final Integer key : refined.keySet()) {
+			final int cx = key % cw,
+			          cy = key / cw;
+			final int xe = Math.min(width - 1, (cx + 1) * step),
+			          ye = Math.min(height - 1, (cy + 1) * step);
+			for (int y=cy*step; y<ye; ++y) {
+				for (int x=cx*step; x<xe; ++x) {
+					final float a = value(state, refined, x, y),
+					            b = value(state, refined, x + 1, y),
+					            c = value(state, refined, x + 1, y + 1),
+					            d = value(state, refined, x, y + 1);
+					final int index = (a > 0 ? 1 : 0) | (b > 0 ? 2 : 0) | (c > 0 ? 4 : 0) | (d > 0 ? 8 : 0);
+					if (0 == index || 15 == index) continue;
+					final long top = edge(x, y, false),
+					           right = edge(x + 1, y, true),
+					           bottom = edge(x, y + 1, false),
+					           left = edge(x, y, true);
+					switch (index) {
+						case 1: case 14: link(links, top, left); break;
+						case 2: case 13: link(links, top, right); break;
+						case 4: case 11: link(links, right, bottom); break;
+						case 8: case 7: link(links, bottom, left); break;
+						case 3: case 12: link(links, left, right); break;
+						case 6: case 9: link(links, top, bottom); break;
+						case 5: case 10:
+							// Saddle: resolved by the value at the center of the square
+							if ((a + b + c + d > 0) == (a > 0)) {
+								link(links, top, right);
+								link(links, bottom, left);
+							} else {
+								link(links, top, left);
+								link(links, right, bottom);
+							}
+							break;
+					}
+				}
+			}
+		}
+
+		final Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+		float[] xy = new float[256];
+		while (!links.isEmpty()) {
+			final Iterator<Map.Entry<Long,long[]>> it = links.entrySet().iterator();
+			final Map.Entry<Long,long[]> first = it.next();
+			final long start = first.getKey();
+			long prev = -1,
+			     current = start;
+			int n = 0;
+			while (true) {
+				final long[] next = links.remove(current);
+				if (null == next) break;
+				if (xy.length == n * 2) xy = Arrays.copyOf(xy, xy.length * 2);
+				point(state, refined, current, xy, n++);
+				final long following = next[0] != prev ? next[0] : next[1];
+				prev = current;
+				current = following;
+				if (current == start || -1 == current) break;
+			}
+			if (n < 3) continue;
+			final boolean[] keep = simplify(xy, n);
+			boolean moved = false;
+			for (int i=0; i<n; ++i) {
+				if (!keep[i]) continue;
+				final float x = box.x + xy[i*2],
+				            y = box.y + xy[i*2+1];
+				if (moved) path.lineTo(x, y);
+				else {
+					path.moveTo(x, y);
+					moved = true;
+				}
+			}
+			path.closePath();
+		}
+		return new Area(path);
+	}
+
+	private long edge(final int x, final int y, final boolean vertical) {
+		return ((long)y * width + x) * 2 + (vertical ? 1 : 0);
+	}
+
+	static private void link(final Map<Long,long[]> links, final long e1, final long e2) {
+		attach(links, e1, e2);
+		attach(links, e2, e1);
+	}
+
+	static private void attach(final Map<Long,long[]> links, final long e, final long other) {
+		long[] l = links.get(e);
+		if (null == l) {
+			l = new long[]{other, -1};
+			links.put(e, l);
+		} else {
+			l[1] = other;
+		}
+	}
+
+	/** Store in xy at index i the position of the outline along edge e, relative to the grid. */
+	private void point(final byte[] state, final Map<Integer,float[]> refined, final long e, final float[] xy, final int i) {
+		final boolean vertical = 1 == (e & 1);
+		final long p = e / 2;
+		final int x = (int)(p % width),
+		          y = (int)(p / width);
+		final float a = value(state, refined, x, y),
+		            b = vertical ? value(state, refined, x, y + 1) : value(state, refined, x + 1, y);
+		final float t = a / (a - b);
+		xy[i*2    ] = x + 0.5f + (vertical ? 0 : t);
+		xy[i*2 + 1] = y + 0.5f + (vertical ? t : 0);
+	}
+
+	/** Douglas-Peucker simplification of the closed polygon of {@code n} points in {@code xy}, to within {@link #TOLERANCE}. */
+	static private boolean[] simplify(final float[] xy, final int n) {
+		final boolean[] keep = new boolean[n];
+		// Split the closed polygon at its first point and at the point farthest from it
+		int far = 0;
+		double max = -1;
+		for (int i=1; i<n; ++i) {
+			final double dx = xy[i*2] - xy[0],
+			             dy = xy[i*2+1] - xy[1];
+			final double d = dx * dx + dy * dy;
+			if (d > max) {
+				max = d;
+				far = i;
+			}
+		}
+		keep[0] = true;
+		keep[far] = true;
+		final double tol2 = TOLERANCE * TOLERANCE;
+		// Ranges of indices, the end wrapping around to the first point
+		final int[] stack = new int[2 * n + 4];
+		int top = 0;
+		stack[top++] = 0; stack[top++] = far;
+		stack[top++] = far; stack[top++] = n;
+		while (top > 0) {
+			final int end = stack[--top],
+			          start = stack[--top];
+			if (end - start < 2) continue;
+			final int e = end % n;
+			int worst = -1;
+			double worst_d = tol2;
+			for (int i=start+1; i<end; ++i) {
+				final double d = squaredDistance(xy[i*2], xy[i*2+1], xy[start*2], xy[start*2+1], xy[e*2], xy[e*2+1]);
+				if (d > worst_d) {
+					worst_d = d;
+					worst = i;
+				}
+			}
+			if (-1 == worst) continue;
+			keep[worst] = true;
+			stack[top++] = start; stack[top++] = worst;
+			stack[top++] = worst; stack[top++] = end;
+		}
+		return keep;
+	}
+}
@@ -30,6 +30,7 @@ public class LayerStack extends ImageStack {
 	final HashMap<Long,Long> id_cache = new HashMap<Long, Long>();
 	
 	private ImagePlus layer_imp = null;
+	private SliceReadAhead read_ahead = null;
 
 	public LayerStack(final LayerSet layer_set, final double scale, final int type, final Class<?> clazz, final int c_alphas, final boolean invert) {
 		this(layer_set.getLayers(), layer_set.get2DBounds(), scale, type, clazz, c_alphas, invert);
@@ -96,10 +97,29 @@ public class LayerStack extends ImageStack {
 
 	/** Returns an ImageProcessor for the specified slice,
 		where {@code 1<=n<=nslices}. Returns null if the stack is empty.
+		Slices following in the direction of browsing are rendered ahead in parallel.
 	*/
 	@Override
 	public ImageProcessor getProcessor(int n) {
 		if (n < 1 || n > layers.size()) return null;
+		return getReadAhead().get(n);
+	}
+
+	synchronized private SliceReadAhead getReadAhead() {
+		if (null == read_ahead) {
+			final long bytes = (long)getWidth() * getHeight() * (ImagePlus.COLOR_RGB == type ? 4 : 1);
+			final int depth = SliceReadAhead.suggestDepth(bytes);
+			read_ahead = new SliceReadAhead("LayerStack", new SliceReadAhead.Source() {
+				@Override
+				public ImageProcessor render(final int n) {
+					return LayerStack.this.render(n);
+				}
+			}, layers.size(), depth, 2 * depth + 1);
+		}
+		return read_ahead;
+	}
+
+	private ImageProcessor render(final int n) {
 		// Create a flat image on the fly with everything on it, and return its processor.
 		final Layer layer = layers.get(n-1);
 		final Loader loader = layer.getProject().getLoader();
@@ -140,10 +160,23 @@ public class LayerStack extends ImageStack {
 	@Override
 	public Object[] getImageArray() {
 		// Release 3 times an RGB stack with this dimensions.
-		layers.get(0).getProject().getLoader().releaseToFit((long)(getSize() * getWidth() * getHeight() * 4 * 3));
+		final Loader loader = layers.get(0).getProject().getLoader();
+		loader.releaseToFit((long)(getSize() * getWidth() * getHeight() * 4 * 3));
 		final Object[] ia = new Object[getSize()];
-		for (int i=0; i<ia.length; i++) {
-			ia[i] = getProcessor(i+1).getPixels(); // slices 1<=slice<=n_slices
+		try {
+			SliceReadAhead.stream("LayerStack", new SliceReadAhead.Source() {
+				@Override
+				public ImageProcessor render(final int n) {
+					return LayerStack.this.render(n);
+				}
+			}, 1, ia.length, 0, null, 0, new SliceReadAhead.Sink() {
+				@Override
+				public void accept(final int n, final ImageProcessor ip) {
+					ia[n-1] = ip.getPixels(); // slices 1<=slice<=n_slices
+				}
+			});
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
 		return ia;
 	}
@@ -2,7 +2,6 @@ package ini.trakem2.imaging;
 
 import ij.VirtualStack;
 import ij.process.ImageProcessor;
-import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
 import java.util.ArrayList;
@@ -10,13 +9,16 @@ import java.util.List;
 import java.util.concurrent.Callable;
 
 
+/** A stack whose slices are generated on demand, with read-ahead of the following slices in the direction of browsing. */
 public class LazyVirtualStack extends VirtualStack {
 	private final List<Callable<ImageProcessor>> tasks = new ArrayList<Callable<ImageProcessor>>();
 	private int initial_size;
+	private SliceReadAhead read_ahead = null;
 	public LazyVirtualStack(final int width, final int height, final int initial_size) {
 		super();
 		Utils.setField(this, ij.ImageStack.class, "width", width);
-		Utils.setField(this, ij.ImageStack.class, "height", width);
+		Utils.setField(this, ij.ImageStack.class, "height", height);
+		this.initial_size = initial_size;
 	}
 
 	public void addSlice(String name) {
@@ -25,16 +27,26 @@ public class LazyVirtualStack extends VirtualStack {
 	public void deleteSlice(int i) {
 		throw new UnsupportedOperationException("LazyVirtualStack: can't remove slices.");
 	}
-	public void addSlice(final Callable<ImageProcessor> task) {
+	synchronized public void addSlice(final Callable<ImageProcessor> task) {
 		tasks.add(task);
+		read_ahead = null;
 	}
 	public ImageProcessor getProcessor(final int n) {
-		try {
-			return tasks.get(n-1).call();
-		} catch (Exception e) {
-			IJError.print(e);
+		if (n < 1 || n > tasks.size()) return null;
+		return getReadAhead().get(n);
+	}
+	synchronized private SliceReadAhead getReadAhead() {
+		if (null == read_ahead) {
+			final int depth = SliceReadAhead.suggestDepth((long)getWidth() * getHeight() * 4);
+			final ArrayList<Callable<ImageProcessor>> slices = new ArrayList<Callable<ImageProcessor>>(tasks);
+			read_ahead = new SliceReadAhead("LazyVirtualStack", new SliceReadAhead.Source() {
+				@Override
+				public ImageProcessor render(final int n) throws Exception {
+					return slices.get(n-1).call();
+				}
+			}, slices.size(), depth, 2 * depth + 1);
 		}
-		return null;
+		return read_ahead;
 	}
 	public int getSize() {
 		return Math.max(initial_size, tasks.size());
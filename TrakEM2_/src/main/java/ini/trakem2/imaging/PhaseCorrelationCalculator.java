@@ -1,6 +1,7 @@
 package ini.trakem2.imaging;
 
 import ij.ImagePlus;
+import ini.trakem2.parallel.Scheduler;
 import mpicbg.imglib.algorithm.fft.PhaseCorrelation;
 import mpicbg.imglib.algorithm.fft.PhaseCorrelationPeak;
 import mpicbg.imglib.image.Image;
@@ -17,6 +18,9 @@ public class PhaseCorrelationCalculator
 		Image<S> img2 = ImagePlusAdapter.wrap( imp2 );
 		
 		PhaseCorrelation<T, S> phase = new PhaseCorrelation<T, S>( img1, img2 );
+		// When pairs are correlated in parallel, parallelize across pairs rather than within each FFT
+		if ( Scheduler.isRunningTask() )
+			phase.setNumThreads( 1 );
 		
 		if ( !phase.checkInput() || !phase.process() )
 		{
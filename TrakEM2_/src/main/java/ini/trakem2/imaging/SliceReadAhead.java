@@ -0,0 +1,219 @@
+package ini.trakem2.imaging;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-ahead for stacks whose slices are rendered on demand, such as {@link LayerStack} and {@link LazyVirtualStack}.
+ *
+ * When slice {@code n} is requested, the next {@code depth} slices in the direction of browsing
+ * (the sign of the difference to the previously requested slice) are rendered in parallel on the {@link Scheduler},
+ * at low priority. Rendered or in-flight slices are kept in a cache of at most {@code capacity} slices,
+ * dropping the least recently requested; slices dropped before they are rendered are cancelled.
+ *
+ * Also offers {@link #stream(String, Source, int, int, int, Loader, long, Sink)} to render a range of slices
+ * in parallel and hand each to a consumer, such as a file writer, with a bounded number of slices in memory.
+ */
+public class SliceReadAhead
+{
+	/** Renders slice {@code n}, where {@code 1 <= n <= size}. */
+	static public interface Source {
+		public ImageProcessor render(int n) throws Exception;
+	}
+
+	/** Receives rendered slices, possibly concurrently and not in order. */
+	static public interface Sink {
+		public void accept(int n, ImageProcessor ip) throws Exception;
+	}
+
+	private final String name;
+	private final Source source;
+	private final int size, depth, capacity;
+	private final LinkedHashMap<Integer,Future<ImageProcessor>> cache;
+	private int last = -1;
+	private int direction = 1;
+
+	private final AtomicInteger hits = new AtomicInteger(0),
+	                            misses = new AtomicInteger(0);
+
+	/**
+	 * @param size The number of slices.
+	 * @param depth The number of slices to render ahead of the requested one.
+	 * @param capacity The maximum number of slices to keep, at least {@code depth + 1}.
+	 */
+	public SliceReadAhead(final String name, final Source source, final int size, final int depth, final int capacity) {
+		this.name = name;
+		this.source = source;
+		this.size = size;
+		this.depth = Math.max(0, depth);
+		this.capacity = Math.max(this.depth + 1, capacity);
+		this.cache = new LinkedHashMap<Integer,Future<ImageProcessor>>(16, 0.75f, true);
+	}
+
+	/** A read-ahead depth for slices of {@code bytesPerSlice}, bounded by the number of processors and by a fraction of the maximum memory. */
+	static public int suggestDepth(final long bytesPerSlice) {
+		final long fit = (Runtime.getRuntime().maxMemory() / 8) / Math.max(1, bytesPerSlice);
+		return (int)Math.max(0, Math.min(Scheduler.getInstance().getParallelism(), fit - 1));
+	}
+
+	/** Returns slice {@code n}, rendering it on the calling thread unless cached or in flight, and schedules the read-ahead. Returns null on failure. */
+	public ImageProcessor get(final int n) {
+		if (n < 1 || n > size) return null;
+		Future<ImageProcessor> fu;
+		FutureTask<ImageProcessor> own = null;
+		synchronized (cache) {
+			if (n != last && last > 0) direction = n > last ? 1 : -1;
+			last = n;
+			fu = cache.get(n);
+			if (null == fu || fu.isCancelled()) {
+				own = new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+					@Override
+					public ImageProcessor call() throws Exception {
+						return source.render(n);
+					}
+				});
+				fu = own;
+				cache.put(n, fu);
+				misses.incrementAndGet();
+			} else {
+				hits.incrementAndGet();
+			}
+			readAhead(n);
+			trim();
+		}
+		if (null != own) own.run();
+		try {
+			return fu.get();
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (final CancellationException ce) {
+			// dropped from the cache while waiting: render it here
+			try {
+				return source.render(n);
+			} catch (final Exception e) {
+				IJError.print(e);
+			}
+		} catch (final ExecutionException ee) {
+			IJError.print(ee.getCause());
+			synchronized (cache) {
+				if (cache.get(n) == fu) cache.remove(n);
+			}
+		}
+		return null;
+	}
+
+	/** Must be called while synchronized on the cache. */
+	private final void readAhead(final int n) {
+		if (0 == depth) return;
+		Scheduler.Job job = null;
+		for (int i=1; i<=depth; ++i) {
+			final int k = n + i * direction;
+			if (k < 1 || k > size) break;
+			final Future<ImageProcessor> fu = cache.get(k);
+			if (null != fu && !fu.isCancelled()) continue;
+			if (null == job) job = Scheduler.getInstance().newJob(name + " read-ahead", Scheduler.Lane.CPU, Scheduler.MIN_PRIORITY, depth);
+			cache.put(k, job.submit(new Callable<ImageProcessor>() {
+				@Override
+				public ImageProcessor call() throws Exception {
+					return source.render(k);
+				}
+			}));
+		}
+		// So that the job is forgotten once its tasks are done
+		if (null != job) job.shutdown();
+		// Keep the requested slice as the most recent
+		cache.get(n);
+	}
+
+	/** Must be called while synchronized on the cache. */
+	private final void trim() {
+		final Iterator<Map.Entry<Integer,Future<ImageProcessor>>> it = cache.entrySet().iterator();
+		int excess = cache.size() - capacity;
+		while (excess > 0 && it.hasNext()) {
+			final Future<ImageProcessor> fu = it.next().getValue();
+			fu.cancel(false);
+			it.remove();
+			--excess;
+		}
+	}
+
+	/** Cancel all pending read-ahead and drop all cached slices. */
+	public void clear() {
+		synchronized (cache) {
+			for (final Future<ImageProcessor> fu : cache.values()) fu.cancel(false);
+			cache.clear();
+			last = -1;
+		}
+	}
+
+	public int getHits() { return hits.get(); }
+
+	public int getMisses() { return misses.get(); }
+
+	@Override
+	public String toString() {
+		synchronized (cache) {
+			return new StringBuilder(name).append(": ").append(cache.size()).append('/').append(capacity)
+					.append(" slices cached, depth ").append(depth)
+					.append(", hits ").append(hits.get()).append(", misses ").append(misses.get()).toString();
+		}
+	}
+
+	/**
+	 * Render slices {@code first} to {@code last} (inclusive, 1-based) in parallel and pass each to the {@code sink}
+	 * as soon as it is rendered. At most {@code maxInFlight} slices are rendered or being consumed at any time,
+	 * which bounds memory regardless of the number of slices; zero or less means as many as the {@link Scheduler} runs at once.
+	 *
+	 * @param loader If not null, asked to free {@code bytesPerSlice} before rendering each slice.
+	 * @return the number of slices rendered and consumed without error.
+	 */
+	static public int stream(final String name, final Source source, final int first, final int last, final int maxInFlight,
+			final Loader loader, final long bytesPerSlice, final Sink sink) throws InterruptedException {
+		final Scheduler.Job job = Scheduler.getInstance().newJob(name, Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, maxInFlight, loader, bytesPerSlice);
+		final AtomicInteger done = new AtomicInteger(0);
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		try {
+			for (int i=first; i<=last; ++i) {
+				final int n = i;
+				fus.add(job.submit(new Runnable() {
+					@Override
+					public void run() {
+						if (Thread.currentThread().isInterrupted()) return;
+						try {
+							final ImageProcessor ip = source.render(n);
+							if (null == ip) {
+								Utils.log("Could not render slice " + n);
+								return;
+							}
+							sink.accept(n, ip);
+							done.incrementAndGet();
+							Utils.showProgress(done.get() / (float)(last - first + 1));
+						} catch (final Exception e) {
+							IJError.print(e);
+						}
+					}
+				}));
+			}
+			job.shutdown();
+			job.join(fus);
+		} catch (final InterruptedException ie) {
+			job.cancel();
+			throw ie;
+		}
+		return done.get();
+	}
+}
@@ -29,7 +29,10 @@ import ij.process.ImageProcessor;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -44,6 +47,9 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.CrossCorrelation2D;
@@ -398,6 +404,34 @@ public class StitchingTEM {
 //		return makeStripe(p, null, scale, ignore_patch_transform);
 //	}
 
+	/** The mipmap for the given scale, but only if it is stored without loss and it is the same
+	 * as the 8-bit mapped image of the Patch, i.e. for greyscale patches without coordinate transform,
+	 * alpha mask or false color; otherwise null. */
+	static private Image fetchLosslessMipMap(final Patch p, final double scale) {
+		if (!canUseLosslessMipMap(p, scale)) return null;
+		final int level = Loader.getMipMapLevel(scale, Loader.maxDim(p));
+		final MipMapImage mipmap = ((FSLoader)p.getProject().getLoader()).fetchMipMap(p, level, 0);
+		// the level may not exist, or be clamped to the highest existing one
+		if (null == mipmap || Loader.isSignalImage(mipmap.image) || mipmap.scaleX != (1 << level)) return null;
+		return mipmap.image;
+	}
+
+	static private boolean canUseLosslessMipMap(final Patch p, final double scale) {
+		final Loader loader = p.getProject().getLoader();
+		if (!(loader instanceof FSLoader)) return false;
+		if (FSLoader.MIPMAP_JPEG == loader.getMipMapFormat()) return false;
+		switch (p.getType()) {
+			case ImagePlus.GRAY8:
+			case ImagePlus.GRAY16:
+			case ImagePlus.GRAY32:
+				break;
+			default:
+				return false;
+		}
+		if (p.hasCoordinateTransform() || p.hasAlphaChannel() || p.paintsWithFalseColor()) return false;
+		return Loader.getMipMapLevel(scale, Loader.maxDim(p)) > 0;
+	}
+
 	/** @return FloatProcessor.
 	 * @param ignore_patch_transform will prevent resizing of the ImageProcessor in the event of the Patch having a transform different than identity. */
 	// TODO 2: there is a combination of options that ends up resulting in the actual ImageProcessor of the Patch being returned as is, which is DANGEROUS because it can potentially result in changes in the data.
@@ -411,11 +445,14 @@ public class StitchingTEM {
 		if (loader.isMipMapsRegenerationEnabled() && loader.checkMipMapFileExists(p, scale))
 		{
 
-			// Read the transform image from the patch (this way we avoid the JPEG artifacts)
-			final Patch.PatchImage pai = p.createTransformedImage();
-			pai.target.setMinAndMax( p.getMin(), p.getMax() );
+			Image image = fetchLosslessMipMap(p, scale);
+			if (null == image) {
+				// Read the transform image from the patch (this way we avoid the JPEG artifacts)
+				final Patch.PatchImage pai = p.createTransformedImage();
+				pai.target.setMinAndMax( p.getMin(), p.getMax() );
 
-			Image image = pai.target.createImage(); //p.getProject().getLoader().fetchImage(p, scale);
+				image = pai.target.createImage(); //p.getProject().getLoader().fetchImage(p, scale);
+			}
 
 			// check that dimensions are correct. If anything, they'll be larger
 			//Utils.log2("patch w,h " + p.getWidth() + ", " + p.getHeight() + " fetched image w,h: " + image.getWidth(null) + ", " + image.getHeight(null));
@@ -708,15 +745,38 @@ public class StitchingTEM {
 		if (!param.setup(col.size() > 0 ? (Patch)col.iterator().next() : null)) {
 			return;
 		}
-		final int i = 1;
-		for (final Layer la : layers) {
-			if (Thread.currentThread().isInterrupted() || (null != worker && worker.hasQuitted())) return;
-			if (null != worker) worker.setTaskName("Montage layer " + i + "/" + layers.size());
-			final Collection<Patch> patches = (Collection<Patch>) (Collection) la.getDisplayables(Patch.class);
-			AlignTask.transformPatchesAndVectorData(patches, new Runnable() { @Override
-            public void run() {
-				montageWithPhaseCorrelation(patches, param);
-			}});
+		// Load the images of the next layer while the current one is being montaged
+		final Scheduler.Job prefetch = Scheduler.getInstance().newJob("Montage prefetch", Scheduler.Lane.IO, Scheduler.MIN_PRIORITY, 0);
+		try {
+			int i = 1;
+			for (final Layer la : layers) {
+				if (Thread.currentThread().isInterrupted() || (null != worker && worker.hasQuitted())) return;
+				if (null != worker) worker.setTaskName("Montage layer " + i + "/" + layers.size());
+				if (i < layers.size()) prefetch(layers.get(i), param.cc_scale, prefetch);
+				final Collection<Patch> patches = (Collection<Patch>) (Collection) la.getDisplayables(Patch.class);
+				AlignTask.transformPatchesAndVectorData(patches, new Runnable() { @Override
+	            public void run() {
+					montageWithPhaseCorrelation(patches, param);
+				}});
+				i++;
+			}
+		} finally {
+			prefetch.cancel();
+		}
+	}
+
+	/** Submit the loading of the images of the layer that {@link #makeStripe(Patch, Roi, double)} will need, other than mipmaps, so that they are cached. */
+	static private void prefetch(final Layer layer, final double scale, final Scheduler.Job job) {
+		for (final Displayable d : layer.getDisplayables(Patch.class)) {
+			final Patch p = (Patch)d;
+			if (canUseLosslessMipMap(p, scale)) continue;
+			job.submit(new Runnable() {
+				@Override
+				public void run() {
+					if (Thread.currentThread().isInterrupted()) return;
+					p.getProject().getLoader().fetchImagePlus(p);
+				}
+			});
 		}
 	}
 
@@ -847,12 +907,14 @@ public class StitchingTEM {
 
 
 
+		// Collect the pairs of overlapping patches, as {i, j, location of p1 relative to p2}
+		final ArrayList<int[]> pairs = new ArrayList<int[]>();
+		long max_bytes = 0;
 		for (int i=0; i<al.size(); i++) {
 			final Patch p1 = al.get(i);
 			final Rectangle r1 = p1.getBoundingBox();
 			// find overlapping, add as connections
 			for (int j=i+1; j<al.size(); j++) {
-				if (Thread.currentThread().isInterrupted()) return;
 				final Patch p2 = al.get(j);
 				final Rectangle r2 = p2.getBoundingBox();
 				if (r1.intersects(r2)) {
@@ -864,48 +926,69 @@ public class StitchingTEM {
 						Utils.log2("Skipping diagonal overlap between " + p1 + " and " + p2);
 						continue;
 					}
+					pairs.add(new int[]{i, j, 1 == overlap ? -1 : getClosestOverlapLocation(p1, p2)});
+					max_bytes = Math.max(max_bytes, (long)(p1.getWidth() * p1.getHeight() * 25));
+				}
+			}
+		}
 
-					p1.getProject().getLoader().releaseToFit((long)(p1.getWidth() * p1.getHeight() * 25));
-
-					final double[] R;
-					if (1 == overlap) {
-						R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R );
-						if (SUCCESS == R[2]) {
-							addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-						}
-					} else {
-						switch (getClosestOverlapLocation(p1, p2)) {
-							case 0: // p1 overlaps p2 from the left
-								R = correlate(p1, p2, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
-								break;
-							case 1: // p1 overlaps p2 from the top
-								R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
-								break;
-							case 2: // p1 overlaps p2 from the right
-								R = correlate(p2, p1, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
-								break;
-							case 3: // p1 overlaps p2 from the bottom
-								R = correlate(p2, p1, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
-								break;
-							default:
-								Utils.log("Unknown overlap direction!");
-								continue;
-						}
+		// Correlate all pairs in parallel, freeing memory for each before it runs
+		final double scale = cc_scale;
+		final float overlap_ = overlap;
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Montage with phase-correlation", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, 0, al.get(0).getProject().getLoader(), max_bytes);
+		final ArrayList<Future<double[]>> fus = new ArrayList<Future<double[]>>(pairs.size());
+		for (final int[] pair : pairs) {
+			final Patch p1 = al.get(pair[0]),
+			            p2 = al.get(pair[1]);
+			fus.add(job.submit(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					switch (pair[2]) {
+						case -1: return correlate(p1, p2, overlap_, scale, TOP_BOTTOM, 0, 0, param.min_R);
+						case 0: return correlate(p1, p2, overlap_, scale, LEFT_RIGHT, 0, 0, param.min_R); // p1 overlaps p2 from the left
+						case 1: return correlate(p1, p2, overlap_, scale, TOP_BOTTOM, 0, 0, param.min_R); // p1 overlaps p2 from the top
+						case 2: return correlate(p2, p1, overlap_, scale, LEFT_RIGHT, 0, 0, param.min_R); // p1 overlaps p2 from the right
+						case 3: return correlate(p2, p1, overlap_, scale, TOP_BOTTOM, 0, 0, param.min_R); // p1 overlaps p2 from the bottom
+						default:
+							Utils.log("Unknown overlap direction!");
+							return null;
 					}
 				}
+			}));
+		}
+		job.shutdown();
+
+		// Add the matches in the same order as they were found
+		try {
+			for (int k=0; k<pairs.size(); k++) {
+				if (Thread.currentThread().isInterrupted()) {
+					job.cancel();
+					return;
+				}
+				final int[] pair = pairs.get(k);
+				final double[] R;
+				try {
+					R = fus.get(k).get();
+				} catch (final ExecutionException ee) {
+					IJError.print(ee.getCause());
+					continue;
+				}
+				if (null == R || SUCCESS != R[2]) continue;
+				switch (pair[2]) {
+					case -1:
+					case 0:
+					case 1:
+						addMatches(tiles.get(pair[0]), tiles.get(pair[1]), R[0], R[1]);
+						break;
+					case 2:
+					case 3:
+						addMatches(tiles.get(pair[1]), tiles.get(pair[0]), R[0], R[1]);
+						break;
+				}
 			}
+		} catch (final InterruptedException ie) {
+			job.cancel();
+			return;
 		}
 
 		if (param.remove_disconnected || param.hide_disconnected) {
@@ -0,0 +1,214 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.parallel.Scheduler;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a sequence of {@link IFilter} to an image, with the same result as
+ * calling {@link IFilter#process(ImageProcessor)} on each in turn.
+ *
+ * Consecutive {@link TileableFilter} instances are grouped into a stage that
+ * is run, for large images, over tiles extended by the sum of the halo radii
+ * of the filters in the stage, in parallel. Each tile goes through all the
+ * filters of the stage before its interior is written back, so that chains of
+ * pointwise filters read and write each pixel only once. Tiles are processed
+ * one row band at a time and the results of a band are written back into the
+ * image only once the next band has read its halo, so the extra memory is two
+ * bands plus one tile per thread, the latter reused across tiles and stages.
+ *
+ * Any other filter is applied to the whole image, as before.
+ */
+public final class FilterChain
+{
+	private FilterChain() {}
+
+	/** Images with fewer pixels than this are filtered whole. */
+	static public long MIN_TILED_PIXELS = 2048L * 2048L;
+
+	/** The approximate side of the computed interior of a tile. */
+	static public int TILE_SIZE = 1024;
+
+	/** Per thread, recently used tile processors by class and dimensions. */
+	static private final ThreadLocal<HashMap<String,SoftReference<ImageProcessor>>> tiles = new ThreadLocal<HashMap<String,SoftReference<ImageProcessor>>>() {
+		@Override
+		protected HashMap<String,SoftReference<ImageProcessor>> initialValue() {
+			return new HashMap<String,SoftReference<ImageProcessor>>();
+		}
+	};
+
+	/** Apply all {@code filters} in order to {@code ip}, returning the resulting ImageProcessor, which may or may not be {@code ip}. */
+	static public ImageProcessor process(ImageProcessor ip, final IFilter[] filters) {
+		if (null == filters) return ip;
+		int i = 0;
+		while (i < filters.length) {
+			// Collect the run of filters that can be tiled for this image
+			int j = i;
+			int halo = 0;
+			while (j < filters.length && filters[j] instanceof TileableFilter) {
+				final int h = ((TileableFilter)filters[j]).getHaloRadius(ip);
+				if (h < 0) break;
+				halo += h;
+				++j;
+			}
+			if (j > i) {
+				if (isWorthTiling(ip, halo)) {
+					processTiled(ip, filters, i, j, halo);
+				} else {
+					for (int k=i; k<j; ++k) ip = filters[k].process(ip);
+				}
+				i = j;
+			} else {
+				ip = filters[i].process(ip);
+				++i;
+			}
+		}
+		return ip;
+	}
+
+	static private boolean isWorthTiling(final ImageProcessor ip, final int halo) {
+		final int w = ip.getWidth(),
+		          h = ip.getHeight();
+		return (long)w * h >= MIN_TILED_PIXELS
+		    && null == ip.getMask()
+		    && ip.getRoi().width == w && ip.getRoi().height == h
+		    && (w >= 2 * TILE_SIZE || h >= 2 * TILE_SIZE)
+		    && halo < TILE_SIZE;
+	}
+
+	/** Split {@code length} into intervals of at least {@link #TILE_SIZE}, evenly; returns n+1 boundaries. */
+	static private int[] split(final int length) {
+		final int n = Math.max(1, length / TILE_SIZE);
+		final int[] b = new int[n + 1];
+		for (int i=0; i<=n; ++i) b[i] = (int)(((long)i * length) / n);
+		return b;
+	}
+
+	/** Run filters[first] to filters[last-1] over tiles of ip, writing the result back into ip. */
+	static private void processTiled(final ImageProcessor ip, final IFilter[] filters, final int first, final int last, final int halo) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final Object pixels = ip.getPixels();
+		final boolean keepsRange = !(ip instanceof ColorProcessor) && ip.getBitDepth() > 8;
+		final double min = ip.getMin(),
+		             max = ip.getMax();
+		final int[] xb = split(width),
+		            yb = split(height);
+		int maxBand = 0;
+		for (int r=1; r<yb.length; ++r) maxBand = Math.max(maxBand, yb[r] - yb[r-1]);
+
+		// Two bands: one being computed, one waiting to be written back
+		Object band = newArray(pixels, width * maxBand),
+		       pending = newArray(pixels, width * maxBand);
+		int pendingRow = -1;
+		boolean rangeChanged = false;
+
+		final Scheduler.Job job = Scheduler.getInstance().newJob("FilterChain");
+		try {
+			final ArrayList<Future<Boolean>> fus = new ArrayList<Future<Boolean>>(xb.length);
+			for (int r=1; r<yb.length; ++r) {
+				final int y0 = yb[r-1],
+				          y1 = yb[r];
+				final Object target = band;
+				fus.clear();
+				for (int c=1; c<xb.length; ++c) {
+					final int x0 = xb[c-1],
+					          x1 = xb[c];
+					fus.add(job.submit(new java.util.concurrent.Callable<Boolean>() {
+						@Override
+						public Boolean call() {
+							return processTile(ip, filters, first, last, halo, x0, y0, x1, y1, target, keepsRange, min, max);
+						}
+					}));
+				}
+				for (final Future<Boolean> fu : fus) {
+					rangeChanged |= fu.get();
+				}
+				// The band just computed has read its halo: the previous band can be written back
+				if (pendingRow > 0) writeBack(pending, pixels, width, yb[pendingRow-1], yb[pendingRow]);
+				band = pending;
+				pending = target;
+				pendingRow = r;
+			}
+			if (pendingRow > 0) writeBack(pending, pixels, width, yb[pendingRow-1], yb[pendingRow]);
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			job.cancel();
+			throw new RuntimeException("Interrupted while filtering", ie);
+		} catch (final ExecutionException ee) {
+			job.cancel();
+			final Throwable t = ee.getCause();
+			if (t instanceof RuntimeException) throw (RuntimeException)t;
+			throw new RuntimeException(t);
+		} finally {
+			job.shutdown();
+		}
+
+		// Filters that change the display range of 16- and 32-bit images reset it from the pixels
+		if (rangeChanged) ip.resetMinAndMax();
+	}
+
+	/** @return whether the filters changed the display range of the tile. */
+	static private boolean processTile(final ImageProcessor ip, final IFilter[] filters, final int first, final int last, final int halo,
+			final int x0, final int y0, final int x1, final int y1, final Object target,
+			final boolean keepsRange, final double min, final double max) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final int tx0 = Math.max(0, x0 - halo),
+		          ty0 = Math.max(0, y0 - halo),
+		          tx1 = Math.min(width, x1 + halo),
+		          ty1 = Math.min(height, y1 + halo);
+		final int tw = tx1 - tx0,
+		          th = ty1 - ty0;
+
+		final ImageProcessor tile = getTile(ip, tw, th);
+		final Object src = ip.getPixels();
+		Object tp = tile.getPixels();
+		for (int y=ty0; y<ty1; ++y) {
+			System.arraycopy(src, y * width + tx0, tp, (y - ty0) * tw, tw);
+		}
+		if (keepsRange) tile.setMinAndMax(min, max);
+
+		ImageProcessor result = tile;
+		for (int k=first; k<last; ++k) {
+			result = filters[k].process(result);
+			if (null == result || result.getClass() != ip.getClass() || result.getWidth() != tw || result.getHeight() != th) {
+				throw new IllegalStateException(filters[k].getClass().getName() + " is a TileableFilter but changed the type or dimensions of the image");
+			}
+		}
+
+		// Copy the interior into the band, whose first row is y0
+		tp = result.getPixels();
+		final int dx = x0 - tx0;
+		for (int y=y0; y<y1; ++y) {
+			System.arraycopy(tp, (y - ty0) * tw + dx, target, (y - y0) * width + x0, x1 - x0);
+		}
+		return keepsRange && (result.getMin() != min || result.getMax() != max);
+	}
+
+	static private void writeBack(final Object band, final Object pixels, final int width, final int y0, final int y1) {
+		System.arraycopy(band, 0, pixels, y0 * width, (y1 - y0) * width);
+	}
+
+	static private ImageProcessor getTile(final ImageProcessor ip, final int w, final int h) {
+		final HashMap<String,SoftReference<ImageProcessor>> pool = tiles.get();
+		final String key = new StringBuilder(ip.getClass().getName()).append(' ').append(w).append('x').append(h).toString();
+		final SoftReference<ImageProcessor> ref = pool.get(key);
+		ImageProcessor tile = null == ref ? null : ref.get();
+		if (null == tile) {
+			tile = ip.createProcessor(w, h);
+			pool.put(key, new SoftReference<ImageProcessor>(tile));
+		}
+		return tile;
+	}
+
+	static private Object newArray(final Object pixels, final int length) {
+		return java.lang.reflect.Array.newInstance(pixels.getClass().getComponentType(), length);
+	}
+}
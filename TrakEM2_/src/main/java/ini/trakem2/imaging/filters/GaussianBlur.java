@@ -5,7 +5,7 @@ import ij.process.ImageProcessor;
 import java.util.Map;
 
 /** Smooth with a Gaussian. */
-public class GaussianBlur implements IFilter
+public class GaussianBlur implements TileableFilter
 {
 	protected double sigmaX = 2, sigmaY = 2, accuracy = 0.002;
 	
@@ -34,6 +34,15 @@ public class GaussianBlur implements IFilter
 		return ip;
 	}
 
+	/** Beyond a sigma of 4.5, ImageJ blurs a downscaled copy, whose grid depends on the image bounds: not tileable. */
+	@Override
+	public int getHaloRadius(final ImageProcessor ip) {
+		if (sigmaX > 4.5 || sigmaY > 4.5) return -1;
+		// As in ij.plugin.filter.GaussianBlur.makeGaussianKernel, plus one pixel
+		final double f = Math.sqrt(-2 * Math.log(accuracy));
+		return (int)Math.ceil(Math.max(sigmaX, sigmaY) * f) + 2;
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent)
@@ -1,10 +1,12 @@
 package ini.trakem2.imaging.filters;
 
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.util.Map;
 
-public class Invert implements IFilter
+public class Invert implements TileableFilter
 {
 	public Invert() {}
 	
@@ -16,6 +18,12 @@ public class Invert implements IFilter
 		return ip;
 	}
 
+	/** Pointwise for 8-bit and RGB images; 16- and 32-bit images are inverted relative to a range that may be computed from all their pixels. */
+	@Override
+	public int getHaloRadius(final ImageProcessor ip) {
+		return ip instanceof ByteProcessor || ip instanceof ColorProcessor ? 0 : -1;
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent).append("<t2_filter class=\"")
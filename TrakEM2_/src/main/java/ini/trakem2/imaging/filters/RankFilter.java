@@ -5,7 +5,7 @@ import ij.process.ImageProcessor;
 
 import java.util.Map;
 
-public class RankFilter implements IFilter
+public class RankFilter implements TileableFilter
 {
 	protected double radius = 2;
 	/** See {@link RankFilters}. */
@@ -37,6 +37,12 @@ public class RankFilter implements IFilter
 		return ip;
 	}
 
+	@Override
+	public int getHaloRadius(final ImageProcessor ip) {
+		// The circular kernel of RankFilters reaches at most sqrt(radius^2 + 1) pixels
+		return (int)Math.ceil(radius) + 2;
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent)
@@ -0,0 +1,22 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+
+/**
+ * An {@link IFilter} whose result at any pixel depends only on the pixels
+ * within a fixed distance of it, so that it can be run independently over
+ * overlapping tiles of a large image. See {@link FilterChain}.
+ *
+ * A tileable filter must return an ImageProcessor of the same class and
+ * dimensions as the one it was given.
+ */
+public interface TileableFilter extends IFilter
+{
+	/**
+	 * @return the number of pixels that a tile has to extend beyond the area
+	 * it is computed for so that the result is identical to filtering the
+	 * whole image; 0 for pointwise filters; -1 if the filter cannot be
+	 * applied tile-wise to images like {@code ip}.
+	 */
+	public int getHaloRadius(ImageProcessor ip);
+}
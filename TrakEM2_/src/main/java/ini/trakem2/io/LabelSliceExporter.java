@@ -0,0 +1,262 @@
+package ini.trakem2.io;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ini.trakem2.display.AreaList;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Export {@link AreaList} instances as a stack of label images, one file per {@link Layer},
+ * without ever holding more slices in memory than there are slices being rendered.
+ *
+ * Each slice paints only the {@link AreaList} instances that the buckets of the {@link LayerSet} find
+ * at its {@link Layer} within the region to export, and is written to disk as soon as it is done,
+ * first to a temporary file that is then renamed. The parameters of the export are recorded in the
+ * target folder, so that an interrupted export resumes where it left off by skipping the slices already written.
+ */
+public final class LabelSliceExporter
+{
+	static public enum Format {
+		/** One TIFF file per slice, with calibration. */
+		TIFF(".tif"),
+		/** One file per slice of raw pixels, without header, as described in the {@link #MANIFEST} file. */
+		RAW(".raw");
+
+		final String extension;
+		Format(final String extension) {
+			this.extension = extension;
+		}
+	}
+
+	/** The file, in the target folder, that records the parameters of the export. */
+	static public final String MANIFEST = "labels.properties";
+	/** The file, in the target folder, that lists the label value of each {@link AreaList}. */
+	static public final String LABELS = "labels.csv";
+
+	private final List<AreaList> list;
+	private final HashMap<AreaList,Integer> labels;
+	/** The position of each {@link AreaList} in the list, which is the painting order. */
+	private final HashMap<AreaList,Integer> order = new HashMap<AreaList,Integer>();
+	private final LayerSet layer_set;
+	private final List<Layer> layers;
+	private final Rectangle broi;
+	private final float scale;
+	private final int width, height, type;
+	private final String dir;
+	private final Format format;
+
+	/**
+	 * @param list The {@link AreaList} instances to export, in painting order: later ones paint over earlier ones.
+	 * @param broi The world bounds of the region to export, or null for the whole {@link LayerSet}.
+	 * @param scale Between 0 (exclusive) and 1.
+	 * @param layers The {@link Layer} range to export, one slice each.
+	 * @param dir The target folder.
+	 */
+	public LabelSliceExporter(final List<AreaList> list, final Rectangle broi, final float scale, final List<Layer> layers, final String dir, final Format format) {
+		if (list.isEmpty()) throw new IllegalArgumentException("Nothing to export!");
+		if (scale <= 0 || scale > 1) throw new IllegalArgumentException("Improper scale value. Must be 0 < scale <= 1");
+		this.list = new ArrayList<AreaList>(list);
+		this.labels = AreaList.assignLabels(this.list);
+		for (int i=0; i<this.list.size(); ++i) order.put(this.list.get(i), i);
+		this.layer_set = this.list.get(0).getLayerSet();
+		this.layers = new ArrayList<Layer>(layers);
+		this.broi = null == broi ? null : new Rectangle(broi);
+		this.scale = scale;
+		if (null == broi) {
+			this.width = (int)(layer_set.getLayerWidth() * scale);
+			this.height = (int)(layer_set.getLayerHeight() * scale);
+		} else {
+			this.width = (int)(broi.width * scale);
+			this.height = (int)(broi.height * scale);
+		}
+		int max_label_value = 0;
+		for (final Integer label : labels.values()) max_label_value = Math.max(max_label_value, label);
+		if (max_label_value > 65535) this.type = ImagePlus.GRAY32;
+		else if (max_label_value > 255) this.type = ImagePlus.GRAY16;
+		else this.type = ImagePlus.GRAY8;
+		this.dir = Utils.fixDir(dir);
+		this.format = format;
+	}
+
+	/** The path of the file for the slice at {@code index} in the range of layers. */
+	public String getSlicePath(final int index) {
+		return new StringBuilder(dir).append("labels_").append(Utils.zeroPad(index, 5)).append(format.extension).toString();
+	}
+
+	private Properties createManifest() {
+		final Properties p = new Properties();
+		p.setProperty("format", format.name());
+		p.setProperty("width", Integer.toString(width));
+		p.setProperty("height", Integer.toString(height));
+		p.setProperty("bit_depth", ImagePlus.GRAY8 == type ? "8" : (ImagePlus.GRAY16 == type ? "16" : "32"));
+		// FileSaver writes in the byte order chosen in ImageJ's preferences
+		p.setProperty("byte_order", Prefs.intelByteOrder ? "little-endian" : "big-endian");
+		p.setProperty("scale", Float.toString(scale));
+		if (null != broi) p.setProperty("roi", broi.x + "," + broi.y + "," + broi.width + "," + broi.height);
+		p.setProperty("slices", Integer.toString(layers.size()));
+		final StringBuilder sb = new StringBuilder();
+		for (final Layer la : layers) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(la.getId());
+		}
+		p.setProperty("layers", sb.toString());
+		// Fingerprint of the AreaList instances, in order, and their labels
+		long h = 17;
+		for (final AreaList ali : list) {
+			h = 31 * h + ali.getId();
+			h = 31 * h + labels.get(ali);
+		}
+		p.setProperty("arealists", Integer.toString(list.size()));
+		p.setProperty("fingerprint", Long.toHexString(h));
+		return p;
+	}
+
+	/** Write the manifest and the table of labels, or check that those of an earlier export to the same folder match. */
+	private boolean prepare() throws IOException {
+		final File folder = new File(dir);
+		if (!folder.exists() && !folder.mkdirs()) {
+			Utils.log("Could not create folder " + dir);
+			return false;
+		}
+		final Properties manifest = createManifest();
+		final File f = new File(dir + MANIFEST);
+		if (f.exists()) {
+			final Properties previous = new Properties();
+			final InputStream in = new FileInputStream(f);
+			try {
+				previous.load(in);
+			} finally {
+				in.close();
+			}
+			if (!previous.equals(manifest)) {
+				Utils.log("The folder " + dir + " contains an export with different parameters:\nremove it or choose another folder.");
+				return false;
+			}
+			return true;
+		}
+		final OutputStream out = new FileOutputStream(f);
+		try {
+			manifest.store(out, "TrakEM2 label slices");
+		} finally {
+			out.close();
+		}
+		final StringBuilder sb = new StringBuilder("label,id,title\n");
+		for (final AreaList ali : list) {
+			sb.append(labels.get(ali)).append(',').append(ali.getId()).append(",\"")
+			  .append(ali.getProject().getShortMeaningfulTitle(ali).replace('"', '\'')).append("\"\n");
+		}
+		return Utils.saveToFile(new File(dir + LABELS), sb.toString());
+	}
+
+	/** The {@link AreaList} instances to paint at {@code la}, in painting order, as found by the buckets of the {@link LayerSet}. */
+	private List<AreaList> findAt(final Layer la) {
+		final Rectangle r = null == broi ? layer_set.get2DBounds() : broi;
+		final ArrayList<AreaList> found = new ArrayList<AreaList>();
+		for (final Displayable d : layer_set.findZDisplayables(AreaList.class, la, r, false, false)) {
+			if (order.containsKey(d)) found.add((AreaList)d);
+		}
+		Collections.sort(found, new Comparator<AreaList>() {
+			@Override
+			public int compare(final AreaList a, final AreaList b) {
+				return order.get(a) - order.get(b);
+			}
+		});
+		return found;
+	}
+
+	private boolean write(final ImageProcessor ip, final Layer la, final String path) {
+		if (ImagePlus.GRAY8 != type) ip.resetMinAndMax();
+		final ImagePlus imp = new ImagePlus(new File(path).getName(), ip);
+		final Calibration cal = layer_set.getCalibrationCopy();
+		if (1 != scale) {
+			cal.pixelWidth /= scale;
+			cal.pixelHeight /= scale;
+		}
+		imp.setCalibration(cal);
+		imp.setProperty("Info", "z=" + la.getZ() * layer_set.getCalibration().pixelWidth);
+		final File tmp = new File(path + ".tmp");
+		final boolean saved = Format.TIFF == format ?
+			new FileSaver(imp).saveAsTiff(tmp.getAbsolutePath())
+		  : new FileSaver(imp).saveAsRaw(tmp.getAbsolutePath());
+		if (!saved) return false;
+		final File f = new File(path);
+		if (f.exists()) f.delete();
+		return tmp.renameTo(f);
+	}
+
+	/** Render and write all slices not yet written, a few at a time.
+	 * @return The number of slices written, or -1 if the export could not be started or was interrupted. */
+	public int export() {
+		try {
+			if (!prepare()) return -1;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return -1;
+		}
+		// Each task holds one slice as a BufferedImage and an ImageProcessor
+		final long bytesPerSlice = 2L * width * height * (ImagePlus.GRAY8 == type ? 1 : (ImagePlus.GRAY16 == type ? 2 : 4));
+		final int n_threads = (int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / (4 * bytesPerSlice)));
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Exporting labels", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, n_threads, layer_set.getProject().getLoader(), bytesPerSlice);
+		final AtomicInteger done = new AtomicInteger(0),
+		                    written = new AtomicInteger(0);
+		final ArrayList<Future<Boolean>> fus = new ArrayList<Future<Boolean>>();
+		for (int k=0; k<layers.size(); ++k) {
+			final String path = getSlicePath(k);
+			if (new File(path).exists()) {
+				done.incrementAndGet();
+				continue;
+			}
+			final Layer la = layers.get(k);
+			fus.add(job.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					final ImageProcessor ip = AreaList.renderLabels(findAt(la), labels, la, broi, scale, width, height, type);
+					final boolean ok = write(ip, la, path);
+					if (ok) written.incrementAndGet();
+					else Utils.log("Could not write slice " + path);
+					Utils.showProgress(done.incrementAndGet() / (double)layers.size());
+					return ok;
+				}
+			}));
+		}
+		if (done.get() > 0) Utils.log("Resuming label export: " + done.get() + " of " + layers.size() + " slices already in " + dir);
+		job.shutdown();
+		try {
+			job.join(fus);
+		} catch (final InterruptedException ie) {
+			job.cancel();
+			Utils.log("Label export interrupted after " + written.get() + " slices; export again to the same folder to resume.");
+			return -1;
+		} catch (final Exception e) {
+			IJError.print(e);
+		} finally {
+			Utils.showProgress(1);
+		}
+		return written.get();
+	}
+}
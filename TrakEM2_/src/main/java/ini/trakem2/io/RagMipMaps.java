@@ -53,17 +53,7 @@ public final class RagMipMaps
 		try {
 			ra = new RandomAccessFile(new File(path), "rw");
 			// Header: must write as an array or integers get saved with less than 4 bytes
-			final byte[] h = new byte[9];
-			h[0] = (byte)((width  >> 24) & 0xff);
-			h[1] = (byte)((width  >> 16) & 0xff);
-			h[2] = (byte)((width  >>  8) & 0xff);
-			h[3] = (byte) (width         & 0xff);
-			h[4] = (byte)((height >> 24) & 0xff);
-			h[5] = (byte)((height >> 16) & 0xff);
-			h[6] = (byte)((height >>  8) & 0xff);
-			h[7] = (byte) (height        & 0xff);
-			h[8] = (byte)  b.length             ; // only possible values: 1,2,3,4; it's the type
-			ra.write(h);
+			ra.write(header(b, width, height));
 			// Write channels
 			if (1 == b.length || 3 == b.length) {
 				// Without alpha
@@ -152,8 +142,82 @@ public final class RagMipMaps
 	}
 
 	static public final BufferedImage read(final String path) {
+		return asImage(load(path));
+	}
+
+	/** Encode the channels {@code b} as the contents of a file written by {@link #save(String, byte[][], int, int)}. */
+	static public final byte[] encode(final byte[][] b, final int width, final int height) {
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + width * height * b.length);
+			out.write(header(b, width, height));
+			if (1 == b.length || 3 == b.length) {
+				for (int i=0; i<b.length; ++i) {
+					out.write(b[i]);
+				}
+			} else {
+				for (int i=0; i<b.length-1; ++i) {
+					out.write(b[i]);
+				}
+				final DeflaterOutputStream def = new DeflaterOutputStream(out, new Deflater(4, false), 1024);
+				def.write(b[b.length-1]);
+				def.finish();
+			}
+			return out.toByteArray();
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	/** Decode the contents of a file written by {@link #save(String, byte[][], int, int)}. */
+	static public final BufferedImage decode(final byte[] data) {
+		try {
+			final ByteArrayInputStream in = new ByteArrayInputStream(data);
+			final int width = readInt(in),
+			          height = readInt(in),
+			          nCh = in.read();
+			final int chLength = width * height;
+			final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, chLength);
+			final int end = 0 == nCh % 2 ? nCh -1 : nCh;
+			for (int i=0; i<end; ++i) {
+				in.read(ch[i], 0, chLength);
+			}
+			if (end < nCh) {
+				final InflaterInputStream inf = new InflaterInputStream(in, new Inflater(false), 1024);
+				int sum = 0;
+				while (sum < chLength) {
+					int r = inf.read(ch[nCh-1], sum, chLength - sum);
+					if (-1 == r) break;
+					sum += r;
+				}
+			}
+			return asImage(new ImageBytes(ch, width, height));
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	static private final int readInt(final ByteArrayInputStream in) {
+		return (in.read() << 24) | (in.read() << 16) | (in.read() << 8) | in.read();
+	}
+
+	static private final byte[] header(final byte[][] b, final int width, final int height) {
+		final byte[] h = new byte[HEADER_SIZE];
+		h[0] = (byte)((width  >> 24) & 0xff);
+		h[1] = (byte)((width  >> 16) & 0xff);
+		h[2] = (byte)((width  >>  8) & 0xff);
+		h[3] = (byte) (width         & 0xff);
+		h[4] = (byte)((height >> 24) & 0xff);
+		h[5] = (byte)((height >> 16) & 0xff);
+		h[6] = (byte)((height >>  8) & 0xff);
+		h[7] = (byte) (height        & 0xff);
+		h[8] = (byte)  b.length             ; // only possible values: 1,2,3,4; it's the type
+		return h;
+	}
+
+	static private final BufferedImage asImage(final ImageBytes ib) {
 		try {
-			final ImageBytes ib = load(path);
 			if (null == ib) return null;
 			final byte[][] ch = ib.c;
 			// Channel length also specifies the type
@@ -94,8 +94,43 @@ public final class RawMipMaps {
 	}
 
 	static public final BufferedImage read(final String path) {
+		return asImage(load(path));
+	}
+
+	/** Encode the channels {@code b} as the contents of a file written by {@link #save(String, byte[][], int, int)}. */
+	static public final byte[] encode(final byte[][] b, final int width, final int height) {
+		final int chLength = width * height;
+		final byte[] data = new byte[HEADER_SIZE + chLength * b.length];
+		data[0] = (byte)((width  >> 24) & 0xff);
+		data[1] = (byte)((width  >> 16) & 0xff);
+		data[2] = (byte)((width  >>  8) & 0xff);
+		data[3] = (byte) (width         & 0xff);
+		data[4] = (byte)((height >> 24) & 0xff);
+		data[5] = (byte)((height >> 16) & 0xff);
+		data[6] = (byte)((height >>  8) & 0xff);
+		data[7] = (byte) (height        & 0xff);
+		data[8] = (byte)  b.length             ; // only possible values: 1,2,3,4; it's the type
+		for (int i=0; i<b.length; ++i) {
+			System.arraycopy(b[i], 0, data, HEADER_SIZE + i * chLength, chLength);
+		}
+		return data;
+	}
+
+	/** Decode the contents of a file written by {@link #save(String, byte[][], int, int)}. */
+	static public final BufferedImage decode(final byte[] data) {
+		final int width =  ((data[0]&0xff) << 24) | ((data[1]&0xff) << 16) | ((data[2]&0xff) << 8) | (data[3]&0xff);
+		final int height = ((data[4]&0xff) << 24) | ((data[5]&0xff) << 16) | ((data[6]&0xff) << 8) | (data[7]&0xff);
+		final int nCh = data[8];
+		final int chLength = (data.length - HEADER_SIZE) / nCh;
+		final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, chLength);
+		for (int i=0; i<nCh; ++i) {
+			System.arraycopy(data, HEADER_SIZE + i * chLength, ch[i], 0, chLength);
+		}
+		return asImage(new ImageBytes(ch, width, height));
+	}
+
+	static private final BufferedImage asImage(final ImageBytes ib) {
 		try {
-			final ImageBytes ib = load(path);
 			if (null == ib) return null;
 			final byte[][] ch = ib.c;
 			// Channel length also specifies the type
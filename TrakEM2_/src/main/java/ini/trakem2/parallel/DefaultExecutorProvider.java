@@ -1,10 +1,11 @@
 package ini.trakem2.parallel;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
- * Default Executor Provider, which creates ExecutorServices from java.util.concurrent.Executors
+ * Default Executor Provider, which returns views onto the shared {@link Scheduler}.
+ * Each returned ExecutorService runs at most as many Callables at a time as the requested
+ * share of processors allows; shutting it down does not affect the shared pool.
  *
  * @author Larry Lindsey
  */
@@ -14,8 +15,9 @@ public class DefaultExecutorProvider extends ExecutorProvider
     public ExecutorService getService(int nThreads)
     {
         int nCpu = Runtime.getRuntime().availableProcessors();
-        int poolSize = nCpu / nThreads;
-        return Executors.newFixedThreadPool(poolSize < 1 ? 1 : poolSize);
+        int poolSize = nCpu / Math.max(1, nThreads);
+        return Scheduler.getInstance().newJob("ExecutorProvider", Scheduler.Lane.CPU,
+                Scheduler.NORM_PRIORITY, poolSize < 1 ? 1 : poolSize);
     }
 
     public ExecutorService getService(float fractionThreads)
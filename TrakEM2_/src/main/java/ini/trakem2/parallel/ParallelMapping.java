@@ -1,7 +1,5 @@
 package ini.trakem2.parallel;
 
-import ini.trakem2.utils.Utils;
-
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.concurrent.Callable;
@@ -54,7 +52,7 @@ public final class ParallelMapping<I,O> implements Iterable<O>
 		// Check whether the inputs where already consumed
 		if (!in.hasNext()) return null;
 		
-		final ExecutorService exec = Utils.newFixedThreadPool(n_proc, ParallelMapping.class.getSimpleName());
+		final ExecutorService exec = Scheduler.getInstance().newJob(ParallelMapping.class.getSimpleName(), Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, n_proc);
 		final LinkedList<Future<O>> futures = new LinkedList<Future<O>>();
 		
 		return new Iterator<O>() {
@@ -1,7 +1,5 @@
 package ini.trakem2.parallel;
 
-import ini.trakem2.utils.Utils;
-
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.concurrent.ExecutorService;
@@ -38,7 +36,7 @@ public class Process {
 
 	static private final <I,O> void process(final Iterable<I> inputs, final TaskFactory<I,O> generator, final Collection<O> outputs, final int n_proc, final boolean bound) throws Exception {
 		final int nproc = sensible(n_proc);
-		final ExecutorService exec = Utils.newFixedThreadPool(nproc, "Process." + (bound ? "progressive" : "unbound"));
+		final ExecutorService exec = Scheduler.getInstance().newJob("Process." + (bound ? "progressive" : "unbound"), Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, nproc);
 		try {
 			final LinkedList<Future<O>> fus = new LinkedList<Future<O>>();
 			final int ahead = Math.max(nproc + nproc, MIN_AHEAD);
@@ -77,7 +75,7 @@ public class Process {
 	}
 	static private final <I,O> void process(final Iterable<I> inputs, final TaskFactory<I,O> generator, final int n_proc, final boolean bound) throws Exception {
 		final int nproc = sensible(n_proc);
-		final ExecutorService exec = Utils.newFixedThreadPool(nproc, "Process." + (bound ? "progressive" : "unbound"));
+		final ExecutorService exec = Scheduler.getInstance().newJob("Process." + (bound ? "progressive" : "unbound"), Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, nproc);
 		try {
 			final LinkedList<Future<O>> fus = new LinkedList<Future<O>>();
 			final int ahead = Math.max(nproc + nproc, MIN_AHEAD);
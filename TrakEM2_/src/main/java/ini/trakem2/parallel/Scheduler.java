@@ -0,0 +1,574 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single, bounded, work-stealing pool shared by the whole application.
+ *
+ * Work is submitted through {@link Job} instances, each of which is an {@link java.util.concurrent.ExecutorService}
+ * view onto the shared pool: shutting down a {@link Job} does not shut down the pool.
+ * Each {@link Job} belongs to a {@link Lane}: the {@link Lane#CPU} lane runs at most as many tasks as there are processors,
+ * whereas the {@link Lane#IO} lane admits more concurrent tasks and runs them as managed blockers,
+ * so that threads waiting on disk or network do not starve the CPU lane.
+ *
+ * Pending tasks are dispatched by {@link Job} priority, and in submission order within the same priority.
+ * A {@link Job} may restrict its own concurrency, and may request that a given number of bytes be
+ * freed from the {@link Loader} cache before each of its tasks runs.
+ *
+ * Jobs are cancelled when the {@link ini.trakem2.utils.Bureaucrat} or {@link ini.trakem2.utils.Worker} that created them quits.
+ */
+public final class Scheduler
+{
+	static public enum Lane { CPU, IO }
+
+	static public final int MIN_PRIORITY = 1;
+	static public final int NORM_PRIORITY = 5;
+	static public final int MAX_PRIORITY = 10;
+
+	static private final Scheduler instance = new Scheduler(Process.NUM_PROCESSORS);
+
+	/** The task being executed by the current thread, if it is a thread of the pool. */
+	static private final ThreadLocal<Task<?>> current = new ThreadLocal<Task<?>>();
+
+	static public final Scheduler getInstance() {
+		return instance;
+	}
+
+	/** Whether the calling thread is running a task of any {@link Job}; such tasks should not spawn threads of their own. */
+	static public final boolean isRunningTask() {
+		return null != current.get();
+	}
+
+	/** Block as {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)} does, such as to wait for a permit or a lock.
+	 * When called from a task of a {@link Job}, the pool and the lane compensate for the blocked thread,
+	 * so that the tasks that would unblock it can run meanwhile. */
+	static public final void managedBlock(final ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+		final Task<?> waiting = current.get();
+		if (null == waiting) {
+			ForkJoinPool.managedBlock(blocker);
+			return;
+		}
+		waiting.job.lane.blocking(1);
+		try {
+			ForkJoinPool.managedBlock(blocker);
+		} finally {
+			waiting.job.lane.blocking(-1);
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final LaneQueue cpu, io;
+	/** Held weakly: a job that is never shut down, such as those of the {@link DefaultExecutorProvider}, is forgotten
+	 * once idle and no longer referenced; until then its pending and running tasks reference it. */
+	private final ArrayList<WeakReference<Job>> jobs = new ArrayList<WeakReference<Job>>();
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	private Scheduler(final int n_proc) {
+		// A thread joins the ThreadGroup of the thread that creates it, and the pool creates its threads from whichever thread
+		// submits or steals work, such as that of a Bureaucrat, whose quit() interrupts its whole group.
+		// So the threads of the pool are created by a thread of a group of their own, under the root group:
+		// tasks are only ever cancelled through their Job.
+		ThreadGroup root = Thread.currentThread().getThreadGroup();
+		while (null != root.getParent()) root = root.getParent();
+		final ThreadGroup group = new ThreadGroup(root, "T2-Scheduler");
+		final ExecutorService spawner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(group, r, "T2-Scheduler-spawner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final AtomicInteger ai = new AtomicInteger(0);
+		this.pool = new ForkJoinPool(n_proc, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+				try {
+					return spawner.submit(new Callable<ForkJoinWorkerThread>() {
+						@Override
+						public ForkJoinWorkerThread call() {
+							final ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {};
+							t.setName("T2-Scheduler-" + ai.incrementAndGet());
+							t.setDaemon(true);
+							t.setPriority(Thread.NORM_PRIORITY);
+							return t;
+						}
+					}).get();
+				} catch (final InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return null; // the pool tries again later
+				} catch (final ExecutionException ee) {
+					IJError.print(ee);
+					return null;
+				}
+			}
+		}, null, true);
+		this.cpu = new LaneQueue(Lane.CPU, n_proc);
+		this.io = new LaneQueue(Lane.IO, Math.max(4, n_proc * 2));
+	}
+
+	/** A {@link Lane#CPU} job at normal priority, limited only by the capacity of the lane. */
+	public Job newJob(final String name) {
+		return newJob(name, Lane.CPU, NORM_PRIORITY, 0);
+	}
+
+	/** @param maxConcurrency The maximum number of tasks of this job that may run at the same time; zero or less means no limit other than that of the lane. */
+	public Job newJob(final String name, final Lane lane, final int priority, final int maxConcurrency) {
+		return newJob(name, lane, priority, maxConcurrency, null, 0);
+	}
+
+	/**
+	 * @param loader The {@link Loader} whose cache is asked to free {@code bytesPerTask} before each task runs; may be null.
+	 * @param bytesPerTask The approximate amount of memory that each task will allocate, or zero when unknown.
+	 */
+	public Job newJob(final String name, final Lane lane, final int priority, final int maxConcurrency, final Loader loader, final long bytesPerTask) {
+		final Job job = new Job(name, Lane.IO == lane ? io : cpu, priority, maxConcurrency, loader, bytesPerTask);
+		synchronized (jobs) {
+			for (final Iterator<WeakReference<Job>> it = jobs.iterator(); it.hasNext(); ) {
+				if (null == it.next().get()) it.remove();
+			}
+			jobs.add(new WeakReference<Job>(job));
+		}
+		return job;
+	}
+
+	/** Cancel all jobs created from threads in the given {@link ThreadGroup} or its subgroups. */
+	public void cancelJobs(final ThreadGroup tg) {
+		if (null == tg) return;
+		for (final Job job : getJobs()) {
+			if (tg == job.owner || tg.parentOf(job.owner)) job.cancel();
+		}
+	}
+
+	/** A copy of the list of jobs that have not yet terminated, other than those forgotten while idle and unreferenced. */
+	public List<Job> getJobs() {
+		synchronized (jobs) {
+			final ArrayList<Job> live = new ArrayList<Job>(jobs.size());
+			for (final Iterator<WeakReference<Job>> it = jobs.iterator(); it.hasNext(); ) {
+				final Job job = it.next().get();
+				if (null == job) it.remove();
+				else live.add(job);
+			}
+			return live;
+		}
+	}
+
+	/** One line per job with its queue and run-time metrics, plus one line per lane. */
+	public String getStatistics() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(cpu).append('\n').append(io).append('\n');
+		for (final Job job : getJobs()) {
+			sb.append(job).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	private final void terminated(final Job job) {
+		synchronized (jobs) {
+			for (final Iterator<WeakReference<Job>> it = jobs.iterator(); it.hasNext(); ) {
+				final Job j = it.next().get();
+				if (null == j || job == j) it.remove();
+			}
+		}
+	}
+
+	/** The pending tasks of all jobs in one lane, and the admission control for running them. */
+	private final class LaneQueue
+	{
+		private final Lane lane;
+		private final int capacity;
+		/** Number of tasks of this lane currently waiting on the result of another task; each raises the capacity by one. */
+		private int blocked = 0;
+		private int running = 0;
+		private final PriorityQueue<Task<?>> pending = new PriorityQueue<Task<?>>(64, new Comparator<Task<?>>() {
+			@Override
+			public int compare(final Task<?> t1, final Task<?> t2) {
+				final int p1 = t1.priority,
+				          p2 = t2.priority;
+				if (p1 != p2) return p2 - p1; // higher priority first
+				return t1.seq < t2.seq ? -1 : (t1.seq == t2.seq ? 0 : 1);
+			}
+		});
+
+		private LaneQueue(final Lane lane, final int capacity) {
+			this.lane = lane;
+			this.capacity = capacity;
+		}
+
+		private synchronized final void offer(final Task<?> task) {
+			pending.add(task);
+			drain();
+		}
+
+		private synchronized final void finished(final Task<?> task) {
+			--running;
+			--task.job.running;
+			drain();
+		}
+
+		private synchronized final void blocking(final int inc) {
+			blocked += inc;
+			if (inc > 0) drain();
+		}
+
+		/** Dispatch as many pending tasks as the lane and their jobs admit. Must be called while synchronized. */
+		private final void drain() {
+			ArrayList<Task<?>> skipped = null;
+			while (running < capacity + blocked && !pending.isEmpty()) {
+				final Task<?> task = pending.poll();
+				final Job job = task.job;
+				if (job.maxConcurrency > 0 && job.running >= job.maxConcurrency) {
+					if (null == skipped) skipped = new ArrayList<Task<?>>();
+					skipped.add(task);
+					continue;
+				}
+				++running;
+				++job.running;
+				task.dispatched = System.nanoTime();
+				pool.execute(task);
+			}
+			if (null != skipped) pending.addAll(skipped);
+		}
+
+		private synchronized final List<Runnable> removePending(final Job job) {
+			final ArrayList<Runnable> removed = new ArrayList<Runnable>();
+			for (final Iterator<Task<?>> it = pending.iterator(); it.hasNext(); ) {
+				final Task<?> task = it.next();
+				if (job == task.job) {
+					it.remove();
+					removed.add(task);
+				}
+			}
+			return removed;
+		}
+
+		private synchronized final int countPending(final Job job) {
+			int count = 0;
+			for (final Task<?> task : pending) {
+				if (job == task.job) ++count;
+			}
+			return count;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return new StringBuilder("Lane ").append(lane).append(": running ").append(running)
+					.append(" of ").append(capacity + blocked).append(", pending ").append(pending.size()).toString();
+		}
+	}
+
+	private final class Task<V> extends FutureTask<V>
+	{
+		private final Job job;
+		private final int priority;
+		private final long seq = sequence.incrementAndGet();
+		private final long submitted = System.nanoTime();
+		private volatile long dispatched;
+
+		private Task(final Job job, final Callable<V> callable) {
+			super(callable);
+			this.job = job;
+			this.priority = job.priority;
+		}
+
+		private Task(final Job job, final Runnable runnable, final V result) {
+			super(runnable, result);
+			this.job = job;
+			this.priority = job.priority;
+		}
+
+		@Override
+		public void run() {
+			final Task<?> previous = current.get();
+			current.set(this);
+			final long start = System.nanoTime();
+			try {
+				if (job.cancelled) {
+					cancel(false);
+					return;
+				}
+				if (null != job.loader && job.bytesPerTask > 0) {
+					job.loader.releaseToFit(job.bytesPerTask);
+				}
+				if (Lane.IO == job.lane.lane) {
+					ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+						private boolean done = false;
+						@Override
+						public boolean block() {
+							Task.super.run();
+							done = true;
+							return true;
+						}
+						@Override
+						public boolean isReleasable() {
+							return done || isDone();
+						}
+					});
+				} else {
+					super.run();
+				}
+			} catch (final InterruptedException ie) {
+				cancel(false);
+			} finally {
+				current.set(previous);
+				job.record(this, start, System.nanoTime());
+				job.lane.finished(this);
+				job.checkTerminated();
+				// Clear any interruption from a cancellation, so that it does not leak into the next task
+				Thread.interrupted();
+			}
+		}
+
+		@Override
+		protected void setException(final Throwable t) {
+			job.failed.incrementAndGet();
+			super.setException(t);
+		}
+
+		/** When called from a thread of the pool, let the pool and the lane compensate for the blocked thread. */
+		@Override
+		public V get() throws InterruptedException, ExecutionException {
+			if (!isDone() && isRunningTask()) {
+				managedBlock(new ForkJoinPool.ManagedBlocker() {
+					@Override
+					public boolean block() throws InterruptedException {
+						try {
+							Task.super.get();
+						} catch (final ExecutionException ee) {
+							// reported below
+						} catch (final java.util.concurrent.CancellationException ce) {
+							// reported below
+						}
+						return true;
+					}
+					@Override
+					public boolean isReleasable() {
+						return isDone();
+					}
+				});
+			}
+			return super.get();
+		}
+	}
+
+	/**
+	 * An {@link java.util.concurrent.ExecutorService} view onto the shared pool.
+	 * Shutting it down only prevents further submissions to it; cancelling it removes
+	 * its pending tasks and interrupts its running ones.
+	 */
+	public final class Job extends AbstractExecutorService
+	{
+		private final String name;
+		private final LaneQueue lane;
+		private volatile int priority;
+		private final int maxConcurrency;
+		private final Loader loader;
+		private final long bytesPerTask;
+		private final ThreadGroup owner;
+		/** Guarded by the lane. */
+		private int running = 0;
+		private volatile boolean shutdown = false;
+		private volatile boolean cancelled = false;
+		private volatile boolean terminated = false;
+		private final ArrayList<Task<?>> active = new ArrayList<Task<?>>();
+
+		private final AtomicLong submitted = new AtomicLong(0),
+		                         completed = new AtomicLong(0),
+		                         failed = new AtomicLong(0),
+		                         cancelledTasks = new AtomicLong(0),
+		                         queueNanos = new AtomicLong(0),
+		                         maxQueueNanos = new AtomicLong(0),
+		                         runNanos = new AtomicLong(0);
+
+		private Job(final String name, final LaneQueue lane, final int priority, final int maxConcurrency, final Loader loader, final long bytesPerTask) {
+			this.name = null == name ? "job" : name;
+			this.lane = lane;
+			this.priority = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
+			this.maxConcurrency = maxConcurrency;
+			this.loader = loader;
+			this.bytesPerTask = bytesPerTask;
+			// Jobs created from within a task belong to the owner of that task's job
+			final Task<?> t = current.get();
+			this.owner = null != t ? t.job.owner : Thread.currentThread().getThreadGroup();
+		}
+
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+			return new Task<T>(this, callable);
+		}
+
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+			return new Task<T>(this, runnable, value);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			if (shutdown || cancelled) throw new java.util.concurrent.RejectedExecutionException("Job " + name + " is shut down.");
+			final Task<?> task = command instanceof Task && this == ((Task<?>)command).job ?
+					(Task<?>)command
+					: new Task<Object>(this, command, null);
+			submitted.incrementAndGet();
+			synchronized (active) {
+				active.add(task);
+			}
+			lane.offer(task);
+		}
+
+		private final void record(final Task<?> task, final long start, final long end) {
+			synchronized (active) {
+				active.remove(task);
+			}
+			final long queued = (0 == task.dispatched ? start : task.dispatched) - task.submitted;
+			queueNanos.addAndGet(queued);
+			runNanos.addAndGet(end - start);
+			long max;
+			do {
+				max = maxQueueNanos.get();
+			} while (queued > max && !maxQueueNanos.compareAndSet(max, queued));
+			if (task.isCancelled()) cancelledTasks.incrementAndGet();
+			else completed.incrementAndGet();
+		}
+
+		private final void checkTerminated() {
+			if (!shutdown) return;
+			synchronized (active) {
+				if (!active.isEmpty()) return;
+				terminated = true;
+				active.notifyAll();
+			}
+			terminated(this);
+		}
+
+		/** Remove all pending tasks and interrupt all running ones. Also shuts down this job. */
+		public void cancel() {
+			cancelAll();
+		}
+
+		private final List<Runnable> cancelAll() {
+			cancelled = true;
+			shutdown = true;
+			final List<Runnable> removed = lane.removePending(this);
+			cancelledTasks.addAndGet(removed.size());
+			final ArrayList<Task<?>> tasks;
+			synchronized (active) {
+				active.removeAll(removed);
+				tasks = new ArrayList<Task<?>>(active);
+			}
+			for (final Runnable r : removed) ((Task<?>)r).cancel(false);
+			for (final Task<?> task : tasks) task.cancel(true);
+			checkTerminated();
+			return removed;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+			checkTerminated();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return cancelAll();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return terminated;
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (active) {
+				while (!terminated) {
+					final long left = deadline - System.nanoTime();
+					if (left <= 0) return false;
+					TimeUnit.NANOSECONDS.timedWait(active, left);
+				}
+			}
+			return true;
+		}
+
+		/** Waits for all the given tasks to complete, in order. Logs but does not throw any exception, unless interrupted. */
+		public void join(final Collection<? extends java.util.concurrent.Future<?>> fus) throws InterruptedException {
+			for (final java.util.concurrent.Future<?> fu : fus) {
+				try {
+					fu.get();
+				} catch (final ExecutionException ee) {
+					IJError.print(ee.getCause());
+				} catch (final java.util.concurrent.CancellationException ce) {
+					Utils.log2("Cancelled task in job " + name);
+				}
+			}
+		}
+
+		public String getName() { return name; }
+		public Lane getLane() { return lane.lane; }
+		public int getPriority() { return priority; }
+		/** Takes effect for tasks submitted from now on. */
+		public void setPriority(final int priority) {
+			this.priority = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
+		}
+		public long getSubmittedCount() { return submitted.get(); }
+		public long getCompletedCount() { return completed.get(); }
+		public long getFailedCount() { return failed.get(); }
+		public long getCancelledCount() { return cancelledTasks.get(); }
+		public int getPendingCount() { return lane.countPending(this); }
+		public int getRunningCount() { synchronized (lane) { return running; } }
+		/** Total time spent by all tasks of this job waiting to be dispatched, in milliseconds. */
+		public double getQueueTime() { return queueNanos.get() / 1000000.0; }
+		/** Longest time that a task of this job waited to be dispatched, in milliseconds. */
+		public double getMaxQueueTime() { return maxQueueNanos.get() / 1000000.0; }
+		/** Total time spent running the tasks of this job, in milliseconds. */
+		public double getRunTime() { return runNanos.get() / 1000000.0; }
+
+		@Override
+		public String toString() {
+			final long done = Math.max(1, completed.get() + cancelledTasks.get());
+			return new StringBuilder("Job ").append(name).append(" [").append(lane.lane).append(", priority ").append(priority)
+					.append("]: submitted ").append(submitted.get()).append(", running ").append(getRunningCount())
+					.append(", pending ").append(getPendingCount()).append(", completed ").append(completed.get())
+					.append(", failed ").append(failed.get()).append(", cancelled ").append(cancelledTasks.get())
+					.append("; mean queue ").append(Utils.cutNumber(getQueueTime() / done, 2))
+					.append(" ms (max ").append(Utils.cutNumber(getMaxQueueTime(), 2))
+					.append(" ms), mean run ").append(Utils.cutNumber(getRunTime() / done, 2)).append(" ms").toString();
+		}
+	}
+}
@@ -100,17 +100,20 @@ public class Cache {
 				if (null == pyrimp) return 0; // A: both null
 				// B: this.imp is not null; some bytes to be free 
 				if (null != this.srimp) this.srimp.clear();
+				imp_bytes -= impSize;
 				return -impSize;
 			} else {
 				// imp is not null:
 				if (null == pyrimp) {
 					// C: this.imp is null; some bytes to be used
 					setImagePlus(impNew);
+					imp_bytes += impSize;
 					return impSize;
 				} else {
 					// D: both not null
 					final long pyrimpSize = this.impSize;
 					setImagePlus(impNew);
+					imp_bytes += this.impSize - pyrimpSize;
 					return this.impSize - pyrimpSize;
 				}
 			}
@@ -218,7 +221,8 @@ public class Cache {
 	private int count = 0; // if the cache is empty, this count must be 0;
 						   // if not empty, then it counts the number of images stored (not of pyramids)
 	private long bytes = 0,
-				 max_bytes = 0; // negative values are ok
+				 max_bytes = 0, // negative values are ok
+				 imp_bytes = 0; // the part of bytes held by ImagePlus instances rather than by mipmap images
 	
 	public Cache(final long max_bytes) {
 		this.max_bytes = max_bytes;
@@ -251,6 +255,9 @@ public class Cache {
 	
 	/** Current estimated space occupied by the images in this cache. */
 	public long getBytes() { return bytes; }
+
+	/** The part of {@link #getBytes()} occupied by ImagePlus instances; the rest is held by mipmap images. */
+	public long getImagePlusBytes() { return imp_bytes; }
 	
 	public final boolean contains(final long id) {
 		return pyramids.hasKey(id);
@@ -334,6 +341,7 @@ public class Cache {
 		intervals.clear();
 		count = 0;
 		bytes = 0;
+		imp_bytes = 0;
 		last_interval = new TypedHashMap<Long, Pyramid>(MAX_INTERVAL_SIZE);
 		intervals.add(last_interval);
 		imps.clear();
@@ -419,7 +427,9 @@ public class Cache {
 			final String path = getPath(imp); // may be null, in which case it is not stored in imps
 			final ImagePlusUsers u = imps.getValue(path); // u is null if path is null
 			if (null == u) {
-				fit(Cache.size(imp)); // AFTER adding it to the pyramids
+				final long b = Cache.size(imp);
+				imp_bytes += b; // as replace(ImagePlus) does for an existing pyramid
+				fit(b); // AFTER adding it to the pyramids
 				if (null != path) imps.put(path, new ImagePlusUsers(imp, id));
 			} else {
 				u.addUser(id);
@@ -57,6 +57,7 @@ import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.sql.Connection;
@@ -67,10 +68,15 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
 
 import org.postgresql.Driver;
@@ -403,31 +409,46 @@ public class DBLoader extends Loader {
 	/** Used in combination with commitLargeUpdate() */
 	public void startLargeUpdate() {
 		super.startLargeUpdate();
-		try {
-			connection.setAutoCommit(false);
-		} catch (SQLException e) {
-			IJError.print(e);
+		synchronized (db_lock) {
+			flushUpdates();
+			try {
+				connection.setAutoCommit(false);
+				large_update = true;
+			} catch (SQLException e) {
+				IJError.print(e);
+			}
 		}
 	}
 	/** Used in combination with startLargeUpdate() */
 	public void commitLargeUpdate() {
 		super.commitLargeUpdate();
-		try {
-			connection.commit();
-			connection.setAutoCommit(true);
-		} catch (SQLException e) {
-			IJError.print(e);
+		synchronized (db_lock) {
+			// into the same transaction
+			flushUpdates();
+			large_update = false;
+			try {
+				connection.commit();
+				connection.setAutoCommit(true);
+			} catch (SQLException e) {
+				IJError.print(e);
+			}
 		}
 	}
 
-	/** Used when errors ocurr during a large insertion. */
+	/** Used when errors ocurr during a large insertion. Discards the queued updates as well. */
 	public void rollback() {
 		super.rollback();
-		try {
-			connection.rollback();
-			connection.setAutoCommit(true);
-		} catch (SQLException e) {
-			IJError.print(e);
+		synchronized (db_lock) {
+			synchronized (queued) {
+				queued.clear();
+			}
+			large_update = false;
+			try {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			} catch (SQLException e) {
+				IJError.print(e);
+			}
 		}
 	}
 
@@ -460,9 +481,25 @@ public class DBLoader extends Loader {
 		}
 	}
 
-	/**Disconnect from the database. */
+	/**Disconnect from the database, after writing all queued updates; reports those that could not be written, which are lost. */
 	public void disconnect() {
 		synchronized (db_lock) {
+			if (!flushUpdates()) {
+				Utils.showMessage("Could not write " + getQueuedUpdatesCount() + " pending updates to the database before disconnecting:\nthey are lost.");
+				synchronized (queued) {
+					queued.clear();
+				}
+			}
+			if (null != write_behind) {
+				write_behind.quit();
+				write_behind = null;
+			}
+			try {
+				if (null != write_connection) write_connection.close();
+				write_connection = null;
+			} catch (SQLException sqle) {
+				IJError.print(sqle);
+			}
 			try {
 				if (null != connection) connection.close();
 				//Utils.log("Loader: Disconnected.");
@@ -706,6 +743,50 @@ public class DBLoader extends Loader {
 
 
 
+	/** A row of ab_things. */
+	static private final class ThingRow {
+		final long id, parent_id, object_id;
+		final String type, title;
+		ThingRow(final ResultSet r) throws SQLException {
+			this.id = r.getLong("id");
+			this.type = r.getString("type");
+			this.title = r.getString("title");
+			this.parent_id = r.getLong("parent_id");
+			this.object_id = r.getLong("object_id");
+		}
+	}
+
+	/** Reads all rows returned by {@code sql}, which must include the columns of a {@link ThingRow}, grouped by parent_id in the order returned. */
+	private HashMap<Long,ArrayList<ThingRow>> fetchThingRows(final String sql) throws SQLException {
+		final HashMap<Long,ArrayList<ThingRow>> children = new HashMap<Long,ArrayList<ThingRow>>();
+		final ResultSet r = connection.createStatement().executeQuery(sql);
+		while (r.next()) {
+			final ThingRow row = new ThingRow(r);
+			ArrayList<ThingRow> al = children.get(row.parent_id);
+			if (null == al) {
+				al = new ArrayList<ThingRow>();
+				children.put(row.parent_id, al);
+			}
+			al.add(row);
+		}
+		r.close();
+		return children;
+	}
+
+	/** The group of {@code key}, or an empty list. */
+	static private final <T> List<T> childrenOf(final HashMap<Long,ArrayList<T>> m, final long key) {
+		final ArrayList<T> al = m.get(key);
+		return null == al ? Collections.<T>emptyList() : al;
+	}
+
+	static private final AffineTransform fetchAffine(final ResultSet r) throws SQLException {
+		return new AffineTransform(r.getDouble("m00"), r.getDouble("m10"), r.getDouble("m01"), r.getDouble("m11"), r.getDouble("m02"), r.getDouble("m12"));
+	}
+
+	static private final Color fetchColor(final ResultSet r) throws SQLException {
+		return new Color(r.getInt("color_red"), r.getInt("color_green"), r.getInt("color_blue"));
+	}
+
 	/** Fetch the root of the TemplateThing tree from the database-stored hierarchy of TemplateThing objects defined in the original XML file .*/
 	public TemplateThing getTemplateRoot(Project project) {
 		//connect if disconnected
@@ -743,15 +824,14 @@ public class DBLoader extends Loader {
 
 			// New way: TemplateThing instances are saved in the ab_things table
 			try {
-				// fetch TemplateThings, which have no stored object.
-				ResultSet r = connection.prepareStatement("SELECT * FROM ab_things WHERE project_id=" + project.getId() + " AND parent_id=-1 AND object_id=-1").executeQuery(); // signature of the root TemplateThing is parent_id=-1 and object_id=-1
-				if (r.next()) {
-					long id = r.getLong("id");
-					String type = r.getString("type");
-					root = new TemplateThing(type, project, id);
-					root.setup(getChildrenTemplateThings(project, id));
+				// fetch all TemplateThings at once, which have no stored object, and assemble them in memory
+				final HashMap<Long,ArrayList<ThingRow>> children = fetchThingRows("SELECT id, type, title, parent_id, object_id FROM ab_things WHERE project_id=" + project.getId() + " AND object_id=-1 ORDER BY id");
+				final List<ThingRow> roots = childrenOf(children, -1); // signature of the root TemplateThing is parent_id=-1 and object_id=-1
+				if (!roots.isEmpty()) {
+					final ThingRow row = roots.get(0);
+					root = new TemplateThing(row.type, project, row.id);
+					root.setup(getChildrenTemplateThings(project, row.id, children));
 				}
-				r.close();
 			} catch (Exception e) {
 				IJError.print(e);
 				return null;
@@ -761,17 +841,13 @@ public class DBLoader extends Loader {
 	}
 
 	/** Recursive into children. */
-	private ArrayList getChildrenTemplateThings(Project project, long parent_id) throws Exception {
-		ArrayList al = new ArrayList();
-		ResultSet r = connection.prepareStatement("SELECT * FROM ab_things WHERE parent_id=" + parent_id).executeQuery();
-		while (r.next()) {
-			long id = r.getLong("id");
-			String type = r.getString("type");
-			TemplateThing tt = new TemplateThing(type, project, id);
-			tt.setup(getChildrenTemplateThings(project, id));
+	private ArrayList<TemplateThing> getChildrenTemplateThings(final Project project, final long parent_id, final HashMap<Long,ArrayList<ThingRow>> children) {
+		final ArrayList<TemplateThing> al = new ArrayList<TemplateThing>();
+		for (final ThingRow row : childrenOf(children, parent_id)) {
+			final TemplateThing tt = new TemplateThing(row.type, project, row.id);
+			tt.setup(getChildrenTemplateThings(project, row.id, children));
 			al.add(tt);
 		}
-		r.close();
 		return al;
 	}
 
@@ -811,7 +887,9 @@ public class DBLoader extends Loader {
 		}
 	}
 
-	/** Get all the Thing objects, recursively, for the root, and their corresponding encapsulated objects. Also, fills in the given ArrayList with all loaded Displayable objects. */
+	/** Get all the Thing objects for the root, and their corresponding encapsulated objects. Also, fills in the given ArrayList with all loaded Displayable objects.
+	 * The ab_things table and the tables of the encapsulated objects are each read with a single query, and the tree is assembled in memory;
+	 * the geometry of each object is loaded later, on first use. */
 	public ProjectThing getRootProjectThing(Project project, TemplateThing root_tt, TemplateThing project_tt, HashMap<Long,Displayable> hs_d) {
 		synchronized (db_lock) {
 			//connect if disconnected
@@ -824,16 +902,19 @@ public class DBLoader extends Loader {
 
 			ProjectThing root = null;
 			try {
-				ResultSet r = connection.prepareStatement("SELECT * FROM ab_things WHERE project_id=" + project.getId() + " AND type='project' AND parent_id=-1").executeQuery(); // -1 signals root
-				if (r.next()) {
-					long id = r.getLong("id");
-					root = new ProjectThing(project_tt, project, id, project, getChildrenProjectThings(project, id, project_tt.getType(), hs_tt, hs_d));
+				final long t0 = System.currentTimeMillis();
+				final ProjectRows rows = new ProjectRows(project);
+				for (final ThingRow row : childrenOf(rows.children, -1)) { // -1 signals root
+					if ("project".equals(row.type)) {
+						root = new ProjectThing(project_tt, project, row.id, project, getChildrenProjectThings(project, row.id, project_tt.getType(), hs_tt, hs_d, rows));
+						break;
+					}
 				}
-				r.close();
 				if (null == root) {
 					Utils.log("Loader.getRootProjectThing: can't find it for project id=" + project.getId());
 					return null;
 				}
+				Utils.log2("Loader.getRootProjectThing: " + rows.n_rows + " things and " + rows.objects.size() + " objects in " + (System.currentTimeMillis() - t0) + " ms");
 			} catch (Exception e) {
 				IJError.print(e);
 				return null;
@@ -842,111 +923,120 @@ public class DBLoader extends Loader {
 		}
 	}
 
-	private ProjectThing getProjectThing(ResultSet r, Project project, HashMap<String,TemplateThing> hs_tt, HashMap<Long,Displayable> hs_d) throws Exception {
-		long id = r.getLong("id");
-		String type = r.getString("type");
-		TemplateThing tt = (TemplateThing)hs_tt.get(type);
-		if (null == tt) {
-			Utils.log("Loader.getProjectThing: can not find a proper TemplateThing of type " + type + " for the ProjectThing of id=" + id);
-			return null;
-		}
-		long object_id = r.getLong("object_id");
-		Object ob = r.getString("title"); // may be null
-		if (-1 != object_id) {
-			ob = getProjectObject(project, object_id);
-			if (ob instanceof Displayable) hs_d.put(new Long(((Displayable)ob).getId()), (Displayable)ob);
-			else Utils.log("Loader.getProjectThing: not adding to hs_d: " + ob);
-		}
-		return new ProjectThing(tt, project, id, ob, getChildrenProjectThings(project, id, type, hs_tt, hs_d));
-	}
+	/** The rows of ab_things of a project, grouped by parent, and the objects they encapsulate, read with one query per table. */
+	private final class ProjectRows {
+		final HashMap<Long,ArrayList<ThingRow>> children;
+		/** The Profile, Pipe, Ball and AreaList objects of the things, by id. */
+		final HashMap<Long,Object> objects = new HashMap<Long,Object>();
+		/** The z of the layer of each Profile, by id, to sort the children of profile_list things. */
+		final HashMap<Long,Double> profile_z = new HashMap<Long,Double>();
+		int n_rows = 0;
 
-	private ArrayList<ProjectThing> getChildrenProjectThings(Project project, long parent_id, String parent_type, HashMap<String,TemplateThing> hs_tt, HashMap<Long,Displayable> hs_d) throws Exception {
-		final ArrayList<ProjectThing> al_children = new ArrayList<ProjectThing>();
-		ResultSet r = null;
-		if (-1 == parent_id) Utils.log("parent_id = -1 for parent_type=" + parent_type);
-		if (parent_type.equals("profile_list")) {
-			r = connection.prepareStatement("SELECT ab_things.* FROM ab_things,ab_displayables,ab_layers WHERE ab_things.parent_id=" + parent_id + " AND ab_things.object_id=ab_displayables.id AND ab_displayables.layer_id=ab_layers.id ORDER BY ab_layers.z,ab_things.id ASC").executeQuery();  // the project_id field is redundant
-		} else {
-			r = connection.prepareStatement("SELECT * FROM ab_things WHERE parent_id=" + parent_id + " ORDER BY id").executeQuery();
-		}
-		while (r.next()) {
-			ProjectThing thing = getProjectThing(r, project, hs_tt, hs_d);
-			if (null != thing) al_children.add(thing);
-		}
-		r.close();
-		return al_children;
-	}
+		ProjectRows(final Project project) throws SQLException {
+			final long pid = project.getId();
+			this.children = fetchThingRows("SELECT id, type, title, parent_id, object_id FROM ab_things WHERE project_id=" + pid + " ORDER BY id");
+			for (final ArrayList<ThingRow> al : children.values()) n_rows += al.size();
+
+			// The objects are looked up in each table in the same order as before: profiles, pipes, balls and then area lists
+			ResultSet r = connection.createStatement().executeQuery("SELECT ab_profiles.id, ab_displayables.title, ab_displayables.width, ab_displayables.height, alpha, visible, color_red, color_green, color_blue, closed, locked, m00, m10, m01, m11, m02, m12 FROM ab_profiles, ab_displayables, ab_things WHERE ab_profiles.id=ab_displayables.id AND ab_things.object_id=ab_profiles.id AND ab_things.project_id=" + pid);
+			while (r.next()) {
+				final long id = r.getLong("id");
+				if (objects.containsKey(id)) continue;
+				// the polygon is not loaded, only when repainting the profile.
+				objects.put(id, new Profile(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), (float)r.getDouble("alpha"), r.getBoolean("visible"), fetchColor(r), r.getBoolean("closed"), r.getBoolean("locked"), fetchAffine(r)));
+			}
+			r.close();
 
-	/** Fetch the object if any, which means, if the id corresponds to a basic object, that object will be minimally constructed to be usable and returned. */
-	private Object getProjectObject(Project project, long id) throws Exception {
-		// THE CAN OF WORMS!
-		if (-1 == id) return null; // meaning, the ProjectThing is high level, so it doesn't have any Displayable object directly.
+			final String zd = "SELECT ab_displayables.id, ab_displayables.title, ab_displayables.width, ab_displayables.height, alpha, visible, color_red, color_green, color_blue, ab_displayables.locked, m00, m10, m01, m11, m02, m12 FROM ab_zdisplayables, ab_displayables, ab_things WHERE ab_zdisplayables.id=ab_displayables.id AND ab_things.object_id=ab_zdisplayables.id AND ab_things.project_id=" + pid;
 
-		Object object = null;
+			// can't distinguish between pipes and balls other than by their points
+			r = connection.createStatement().executeQuery(zd + " AND EXISTS (SELECT 1 FROM ab_pipe_points WHERE pipe_id=ab_zdisplayables.id)");
+			while (r.next()) {
+				final long id = r.getLong("id");
+				if (objects.containsKey(id)) continue;
+				objects.put(id, new Pipe(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getFloat("alpha"), r.getBoolean("visible"), fetchColor(r), r.getBoolean("locked"), fetchAffine(r)));
+			}
+			r.close();
 
-		// Try all posible tables (this can certainly be optimized by adding a table of ids vs table names, and then making a joint call)
-		object = fetchProfile(project, id);
-		if (null != object) return object;
-		object = fetchPipe(project, id);
-		if (null != object) return object;
-		object = fetchBall(project, id);
-		if (null != object) return object;
-		object = fetchAreaList(project, id);
-		if (null != object) return object;
+			r = connection.createStatement().executeQuery(zd + " AND EXISTS (SELECT 1 FROM ab_ball_points WHERE ball_id=ab_zdisplayables.id)");
+			while (r.next()) {
+				final long id = r.getLong("id");
+				if (objects.containsKey(id)) continue;
+				objects.put(id, new Ball(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getFloat("alpha"), r.getBoolean("visible"), fetchColor(r), r.getBoolean("locked"), fetchAffine(r)));
+			}
+			r.close();
 
-		// finally:
-		if (null == object) {
-			Utils.log("Loader.makeObject: don't know what to do with object of id=" + id);
-		}
-		return object;
-	}
+			// the ids of the unloaded layers of each area list: the areas are fetched on first use
+			final HashMap<Long,ArrayList<Long>> unloaded = new HashMap<Long,ArrayList<Long>>();
+			r = connection.createStatement().executeQuery("SELECT area_list_id, layer_id FROM ab_area_paths, ab_zdisplayables WHERE ab_area_paths.area_list_id=ab_zdisplayables.id AND ab_zdisplayables.project_id=" + pid);
+			while (r.next()) {
+				final Long id = r.getLong(1);
+				ArrayList<Long> al_ul = unloaded.get(id);
+				if (null == al_ul) {
+					al_ul = new ArrayList<Long>();
+					unloaded.put(id, al_ul);
+				}
+				al_ul.add(r.getLong(2));
+			}
+			r.close();
 
-	private Profile fetchProfile(Project project, long id) throws Exception {
-		// joint call
-		ResultSet r = connection.prepareStatement("SELECT ab_profiles.id, ab_displayables.id, title, width, height, alpha, visible, color_red, color_green, color_blue, closed, locked, m00, m10, m01, m11, m02, m12 FROM ab_profiles, ab_displayables WHERE ab_profiles.id=ab_displayables.id AND ab_profiles.id=" + id).executeQuery();
-		Profile p = null;
-		if (r.next()) {
-			p = new Profile(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), (float)r.getDouble("alpha"), r.getBoolean("visible"), new Color(r.getInt("color_red"), r.getInt("color_green"), r.getInt("color_blue")), r.getBoolean("closed"), r.getBoolean("locked"), new AffineTransform(r.getDouble("m00"), r.getDouble("m10"), r.getDouble("m01"), r.getDouble("m11"), r.getDouble("m02"), r.getDouble("m12")));
-			// the polygon is not loaded, only when repainting the profile.
-		}
-		r.close();
-		return p;
-	}
+			r = connection.createStatement().executeQuery(zd);
+			while (r.next()) {
+				final long id = r.getLong("id");
+				if (objects.containsKey(id)) continue;
+				final ArrayList<Long> al_ul = unloaded.get(id);
+				objects.put(id, new AreaList(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getFloat("alpha"), r.getBoolean("visible"), fetchColor(r), r.getBoolean("locked"), null == al_ul ? new ArrayList<Long>() : al_ul, fetchAffine(r)));
+			}
+			r.close();
 
-	private Pipe fetchPipe(Project project, long id) throws Exception {
-		ResultSet r = connection.prepareStatement("SELECT ab_displayables.id, title, ab_displayables.width, height, alpha, visible, color_red, color_green, color_blue, ab_zdisplayables.id, ab_pipe_points.pipe_id, ab_displayables.locked, m00, m10, m01, m11, m02, m12 FROM ab_zdisplayables, ab_displayables, ab_pipe_points WHERE ab_zdisplayables.id=ab_displayables.id AND ab_zdisplayables.id=ab_pipe_points.pipe_id AND ab_zdisplayables.id=" + id).executeQuery(); // strange query, but can't distinguish between pipes and balls otherwise
-		Pipe p = null;
-		if (r.next()) {
-			p = new Pipe(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getFloat("alpha"), r.getBoolean("visible"), new Color(r.getInt("color_red"), r.getInt("color_green"), r.getInt("color_blue")), r.getBoolean("locked"), new AffineTransform(r.getDouble("m00"), r.getDouble("m10"), r.getDouble("m01"), r.getDouble("m11"), r.getDouble("m02"), r.getDouble("m12")));
+			r = connection.createStatement().executeQuery("SELECT ab_displayables.id, ab_layers.z FROM ab_profiles, ab_displayables, ab_layers WHERE ab_profiles.id=ab_displayables.id AND ab_displayables.layer_id=ab_layers.id AND ab_layers.project_id=" + pid);
+			while (r.next()) {
+				profile_z.put(r.getLong(1), r.getDouble(2));
+			}
+			r.close();
 		}
-		r.close();
-		return p;
 	}
 
-	private Ball fetchBall(Project project, long id) throws Exception {
-		ResultSet r = connection.prepareStatement("SELECT ab_displayables.id, title, ab_displayables.width, height, alpha, visible, color_red, color_green, color_blue, ab_zdisplayables.id, ab_ball_points.ball_id, ab_displayables.locked, m00, m10, m01, m11, m02, m12 FROM ab_zdisplayables, ab_displayables, ab_ball_points WHERE ab_zdisplayables.id=ab_displayables.id AND ab_zdisplayables.id=ab_ball_points.ball_id AND ab_zdisplayables.id=" + id).executeQuery(); // strange query, but can't distinguish between pipes and balls otherwise
-		Ball b = null;
-		if (r.next()) {
-			b = new Ball(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getFloat("alpha"), r.getBoolean("visible"), new Color(r.getInt("color_red"), r.getInt("color_green"), r.getInt("color_blue")), r.getBoolean("locked"), new AffineTransform(r.getDouble("m00"), r.getDouble("m10"), r.getDouble("m01"), r.getDouble("m11"), r.getDouble("m02"), r.getDouble("m12")));
+	private ProjectThing getProjectThing(final ThingRow row, final Project project, final HashMap<String,TemplateThing> hs_tt, final HashMap<Long,Displayable> hs_d, final ProjectRows rows) throws Exception {
+		final TemplateThing tt = hs_tt.get(row.type);
+		if (null == tt) {
+			Utils.log("Loader.getProjectThing: can not find a proper TemplateThing of type " + row.type + " for the ProjectThing of id=" + row.id);
+			return null;
 		}
-		r.close();
-		return b;
+		Object ob = row.title; // may be null
+		if (-1 != row.object_id) {
+			ob = rows.objects.get(row.object_id);
+			if (null == ob) Utils.log("Loader.getProjectThing: don't know what to do with object of id=" + row.object_id);
+			if (ob instanceof Displayable) hs_d.put(new Long(((Displayable)ob).getId()), (Displayable)ob);
+			else Utils.log("Loader.getProjectThing: not adding to hs_d: " + ob);
+		}
+		return new ProjectThing(tt, project, row.id, ob, getChildrenProjectThings(project, row.id, row.type, hs_tt, hs_d, rows));
 	}
 
-	private AreaList fetchAreaList(Project project, long id) throws Exception {
-		ResultSet r = connection.createStatement().executeQuery("SELECT area_list_id, layer_id FROM ab_area_paths WHERE area_list_id=" + id);
-		ArrayList al_ul = new ArrayList();
-		while (r.next()) {
-			al_ul.add(new Long(r.getLong(2))); // the ids of the unloaded layers
+	private ArrayList<ProjectThing> getChildrenProjectThings(final Project project, final long parent_id, final String parent_type, final HashMap<String,TemplateThing> hs_tt, final HashMap<Long,Displayable> hs_d, final ProjectRows rows) throws Exception {
+		final ArrayList<ProjectThing> al_children = new ArrayList<ProjectThing>();
+		if (-1 == parent_id) Utils.log("parent_id = -1 for parent_type=" + parent_type);
+		List<ThingRow> children = childrenOf(rows.children, parent_id);
+		if (parent_type.equals("profile_list")) {
+			// only profiles in a layer, ordered by the z of their layer and then by id
+			final ArrayList<ThingRow> profiles = new ArrayList<ThingRow>(children.size());
+			for (final ThingRow row : children) {
+				if (rows.profile_z.containsKey(row.object_id)) profiles.add(row);
+			}
+			Collections.sort(profiles, new Comparator<ThingRow>() {
+				@Override
+				public int compare(final ThingRow r1, final ThingRow r2) {
+					final int c = Double.compare(rows.profile_z.get(r1.object_id), rows.profile_z.get(r2.object_id));
+					return 0 != c ? c : (r1.id < r2.id ? -1 : (r1.id == r2.id ? 0 : 1));
+				}
+			});
+			children = profiles;
 		}
-		r.close();
-		r = connection.prepareStatement("SELECT ab_displayables.id, title, ab_displayables.width, height, alpha, visible, color_red, color_green, color_blue, locked, m00, m10, m01, m11, m02, m12, ab_zdisplayables.id FROM ab_zdisplayables, ab_displayables WHERE ab_zdisplayables.id=ab_displayables.id AND ab_zdisplayables.id=" + id).executeQuery();
-		AreaList area_list = null;
-		if (r.next()) {
-			area_list = new AreaList(project, id, r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getFloat("alpha"), r.getBoolean("visible"), new Color(r.getInt("color_red"), r.getInt("color_green"), r.getInt("color_blue")), r.getBoolean("locked"), al_ul, new AffineTransform(r.getDouble("m00"), r.getDouble("m10"), r.getDouble("m01"), r.getDouble("m11"), r.getDouble("m02"), r.getDouble("m12")));
+		for (final ThingRow row : children) {
+			ProjectThing thing = getProjectThing(row, project, hs_tt, hs_d, rows);
+			if (null != thing) al_children.add(thing);
 		}
-		r.close();
-		return area_list;
+		return al_children;
 	}
 
 	/** Unpack all objects and accumulate them, tagged by their id. */
@@ -966,7 +1056,8 @@ public class DBLoader extends Loader {
 		}
 	}
 
-	/** Fetches the root LayerSet, fills it with children (recursively) and uses the profiles, pipes, etc., from the project_thing. Will reconnect the links and open Displays for the layers that have one. */
+	/** Fetches the root LayerSet, fills it with children (recursively) and uses the profiles, pipes, etc., from the project_thing. Will reconnect the links and open Displays for the layers that have one.
+	 * Each table is read with a single query, and the layer tree is assembled in memory. */
 	public LayerThing getRootLayerThing(Project project, ProjectThing project_thing, TemplateThing layer_set_tt, TemplateThing layer_tt) {
 		synchronized (db_lock) {
 			//connect if disconnected
@@ -978,9 +1069,11 @@ public class DBLoader extends Loader {
 
 			LayerThing root = null;
 			try {
+				final long t0 = System.currentTimeMillis();
+				final LayerRows rows = new LayerRows(project);
 				ResultSet r = connection.prepareStatement("SELECT * FROM ab_things WHERE project_id=" + project.getId() + " AND type='layer_set' AND parent_id=-1").executeQuery(); // -1 signals root
 				if (r.next()) {
-					root = getLayerThing(r, project, hs_pt, layer_set_tt, layer_tt);
+					root = getLayerThing(new ThingRow(r), project, hs_pt, layer_set_tt, layer_tt, rows);
 				}
 				r.close();
 				if (null == root) {
@@ -1003,6 +1096,7 @@ public class DBLoader extends Loader {
 					}
 				}
 				rl.close();
+				Utils.log2("Loader.getRootLayerThing: " + rows.layers.size() + " layers in " + (System.currentTimeMillis() - t0) + " ms");
 			} catch (Exception e) {
 				IJError.print(e);
 				return null;
@@ -1011,55 +1105,131 @@ public class DBLoader extends Loader {
 		}
 	}
 
-	private LayerThing getLayerThing(ResultSet r, Project project, HashMap hs_pt, TemplateThing layer_set_tt, TemplateThing layer_tt) throws Exception {
-		long id = r.getLong("id");
-		String type = r.getString("type");
-		TemplateThing template = type.equals("layer_set") ? layer_set_tt : layer_tt; // if not a "Layer", then it's a "Layer Set"
-		return new LayerThing(template, project, id, r.getString("title"), getLayerThingObject(project, r.getLong("object_id"), template, hs_pt), getChildrenLayerThing(project, id, hs_pt, layer_set_tt, layer_tt)); // HERE the order of the arguments layer_set_tt and layer_tt was inverted, and it worked??? There was a compensating bug, incredibly enough, in the type.equals(.. above.
+	/** A row of ab_layers. */
+	static private final class LayerRow {
+		final long id, layer_set_id;
+		final double z, thickness;
+		LayerRow(final ResultSet r) throws SQLException {
+			this.id = r.getLong("layer_id");
+			this.layer_set_id = r.getLong("layer_set_id");
+			this.z = r.getDouble("z");
+			this.thickness = r.getDouble("thickness");
+		}
+	}
+
+	/** The layer things of a project and the contents of each layer, read with one query per table and grouped by layer or layer set. */
+	private final class LayerRows {
+		/** Layer things by parent, each group ordered by z. */
+		final HashMap<Long,ArrayList<ThingRow>> children = new HashMap<Long,ArrayList<ThingRow>>();
+		final HashMap<Long,LayerRow> layers = new HashMap<Long,LayerRow>();
+		/** LayerSet objects by parent layer id; the root one under -1. */
+		final HashMap<Long,ArrayList<Object[]>> layer_sets = new HashMap<Long,ArrayList<Object[]>>();
+		/** Ids of ZDisplayable objects by layer set id, ordered by stack index. */
+		final HashMap<Long,ArrayList<Long>> zdisplayables = new HashMap<Long,ArrayList<Long>>();
+		/** Pairs of stack index and id of Profile objects, by layer id. */
+		final HashMap<Long,ArrayList<long[]>> profiles = new HashMap<Long,ArrayList<long[]>>();
+		/** Pairs of stack index and Patch or DLabel, by layer id. */
+		final HashMap<Long,ArrayList<Object[]>> displayables = new HashMap<Long,ArrayList<Object[]>>();
+		/** Pairs of id and properties of each Display, by layer id. */
+		final HashMap<Long,ArrayList<Object[]>> displays = new HashMap<Long,ArrayList<Object[]>>();
+
+		LayerRows(final Project project) throws SQLException {
+			final long pid = project.getId();
+			ResultSet r = connection.createStatement().executeQuery("SELECT ab_things.id AS id, ab_layers.id AS layer_id, type, title, parent_id, object_id, z, thickness, layer_set_id FROM ab_things, ab_layers WHERE ab_things.project_id=ab_layers.project_id AND ab_things.object_id=ab_layers.id AND ab_things.project_id=" + pid + " ORDER BY z ASC");
+			while (r.next()) {
+				final ThingRow row = new ThingRow(r);
+				add(children, row.parent_id, row);
+				layers.put(row.object_id, new LayerRow(r));
+			}
+			r.close();
+
+			r = connection.createStatement().executeQuery("SELECT * FROM ab_layer_sets, ab_displayables WHERE ab_layer_sets.id=ab_displayables.id AND ab_layer_sets.project_id=" + pid);
+			while (r.next()) {
+				final LayerSet layer_set = new LayerSet(project, r.getLong("id"), r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getDouble("rot_x"), r.getDouble("rot_y"), r.getDouble("rot_z"), (float)r.getDouble("layer_width"), (float)r.getDouble("layer_height"), r.getBoolean("locked"), r.getInt("snapshots_mode"), fetchAffine(r));
+				add(layer_sets, r.getLong("parent_layer_id"), new Object[]{new Integer(r.getInt("stack_index")), layer_set});
+			}
+			r.close();
+
+			r = connection.createStatement().executeQuery("SELECT ab_displayables.id, layer_set_id FROM ab_displayables, ab_zdisplayables WHERE ab_displayables.id=ab_zdisplayables.id AND ab_zdisplayables.project_id=" + pid + " ORDER BY stack_index ASC");
+			while (r.next()) {
+				add(zdisplayables, r.getLong("layer_set_id"), r.getLong("id"));
+			}
+			r.close();
+
+			final String in_project = " AND ab_displayables.layer_id=ab_layers.id AND ab_layers.project_id=" + pid;
+
+			r = connection.createStatement().executeQuery("SELECT ab_displayables.id, layer_id, stack_index FROM ab_displayables, ab_profiles, ab_layers WHERE ab_displayables.id=ab_profiles.id" + in_project);
+			while (r.next()) {
+				add(profiles, r.getLong("layer_id"), new long[]{r.getInt("stack_index"), r.getLong("id")});
+			}
+			r.close();
+
+			// add Patch objects from ab_patches joint-called with ab_displayables
+			r = connection.createStatement().executeQuery("SELECT ab_patches.id, layer_id, title, width, height, stack_index, imp_type, locked, min, max, m00, m10, m01, m11, m02, m12 FROM ab_patches, ab_displayables, ab_layers WHERE ab_patches.id=ab_displayables.id" + in_project);
+			while (r.next()) {
+				// the table has no o_width, o_height: the dimensions of the image are its untransformed width and height
+				final Patch patch = new Patch(project, r.getLong("id"), r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), (int)r.getDouble("width"), (int)r.getDouble("height"), r.getInt("imp_type"), r.getBoolean("locked"), r.getDouble("min"), r.getDouble("max"), fetchAffine(r));
+				add(displayables, r.getLong("layer_id"), new Object[]{new Integer(r.getInt("stack_index")), patch});
+			}
+			r.close();
+
+			// add DLabel objects
+			r = connection.createStatement().executeQuery("SELECT ab_labels.id, layer_id, title, width, height, m00, m10, m01, m11, m02, m12, stack_index, font_name, font_style, font_size, ab_labels.type, locked FROM ab_labels, ab_displayables, ab_layers WHERE ab_labels.id=ab_displayables.id" + in_project);
+			while (r.next()) {
+				final DLabel label = new DLabel(project, r.getLong("id"), r.getString("title"), (float)r.getDouble("width"), (float)r.getDouble("height"), r.getInt("type"), r.getString("font_name"), r.getInt("font_style"), r.getInt("font_size"), r.getBoolean("locked"), fetchAffine(r));
+				add(displayables, r.getLong("layer_id"), new Object[]{new Integer(r.getInt("stack_index")), label});
+			}
+			r.close();
+
+			// displays, to open later, when fully loaded.
+			r = connection.createStatement().executeQuery("SELECT ab_displays.* FROM ab_displays, ab_layers WHERE ab_displays.layer_id=ab_layers.id AND ab_layers.project_id=" + pid);
+			while (r.next()) {
+				add(displays, r.getLong("layer_id"), new Object[]{new Long(r.getLong("id")), fetchDisplayProperties(r)});
+			}
+			r.close();
+		}
 	}
 
-	private ArrayList getChildrenLayerThing(Project project, long parent_id, HashMap hs_pt, TemplateThing layer_set_tt, TemplateThing layer_tt) throws Exception {
-		ArrayList al_children = new ArrayList();
-		ResultSet r = connection.prepareStatement("SELECT ab_things.id AS id, ab_layers.id AS layer_id, ab_layers.project_id AS l_project_id, ab_things.project_id AS project_id, type, title, parent_id, object_id, z FROM ab_things, ab_layers WHERE ab_things.project_id=ab_layers.project_id AND ab_things.object_id=ab_layers.id AND ab_things.parent_id=" + parent_id + " ORDER BY z ASC").executeQuery();
-		while (r.next()) {
-			al_children.add(getLayerThing(r, project, hs_pt, layer_set_tt, layer_tt));
+	static private final <T> void add(final HashMap<Long,ArrayList<T>> m, final long key, final T value) {
+		ArrayList<T> al = m.get(key);
+		if (null == al) {
+			al = new ArrayList<T>();
+			m.put(key, al);
+		}
+		al.add(value);
+	}
+
+	private LayerThing getLayerThing(ThingRow row, Project project, HashMap hs_pt, TemplateThing layer_set_tt, TemplateThing layer_tt, LayerRows rows) throws Exception {
+		TemplateThing template = row.type.equals("layer_set") ? layer_set_tt : layer_tt; // if not a "Layer", then it's a "Layer Set"
+		return new LayerThing(template, project, row.id, row.title, getLayerThingObject(project, row.object_id, template, hs_pt, rows), getChildrenLayerThing(project, row.id, hs_pt, layer_set_tt, layer_tt, rows)); // HERE the order of the arguments layer_set_tt and layer_tt was inverted, and it worked??? There was a compensating bug, incredibly enough, in the type.equals(.. above.
+	}
+
+	private ArrayList<LayerThing> getChildrenLayerThing(Project project, long parent_id, HashMap hs_pt, TemplateThing layer_set_tt, TemplateThing layer_tt, LayerRows rows) throws Exception {
+		ArrayList<LayerThing> al_children = new ArrayList<LayerThing>();
+		for (final ThingRow row : childrenOf(rows.children, parent_id)) {
+			al_children.add(getLayerThing(row, project, hs_pt, layer_set_tt, layer_tt, rows));
 		}
-		r.close();
 		return al_children;
 	}
 
-	private Object getLayerThingObject(Project project, long id, TemplateThing template, HashMap hs_pt) throws Exception {
+	private Object getLayerThingObject(Project project, long id, TemplateThing template, HashMap hs_pt, LayerRows rows) throws Exception {
 		if (template.getType().equals("layer")) {
-			return fetchLayer(project, id, hs_pt);
+			return fetchLayer(project, id, hs_pt, rows);
 		} else if (template.getType().equals("layer_set")) {
 			// find the LayerSet in the hs_pt (where it has been added by a call to the fetchLayer
 			Object ob = hs_pt.get(new Long(id));
 			if (ob != null) return ob;
 			else {
 				// the very first, top level LayerSet, which belongs to no layer
-				ResultSet rls = connection.prepareStatement("SELECT * FROM ab_layer_sets, ab_displayables WHERE ab_layer_sets.id=ab_displayables.id AND ab_layer_sets.id=" + id).executeQuery();
-				LayerSet layer_set = null;
-				if (rls.next()) {
-					long ls_id = rls.getLong("id");
-					layer_set = new LayerSet(project, ls_id, rls.getString("title"), (float)rls.getDouble("width"), (float)rls.getDouble("height"), rls.getDouble("rot_x"), rls.getDouble("rot_y"), rls.getDouble("rot_z"), (float)rls.getDouble("layer_width"), (float)rls.getDouble("layer_height"), rls.getBoolean("locked"), rls.getInt("snapshots_mode"), new AffineTransform(rls.getDouble("m00"), rls.getDouble("m10"), rls.getDouble("m01"), rls.getDouble("m11"), rls.getDouble("m02"), rls.getDouble("m12")));
+				for (final Object[] o : childrenOf(rows.layer_sets, -1)) {
+					final LayerSet layer_set = (LayerSet)o[1];
+					if (layer_set.getId() != id) continue;
 					// store for children Layer to find it
-					hs_pt.put(new Long(ls_id), layer_set);
-					// find the pipes (or other possible ZDisplayable objects) in the hs_pt that belong to this LayerSet and add them silently
-					ResultSet rpi = connection.prepareStatement("SELECT ab_displayables.id, ab_zdisplayables.id, layer_id, layer_set_id, stack_index FROM ab_displayables,ab_zdisplayables WHERE ab_displayables.id=ab_zdisplayables.id AND layer_set_id=" + ls_id + " ORDER BY stack_index ASC").executeQuery();
-					while (rpi.next()) {
-						Long idd = new Long(rpi.getLong("id"));
-						Object obb = hs_pt.get(idd);
-						//Utils.log2("getLayerThingObject: obb=" + obb + "  id=" + idd + "  layer_set_id=" + layer_set.getId());
-						if (null != obb && obb instanceof ZDisplayable) {
-							layer_set.addSilently((ZDisplayable)obb);
-						} else {
-							Utils.log("getLayerThingObject: failed to add a ZDisplayable to the root layer_set: zdispl id = " + idd); // this can happen when objects exist in the database but there is no associated thing.
-						}
-					}
-					rpi.close();
+					hs_pt.put(new Long(id), layer_set);
+					addZDisplayables(layer_set, hs_pt, rows);
+					return layer_set;
 				}
-				rls.close();
-				return layer_set;
+				return null;
 			}
 		} else {
 			Utils.log("Loader.getLayerThingObject: don't know what to do with a template of type " + template.getType());
@@ -1067,97 +1237,65 @@ public class DBLoader extends Loader {
 		}
 	}
 
-	/** Load all objects into the Layer: Profile and Pipe from the hs_pt (full of ProjectThing wrapping them), and Patch, LayerSet, DLabel, etc from the database. */
-	private Layer fetchLayer(Project project, long id, HashMap hs_pt) throws Exception {
-		ResultSet r = connection.prepareStatement("SELECT * FROM ab_layers WHERE id=" + id).executeQuery();
-		Layer layer = null;
-		if (r.next()) {
-			long layer_id = r.getLong("id");
-			layer = new Layer(project, layer_id, r.getDouble("z"), r.getDouble("thickness"));
-			// find the Layer's parent
-			long parent_id = r.getLong("layer_set_id");
-			Object set = hs_pt.get(new Long(parent_id));
-			if (null != set) {
-				((LayerSet)set).addSilently(layer);
+	/** Find the pipes (or other possible ZDisplayable objects) in the hs_pt that belong to the layer_set and add them silently. */
+	private void addZDisplayables(final LayerSet layer_set, final HashMap hs_pt, final LayerRows rows) {
+		for (final Long idd : childrenOf(rows.zdisplayables, layer_set.getId())) {
+			Object ob = hs_pt.get(idd);
+			if (null != ob && ob instanceof ZDisplayable) {
+				layer_set.addSilently((ZDisplayable)ob);
 			} else {
-				Utils.log("Loader.fetchLayer: WARNING no parent for layer " + layer);
-			}
-			// add the displayables from hs_pt that correspond to this layer (and all other objects that belong to the layer)
-			HashMap hs_d = new HashMap();
-
-			ResultSet rd = connection.prepareStatement("SELECT ab_displayables.id, ab_profiles.id, layer_id, stack_index FROM ab_displayables,ab_profiles WHERE ab_displayables.id=ab_profiles.id AND layer_id=" + layer_id).executeQuery();
-			while (rd.next()) {
-				Long idd = new Long(rd.getLong("id"));
-				Object ob = hs_pt.get(idd);
-				//Utils.log("Found profile with id=" + idd + " and ob = " + ob);
-				if (null != ob) {
-					hs_d.put(new Integer(rd.getInt("stack_index")), ob);
-				}
-			}
-			rd.close();
-
-			// fetch LayerSet objects (which are also Displayable), and put them in the hs_pt (this is hackerous)
-			ResultSet rls = connection.prepareStatement("SELECT * FROM ab_layer_sets, ab_displayables WHERE ab_layer_sets.id=ab_displayables.id AND ab_layer_sets.parent_layer_id=" + id).executeQuery();
-			while (rls.next()) {
-				long ls_id = rls.getLong("id");
-				LayerSet layer_set = new LayerSet(project, ls_id, rls.getString("title"), (float)rls.getDouble("width"), (float)rls.getDouble("height"), rls.getDouble("rot_x"), rls.getDouble("rot_y"), rls.getDouble("rot_z"), (float)rls.getDouble("layer_width"), (float)rls.getDouble("layer_height"), rls.getBoolean("locked"), rls.getInt("snapshots_mode"), new AffineTransform(rls.getDouble("m00"), rls.getDouble("m10"), rls.getDouble("m01"), rls.getDouble("m11"), rls.getDouble("m02"), rls.getDouble("m12")));
-				hs_pt.put(new Long(ls_id), layer_set);
-				hs_d.put(new Integer(rls.getInt("stack_index")), layer_set);
-				layer_set.setLayer(layer, false);
-				// find the pipes (or other possible ZDisplayable objects) in the hs_pt that belong to this LayerSet and add them silently
-				ResultSet rpi = connection.prepareStatement("SELECT ab_displayables.id, ab_zdisplayables.id, layer_id, layer_set_id, stack_index FROM ab_displayables,ab_zdisplayables WHERE ab_displayables.id=ab_zdisplayables.id AND layer_set_id=" + ls_id + " ORDER BY stack_index ASC").executeQuery();
-				while (rpi.next()) {
-					Long idd = new Long(rpi.getLong("id"));
-					Object ob = hs_pt.get(idd);
-					if (null != ob && ob instanceof ZDisplayable) {
-						layer_set.addSilently((ZDisplayable)ob);
-					} else {
-						Utils.log("fetchLayer: failed to add a ZDisplayable to the layer_set. zdispl id = " + idd);
-					}
-				}
-				rpi.close();
+				Utils.log("Loader: failed to add a ZDisplayable to the layer_set. zdispl id = " + idd); // this can happen when objects exist in the database but there is no associated thing.
 			}
-			rls.close();
+		}
+	}
 
-			// add Patch objects from ab_patches joint-called with ab_displayables
-			ResultSet rp = connection.prepareStatement("SELECT ab_patches.id, ab_displayables.id, layer_id, title, width, height, stack_index, imp_type, locked, min, max, m00, m10, m01, m11, m02, m12 FROM ab_patches,ab_displayables WHERE ab_patches.id=ab_displayables.id AND ab_displayables.layer_id=" + layer_id).executeQuery();
-			while (rp.next()) {
-				long patch_id = rp.getLong("id");
-				Patch patch = new Patch(project, patch_id, rp.getString("title"), (float)rp.getDouble("width"), (float)rp.getDouble("height"), rp.getInt("o_width"), rp.getInt("o_height"),rp.getInt("imp_type"), rp.getBoolean("locked"), rp.getDouble("min"), rp.getDouble("max"), new AffineTransform(rp.getDouble("m00"), rp.getDouble("m10"), rp.getDouble("m01"), rp.getDouble("m11"), rp.getDouble("m02"), rp.getDouble("m12")));
-				hs_pt.put(new Long(patch_id), patch); // collecting all Displayable objects to reconstruct links
-				hs_d.put(new Integer(rp.getInt("stack_index")), patch);
-			}
-			rp.close();
+	/** Load all objects into the Layer: Profile and Pipe from the hs_pt (full of ProjectThing wrapping them), and Patch, LayerSet, DLabel, etc from the rows read from the database. */
+	private Layer fetchLayer(Project project, long id, HashMap hs_pt, LayerRows rows) throws Exception {
+		final LayerRow lr = rows.layers.get(id);
+		if (null == lr) return null;
+		final Layer layer = new Layer(project, lr.id, lr.z, lr.thickness);
+		// find the Layer's parent
+		Object set = hs_pt.get(new Long(lr.layer_set_id));
+		if (null != set) {
+			((LayerSet)set).addSilently(layer);
+		} else {
+			Utils.log("Loader.fetchLayer: WARNING no parent for layer " + layer);
+		}
+		// add the displayables from hs_pt that correspond to this layer (and all other objects that belong to the layer), by stack index
+		final TreeMap<Integer,Object> hs_d = new TreeMap<Integer,Object>();
 
-			// add DLabel objects
-			ResultSet rl = connection.prepareStatement("SELECT ab_labels.id, ab_displayables.id, layer_id, title, width, height, m00, m10, m01, m11, m02, m12, stack_index, font_name, font_style, font_size, ab_labels.type, locked FROM ab_labels,ab_displayables WHERE ab_labels.id=ab_displayables.id AND ab_displayables.layer_id=" + layer_id).executeQuery();
-			while (rl.next()) {
-				long label_id = rl.getLong("id");
-				DLabel label = new DLabel(project, label_id, rl.getString("title"), (float)rl.getDouble("width"), (float)rl.getDouble("height"), rl.getInt("type"), rl.getString("font_name"), rl.getInt("font_style"), rl.getInt("font_size"), rl.getBoolean("locked"), new AffineTransform(rl.getDouble("m00"), rl.getDouble("m10"), rl.getDouble("m01"), rl.getDouble("m11"), rl.getDouble("m02"), rl.getDouble("m12")));
-				hs_pt.put(new Long(label_id), label); // collecting all Displayable objects to reconstruct links
-				hs_d.put(new Integer(rl.getInt("stack_index")), label);
+		for (final long[] p : childrenOf(rows.profiles, lr.id)) {
+			Object ob = hs_pt.get(new Long(p[1]));
+			if (null != ob) {
+				hs_d.put(new Integer((int)p[0]), ob);
 			}
-			rl.close();
+		}
 
-			// Add silently to the Layer ordered by stack index
-			Set e = hs_d.keySet();
-			Object[] si = new Object[hs_d.size()];
-			si = e.toArray(si);
-			Arrays.sort(si); // will it sort an array of integers correctly? Who knows!
-			for (int i=0; i<si.length; i++) {
-				//Utils.log("Loader layer.addSilently: adding " + (DBObject)hs_d.get(si[i]));
-				layer.addSilently((DBObject)hs_d.get(si[i]));
-			}
+		// LayerSet objects (which are also Displayable), put in the hs_pt (this is hackerous)
+		for (final Object[] o : childrenOf(rows.layer_sets, lr.id)) {
+			final LayerSet layer_set = (LayerSet)o[1];
+			hs_pt.put(new Long(layer_set.getId()), layer_set);
+			hs_d.put((Integer)o[0], layer_set);
+			layer_set.setLayer(layer, false);
+			addZDisplayables(layer_set, hs_pt, rows);
+		}
+
+		// Patch and DLabel objects
+		for (final Object[] o : childrenOf(rows.displayables, lr.id)) {
+			final Displayable d = (Displayable)o[1];
+			hs_pt.put(new Long(d.getId()), d); // collecting all Displayable objects to reconstruct links
+			hs_d.put((Integer)o[0], d);
+		}
 
+		// Add silently to the Layer ordered by stack index
+		for (final Object ob : hs_d.values()) {
+			layer.addSilently((DBObject)ob);
+		}
 
-			// find displays and open later, when fully loaded.
-			ResultSet rdi = connection.prepareStatement("SELECT * FROM ab_displays WHERE layer_id=" + layer.getId()).executeQuery();
-			while (rdi.next()) {
-				fetchDisplay(rdi, layer);
-			}
-			rdi.close();
+		// displays to open later, when fully loaded.
+		for (final Object[] o : childrenOf(rows.displays, lr.id)) {
+			new Display(project, (Long)o[0], layer, (Object[])o[1]); // will open later, when signaled.
 		}
-		r.close();
 		return layer;
 	}
 
@@ -1173,14 +1311,14 @@ public class DBLoader extends Loader {
 		return hs; // TODO, layers have no attributes for now
 	}
 
-	private void fetchDisplay(ResultSet r, Layer layer) throws Exception {
-		Object[] props = new Object[]{new Point(r.getInt("window_x"), r.getInt("window_y")), new Double(r.getDouble("magnification")), new Rectangle(r.getInt("srcrect_x"), r.getInt("srcrect_y"), r.getInt("srcrect_width"), r.getInt("srcrect_height")), new Long(r.getLong("active_displayable_id")), new Integer(r.getInt("c_alphas")), new Integer(r.getInt("c_alphas_state"))};
-		new Display(layer.getProject(), r.getLong("id"), layer, props); // will open later, when signaled.
+	private Object[] fetchDisplayProperties(ResultSet r) throws Exception {
+		return new Object[]{new Point(r.getInt("window_x"), r.getInt("window_y")), new Double(r.getDouble("magnification")), new Rectangle(r.getInt("srcrect_x"), r.getInt("srcrect_y"), r.getInt("srcrect_width"), r.getInt("srcrect_height")), new Long(r.getLong("active_displayable_id")), new Integer(r.getInt("c_alphas")), new Integer(r.getInt("c_alphas_state"))};
 	}
 
 	/** Get the bezier points from the database for the given profile but as a triple array of points, that is, three arrays with 2 arrays (x and y) each. */
 	public double[][][] fetchBezierArrays(long id) {
 		synchronized (db_lock) {
+			flushUpdates();
 			// TODO: cache! add/check
 
 			//connect if disconnected
@@ -1230,6 +1368,7 @@ public class DBLoader extends Loader {
 
 	public Area fetchArea(long area_list_id, long layer_id) {
 		synchronized(db_lock) {
+			flushUpdates();
 
 			//connect if disconnected
 			if (!connectToDatabase()) {
@@ -1257,6 +1396,7 @@ public class DBLoader extends Loader {
 
 	public ArrayList fetchPipePoints(long id) {
 		synchronized (db_lock) {
+			flushUpdates();
 
 			// TODO: cache! add/check
 
@@ -1294,6 +1434,7 @@ public class DBLoader extends Loader {
 
 	public ArrayList fetchBallPoints(long id) {
 		synchronized (db_lock) {
+			flushUpdates();
 			// TODO: cache! add/check
 
 			//connect if disconnected
@@ -1336,6 +1477,147 @@ public class DBLoader extends Loader {
 		}
 	}
 
+	/* Write-behind queue ************************************************************/
+
+	/** Maximum time, in milliseconds, that a queued update waits before being written. */
+	static public long WRITE_BEHIND_INTERVAL = 500;
+	/** Number of queued updates at which the queue is written without waiting for the interval. */
+	static public int WRITE_BEHIND_MAX_QUEUED = 5000;
+
+	/** The statements of each queued update, made from the state of the object when the update was requested. Guards itself. */
+	private final UpdateQueue queued = new UpdateQueue();
+
+	private WriteBehind write_behind = null;
+	/** Queued updates are written on their own connection, except during a large update. */
+	private Connection write_connection = null;
+	/** Non-null while making the statements of an update: collects them. Guarded by the db_lock. */
+	private ArrayList<UpdateQueue.Update> collector = null;
+	/** Between {@link #startLargeUpdate()} and {@link #commitLargeUpdate()} or {@link #rollback()}. */
+	private boolean large_update = false;
+
+	private void enqueue(final DBObject ob, final String key, final ArrayList<UpdateQueue.Update> statements) {
+		synchronized (queued) {
+			queued.put(ob, key, statements);
+			if (null == write_behind) {
+				write_behind = new WriteBehind();
+				write_behind.start();
+			}
+			// wake up the writer when the first update arrives and when there are too many
+			final int n = queued.size();
+			if (1 == n || n >= WRITE_BEHIND_MAX_QUEUED) queued.notifyAll();
+		}
+	}
+
+	/** Adds {@code sql} to the statements of the update being made. */
+	private void addUpdate(final String sql) {
+		addUpdate(sql, null);
+	}
+
+	/** Adds {@code sql} to the statements of the update being made, with {@code param} to be bound to its '?'. */
+	private void addUpdate(final String sql, final Object param) {
+		if (null == collector) throw new IllegalStateException("Not making an update!");
+		collector.add(new UpdateQueue.Update(sql, param));
+	}
+
+	/** Returns the connection for writing queued updates, or null if it can't be opened. */
+	private Connection getWriteConnection() {
+		try {
+			if (null == write_connection || write_connection.isClosed()) {
+				write_connection = DriverManager.getConnection("jdbc:postgresql:" + (db_host.equals("") || db_host.equals("localhost") ? "" : "//" + db_host + (db_port.equals("") ? "" : ":" + db_port + "/")) + db_name, db_user, db_pw);
+			}
+		} catch (SQLException e) {
+			IJError.print(e);
+			return null;
+		}
+		return write_connection;
+	}
+
+	/** Writes all queued updates in order, in a single transaction that is rolled back entirely if any statement fails.
+	 * During a large update, they are written into its transaction instead, to be committed with it. Called before adding
+	 * or removing objects, before fetching data, before saving and when disconnecting, so that the database is never behind
+	 * what it is asked for. Returns false if the updates could not be written: they are then put back in the queue,
+	 * ahead of those queued since, to be written by the next flush. */
+	public boolean flushUpdates() {
+		synchronized (db_lock) {
+			synchronized (queued) {
+				if (0 == queued.size()) return true;
+			}
+			//connect if disconnected, leaving the queue as it is
+			if (!connectToDatabase()) {
+				return false;
+			}
+			final LinkedHashMap<UpdateQueue.Key,List<UpdateQueue.Update>> updates;
+			synchronized (queued) {
+				updates = queued.drain();
+			}
+			if (updates.isEmpty()) return true;
+			final long t0 = System.currentTimeMillis();
+			boolean ok = true;
+			try {
+				Connection c = large_update ? null : getWriteConnection();
+				if (null == c) c = connection;
+				UpdateQueue.write(c, updates.values());
+			} catch (SQLException sqle) {
+				IJError.print(sqle);
+				final Exception next = sqle.getNextException();
+				if (null != next) IJError.print(next);
+				ok = false;
+			}
+			final long elapsed = System.currentTimeMillis() - t0;
+			synchronized (queued) {
+				queued.recordFlush(updates.size(), ok ? 0 : updates.size(), elapsed);
+				if (!ok) queued.requeue(updates);
+			}
+			if (!ok) Utils.log("DBLoader: failed to write " + updates.size() + " queued updates; none was written, will retry.");
+			return ok;
+		}
+	}
+
+	/** The number of updates waiting to be written. */
+	public int getQueuedUpdatesCount() {
+		synchronized (queued) {
+			return queued.size();
+		}
+	}
+
+	/** Queue depth, coalescing and flush latency of the write-behind queue. */
+	public String getWriteQueueStatistics() {
+		synchronized (queued) {
+			return queued.getStatistics();
+		}
+	}
+
+	/** Writes the queued updates at most {@link #WRITE_BEHIND_INTERVAL} milliseconds after the first arrives,
+	 * or as soon as there are {@link #WRITE_BEHIND_MAX_QUEUED}. */
+	private final class WriteBehind extends Thread {
+		private volatile boolean quit = false;
+		WriteBehind() {
+			super("T2-DBLoader-write-behind");
+			setDaemon(true);
+		}
+		void quit() {
+			quit = true;
+			synchronized (queued) {
+				queued.notifyAll();
+			}
+		}
+		public void run() {
+			while (!quit) {
+				try {
+					synchronized (queued) {
+						if (0 == queued.size()) queued.wait();
+						if (queued.size() < WRITE_BEHIND_MAX_QUEUED && !quit) queued.wait(WRITE_BEHIND_INTERVAL);
+					}
+					if (!quit) flushUpdates();
+				} catch (InterruptedException ie) {
+					return;
+				} catch (Throwable t) {
+					IJError.print(t);
+				}
+			}
+		}
+	}
+
 	/* GENERIC, from DBObject calls */
 	public boolean addToDatabase(DBObject ob) {
 		synchronized (db_lock) {
@@ -1343,6 +1625,8 @@ public class DBLoader extends Loader {
 			if (!connectToDatabase()) {
 				return false;
 			}
+			// queued updates are written before, so that statements reach the database in the order they were issued
+			flushUpdates();
 			try {
 				Method method = getClass().getDeclaredMethod("addToDatabase", new Class[]{ob.getClass()});
 				//Utils.log2("invoked method: " + method);
@@ -1375,12 +1659,26 @@ public class DBLoader extends Loader {
 		}
 	}
 
+	/** Queues the update, to be written by the write-behind thread along with other queued updates.
+	 * Its statements are made now, from the current state of {@code ob}; a later update of the same key
+	 * of the same object replaces them. See {@link #flushUpdates()}. */
 	public boolean updateInDatabase(DBObject ob, String key) {
+		final ArrayList<UpdateQueue.Update> statements = new ArrayList<UpdateQueue.Update>();
 		synchronized (db_lock) {
-			//connect if disconnected
-			if (!connectToDatabase()) {
-				return false;
+			collector = statements;
+			try {
+				if (!dispatchUpdate(ob, key)) return false;
+			} finally {
+				collector = null;
 			}
+		}
+		if (!statements.isEmpty()) enqueue(ob, key, statements);
+		return true;
+	}
+
+	/** Makes the statements of the update into the {@link #collector}. */
+	private boolean dispatchUpdate(final DBObject ob, final String key) {
+		synchronized (db_lock) {
 			try {
 				Method method = getClass().getDeclaredMethod("updateInDatabase", new Class[]{ob.getClass(), key.getClass()});
 				method.invoke(this, new Object[]{ob, key});
@@ -1413,8 +1711,10 @@ public class DBLoader extends Loader {
 	}
 
 	public boolean updateInDatabase(final DBObject ob, final Set<String> keys) {
-		Utils.log2("updateInDatabase(DBObject, Set<String>) NOT IMPLEMENTED");
-		return false;
+		for (final String key : keys) {
+			if (!updateInDatabase(ob, key)) return false;
+		}
+		return true;
 	}
 
 	public boolean removeFromDatabase(DBObject ob) {
@@ -1423,6 +1723,11 @@ public class DBLoader extends Loader {
 			if (!connectToDatabase()) {
 				return false;
 			}
+			// no point in updating a row about to be deleted; other queued updates are written before
+			synchronized (queued) {
+				queued.remove(ob);
+			}
+			flushUpdates();
 			try {
 				Method method = getClass().getDeclaredMethod("removeFromDatabase", new Class[]{ob.getClass()});
 				method.invoke(this, new Object[]{ob});
@@ -1469,7 +1774,7 @@ public class DBLoader extends Loader {
 			return;
 		}
 		sb_query.append(" WHERE id=").append(project.getId());
-		connection.prepareStatement(sb_query.toString()).executeUpdate();
+		addUpdate(sb_query.toString());
 	}
 
 	private void removeFromDatabase(Project project)  throws Exception {
@@ -1559,7 +1864,7 @@ public class DBLoader extends Loader {
 			return;
 		}
 		sb.append(" WHERE id=").append(((DBObject)thing).getId());
-		connection.prepareStatement(sb.toString()).executeUpdate();
+		addUpdate(sb.toString());
 	}
 
 	private void removeFromDatabase(Thing thing) throws Exception {
@@ -1579,7 +1884,7 @@ public class DBLoader extends Loader {
 				sb.append("expanded='").append(pt.getProject().getProjectTree().isExpanded(pt)).append('\'');
 			}
 			sb.append(" WHERE id=").append(pt.getId());
-			connection.prepareStatement(sb.toString()).executeUpdate();
+			addUpdate(sb.toString());
 		} else {
 			updateInDatabase((Thing)pt, key);
 		}
@@ -1620,7 +1925,7 @@ public class DBLoader extends Loader {
 			Utils.log("Loader.updateInDatabase(TemplateThing): don't know what to do with key: " + key);
 			return;
 		}
-		connection.prepareStatement(sb.toString()).executeUpdate();
+		addUpdate(sb.toString());
 	}
 	private void removeFromDatabase(TemplateThing tt) throws Exception {
 		removeFromDatabase((Thing)tt);
@@ -1708,7 +2013,7 @@ public class DBLoader extends Loader {
 		}
 
 		sb.append(" WHERE id=").append(displ.getId());
-		connection.prepareStatement(sb.toString()).executeUpdate();
+		addUpdate(sb.toString());
 	}
 
 	private void removeFromDatabase(Displayable displ) throws Exception {
@@ -1790,24 +2095,26 @@ public class DBLoader extends Loader {
 			return;
 		}
 
-		PreparedStatement st = connection.prepareStatement(sb.append(" WHERE id=").append(patch.getId()).toString());
-		int i = 1;
-		InputStream i_stream2 = null;
-		try {
-			if (update_imp) {
-				ImagePlus imp = mawts.get(patch.getId()); // WARNING if the cache is very small relative to the size of the images, this strategy may fail
-				i_stream2 = createZippedStream(imp);
-				st.setBinaryStream(i, i_stream2, i_stream2.available());
-				i++; // defensive programming: if later I add any other ..
+		sb.append(" WHERE id=").append(patch.getId());
+		if (update_imp) {
+			// the image is read now: it may not be in the cache by the time the update is written
+			final ImagePlus imp = mawts.get(patch.getId()); // WARNING if the cache is very small relative to the size of the images, this strategy may fail
+			if (null == imp) {
+				Utils.log("DBLoader: no image in the cache to update " + patch);
+				return;
 			}
-
-			st.executeUpdate();
-
-			if (null != i_stream2) i_stream2.close();
-
-		} catch (Exception e) {
-			IJError.print(e);
-			if (null != i_stream2) try { i_stream2.close(); } catch (Exception e2) { IJError.print(e2); }
+			final InputStream i_stream = createZippedStream(imp);
+			try {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final byte[] buf = new byte[16384];
+				int len;
+				while (-1 != (len = i_stream.read(buf))) bytes.write(buf, 0, len);
+				addUpdate(sb.toString(), bytes.toByteArray());
+			} finally {
+				i_stream.close();
+			}
+		} else {
+			addUpdate(sb.toString());
 		}
 	}
 
@@ -1828,42 +2135,16 @@ public class DBLoader extends Loader {
 	private void updateInDatabase(Layer layer, String key) throws Exception {
 		StringBuffer sb = new StringBuffer("UPDATE ab_layers SET ");
 		if (key.equals("stack_index")) {
-			boolean autocommit = connection.getAutoCommit();
-			try {
-				Iterator it = layer.getDisplayables().iterator();
-				connection.setAutoCommit(false);
-				Statement st = connection.createStatement(); // this is the kind of place to use preparedStatement properly, by filling in the 'i' and the 'id' only
-				int i = 0;
-				while (it.hasNext()) {
-					DBObject dbo = (DBObject)it.next();
-					st.addBatch("UPDATE ab_displayables SET stack_index=" + i + " WHERE id=" + dbo.getId());
-					i++;
-				}
-				it = layer.getParent().getZDisplayables().iterator();
-				while (it.hasNext()) {
-					DBObject dbo = (DBObject)it.next();
-					st.addBatch("UPDATE ab_displayables SET stack_index=" + i + " WHERE id=" + dbo.getId());
-					i++;
-				}
-				st.executeBatch();
-				connection.commit();
-				// restore
-				connection.setAutoCommit(autocommit);
-			} catch (SQLException sqle) {
-				IJError.print(sqle);
-				Exception next;
-				if (null != (next = sqle.getNextException())) {
-					IJError.print(next);
-				}
-				try {
-					connection.rollback();
-					connection.setAutoCommit(autocommit);
-				} catch (SQLException sqle2) {
-					IJError.print(sqle2);
-				}
+			int i = 0;
+			for (final Displayable d : layer.getDisplayables()) {
+				addUpdate("UPDATE ab_displayables SET stack_index=" + i + " WHERE id=" + d.getId());
+				i++;
+			}
+			for (final ZDisplayable zd : layer.getParent().getZDisplayables()) {
+				addUpdate("UPDATE ab_displayables SET stack_index=" + i + " WHERE id=" + zd.getId());
+				i++;
 			}
 			return;
-			//
 		} else if (key.equals("z")) {
 			sb.append("z=").append(layer.getZ());
 		} else if (key.equals("thickness")) {
@@ -1875,7 +2156,7 @@ public class DBLoader extends Loader {
 			return;
 		}
 		sb.append(" WHERE id=").append(layer.getId());
-		connection.prepareStatement(sb.toString()).executeUpdate();
+		addUpdate(sb.toString());
 	}
 
 	private void removeFromDatabase(Layer layer) throws Exception {
@@ -1906,7 +2187,7 @@ public class DBLoader extends Loader {
 			return;
 		}
 		sb.append(" WHERE id=").append(layer_set.getId());
-		connection.prepareStatement(sb.toString()).executeUpdate();
+		addUpdate(sb.toString());
 	}
 
 	private void removeFromDatabase(LayerSet layer_set) throws Exception {
@@ -1943,11 +2224,11 @@ public class DBLoader extends Loader {
 		}
 		sb.append(" WHERE id=").append(profile.getId());
 
-		PreparedStatement statement = connection.prepareStatement(sb.toString());
 		if (update_points) {
-			statement.setObject(1, makePGpolygon(profile.getBezierArrays()));
+			addUpdate(sb.toString(), makePGpolygon(profile.getBezierArrays()));
+		} else {
+			addUpdate(sb.toString());
 		}
-		statement.executeUpdate();
 	}
 
 	private PGpolygon makePGpolygon(final double[][][] bezarr) {
@@ -2023,7 +2304,7 @@ public class DBLoader extends Loader {
 			Utils.log("Loader.updateInDatabase(Display): don't know what to do with key: " + key);
 			return;
 		}
-		connection.prepareStatement(sb.append(" WHERE id=").append(display.getId()).toString()).executeUpdate();
+		addUpdate(sb.append(" WHERE id=").append(display.getId()).toString());
 	}
 
 	private void removeFromDatabase(Display display) throws Exception {
@@ -2037,75 +2318,20 @@ public class DBLoader extends Loader {
 		addToDatabase((Displayable)ball);
 	}
 	private void updateInDatabase(Ball ball, String key) throws Exception {
-		if (!connectToDatabase()) {
-			Utils.log("Not connected and can't connect to database.");
-			return;
-		}
-		try {
-			boolean autocommit = connection.getAutoCommit();
-			connection.setAutoCommit(false);
-			Statement st = connection.createStatement();
-
-			StringBuffer sb_query = new StringBuffer("UPDATE ab_zdisplayables SET ");
-			boolean update_all_points = false;
-
-			if (key.startsWith("INSERT INTO ab_ball_points ")) {
-				connection.prepareStatement(key).executeUpdate();
-				connection.commit();
-				// restore
-				connection.setAutoCommit(autocommit);
-				return;
-			} else if (key.equals("points")) {
-				update_all_points = true;
-			} else if (key.startsWith("UPDATE ab_ball_points")) {
-				// used to update points individually
-				connection.prepareStatement(key).executeUpdate();
-				connection.commit();
-				// restore
-				connection.setAutoCommit(autocommit);
-				return;
-			} else if (key.equals("layer_set_id")) {
-				sb_query.append("layer_set_id=").append(ball.getLayerSet().getId());
-			} else {
-				// Displayable level
-				connection.setAutoCommit(autocommit);
-				updateInDatabase((Displayable)ball, key);
-				return;
-			}
-
-			if (sb_query.length() > 28) { // 28 is the length of the string 'UPDATE ab_zdisplayables SET '
-				st.addBatch(sb_query.toString());
-			}
-
-			if (update_all_points) {
-				// delete and re-add
-				st.addBatch("DELETE FROM ab_ball_points WHERE ball_id=" + ball.getId());
-				String[] s_points = ball.getPointsForSQL();
-				for (int i=0; i<s_points.length; i++) {
-					st.addBatch(s_points[i]);
-				}
-			}
-
-			sb_query.append(" WHERE pipe_id=").append(ball.getId());
-
-			// commit
-			st.executeBatch();
-			connection.commit();
-			// restore
-			connection.setAutoCommit(autocommit);
-
-		} catch (SQLException sqle) {
-			IJError.print(sqle);
-			Exception next;
-			if (null != (next = sqle.getNextException())) {
-				IJError.print(next);
-			}
-			try {
-				connection.rollback();
-				connection.setAutoCommit(true); // default ..
-			} catch (SQLException sqle2) {
-				IJError.print(sqle2);
+		if (key.startsWith("INSERT INTO ab_ball_points ") || key.startsWith("UPDATE ab_ball_points")) {
+			// used to add or update points individually
+			addUpdate(key);
+		} else if (key.equals("points")) {
+			// delete and re-add
+			addUpdate("DELETE FROM ab_ball_points WHERE ball_id=" + ball.getId());
+			for (final String s_point : ball.getPointsForSQL()) {
+				addUpdate(s_point);
 			}
+		} else if (key.equals("layer_set_id")) {
+			addUpdate("UPDATE ab_zdisplayables SET layer_set_id=" + ball.getLayerSet().getId() + " WHERE id=" + ball.getId());
+		} else {
+			// Displayable level
+			updateInDatabase((Displayable)ball, key);
 		}
 	}
 
@@ -2144,69 +2370,20 @@ public class DBLoader extends Loader {
 	}
 
 	private void updateInDatabase(Pipe pipe, String key) throws Exception {
-		if (!connectToDatabase()) {
-			Utils.log("Not connected and can't connect to database.");
-			return;
-		}
-		try {
-			boolean autocommit = connection.getAutoCommit();
-			connection.setAutoCommit(false);
-			Statement st = connection.createStatement();
-
-			StringBuffer sb_query = new StringBuffer("UPDATE ab_zdisplayables SET ");
-			boolean update_all_points = false;
-
-			if (key.equals("points")) {
-				update_all_points = true;
-			} else if (key.startsWith("UPDATE ab_pipe_points")) {
-				// used to update points individually
-				connection.prepareStatement(key).executeUpdate();
-				connection.commit();
-				// restore
-				connection.setAutoCommit(autocommit);
-				return;
-			} else if (key.equals("layer_set_id")) {
-				sb_query.append("layer_set_id=").append(pipe.getLayerSet().getId());
-			} else {
-				// Displayable level
-				connection.setAutoCommit(autocommit);
-				updateInDatabase((Displayable)pipe, key);
-				return;
-			}
-
-			if (sb_query.length() > 28) { // 28 is the length of the string 'UPDATE ab_zdisplayables SET '
-				st.addBatch(sb_query.toString());
-			}
-
-			if (update_all_points) {
-				// delete and re-add
-				st.addBatch("DELETE FROM ab_pipe_points WHERE pipe_id=" + pipe.getId());
-				String[] s_points = pipe.getPointsForSQL();
-				for (int i=0; i<s_points.length; i++) {
-					st.addBatch(s_points[i]);
-				}
-			}
-
-			sb_query.append(" WHERE pipe_id=").append(pipe.getId());
-
-			// commit
-			st.executeBatch();
-			connection.commit();
-			// restore
-			connection.setAutoCommit(autocommit);
-
-		} catch (SQLException sqle) {
-			IJError.print(sqle);
-			Exception next;
-			if (null != (next = sqle.getNextException())) {
-				IJError.print(next);
-			}
-			try {
-				connection.rollback();
-				connection.setAutoCommit(true); // default ..
-			} catch (SQLException sqle2) {
-				IJError.print(sqle2);
-			}
+		if (key.equals("points")) {
+			// delete and re-add
+			addUpdate("DELETE FROM ab_pipe_points WHERE pipe_id=" + pipe.getId());
+			for (final String s_point : pipe.getPointsForSQL()) {
+				addUpdate(s_point);
+			}
+		} else if (key.startsWith("UPDATE ab_pipe_points")) {
+			// used to update points individually
+			addUpdate(key);
+		} else if (key.equals("layer_set_id")) {
+			addUpdate("UPDATE ab_zdisplayables SET layer_set_id=" + pipe.getLayerSet().getId() + " WHERE id=" + pipe.getId());
+		} else {
+			// Displayable level
+			updateInDatabase((Displayable)pipe, key);
 		}
 	}
 
@@ -2246,7 +2423,7 @@ public class DBLoader extends Loader {
 
 	private void updateInDatabase(DLabel label, String key) throws Exception {
 		if (key.equals("font")) {
-			connection.createStatement().executeQuery(new StringBuffer("UPDATE ab_labels SET font_name='").append(label.getFont().getName()).append("', font_style=").append(label.getFont().getStyle()).append(", font_size=").append(label.getFont().getSize()).append(" WHERE id=").append(label.getId()).toString());
+			addUpdate(new StringBuffer("UPDATE ab_labels SET font_name='").append(label.getFont().getName()).append("', font_style=").append(label.getFont().getStyle()).append(", font_size=").append(label.getFont().getSize()).append(" WHERE id=").append(label.getId()).toString());
 		} else {
 			updateInDatabase((Displayable)label, key);
 		}
@@ -2266,64 +2443,33 @@ public class DBLoader extends Loader {
 	}
 
 	private void updateInDatabase(AreaList arealist, String key) throws Exception {
-		if (!connectToDatabase()) {
-			Utils.log("Not connected and can't connect to database.");
-			return;
-		}
-		try {
-			boolean autocommit = connection.getAutoCommit();
-			connection.setAutoCommit(false);
-			StringBuffer sb_query = new StringBuffer("UPDATE ");
-
-			if (key.equals("layer_set_id")) {
-				Statement st = connection.createStatement();
-				st.executeUpdate(sb_query.append(" ab_zdisplayables SET layer_set_id=").append(arealist.getLayerSet().getId()).append(" WHERE id=").append(arealist.getId()).toString());
-
-			} else if (key.startsWith("points=")) {
-				// update only
-				long layer_id = Long.parseLong(key.substring(7));
-				// remove exisiting paths for this layer_id
-				connection.createStatement().executeUpdate(new StringBuffer("DELETE FROM ab_area_paths WHERE area_list_id=").append(arealist.getId()).append(" AND layer_id=").append(layer_id).toString());
-				// add new paths
-				ArrayList al_paths = arealist.getPaths(layer_id);
+		if (key.equals("layer_set_id")) {
+			addUpdate(new StringBuffer("UPDATE ab_zdisplayables SET layer_set_id=").append(arealist.getLayerSet().getId()).append(" WHERE id=").append(arealist.getId()).toString());
+		} else if (key.startsWith("points=")) {
+			// update only
+			long layer_id = Long.parseLong(key.substring(7));
+			// remove exisiting paths for this layer_id
+			addUpdate(new StringBuffer("DELETE FROM ab_area_paths WHERE area_list_id=").append(arealist.getId()).append(" AND layer_id=").append(layer_id).toString());
+			// add new paths, made now from the current area
+			ArrayList al_paths = arealist.getPaths(layer_id);
+			for (Iterator it = al_paths.iterator(); it.hasNext(); ) {
+				addUpdate(new StringBuffer("INSERT INTO ab_area_paths (area_list_id, layer_id, polygon) VALUES (").append(arealist.getId()).append(',').append(layer_id).append(",?)").toString(), makePGpolygon((ArrayList)it.next()));
+			}
+		} else if (key.equals("all_points")) {
+			// remove exisiting paths for this area_list_id
+			addUpdate(new StringBuffer("DELETE FROM ab_area_paths WHERE area_list_id=").append(arealist.getId()).toString());
+			// add then new
+			HashMap ht = arealist.getAllPaths();
+			for (Iterator eit = ht.entrySet().iterator(); eit.hasNext(); ) {
+				Map.Entry entry = (Map.Entry)eit.next();
+				long layer_id = ((Long)entry.getKey()).longValue();
+				ArrayList al_paths = (ArrayList)entry.getValue();
 				for (Iterator it = al_paths.iterator(); it.hasNext(); ) {
-					PreparedStatement ps = connection.prepareStatement(new StringBuffer("INSERT INTO ab_area_paths (area_list_id, layer_id, polygon) VALUES (").append(arealist.getId()).append(',').append(layer_id).append(",?)").toString());
-					ps.setObject(1, makePGpolygon((ArrayList)it.next()));
-					ps.executeUpdate();
+					addUpdate(new StringBuffer("INSERT INTO ab_area_paths (area_list_id, layer_id, polygon) VALUES (").append(arealist.getId()).append(',').append(layer_id).append(",?)").toString(), makePGpolygon((ArrayList)it.next()));
 				}
-			} else if (key.equals("all_points")) {
-				// remove exisiting paths for this area_list_id
-				connection.createStatement().executeUpdate(new StringBuffer("DELETE FROM ab_area_paths WHERE area_list_id=").append(arealist.getId()).toString());
-				// add then new
-				HashMap ht = arealist.getAllPaths();
-				for (Iterator eit = ht.entrySet().iterator(); eit.hasNext(); ) {
-					Map.Entry entry = (Map.Entry)eit.next();
-					long layer_id = ((Long)entry.getKey()).longValue();
-					ArrayList al_paths = (ArrayList)entry.getValue();
-					for (Iterator it = al_paths.iterator(); it.hasNext(); ) {
-						PreparedStatement ps = connection.prepareStatement(new StringBuffer("INSERT INTO ab_area_paths (area_list_id, layer_id, polygon) VALUES (").append(arealist.getId()).append(',').append(layer_id).append(",?)").toString());
-						ps.setObject(1, makePGpolygon((ArrayList)it.next()));
-						ps.executeUpdate();
-					}
-				}
-			} else if (key.equals("fill_paint")) {
-				connection.createStatement().executeUpdate(new StringBuffer("UPDATE ab_area_paths SET fill_paint=").append(arealist.isFillPaint()).append(" WHERE area_list_id=").append(arealist.getId()).toString()); // overkill, but otherwise I need to remake the ZDisplayable tables (which I will do at some point)
-			}
-			connection.commit();
-			// restore
-			connection.setAutoCommit(autocommit);
-		} catch (SQLException sqle) {
-			IJError.print(sqle);
-			Exception next;
-			if (null != (next = sqle.getNextException())) {
-				IJError.print(next);
-			}
-			try {
-				connection.rollback();
-				connection.setAutoCommit(true); // default ..
-			} catch (SQLException sqle2) {
-				IJError.print(sqle2);
 			}
+		} else if (key.equals("fill_paint")) {
+			addUpdate(new StringBuffer("UPDATE ab_area_paths SET fill_paint=").append(arealist.isFillPaint()).append(" WHERE area_list_id=").append(arealist.getId()).toString()); // overkill, but otherwise I need to remake the ZDisplayable tables (which I will do at some point)
 		}
 	}
 
@@ -2480,6 +2626,7 @@ public class DBLoader extends Loader {
 
 	public Object[] fetchLabel(DLabel label) {
 		synchronized (db_lock) {
+			flushUpdates();
 			//connect if disconnected
 			if (!connectToDatabase()) {
 				return null;
@@ -2685,6 +2832,16 @@ public class DBLoader extends Loader {
 		}
 	}
 
+	/** Writes all queued updates to the database before saving; doesn't save, and returns null, if they can't be written. */
+	@Override
+	public String save(final Project project, final XMLOptions options) {
+		if (!flushUpdates()) {
+			Utils.showMessage("Could not write " + getQueuedUpdatesCount() + " pending updates to the database:\nthe project was not saved.");
+			return null;
+		}
+		return super.save(project, options);
+	}
+
 	/** Always returns false. */
 	public boolean hasChanges() {
 		return false;
@@ -23,6 +23,7 @@ Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
 package ini.trakem2.persistence;
 
 import ini.trakem2.Project;
+import ini.trakem2.utils.SearchIndex;
 import ini.trakem2.utils.Utils;
 
 import java.util.Set;
@@ -76,17 +77,21 @@ public class DBObject {
 	public final Project getProject() { return project; }
 
 	public boolean addToDatabase() {
+		SearchIndex.changed(this);
 		return project.getLoader().addToDatabase(this);
 	}
 
 	public boolean updateInDatabase(String key) {
+		SearchIndex.changed(this);
 		return project.getLoader().updateInDatabase(this, key);
 	}
 	public boolean updateInDatabase(Set<String> keys) {
+		SearchIndex.changed(this);
 		return project.getLoader().updateInDatabase(this, keys);
 	}
 
 	public boolean removeFromDatabase() {
+		SearchIndex.changed(this);
 		return project.getLoader().removeFromDatabase(this);
 	}
 
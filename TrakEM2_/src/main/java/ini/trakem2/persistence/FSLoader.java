@@ -43,6 +43,7 @@ import ini.trakem2.display.DLabel;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerOverview;
 import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Stack;
@@ -54,6 +55,7 @@ import ini.trakem2.io.RawMipMaps;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
@@ -69,7 +71,9 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -87,6 +91,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
@@ -406,7 +411,15 @@ public final class FSLoader extends Loader {
 			//Utils.log2("File f is " + f);
 			Utils.log2("Removing mipmaps for " + p);
 			// Cannot run in the remover: is a daemon, and would be interrupted.
-			removeMipMaps(createIdPath(Long.toString(p.getId()), f.getName(), mExt), (int)p.getWidth(), (int)p.getHeight());
+			final MipMapShards shards = getShards();
+			if (null != shards) shards.remove(p.getId());
+			else removeMipMaps(createIdPath(Long.toString(p.getId()), f.getName(), mExt), (int)p.getWidth(), (int)p.getHeight());
+		}
+		synchronized (shards_lock) {
+			if (null != shards) {
+				shards.close();
+				shards = null;
+			}
 		}
 		//
 		// remove empty trakem2.mipmaps folder if any
@@ -699,6 +712,11 @@ public final class FSLoader extends Loader {
 		}
 	}
 
+	@Override
+	public String getOverviewsFolder() {
+		return getUNUIdFolder() + "trakem2.overviews/";
+	}
+
 	/** Loaded in full from XML file */
 	public Object[] fetchLabel(DLabel label) {
 		return null;
@@ -1409,6 +1427,12 @@ public final class FSLoader extends Loader {
 				setMipMapFormat(mipmaps_format);
 			}
 		}
+
+		final String s_mipmaps_sharded = (String) ht_attributes.remove("mipmaps_sharded");
+		if (null != s_mipmaps_sharded && Boolean.parseBoolean(s_mipmaps_sharded.trim())) {
+			this.mipmaps_sharded = true;
+			this.mmio = newMipMapRWImage();
+		}
 	}
 
 	private void notifyMipMapsOutOfSynch() {
@@ -1439,6 +1463,7 @@ public final class FSLoader extends Loader {
 		if (null != dir_mipmaps) sb_body.append(indent).append("mipmaps_folder=\"").append(makeRelativePath(dir_mipmaps)).append("\"\n");
 		if (null != dir_storage) sb_body.append(indent).append("storage_folder=\"").append(makeRelativePath(dir_storage)).append("\"\n");
 		sb_body.append(indent).append("mipmaps_format=\"").append(mipmaps_format).append("\"\n");
+		if (mipmaps_sharded) sb_body.append(indent).append("mipmaps_sharded=\"true\"\n");
 	}
 
 	/** Return the path to the folder containing the project XML file. */
@@ -1547,6 +1572,23 @@ public final class FSLoader extends Loader {
 	 * </p>
 	 */
 	protected boolean generateMipMaps(final Patch patch) {
+		return createMipMaps(patch, null);
+	}
+
+	/** Generate the mipmaps of a {@link Patch} without a coordinate transform nor an alpha mask
+	 * from an image already in memory, such as one just rendered to be saved as the image of the {@link Patch},
+	 * instead of reading the image back from its file.
+	 * The min and max of {@code ip} may be changed, and its pixels too for 8-bit images with a min and max other than 0 and 255.
+	 */
+	@Override
+	public boolean generateMipMaps(final Patch patch, final ImageProcessor ip) {
+		if (null == ip) return false;
+		if (patch.hasCoordinateTransform() || patch.hasAlphaMask()) return generateMipMaps(patch);
+		return createMipMaps(patch, ip);
+	}
+
+	/** @param source The image to generate the mipmaps from, or null to obtain it from the {@code patch}. */
+	private boolean createMipMaps(final Patch patch, final ImageProcessor source) {
 		Utils.log2("mipmaps for " + patch);
 		final String path = getAbsolutePath(patch);
 		if (null == path) {
@@ -1590,17 +1632,21 @@ public final class FSLoader extends Loader {
 			// Aggressive cache freeing
 			releaseToFit(patch.getOWidth() * patch.getOHeight() * 4 + MIN_FREE_BYTES);
 
-			// Obtain an image which may be coordinate-transformed, and an alpha mask.
-			Patch.PatchImage pai = patch.createTransformedImage();
-			if (null == pai || null == pai.target) {
-				Utils.log("Can't regenerate mipmaps for patch " + patch);
-				cannot_regenerate.add(patch);
-				return false;
+			if (null == source) {
+				// Obtain an image which may be coordinate-transformed, and an alpha mask.
+				Patch.PatchImage pai = patch.createTransformedImage();
+				if (null == pai || null == pai.target) {
+					Utils.log("Can't regenerate mipmaps for patch " + patch);
+					cannot_regenerate.add(patch);
+					return false;
+				}
+				ip = pai.target;
+				alpha_mask = pai.mask; // can be null
+				outside_mask = pai.outside; // can be null
+				pai = null;
+			} else {
+				ip = source;
 			}
-			ip = pai.target;
-			alpha_mask = pai.mask; // can be null
-			outside_mask = pai.outside; // can be null
-			pai = null;
 			
 			// Old style:
 			//final String filename = new StringBuilder(new File(path).getName()).append('.').append(patch.getId()).append(mExt).toString();
@@ -2002,11 +2048,13 @@ public final class FSLoader extends Loader {
 							int h = (int)pa.getHeight();
 							int level = 0;
 							final String filename = new File(getAbsolutePath(pa)).getName() + "." + pa.getId() + mExt;
+							final MipMapShards shards = getShards();
 							do {
 								w /= 2;
 								h /= 2;
 								level++;
-								if (!new File(dir_mipmaps + level + "/" + filename).exists()) {
+								if (null != shards ? !shards.contains(pa.getId(), level, mipmaps_format)
+								                   : !new File(dir_mipmaps + level + "/" + filename).exists()) {
 									ow = true;
 									break;
 								}
@@ -2031,7 +2079,7 @@ public final class FSLoader extends Loader {
 		// synch, so that multithreaded generateMipMaps won't collide trying to create dirs
 		synchronized (FSLOCK) {
 			final String path = new StringBuilder(dir_mipmaps).append(level).append('/').toString();
-			if (isURL(dir_mipmaps)) {
+			if (isURL(dir_mipmaps) || null != getShards()) {
 				return path;
 			}
 			final File file = new File(path);
@@ -2195,6 +2243,13 @@ public final class FSLoader extends Loader {
 		return remover.submit(new Callable<Boolean>() {
 			public Boolean call() {
 				try {
+					final MipMapShards shards = getShards();
+					if (null != shards) {
+						// All levels, in any format
+						shards.remove(p.getId());
+						flushMipMaps(p.getId());
+						return true;
+					}
 					final String path = getAbsolutePath(p);
 					if (null == path) {
 						// missing file
@@ -2254,6 +2309,12 @@ public final class FSLoader extends Loader {
 				// find max level that keeps dim over 32 pixels
 				if (level > max_level) return max_level;
 				return level;
+			}
+			final MipMapShards shards = getShards();
+			if (null != shards) {
+				for (; level >= 0; --level) {
+					if (shards.contains(patch.getId(), level, mipmaps_format)) return level;
+				}
 			} else {
 				do {
 					final File f = new File(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString());
@@ -2282,10 +2343,21 @@ public final class FSLoader extends Loader {
 		if (null == dir_mipmaps) return false;
 		final int level = getMipMapLevel(magnification, maxDim(p));
 		if (isURL(dir_mipmaps)) return true; // just assume that it does
+		final MipMapShards shards = getShards();
+		if (null != shards) return shards.contains(p.getId(), level, mipmaps_format);
 		if (new File(dir_mipmaps + level + "/" + new File(getAbsolutePath(p)).getName() + "." + p.getId() + mExt).exists()) return true;
 		return false;
 	}
 
+	/** The time of last modification of the largest mipmap file of the Patch, or zero when unknown,
+	 *  as when missing or when the mipmaps are in shards or at a URL. */
+	public long getMipMapTimestamp(final Patch p) {
+		if (null == dir_mipmaps || isURL(dir_mipmaps) || null != getShards()) return 0;
+		final String filename = getInternalFileName(p);
+		if (null == filename) return 0;
+		return new File(new StringBuilder(dir_mipmaps).append("0/").append(createIdPath(Long.toString(p.getId()), filename, mExt)).toString()).lastModified();
+	}
+
 	final Set<Patch> cannot_regenerate = Collections.synchronizedSet(new HashSet<Patch>());
 
 	/** Loads the file containing the scaled image corresponding to the given level
@@ -2387,6 +2459,12 @@ public final class FSLoader extends Loader {
 	}
 
 	static private AtomicInteger n_regenerating = new AtomicInteger(0);
+	static private final Metrics.Histogram MIPMAP_GENERATION = Metrics.histogram("fsloader.mipmaps.generation");
+	static {
+		Metrics.gauge("fsloader.mipmaps.queued", new Metrics.Gauge() {
+			public long value() { return n_regenerating.get(); }
+		});
+	}
 	static private ExecutorService regenerator = null;
 	static private ExecutorService remover = null;
 	static public ExecutorService repainter = null;
@@ -2433,7 +2511,7 @@ public final class FSLoader extends Loader {
 		synchronized (gm_lock) {
 			try {
 				Future<Boolean> fu = regenerating_mipmaps.get(patch);
-				if (null != fu) return fu;
+				if (null != fu && !fu.isCancelled()) return fu; // a cancelled one never ran
 
 				// else, start it
 
@@ -2452,7 +2530,10 @@ public final class FSLoader extends Loader {
 							// synchronize with the removal:
 							if (null != removing) removing.get();
 							Utils.showStatus(new StringBuilder("Regenerating mipmaps (").append(n_regenerating.get()).append(" to go)").toString());
+							final long t = MIPMAP_GENERATION.start();
 							b = generateMipMaps(patch); // will remove the Future from the regenerating_mipmaps table, under proper gm_lock synchronization
+							MIPMAP_GENERATION.stop(t);
+							LayerOverview.invalidate(patch.getLayer(), patch.getBoundingBox(null));
 							Display.repaint(patch.getLayer());
 							Display.updatePanel(patch.getLayer(), patch);
 							Utils.showStatus("");
@@ -2475,6 +2556,34 @@ public final class FSLoader extends Loader {
 		}
 	}
 
+	/** Registers the {@code task} as the regeneration of the mipmaps of {@code patch}, like {@link #regenerateMipMaps(Patch)} does,
+	 *  so that painting the {@code patch} or regenerating its mipmaps waits for the {@code task} rather than generating them again.
+	 *  If the mipmaps of {@code patch} are already being regenerated, returns the future of that regeneration and the {@code task} is not run. */
+	@Override
+	protected Future<Boolean> submitMipMapGeneration(final Patch patch, final Callable<Boolean> task, final ExecutorService exec) {
+		synchronized (gm_lock) {
+			final Future<Boolean> fu = regenerating_mipmaps.get(patch);
+			if (null != fu && !fu.isCancelled()) return fu;
+			final AtomicReference<Future<Boolean>> self = new AtomicReference<Future<Boolean>>();
+			final Future<Boolean> submitted = exec.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					try {
+						return task.call();
+					} finally {
+						// Generating the mipmaps removes it, but not when the task fails before
+						synchronized (gm_lock) {
+							if (self.get() == regenerating_mipmaps.get(patch)) regenerating_mipmaps.remove(patch);
+						}
+					}
+				}
+			});
+			self.set(submitted);
+			regenerating_mipmaps.put(patch, submitted);
+			return submitted;
+		}
+	}
+
 	/** Compute the number of bytes that the ImagePlus of a Patch will take. Assumes a large header of 1024 bytes. If the image is saved as a grayscale jpeg the returned bytes will be 5 times as expected, because jpeg images are opened as int[] and then copied to a byte[] if all channels have the same values for all pixels. */ // The header is unnecessary because it's read, but not stored except for some of its variables; it works here as a safety buffer space.
 	public long estimateImageFileSize(final Patch p, final int level) {
 		if (level > 0) {
@@ -2812,7 +2921,19 @@ public final class FSLoader extends Loader {
 	private String mExt = MIPMAP_FORMATS[mipmaps_format]; // the extension currently in use
 	private RWImage mmio = new RWImageRag();
 
+	/** Whether mipmaps are stored in {@link MipMapShards} rather than in one file per {@link Patch} and level. */
+	private boolean mipmaps_sharded = false;
+	/** Opened on demand for the current mipmaps folder; access is synchronized by shards_lock. */
+	private MipMapShards shards = null;
+	private String shards_folder = null;
+	private final Object shards_lock = new Object();
+
 	private RWImage newMipMapRWImage() {
+		final RWImage rw = newMipMapFileRWImage();
+		return mipmaps_sharded && null != rw ? new ShardedRWImage(rw) : rw;
+	}
+
+	private RWImage newMipMapFileRWImage() {
 		switch (this.mipmaps_format) {
 			case MIPMAP_JPEG:
 				return new RWImageJPG();
@@ -2829,6 +2950,80 @@ public final class FSLoader extends Loader {
 		return null;
 	}
 
+	/** The shards of the current mipmaps folder, or null if mipmaps are stored one per file. */
+	private MipMapShards getShards() {
+		if (!mipmaps_sharded) return null;
+		synchronized (shards_lock) {
+			final String dir = dir_mipmaps;
+			if (null == dir || isURL(dir)) return null;
+			if (null != shards && dir.equals(shards_folder)) return shards;
+			if (null != shards) shards.close();
+			try {
+				shards = new MipMapShards(dir);
+				shards_folder = dir;
+			} catch (IOException ioe) {
+				IJError.print(ioe);
+				shards = null;
+			}
+			return shards;
+		}
+	}
+
+	@Override
+	public boolean isMipMapsSharded() {
+		return mipmaps_sharded;
+	}
+
+	/** Store mipmaps in {@link MipMapShards}, moving the existing mipmap files into them,
+	 *  or the other way around. Either way the move is done in place and can be resumed if interrupted. */
+	@Override
+	public Bureaucrat setMipMapsSharded(final boolean sharded) {
+		if (sharded == mipmaps_sharded) return null;
+		if (null == dir_mipmaps || isURL(dir_mipmaps)) {
+			Utils.log("Cannot store mipmaps in shards: the mipmaps folder is not writable.");
+			return null;
+		}
+		final Project project = Project.findProject(FSLoader.this);
+		final MipMapShards previous = sharded ? null : getShards();
+		this.mipmaps_sharded = sharded;
+		this.mmio = newMipMapRWImage();
+		return Bureaucrat.createAndStart(new Worker.Task(sharded ? "Moving mipmaps into shards" : "Moving mipmaps out of shards") {
+			public void exec() {
+				try {
+					if (sharded) {
+						final MipMapShards shards = getShards();
+						if (null == shards) return;
+						Utils.log("Moved " + shards.migrate(dir_mipmaps, mExt, mipmaps_format) + " mipmap files into shards.");
+						return;
+					}
+					if (null == previous) return;
+					int count = 0;
+					for (final Layer la : project.getRootLayerSet().getLayers()) {
+						for (final Displayable d : la.getDisplayables(Patch.class)) {
+							final Patch p = (Patch)d;
+							final String filename = createMipMapRelPath(p, mExt);
+							for (int level=getHighestMipMapLevel(p); level>=0; --level) {
+								final byte[] data = previous.get(p.getId(), level, mipmaps_format);
+								if (null == data) continue;
+								final String path = getLevelDir(dir_mipmaps, level) + filename;
+								if (!ImageSaver.checkPath(path)) continue;
+								Files.write(new File(path).toPath(), data);
+								++count;
+							}
+						}
+					}
+					synchronized (shards_lock) {
+						if (previous == shards) shards = null;
+					}
+					previous.delete();
+					Utils.log("Moved " + count + " mipmaps out of shards.");
+				} catch (Exception e) {
+					IJError.print(e);
+				}
+			}
+		}, project);
+	}
+
 	/** Any of: {@link #MIPMAP_JPEG}, {@link #MIPMAP_PNG}, {@link #MIPMAP_TIFF}, {@link #MIPMAP_RAW},
 	 * {@link #MIPMAP_RAG}. */
 	@Override
@@ -2928,6 +3123,83 @@ public final class FSLoader extends Loader {
 		abstract BufferedImage open(String path);
 		/** Opens grey images or, if not grey, converts them to grey. */
 		abstract BufferedImage openGrey(String path);
+		/** Returns the contents of the file that {@link #save(String, byte[][], int, int, float)} would write,
+		 *  going through a temporary file unless overriden. */
+		byte[] encode(final byte[][] b, final int width, final int height, final float quality) {
+			File tmp = null;
+			try {
+				tmp = File.createTempFile("trakem2-mipmap-", mExt);
+				if (!save(tmp.getAbsolutePath(), b, width, height, quality)) return null;
+				return Files.readAllBytes(tmp.toPath());
+			} catch (IOException ioe) {
+				IJError.print(ioe);
+				return null;
+			} finally {
+				if (null != tmp) tmp.delete();
+			}
+		}
+		/** Opens the contents of a file, going through a temporary file unless overriden. */
+		BufferedImage decode(final byte[] data, final boolean as_grey) {
+			File tmp = null;
+			try {
+				tmp = File.createTempFile("trakem2-mipmap-", mExt);
+				Files.write(tmp.toPath(), data);
+				return as_grey ? openGrey(tmp.getAbsolutePath()) : open(tmp.getAbsolutePath());
+			} catch (IOException ioe) {
+				IJError.print(ioe);
+				return null;
+			} finally {
+				if (null != tmp) tmp.delete();
+			}
+		}
+	}
+	/** Stores the encoded mipmaps in the {@link MipMapShards} of the mipmaps folder rather than at the given paths,
+	 *  which are parsed for the level and the {@link Patch} id. */
+	private final class ShardedRWImage extends RWImage {
+		private final RWImage rw;
+		ShardedRWImage(final RWImage rw) {
+			this.rw = rw;
+		}
+		/** Returns the level and the id encoded in {@code path}, or null if it is not a path to a mipmap. */
+		private final long[] parse(final String path) {
+			final String dir = dir_mipmaps;
+			if (null == dir || !path.startsWith(dir)) return null;
+			final int slash = path.indexOf('/', dir.length());
+			if (-1 == slash) return null;
+			try {
+				final long id = MipMapShards.parseId(path.substring(slash + 1));
+				return -1 == id ? null : new long[]{Integer.parseInt(path.substring(dir.length(), slash)), id};
+			} catch (NumberFormatException nfe) {
+				return null;
+			}
+		}
+		@Override
+		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+			final MipMapShards shards = getShards();
+			final long[] li = null == shards ? null : parse(path);
+			if (null == li) return rw.save(path, b, width, height, quality);
+			final byte[] data = rw.encode(b, width, height, quality);
+			return null != data && shards.put(li[1], (int)li[0], mipmaps_format, data);
+		}
+		private final BufferedImage open(final String path, final boolean as_grey) {
+			final MipMapShards shards = getShards();
+			final long[] li = null == shards ? null : parse(path);
+			if (null != li) {
+				final byte[] data = shards.get(li[1], (int)li[0], mipmaps_format);
+				if (null != data) return rw.decode(data, as_grey);
+				// Not yet moved into the shards
+				if (!new File(path).exists()) return null;
+			}
+			return as_grey ? rw.openGrey(path) : rw.open(path);
+		}
+		@Override
+		final BufferedImage open(final String path) {
+			return open(path, false);
+		}
+		@Override
+		final BufferedImage openGrey(final String path) {
+			return open(path, true);
+		}
 	}
 	private final class RWImageJPG extends RWImage {
 		@Override
@@ -3054,6 +3326,18 @@ public final class FSLoader extends Loader {
 				CachingThread.storeForReuse(b);
 			}
 		}
+		@Override
+		final byte[] encode(final byte[][] b, final int width, final int height, final float quality) {
+			try {
+				return RawMipMaps.encode(b, width, height);
+			} finally {
+				CachingThread.storeForReuse(b);
+			}
+		}
+		@Override
+		final BufferedImage decode(final byte[] data, final boolean as_grey) {
+			return as_grey ? ImageSaver.asGrey(RawMipMaps.decode(data)) : RawMipMaps.decode(data);
+		}
 	}
 	private final class RWImageRag extends RWImage {
 		@Override
@@ -3072,6 +3356,18 @@ public final class FSLoader extends Loader {
 				CachingThread.storeForReuse(b);
 			}
 		}
+		@Override
+		final byte[] encode(final byte[][] b, final int width, final int height, final float quality) {
+			try {
+				return RagMipMaps.encode(b, width, height);
+			} finally {
+				CachingThread.storeForReuse(b);
+			}
+		}
+		@Override
+		final BufferedImage decode(final byte[] data, final boolean as_grey) {
+			return as_grey ? ImageSaver.asGrey(RagMipMaps.decode(data)) : RagMipMaps.decode(data);
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
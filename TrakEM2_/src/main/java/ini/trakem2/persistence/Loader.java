@@ -60,6 +60,8 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
@@ -104,6 +106,7 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.DisplayablePanel;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerOverview;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
@@ -117,17 +120,21 @@ import ini.trakem2.imaging.ContrastEnhancerWrapper;
 import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.LazyVirtualStack;
 import ini.trakem2.imaging.PatchStack;
+import ini.trakem2.imaging.SliceReadAhead;
 import ini.trakem2.imaging.StitchingTEM;
+import ini.trakem2.imaging.filters.FilterChain;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.AmiraImporter;
 import ini.trakem2.io.ImageFileFilter;
 import ini.trakem2.io.ImageFileHeader;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.DTDParser;
 import ini.trakem2.tree.TemplateThing;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.Dispatcher;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Montage;
 import ini.trakem2.utils.Saver;
 import ini.trakem2.utils.Utils;
@@ -234,6 +241,35 @@ abstract public class Loader {
 
 	static transient protected Vector<Loader> v_loaders = new Vector<Loader>(); // Vector: synchronized
 
+	static private final Metrics.Counter CACHE_HITS = Metrics.counter("loader.cache.hits"),
+	                                     CACHE_MISSES = Metrics.counter("loader.cache.misses");
+	static private final Metrics.Histogram DB_LOCK_WAIT = Metrics.histogram("loader.db_lock.wait"),
+	                                       MIPMAP_LOAD = Metrics.histogram("loader.mipmap.load");
+	static {
+		// Read without the db_lock: approximate values are fine for monitoring
+		Metrics.gauge("loader.cache.bytes", new Metrics.Gauge() {
+			public long value() {
+				long b = 0;
+				for (final Loader l : v_loaders.toArray(new Loader[0])) b += l.mawts.getBytes();
+				return b;
+			}
+		});
+		Metrics.gauge("loader.cache.imageplus_bytes", new Metrics.Gauge() {
+			public long value() {
+				long b = 0;
+				for (final Loader l : v_loaders.toArray(new Loader[0])) b += l.mawts.getImagePlusBytes();
+				return b;
+			}
+		});
+		Metrics.gauge("loader.cache.images", new Metrics.Gauge() {
+			public long value() {
+				long n = 0;
+				for (final Loader l : v_loaders.toArray(new Loader[0])) n += l.mawts.size();
+				return n;
+			}
+		});
+	}
+
 	/** A collection of stale files that will be removed after the XML file is saved successfully. */
 	private final Set<String> stale_files = Collections.synchronizedSet(new HashSet<String>());
 
@@ -958,7 +994,9 @@ abstract public class Loader {
 		final long id = p.getId();
 		ImageLoadingLock plock = null;
 
+		final long tw = DB_LOCK_WAIT.start();
 		synchronized (db_lock) {
+			DB_LOCK_WAIT.stop(tw);
 			try {
 				if (null == mawts) {
 					return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
@@ -968,9 +1006,11 @@ abstract public class Loader {
 					final Image mawt = mawts.get( id, level );
 					if (null != mawt) {
 						//Utils.log2("returning cached exact mawt for level " + level);
+						CACHE_HITS.inc();
 						final double scale = Math.pow( 2.0, level );
 						return new MipMapImage( mawt, scale, scale );
 					}
+					CACHE_MISSES.inc();
 					plock = getOrMakeImageLoadingLock(p.getId(), level);
 				}
 			} catch (final Exception e) {
@@ -999,12 +1039,14 @@ abstract public class Loader {
 			releaseToFit( n_bytes * 8 );
 
 			synchronized (plock) {
+				final long tl = MIPMAP_LOAD.start();
 				try {
 					mipMap = fetchMipMapAWT( p, level, n_bytes );
 				} catch (final Throwable t) {
 					IJError.print(t);
 					mipMap = null;
 				}
+				MIPMAP_LOAD.stop(tl);
 
 				synchronized (db_lock) {
 					try {
@@ -1613,6 +1655,94 @@ abstract public class Loader {
 		return null;
 	}
 
+	/** Read the width, height and type of each image file in {@code paths} from its header, without decoding its pixels,
+	 *  reading many headers at a time.
+	 *  @return An array with the header of each file, in the same order as {@code paths}, and null for files
+	 *  whose header could not be read or whose type is not supported. */
+	public ImageFileHeader[] readImageFileHeaders(final List<String> paths) {
+		final ImageFileHeader[] headers = new ImageFileHeader[paths.size()];
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Reading image headers", Scheduler.Lane.IO, Scheduler.NORM_PRIORITY, 0);
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>(headers.length);
+		for (int i=0; i<headers.length; ++i) {
+			final int k = i;
+			fus.add(job.submit(new Runnable() {
+				@Override
+				public void run() {
+					final String path = paths.get(k);
+					try {
+						final ImageFileHeader ifh = new ImageFileHeader(path);
+						if (ifh.isSupportedType()) headers[k] = ifh;
+						else Utils.log("Incompatible image type: " + path);
+					} catch (final Exception e) {
+						Utils.log("Could not read the header of " + path);
+					}
+				}
+			}));
+		}
+		job.shutdown();
+		try {
+			job.join(fus);
+		} catch (final InterruptedException ie) {
+			job.cancel();
+		}
+		return headers;
+	}
+
+	/** Generate the mipmaps of newly imported {@code patches} in the background, reading the image file of each once:
+	 *  the same image sets the display range of those in {@code reset_min_max}, and is then cached.
+	 *  At most as many images as the memory allows are open at any one time.
+	 *  Call before adding the {@code patches} to their layers, so that painting them waits for their mipmaps
+	 *  rather than generating them again.
+	 *  @param reset_min_max The patches, of those in {@code patches}, imported without a min and max
+	 *  whose display range, if 16-bit or 32-bit, is to be set from the image.
+	 *  @return One future per Patch, for waiting until all are done. */
+	public List<Future<?>> generateMipMapsOfImported(final List<Patch> patches, final Set<Patch> reset_min_max) {
+		if (patches.isEmpty()) return new ArrayList<Future<?>>();
+		long bytes = 0;
+		for (final Patch p : patches) bytes = Math.max(bytes, estimateImageFileSize(p, 0));
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Generating mipmaps of imported images", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, 0, this, bytes);
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>(patches.size());
+		for (final Patch patch : patches) {
+			fus.add(submitMipMapGeneration(patch, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					// Loads, preprocesses and caches the image, or waits for another thread doing so
+					IJ.redirectErrorMessages();
+					final ImagePlus imp = fetchImagePlus(patch);
+					if (null == imp) {
+						Utils.log("Could not open image " + getAbsolutePath(patch));
+						return false;
+					}
+					final ImageProcessor ip = imp.getProcessor();
+					if (reset_min_max.contains(patch)) {
+						switch (patch.getType()) {
+							case ImagePlus.GRAY16:
+							case ImagePlus.GRAY32:
+								ip.resetMinAndMax();
+								patch.setMinAndMax(ip.getMin(), ip.getMax());
+								break;
+						}
+					}
+					// A copy, for the cached image to remain unchanged
+					if (!generateMipMaps(patch, ip.duplicate())) return false;
+					if (null != patch.getLayer()) {
+						LayerOverview.invalidate(patch.getLayer(), patch.getBoundingBox(null));
+						Display.repaint(patch.getLayer());
+					}
+					return true;
+				}
+			}, job));
+		}
+		job.shutdown();
+		return fus;
+	}
+
+	/** Submit to {@code exec} the {@code task} that generates the mipmaps of {@code patch}.
+	 *  Returns the future of the {@code task}, unless overriden. */
+	protected Future<Boolean> submitMipMapGeneration(final Patch patch, final Callable<Boolean> task, final ExecutorService exec) {
+		return exec.submit(task);
+	}
+
 	/**
 	 * Insert grid in layer (with optional stitching)
 	 *
@@ -1659,26 +1789,28 @@ abstract public class Loader {
 			int x = 0;
 			int y = 0;
 			int largest_y = 0;
-			ImagePlus img = null;
-			// open the selected image, to use as reference for width and height
 			dir = dir.replace('\\', '/'); // w1nd0wz safe
 			if (!dir.endsWith("/")) dir += "/";
-			String path = dir + first_image_name;
-			releaseToFit(new File(path).length() * 3); // TODO arbitrary x3 factor
-			IJ.redirectErrorMessages();
-			ImagePlus first_img = openImagePlus(path);
-			if (null == first_img) {
+			// Read the width, height and type of all images from their headers, without decoding any pixels
+			final ArrayList<String> paths = new ArrayList<String>(n_images + 1);
+			paths.add(dir + first_image_name);
+			for (final String[] rows : cols) {
+				for (final String file_name : rows) paths.add(dir + file_name);
+			}
+			if (null != worker) worker.setTaskName("Reading image headers");
+			final ImageFileHeader[] headers = readImageFileHeaders(paths);
+			// the selected image is the reference for width and height
+			if (null == headers[0]) {
 				Utils.log("Selected image to open first is null.");
 				return;
 			}
-
-			if (null == first_img) return;
-			final int first_image_width = first_img.getWidth();
-			final int first_image_height = first_img.getHeight();
-			final int first_image_type = first_img.getType();
+			final int first_image_width = headers[0].width;
+			final int first_image_height = headers[0].height;
+			if (null != worker) worker.setTaskName("Importing");
 			// start
 			final Patch[][] pall = new Patch[cols.size()][((String[])cols.get(0)).length];
-			int width, height;
+			int next_header = 1;
+			int width = 0, height = 0;
 			int k = 0; //counter
 			boolean auto_fix_all = false;
 			boolean ignore_all = false;
@@ -1709,29 +1841,16 @@ abstract public class Loader {
 					}
 					// get file name
 					final String file_name = (String)rows[j];
-					path = dir + file_name;
-					if (null != first_img && file_name.equals(first_image_name)) {
-						img = first_img;
-						first_img = null; // release pointer
-					} else {
-						// open image
-						releaseToFit(first_image_width, first_image_height, first_image_type, 1.5f);
-						try {
-							IJ.redirectErrorMessages();
-							img = openImagePlus(path);
-						} catch (final OutOfMemoryError oome) {
-							printMemState();
-							throw oome;
-						}
-					}
-					if (null == img) {
+					final String path = dir + file_name;
+					final ImageFileHeader header = headers[next_header++];
+					if (null == header) {
 						Utils.log("null image! skipping.");
 						pall[i][j] = null;
 						continue;
 					}
 
-					width = img.getWidth();
-					height = img.getHeight();
+					width = header.width;
+					height = header.height;
 					int rw = width;
 					int rh = height;
 					if (width != first_image_width || height != first_image_height) {
@@ -1774,32 +1893,32 @@ abstract public class Loader {
 						}
 					}
 
-					//add new Patch at base bx,by plus the x,y of the grid
-					final Patch patch = new Patch(layer.getProject(), img.getTitle(), bx + x, by + y, img); // will call back and cache the image
+					//add new Patch at base bx,by plus the x,y of the grid; its display range is set when its mipmaps are generated
+					final Patch patch = new Patch(layer.getProject(), file_name, width, height, width, height, header.type, 1.0f, Color.yellow, false, -1, -1, new AffineTransform(1, 0, 0, 1, bx + x, by + y), path);
 					if (width != rw || height != rh) patch.setDimensions(rw, rh, false);
-					addedPatchFrom(path, patch);
 					if (homogenize_contrast) setMipMapsRegeneration(false); // prevent it
-					else fus.add(regenerateMipMaps(patch));
-					//
-					layer.add(patch, true); // after the above two lines! Otherwise it will paint fine, but throw exceptions on the way
-					patch.updateInDatabase("tiff_snapshot"); // otherwise when reopening it has to fetch all ImagePlus and scale and zip them all! This method though creates the awt and the snap, thus filling up memory and slowing down, but it's worth it.
+					// added to the layer all at once below. Otherwise it will paint fine, but throw exceptions on the way
 					pall[i][j] = patch;
 
 					al.add(patch);
-					if (ControlWindow.isGUIEnabled()) {
-						layer.getParent().enlargeToFit(patch, LayerSet.NORTHWEST); // northwest to prevent screwing up Patch coordinates.
-					}
-					y += img.getHeight();
+					y += height;
 					Utils.showProgress((double)k / n_images);
 					k++;
 				}
-				x += img.getWidth();
+				x += width;
 				if (largest_y < y) {
 					largest_y = y;
 				}
 				y = 0; //resetting!
 			}
 
+			// Read each image once, in the background, to set its display range and generate its mipmaps
+			if (!homogenize_contrast) fus.addAll(generateMipMapsOfImported(al, new HashSet<Patch>(al)));
+			layer.addAll(al);
+			if (ControlWindow.isGUIEnabled()) {
+				layer.getParent().enlargeToFit(al, LayerSet.NORTHWEST); // northwest to prevent screwing up Patch coordinates.
+			}
+
 			// build list
 			final Patch[] pa = new Patch[al.size()];
 			int f = 0;
@@ -2138,17 +2257,8 @@ while (it.hasNext()) {
 					final AtomicInteger n_imported = new AtomicInteger(0);
 					final Set<Layer> touched_layers = new HashSet<Layer>();
 
-					final int NP = Runtime.getRuntime().availableProcessors();
-					int np = NP;
-					switch (np) {
-						case 1:
-						case 2:
-							break;
-						default:
-							np = np / 2;
-							break;
-					}
-					final ExecutorService ex = Utils.newFixedThreadPool(np, "import-images");
+					// Only headers are read: as many at a time as the file system can serve
+					final ExecutorService ex = Scheduler.getInstance().newJob("Importing images", Scheduler.Lane.IO, Scheduler.NORM_PRIORITY, 0);
 					final List<Future<?>> imported = new ArrayList<Future<?>>();
 					final Worker wo = this;
 
@@ -2186,11 +2296,17 @@ while (it.hasNext()) {
 
 					final AtomicReference<Triple<Integer,Integer,ByteProcessor>> last_mask = new AtomicReference<Triple<Integer,Integer,ByteProcessor>>();
 
+					// The imported patches and their layers, by line
+					final Patch[] patches = new Patch[lines.length];
+					final Layer[] patch_layers = new Layer[lines.length];
+					// The patches whose display range is to be set from their image
+					final Set<Patch> unset_min_max = Collections.synchronizedSet(new HashSet<Patch>());
+
 					// 3 - parse each line
 					for (int i = 0; i < lines.length; i++) {
 						if (Thread.currentThread().isInterrupted() || hasQuitted()) {
-							this.quit();
-							return;
+							// Stop reading lines, but add the patches already imported
+							break;
 						}
 						// process line
 						String line = lines[i].replace('\\','/').trim(); // first thing is the backslash removal, before they get processed at all
@@ -2233,8 +2349,8 @@ while (it.hasNext()) {
 								final DirectoryChooser dc = new DirectoryChooser("Choose source directory");
 								final String dir = dc.getDirectory();
 								if (null == dir) {
-									// quit all threads
-									return;
+									// stop reading lines, but add the patches already imported
+									break;
 								}
 								base_dir = Utils.fixDir(dir);
 							}
@@ -2284,19 +2400,15 @@ while (it.hasNext()) {
 										}
 									}
 
-									ImagePlus imp = null;
-									if (Double.isNaN(min) || Double.isNaN(max)) {
-										imp = openImagePlus(imagefilepath);
-										min = imp.getProcessor().getMin();
-										max = imp.getProcessor().getMax();
+									final boolean unset = Double.isNaN(min) || Double.isNaN(max);
+									if (unset) {
+										// Set from the image when generating its mipmaps
+										min = -1;
+										max = -1;
 									}
 
 									final Patch patch = new Patch(layer.getProject(), new File(imagefilepath).getName(), o_width, o_height, o_width, o_height, type, 1.0f, Color.yellow, false, min, max, new AffineTransform(1, 0, 0, 1, xx, yy), imagefilepath);
-
-									if (null != script_path && null != imp) {
-										// For use in setting the preprocessor script
-										cacheImagePlus(patch.getId(), imp);
-									}
+									if (unset) unset_min_max.add(patch);
 									return patch;
 								}
 							};
@@ -2313,56 +2425,15 @@ while (it.hasNext()) {
 										Utils.log("Incompatible image type: " + imagefilepath);
 										return null;
 									}
-									double min = 0;
-									double max = 255;
-
-									switch (type) {
-										case ImagePlus.GRAY16:
-										case ImagePlus.GRAY32:
-											// Determine suitable min and max
-											// TODO Stream through the image, do not load it!
-
-											final ImagePlus imp = openImagePlus(imagefilepath);
-											if (null == imp) {
-												Utils.log("Ignoring unopenable image from " + imagefilepath);
-												return null;
-											}
-											min = imp.getProcessor().getMin();
-											max = imp.getProcessor().getMax();
-
-											break;
-									}
-
-									// add Patch
-									final Patch patch = new Patch(layer.getProject(), new File(imagefilepath).getName(), o_width, o_height, o_width, o_height, type, 1.0f, Color.yellow, false, min ,max, new AffineTransform(1, 0, 0, 1, xx, yy), imagefilepath);
-
-
+									// add Patch, with the display range of 16-bit and 32-bit images set from the image when generating its mipmaps
+									final Patch patch = new Patch(layer.getProject(), new File(imagefilepath).getName(), o_width, o_height, o_width, o_height, type, 1.0f, Color.yellow, false, -1, -1, new AffineTransform(1, 0, 0, 1, xx, yy), imagefilepath);
+									unset_min_max.add(patch);
 									return patch;
 								}
 							};
 						}
 
-						// If loaded twice as many, wait for mipmaps to finish
-						// Otherwise, images would end up loaded twice for no reason
-						if (0 == (i % (NP+NP))) {
-							final ArrayList<Future<?>> a = new ArrayList<Future<?>>(NP+NP);
-							synchronized (fus) { // .add is also synchronized, fus is a Vector
-								int k = 0;
-								while (!fus.isEmpty() && k < NP) {
-									a.add(fus.remove(0));
-									k++;
-								}
-							}
-							for (final Future<?> fu : a) {
-								try {
-									if (wo.hasQuitted()) return;
-									fu.get();
-								} catch (final Throwable t) {
-									t.printStackTrace();
-								}
-							}
-						}
-
+						final int line_index = i;
 						imported.add(ex.submit(new Runnable() {
 							@Override
                             public void run() {
@@ -2409,20 +2480,47 @@ while (it.hasNext()) {
 									}
 								}
 
-								if (!homogenize_contrast) {
-									fus.add(regenerateMipMaps(patch));
-								}
-								synchronized (layer) {
-									layer.add(patch, true);
-								}
+								// added to the layer all at once when done, in the order of the lines
+								patches[line_index] = patch;
+								patch_layers[line_index] = layer;
 								wo.setTaskName("Imported " + (n_imported.incrementAndGet() + 1) + "/" + lines.length);
 							}
 						}));
 					}
 
-					Utils.wait(imported);
+					// Wait even if interrupted: the patches of the tasks that ran are added below
+					final boolean interrupted = Thread.interrupted();
+					for (final Future<?> fu : imported) {
+						try {
+							fu.get();
+						} catch (final CancellationException ce) {
+							// never ran
+						} catch (final ExecutionException ee) {
+							IJError.print(ee.getCause());
+						}
+					}
 					ex.shutdown();
 
+					// Add the patches to their layers, one bulk insertion per layer
+					final HashMap<Layer,ArrayList<Patch>> per_layer = new HashMap<Layer,ArrayList<Patch>>();
+					for (int k=0; k<patches.length; k++) {
+						if (null == patches[k]) continue;
+						ArrayList<Patch> ps = per_layer.get(patch_layers[k]);
+						if (null == ps) {
+							ps = new ArrayList<Patch>();
+							per_layer.put(patch_layers[k], ps);
+						}
+						ps.add(patches[k]);
+					}
+					final ArrayList<Patch> all = new ArrayList<Patch>();
+					for (final ArrayList<Patch> ps : per_layer.values()) all.addAll(ps);
+					// Read each image once, in the background, to set its display range and generate its mipmaps
+					if (!homogenize_contrast) fus.addAll(generateMipMapsOfImported(all, unset_min_max));
+					for (final Map.Entry<Layer,ArrayList<Patch>> e : per_layer.entrySet()) {
+						e.getKey().addAll(e.getValue());
+					}
+					if (interrupted) Thread.currentThread().interrupt();
+
 					if (0 == n_imported.get()) {
 						Utils.log("No images imported.");
 						return;
@@ -2625,27 +2723,37 @@ while (it.hasNext()) {
 				if (!target_dir.endsWith("/")) target_dir += "/";
 			}
 			if (layer.length > 1) {
-				// Get all slices
+				// Render slices in parallel, each slice streamed to disk as soon as it is ready;
+				// or all kept in memory and then added to the stack in order.
 				ImageStack stack = null;
+				final ImageProcessor[] slices = null == target_dir ? new ImageProcessor[layer.length] : null;
+				final String dir = target_dir;
+				final Rectangle r = srcRect_;
+				final long bytes_per_slice = (long)Math.ceil((r.width * scale) * (r.height * scale) * ( ImagePlus.GRAY8 == type ? 1 : 4 ) * 3);
 				Utils.showProgress(0);
-				for (int i=0; i<layer.length; i++) {
-					if (Thread.currentThread().isInterrupted()) return;
-
-					/* free memory */
-					releaseAll();
-
-					Utils.showProgress(i / (float)layer.length);
-
-					final ImagePlus slice = getFlatImage(layer[i], srcRect_, scale, c_alphas, type, Displayable.class, null, quality, background);
-					if (null == slice) {
-						Utils.log("Could not retrieve flat image for " + layer[i].toString());
-						continue;
+				SliceReadAhead.stream("making flat images", new SliceReadAhead.Source() {
+					@Override
+					public ImageProcessor render(final int n) {
+						final ImagePlus slice = getFlatImage(layer[n-1], r, scale, c_alphas, type, Displayable.class, null, quality, background);
+						if (null == slice) {
+							Utils.log("Could not retrieve flat image for " + layer[n-1].toString());
+							return null;
+						}
+						return slice.getProcessor();
 					}
-					if (null != target_dir) {
-						saveToPath(slice, target_dir, layer[i].getPrintableTitle(), ".tif");
-					} else {
-						if (null == stack) stack = new ImageStack(slice.getWidth(), slice.getHeight());
-						stack.addSlice(layer[i].getProject().findLayerThing(layer[i]).toString(), slice.getProcessor());
+				}, 1, layer.length, null == dir ? 0 : SliceReadAhead.suggestDepth(bytes_per_slice) + 1, Loader.this, bytes_per_slice, new SliceReadAhead.Sink() {
+					@Override
+					public void accept(final int n, final ImageProcessor ip) {
+						if (null != dir) saveToPath(new ImagePlus(layer[n-1].getPrintableTitle(), ip), dir, layer[n-1].getPrintableTitle(), ".tif");
+						else slices[n-1] = ip;
+					}
+				});
+				if (Thread.currentThread().isInterrupted()) return;
+				if (null != slices) {
+					for (int i=0; i<layer.length; i++) {
+						if (null == slices[i]) continue;
+						if (null == stack) stack = new ImageStack(slices[i].getWidth(), slices[i].getHeight());
+						stack.addSlice(layer[i].getProject().findLayerThing(layer[i]).toString(), slices[i]);
 					}
 				}
 
@@ -2680,13 +2788,19 @@ while (it.hasNext()) {
 			Utils.log2("Loader.saveToPath: can't save a null image.");
 			return;
 		}
-		// create a unique file name
+		// create a unique file name, reserving it atomically since slices may be saved concurrently
 		final String path = dir + "/" + file_name;
 		File file = new File(path + extension);
 		int k = 1;
-		while (file.exists()) {
-			file = new File(path + "_" + k + ".tif");
-			k++;
+		try {
+			while (!file.createNewFile()) {
+				file = new File(path + "_" + k + ".tif");
+				k++;
+			}
+		} catch (final IOException ioe) {
+			Utils.log2("Could not create file for " + file_name);
+			IJError.print(ioe);
+			return;
 		}
 		try {
 			new Saver(extension).save(imp, file.getAbsolutePath());
@@ -4180,10 +4294,7 @@ while (it.hasNext()) {
 			// Now apply the Patch filters, if any
 			final IFilter[] fs = p.getFilters();
 			if (null != fs && fs.length > 0) {
-				ImageProcessor ip = imp.getProcessor();
-				for (final IFilter filter : fs) {
-					ip = filter.process(ip);
-				}
+				final ImageProcessor ip = FilterChain.process(imp.getProcessor(), fs);
 				if (ip != imp.getProcessor()) {
 					imp.setProcessor(ip);
 				}
@@ -4392,6 +4503,9 @@ while (it.hasNext()) {
 	/** Does nothing and returns false unless overriden. */
 	protected boolean generateMipMaps(final Patch patch) { return false; }
 
+	/** Does nothing and returns false unless overriden. */
+	public boolean generateMipMaps(final Patch patch, final ImageProcessor ip) { return false; }
+
 	/** Does nothing unless overriden. */
 	public Future<Boolean> removeMipMaps(final Patch patch) { return null; }
 
@@ -4415,6 +4529,9 @@ while (it.hasNext()) {
 	/** Does nothing and returns false unless overriden. */
 	public boolean checkMipMapFileExists(final Patch p, final double magnification) { return false; }
 
+	/** Does nothing and returns zero unless overriden. */
+	public long getMipMapTimestamp(final Patch p) { return 0; }
+
 	public void adjustChannels(final Patch p, final int old_channels) {
 		/*
 		if (0xffffffff == old_channels) {
@@ -4677,6 +4794,9 @@ while (it.hasNext()) {
 	/** Returns null unless overriden. */
 	public String getMipMapsFolder() { return null; }
 
+	/** Returns the folder for saving the overview images of layers, or null if they are not saved. Returns null unless overriden. */
+	public String getOverviewsFolder() { return null; }
+
 	public Patch addNewImage(final ImagePlus imp) {
 		return addNewImage(imp, 0, 0);
 	}
@@ -5141,6 +5261,12 @@ while (it.hasNext()) {
 	/** Does nothing unless overriden. */
 	public Bureaucrat updateMipMapsFormat(final int old_format, final int new_format) { return null; }
 
+	/** Does nothing unless overriden. */
+	public boolean isMipMapsSharded() { return false; }
+
+	/** Does nothing unless overriden. */
+	public Bureaucrat setMipMapsSharded(final boolean sharded) { return null; }
+
 	/** Does nothing unless overriden. */
 	public boolean deleteStaleFiles(final boolean coordinate_transforms, final boolean alpha_masks) { return false; }
 
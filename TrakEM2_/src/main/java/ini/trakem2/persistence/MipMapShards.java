@@ -0,0 +1,561 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the mipmaps of all {@link ini.trakem2.display.Patch} instances of a project in a fixed number of large files,
+ * rather than one file per {@link ini.trakem2.display.Patch} and level, so that fetching, regenerating and removing
+ * mipmaps does not open, stat or delete millions of small files.
+ *
+ * Each shard is an append-only sequence of records, each holding the encoded mipmap of one level of one
+ * {@link ini.trakem2.display.Patch}, exactly as it would have been written to its own file, and ending with a checksum.
+ * Replacing or removing a mipmap appends a new record, and the index of the shard points to the newest one
+ * only once it has been fully written: an interrupted write leaves a truncated last record that is discarded
+ * when the shard is opened again. A shard is compacted, by rewriting its live records into a new file that
+ * then replaces it, when more than half of it is unreachable.
+ *
+ * The index of each shard is kept in memory, and saved next to it on {@link #close()} and after compaction,
+ * so that opening a shard only has to read the records appended after the index was saved.
+ */
+public final class MipMapShards
+{
+	/** The folder, within the mipmaps folder, that contains the shards. */
+	static public final String FOLDER = "shards/";
+	static public final int DEFAULT_N_SHARDS = 256;
+	/** Compact a shard when its unreachable bytes exceed both this many bytes and half of its length. */
+	static public long COMPACTION_MIN_GARBAGE = 16 * 1024 * 1024;
+
+	static private final int MAGIC = 0x54324d53; // "T2MS"
+	static private final int RECORD = 0x54324d52; // "T2MR"
+	/** Magic, generation. */
+	static private final int FILE_HEADER = 4 + 8;
+	/** Magic, id, level, format, length of the data; after the data, the checksum. */
+	static private final int RECORD_HEADER = 4 + 8 + 4 + 4 + 4,
+	                         RECORD_TRAILER = 4;
+	static private final int MAX_LEVEL = 63;
+
+	private final String dir;
+	private final Shard[] shards;
+
+	/** Open, or create, the shards in the {@link #FOLDER} of {@code dir_mipmaps}. */
+	public MipMapShards(final String dir_mipmaps) throws IOException {
+		this.dir = Utils.fixDir(dir_mipmaps) + FOLDER;
+		final File fdir = new File(dir);
+		if (!fdir.exists() && !fdir.mkdirs()) throw new IOException("Could not create folder " + dir);
+		final File fp = new File(dir + "shards.properties");
+		final Properties p = new Properties();
+		int n_shards = DEFAULT_N_SHARDS;
+		if (fp.exists()) {
+			final InputStream in = new FileInputStream(fp);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			n_shards = Integer.parseInt(p.getProperty("shards").trim());
+		} else {
+			p.setProperty("shards", Integer.toString(n_shards));
+			final OutputStream out = new FileOutputStream(fp);
+			try {
+				p.store(out, "TrakEM2 mipmap shards");
+			} finally {
+				out.close();
+			}
+		}
+		this.shards = new Shard[n_shards];
+		for (int i=0; i<n_shards; ++i) shards[i] = new Shard(dir + i + ".shard");
+	}
+
+	/** Whether the mipmaps folder contains shards. */
+	static public boolean exists(final String dir_mipmaps) {
+		return new File(Utils.fixDir(dir_mipmaps) + FOLDER + "shards.properties").exists();
+	}
+
+	static private long key(final long id, final int level) {
+		return (id << 6) | level;
+	}
+
+	private Shard shardOf(final long id) {
+		return shards[(int)(((id ^ (id >>> 32)) & 0x7fffffff) % shards.length)];
+	}
+
+	/** @return The encoded mipmap, or null if there isn't one of that {@code format}. */
+	public byte[] get(final long id, final int level, final int format) {
+		if (level < 0 || level > MAX_LEVEL) return null;
+		try {
+			return shardOf(id).get(key(id, level), format);
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return null;
+		}
+	}
+
+	public boolean contains(final long id, final int level, final int format) {
+		if (level < 0 || level > MAX_LEVEL) return false;
+		try {
+			final Entry e = shardOf(id).find(key(id, level));
+			return null != e && e.format == format;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return false;
+		}
+	}
+
+	/** Store {@code data} as the mipmap of the given {@code level}, replacing any existing one. */
+	public boolean put(final long id, final int level, final int format, final byte[] data) {
+		if (level < 0 || level > MAX_LEVEL) return false;
+		try {
+			shardOf(id).append(id, level, format, data);
+			return true;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return false;
+		}
+	}
+
+	/** Remove the mipmaps of all levels for {@code id}.
+	 * @return The number of mipmaps removed. */
+	public int remove(final long id) {
+		try {
+			return shardOf(id).remove(id);
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return 0;
+		}
+	}
+
+	/** Compact all shards with any unreachable records. */
+	public void compact() {
+		for (final Shard shard : shards) {
+			try {
+				shard.compact(false);
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+		}
+	}
+
+	/** Save the index of each open shard and close its file. */
+	public void close() {
+		for (final Shard shard : shards) {
+			try {
+				shard.close();
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+		}
+	}
+
+	/** Close and delete all shards. */
+	public void delete() {
+		close();
+		for (final Shard shard : shards) {
+			shard.file.delete();
+			shard.index_file.delete();
+		}
+		new File(dir + "shards.properties").delete();
+		new File(dir).delete();
+	}
+
+	/** Move into the shards, in place, the mipmap files under {@code dir_mipmaps} that end with {@code extension},
+	 * deleting each file once stored, so that an interrupted migration resumes where it left off.
+	 * Files are expected at {@code <level>/<}{@link FSLoader#createIdPath(String, String, String)}{@code >}.
+	 * @return The number of files moved. */
+	public int migrate(final String dir_mipmaps, final String extension, final int format) {
+		final String dm = Utils.fixDir(dir_mipmaps);
+		final String[] names = new File(dm).list();
+		if (null == names) return 0;
+		int count = 0;
+		for (final String name : names) {
+			final int level;
+			try {
+				level = Integer.parseInt(name);
+			} catch (final NumberFormatException nfe) {
+				continue; // not a level folder
+			}
+			final File level_dir = new File(dm + name);
+			if (!level_dir.isDirectory()) continue;
+			final ArrayList<File> stack = new ArrayList<File>();
+			stack.add(level_dir);
+			final int prefix = level_dir.getAbsolutePath().length() + 1;
+			while (!stack.isEmpty()) {
+				final File d = stack.remove(stack.size() - 1);
+				final File[] files = d.listFiles();
+				if (null == files) continue;
+				for (final File f : files) {
+					if (f.isDirectory()) {
+						stack.add(f);
+						continue;
+					}
+					if (!f.getName().endsWith(extension)) continue;
+					final long id = parseId(f.getAbsolutePath().substring(prefix));
+					if (-1 == id) continue;
+					try {
+						if (put(id, level, format, Files.readAllBytes(f.toPath()))) {
+							f.delete();
+							++count;
+						}
+					} catch (final IOException ioe) {
+						Utils.log("Could not migrate mipmap file " + f);
+					}
+				}
+			}
+			removeEmptyFolders(level_dir);
+		}
+		return count;
+	}
+
+	/** Parse the id from a path relative to a level folder, as created by {@link FSLoader#createIdPath(String, String, String)}:
+	 * for example, "12/34/5.image.tif.rag" for id 12345. Returns -1 if it can't be parsed. */
+	static public long parseId(final String relative_path) {
+		final String path = relative_path.replace('\\', '/');
+		final int slash = path.lastIndexOf('/');
+		final int dot = path.indexOf('.', slash + 1);
+		if (-1 == dot) return -1;
+		try {
+			return Long.parseLong(path.substring(0, dot).replace("/", ""));
+		} catch (final NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	static private boolean removeEmptyFolders(final File d) {
+		final File[] files = d.listFiles();
+		if (null == files) return false;
+		boolean empty = true;
+		for (final File f : files) {
+			if (!f.isDirectory() || !removeEmptyFolders(f)) empty = false;
+		}
+		return empty && d.delete();
+	}
+
+	static private final class Entry {
+		/** The position of the data in the shard file. */
+		final long offset;
+		final int length;
+		final int format;
+		Entry(final long offset, final int length, final int format) {
+			this.offset = offset;
+			this.length = length;
+			this.format = format;
+		}
+	}
+
+	static private final class Shard {
+		private final File file, index_file;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final HashMap<Long,Entry> index = new HashMap<Long,Entry>();
+		private RandomAccessFile ra = null;
+		private FileChannel channel = null;
+		private long generation, length, garbage;
+		/** Whether the index changed since it was last saved. */
+		private boolean dirty = false;
+
+		Shard(final String path) {
+			this.file = new File(path);
+			this.index_file = new File(path + ".idx");
+		}
+
+		/** Open the file and read its index, if not yet done. Must be called with the write lock held. */
+		private void open() throws IOException {
+			if (null != channel) return;
+			final boolean exists = file.exists() && file.length() >= FILE_HEADER;
+			this.ra = new RandomAccessFile(file, "rw");
+			this.channel = ra.getChannel();
+			if (!exists) {
+				this.generation = System.nanoTime();
+				final ByteBuffer h = ByteBuffer.allocate(FILE_HEADER);
+				h.putInt(MAGIC).putLong(generation).flip();
+				channel.truncate(0);
+				channel.write(h, 0);
+				this.length = FILE_HEADER;
+				this.garbage = 0;
+				this.dirty = true;
+				return;
+			}
+			final ByteBuffer h = ByteBuffer.allocate(FILE_HEADER);
+			channel.read(h, 0);
+			h.flip();
+			if (MAGIC != h.getInt()) throw new IOException("Not a mipmap shard: " + file);
+			this.generation = h.getLong();
+			// Read the saved index, if any and if of this same generation of the file
+			long from = FILE_HEADER;
+			index.clear();
+			this.garbage = 0;
+			if (index_file.exists()) {
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index_file)));
+				try {
+					if (generation == in.readLong()) {
+						final long covered = in.readLong();
+						final long garbage = in.readLong();
+						final int n = in.readInt();
+						if (covered <= channel.size()) {
+							for (int i=0; i<n; ++i) {
+								final long key = in.readLong();
+								index.put(key, new Entry(in.readLong(), in.readInt(), in.readInt()));
+							}
+							from = covered;
+							this.garbage = garbage;
+						}
+					}
+				} catch (final EOFException eofe) {
+					index.clear();
+					from = FILE_HEADER;
+				} finally {
+					in.close();
+				}
+			}
+			this.length = scan(from);
+			// Discard any truncated record at the end
+			if (length < channel.size()) channel.truncate(length);
+		}
+
+		/** Read the records from {@code from} onwards into the index.
+		 * @return The position after the last complete record. */
+		private long scan(final long from) throws IOException {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			long pos = from;
+			try {
+				long skip = from;
+				while (skip > 0) {
+					final long s = in.skip(skip);
+					if (s <= 0) throw new EOFException();
+					skip -= s;
+				}
+				final CRC32 crc = new CRC32();
+				final byte[] header = new byte[RECORD_HEADER];
+				while (true) {
+					in.readFully(header);
+					final ByteBuffer h = ByteBuffer.wrap(header);
+					if (RECORD != h.getInt()) break;
+					final long id = h.getLong();
+					final int level = h.getInt(),
+					          format = h.getInt(),
+					          len = h.getInt();
+					if (level < 0 || level > MAX_LEVEL || len < -1) break;
+					crc.reset();
+					crc.update(header, 0, header.length);
+					if (len > 0) {
+						final byte[] data = new byte[len];
+						in.readFully(data);
+						crc.update(data, 0, len);
+					}
+					if ((int)crc.getValue() != in.readInt()) break;
+					final long size = RECORD_HEADER + Math.max(0, len) + RECORD_TRAILER;
+					final Entry old = -1 == len ? index.remove(key(id, level)) : index.put(key(id, level), new Entry(pos + RECORD_HEADER, len, format));
+					if (null != old) garbage += RECORD_HEADER + old.length + RECORD_TRAILER;
+					if (-1 == len) garbage += size;
+					pos += size;
+					dirty = true;
+				}
+			} catch (final EOFException eofe) {
+				// Last record incomplete, or no more records
+			} finally {
+				in.close();
+			}
+			return pos;
+		}
+
+		Entry find(final long key) throws IOException {
+			lock.writeLock().lock();
+			try {
+				open();
+				return index.get(key);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		byte[] get(final long key, final int format) throws IOException {
+			lock.readLock().lock();
+			try {
+				if (null == channel) {
+					// A read lock can't be upgraded: open under the write lock, then downgrade to the read lock
+					lock.readLock().unlock();
+					lock.writeLock().lock();
+					try {
+						open();
+					} finally {
+						lock.readLock().lock();
+						lock.writeLock().unlock();
+					}
+				}
+				final Entry e = index.get(key);
+				if (null == e || e.format != format) return null;
+				final byte[] data = new byte[e.length];
+				final ByteBuffer b = ByteBuffer.wrap(data);
+				long pos = e.offset;
+				while (b.hasRemaining()) {
+					final int r = channel.read(b, pos);
+					if (r < 0) throw new EOFException("Truncated mipmap shard " + file);
+					pos += r;
+				}
+				return data;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/** Append a record; a {@code data} of null removes the entry. */
+		private void write(final long id, final int level, final int format, final byte[] data) throws IOException {
+			final int len = null == data ? -1 : data.length;
+			final ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + Math.max(0, len) + RECORD_TRAILER);
+			b.putInt(RECORD).putLong(id).putInt(level).putInt(format).putInt(len);
+			if (null != data) b.put(data);
+			final CRC32 crc = new CRC32();
+			crc.update(b.array(), 0, b.position());
+			b.putInt((int)crc.getValue());
+			b.flip();
+			long pos = length;
+			while (b.hasRemaining()) pos += channel.write(b, pos);
+			final long key = key(id, level);
+			final Entry old = null == data ? index.remove(key) : index.put(key, new Entry(length + RECORD_HEADER, len, format));
+			if (null != old) garbage += RECORD_HEADER + old.length + RECORD_TRAILER;
+			if (null == data) garbage += pos - length;
+			length = pos;
+			dirty = true;
+		}
+
+		void append(final long id, final int level, final int format, final byte[] data) throws IOException {
+			lock.writeLock().lock();
+			try {
+				open();
+				write(id, level, format, data);
+				compact(true);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		int remove(final long id) throws IOException {
+			lock.writeLock().lock();
+			try {
+				open();
+				int count = 0;
+				for (int level=0; level<=MAX_LEVEL; ++level) {
+					if (index.containsKey(key(id, level))) {
+						write(id, level, 0, null);
+						++count;
+					}
+				}
+				if (count > 0) compact(true);
+				return count;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/** Rewrite the live records into a new file that then replaces this one.
+		 * @param only_if_needed Whether to compact only when more than half of the file, and more than {@link MipMapShards#COMPACTION_MIN_GARBAGE}, is unreachable. */
+		void compact(final boolean only_if_needed) throws IOException {
+			lock.writeLock().lock();
+			try {
+				if (only_if_needed) {
+					if (garbage < COMPACTION_MIN_GARBAGE || garbage < length / 2) return;
+				} else {
+					if (!file.exists()) return;
+					open();
+					if (0 == garbage) return;
+				}
+				final File tmp = new File(file.getAbsolutePath() + ".tmp");
+				final long new_generation = System.nanoTime();
+				final HashMap<Long,Entry> new_index = new HashMap<Long,Entry>();
+				final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+				try {
+					out.setLength(0);
+					final FileChannel c = out.getChannel();
+					final ByteBuffer h = ByteBuffer.allocate(FILE_HEADER);
+					h.putInt(MAGIC).putLong(new_generation).flip();
+					while (h.hasRemaining()) c.write(h);
+					long pos = FILE_HEADER;
+					for (final Map.Entry<Long,Entry> me : index.entrySet()) {
+						final Entry e = me.getValue();
+						final long size = RECORD_HEADER + e.length + RECORD_TRAILER;
+						// Copy the whole record, checksum included
+						long copied = 0;
+						while (copied < size) copied += channel.transferTo(e.offset - RECORD_HEADER + copied, size - copied, c);
+						new_index.put(me.getKey(), new Entry(pos + RECORD_HEADER, e.length, e.format));
+						pos += size;
+					}
+					c.force(true);
+				} finally {
+					out.close();
+				}
+				channel.close();
+				ra.close();
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				this.ra = new RandomAccessFile(file, "rw");
+				this.channel = ra.getChannel();
+				this.generation = new_generation;
+				this.length = channel.size();
+				this.garbage = 0;
+				index.clear();
+				index.putAll(new_index);
+				saveIndex();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/** Write the index to a temporary file that then replaces the saved index. */
+		private void saveIndex() throws IOException {
+			final File tmp = new File(index_file.getAbsolutePath() + ".tmp");
+			final DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			try {
+				out.writeLong(generation);
+				out.writeLong(length);
+				out.writeLong(garbage);
+				out.writeInt(index.size());
+				for (final Map.Entry<Long,Entry> me : index.entrySet()) {
+					final Entry e = me.getValue();
+					out.writeLong(me.getKey());
+					out.writeLong(e.offset);
+					out.writeInt(e.length);
+					out.writeInt(e.format);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), index_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		}
+
+		void close() throws IOException {
+			lock.writeLock().lock();
+			try {
+				if (null == channel) return;
+				if (dirty) saveIndex();
+				channel.close();
+				ra.close();
+				channel = null;
+				ra = null;
+				index.clear();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+}
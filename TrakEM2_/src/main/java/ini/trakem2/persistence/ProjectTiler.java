@@ -10,6 +10,7 @@ import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
 import ini.trakem2.parallel.CountingTaskFactory;
 import ini.trakem2.parallel.Process;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.LayerThing;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.tree.TemplateThing;
@@ -20,13 +21,16 @@ import java.awt.Color;
 import java.awt.Rectangle;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.trakem2.transform.ExportUnsignedShort;
 import mpicbg.trakem2.transform.ExportedTile;
@@ -47,7 +51,10 @@ public class ProjectTiler {
 	 * the original, and it is possible to send segmentations from one to the other "as is"
 	 * (directly, without having to transform along with the images which would not be possible). 
 	 * 
-	 * Image files are stored as 
+	 * Image files are stored as zipped TIFFs, one folder per layer. The zip compression of each tile runs
+	 * in parallel to the rendering of the next tiles, with a bounded number of tiles waiting to be saved.
+	 * The mipmaps of each tile are generated from the rendered tile while still in memory, rather than
+	 * by reading the saved files back when done.
 	 * 
 	 * The non-image objects of the given project are copied into the new project as well.
 	 * 
@@ -58,7 +65,7 @@ public class ProjectTiler {
 	 * @param exportImageType Any of {@link ImagePlus#GRAY8}, {@link ImagePlus#GRAY16} or {@link ImagePlus#COLOR_RGB}, otherwise an {@link IllegalArgumentException} is thrown.
 	 * @param onlyVisibleImages Whether to consider visible images only.
 	 * @param nExportThreads Number of layers to export in parallel. Use a small number when original images are huge (such as larger than 4096 x 4096 pixels).
-	 * @param createMipMaps Whether to generate the mipmaps when done or not.
+	 * @param createMipMaps Whether to generate the mipmaps of each tile as it is rendered or not.
 	 * 
 	 * @throws Exception IllegalArgumentException When {@code exportImageType} is not {@link ImagePlus#GRAY16} or {@link ImagePlus#COLOR_RGB}, or when the directory exists and cannot be written to.
 	 */
@@ -145,6 +152,7 @@ public class ProjectTiler {
 
 		// Export tiles as new Patch instances, creating new image files in disk
 		final int numThreads = Math.max(1, Math.min(nExportThreads, Runtime.getRuntime().availableProcessors()));
+		final TileWriter writer = new TileWriter(newProject.getLoader(), (long)tileWidth * tileHeight * (ImagePlus.GRAY8 == exportImageType ? 1 : (ImagePlus.GRAY16 == exportImageType ? 2 : 4)));
 		int i = 0;
 		for (final Layer srcLayer : srcLayers) {
 			Utils.log("Processing layer " + (i + 1) + "/" + srcLayers.size() + " -- " + new Date());
@@ -168,13 +176,13 @@ public class ProjectTiler {
 									final String title = layerIndex + "-" + index;
 									final String path = dir + title + ".tif.zip";
 									final ImagePlus imp = new ImagePlus(title, t.sp);
-									if (!new FileSaver(imp).saveAsZip(path)) {
-										throw new Exception("Could not save tile: " + path);
-									}
 									// Create a Patch
 									final Patch patch = new Patch(newProject, title, t.x, t.y, imp);
 									patch.setLocked(true);
 									newProject.getLoader().addedPatchFrom(path, patch);
+									// From a copy: mipmap generation may alter the min and max, and the pixels of 8-bit images, of the tile about to be saved
+									if (createMipMaps) newProject.getLoader().generateMipMaps(patch, imp.getProcessor().duplicate());
+									writer.save(imp, path);
 									return patch;
 								} catch (Exception e) {
 									IJError.print(e);
@@ -197,13 +205,13 @@ public class ProjectTiler {
 									final String title = layerIndex + "-" + index;
 									imp.setTitle(title);
 									final String path = dir + title + ".tif.zip";
-									if (!new FileSaver(imp).saveAsZip(path)) {
-										throw new Exception("Could not save tile: " + path);
-									}
 									// Create a Patch
 									final Patch patch = new Patch(newProject, title, bounds.x, bounds.y, imp);
 									patch.setLocked(true);
 									newProject.getLoader().addedPatchFrom(path, patch);
+									// From a copy: mipmap generation may alter the min and max, and the pixels of 8-bit images, of the tile about to be saved
+									if (createMipMaps) newProject.getLoader().generateMipMaps(patch, imp.getProcessor().duplicate());
+									writer.save(imp, path);
 									return patch;
 								} catch (Exception e) {
 									IJError.print(e);
@@ -215,11 +223,13 @@ public class ProjectTiler {
 						numThreads);
 			}
 			// Add all Patches to the new Layer
-			for (final Patch p : patches) {
-				newLayer.add(p);
-			}
+			newLayer.addAll(patches);
 		}
 
+		// Wait until all tiles are saved
+		final int failed = writer.finish();
+		if (failed > 0) Utils.log("Could not save " + failed + " tiles!");
+
 		// Copy all segmentations "As is"
 		final ProjectThing root = srcProject.getRootProjectThing();
 		if (null != root.getChildren() && !root.getChildren().isEmpty()) {
@@ -237,33 +247,74 @@ public class ProjectTiler {
 			}
 		}
 		
-		if (createMipMaps) {
-			final LinkedList<Future<?>> fus = new LinkedList<Future<?>>();
-			final int batch = Runtime.getRuntime().availableProcessors();
-			for (final Layer newLayer : newLayers) {
-				for (final Patch p : newLayer.getAll(Patch.class)) {
-					fus.add(p.updateMipMaps());
-					// Don't build-up too much
-					if (fus.size() > batch * 3) {
-						while (fus.size() > batch) {
-							try {
-								fus.removeFirst().get();
-							} catch (Exception e) {
-								IJError.print(e);
-							}
-						}
-					}
-				}
-			}
-			Utils.wait(fus);
-		}
-		
 		// Save:
 		newProject.saveAs(targetDir + "exported.xml", false);
 		
 		return newProject;
 	}
 	
+	/** Saves tiles as zipped TIFF files in parallel, separately from the threads that render them.
+	 * At most two tiles per encoding thread wait to be saved: {@link #save(ImagePlus, String)} blocks until there is room,
+	 * letting the {@link Scheduler} run other tasks meanwhile, such as those that save the waiting tiles. */
+	static private final class TileWriter {
+		private final Scheduler.Job job;
+		private final Semaphore room;
+		private final List<Future<?>> fus = Collections.synchronizedList(new ArrayList<Future<?>>());
+		private final AtomicInteger failed = new AtomicInteger(0);
+
+		private TileWriter(final Loader loader, final long bytesPerTile) {
+			final int n_threads = Runtime.getRuntime().availableProcessors();
+			this.job = Scheduler.getInstance().newJob("Saving tiles", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, n_threads, loader, bytesPerTile);
+			this.room = new Semaphore(2 * n_threads);
+		}
+
+		private void save(final ImagePlus imp, final String path) throws InterruptedException {
+			Scheduler.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				private boolean acquired = false;
+				@Override
+				public boolean block() throws InterruptedException {
+					if (!acquired) {
+						room.acquire();
+						acquired = true;
+					}
+					return true;
+				}
+				@Override
+				public boolean isReleasable() {
+					if (!acquired) acquired = room.tryAcquire();
+					return acquired;
+				}
+			});
+			try {
+				fus.add(job.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (!new FileSaver(imp).saveAsZip(path)) {
+								Utils.log("Could not save tile: " + path);
+								failed.incrementAndGet();
+							}
+						} finally {
+							room.release();
+						}
+					}
+				}));
+			} catch (final RuntimeException re) {
+				room.release();
+				throw re;
+			}
+		}
+
+		/** Wait for all tiles to be saved, and return the number of tiles that could not be saved. */
+		private int finish() throws InterruptedException {
+			job.shutdown();
+			synchronized (fus) {
+				job.join(fus);
+			}
+			return failed.get();
+		}
+	}
+
 	/** Return a lazy sequence of Rectangle instances, each specifying a tile that contains at least
 	 * parts of one Patch. Empty tiles are NOT returned.
 	 * 
@@ -0,0 +1,201 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2005-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+**/
+
+package ini.trakem2.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The write-behind queue of the {@link DBLoader}: the SQL statements of each update of a key of an object,
+ * made when the update was requested, in the order of the requests.
+ * A repeated update of the same key of the same object replaces the earlier one and moves to the end of the queue,
+ * so that the database receives the latest state of each key after everything requested before it.
+ *
+ * Not thread-safe: synchronize on the queue. */
+final class UpdateQueue {
+
+	/** One SQL statement, with at most one parameter (a polygon or the bytes of an image) bound to its '?'. */
+	static final class Update {
+		final String sql;
+		final Object param;
+		Update(final String sql, final Object param) {
+			this.sql = sql;
+			this.param = param;
+		}
+	}
+
+	static final class Key {
+		final Object ob;
+		final String key;
+		Key(final Object ob, final String key) {
+			this.ob = ob;
+			this.key = key;
+		}
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(ob) * 31 + key.hashCode();
+		}
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key k = (Key)o;
+			return ob == k.ob && key.equals(k.key);
+		}
+	}
+
+	private final LinkedHashMap<Key,List<Update>> queued = new LinkedHashMap<Key,List<Update>>();
+
+	/* Statistics */
+	private long n_enqueued = 0, n_coalesced = 0, n_flushes = 0, n_flushed = 0, n_failed = 0;
+	private int max_queued = 0;
+	private long flush_ms_last = 0, flush_ms_max = 0, flush_ms_total = 0;
+
+	/** Queue the {@code statements} that update {@code key} of {@code ob}, replacing those of an earlier update of the same key. */
+	void put(final Object ob, final String key, final List<Update> statements) {
+		++n_enqueued;
+		// remove first, so that the new statements go to the end
+		if (null != queued.remove(new Key(ob, key))) ++n_coalesced;
+		queued.put(new Key(ob, key), statements);
+		if (queued.size() > max_queued) max_queued = queued.size();
+	}
+
+	/** Remove all queued updates of {@code ob}; returns how many. */
+	int remove(final Object ob) {
+		int n = 0;
+		for (final Iterator<Key> it = queued.keySet().iterator(); it.hasNext(); ) {
+			if (it.next().ob == ob) {
+				it.remove();
+				++n;
+			}
+		}
+		return n;
+	}
+
+	/** The number of queued updates. */
+	int size() {
+		return queued.size();
+	}
+
+	void clear() {
+		queued.clear();
+	}
+
+	/** Remove and return all queued updates, in order, with their keys so that they can be {@link #requeue(LinkedHashMap) requeued}. */
+	LinkedHashMap<Key,List<Update>> drain() {
+		final LinkedHashMap<Key,List<Update>> updates = new LinkedHashMap<Key,List<Update>>(queued);
+		queued.clear();
+		return updates;
+	}
+
+	/** Put back the {@code failed} updates, as returned by {@link #drain()}, at the front of the queue and in their order.
+	 * Those of a key updated again since are dropped: the newer update, already queued after them, replaces them. */
+	void requeue(final LinkedHashMap<Key,List<Update>> failed) {
+		final LinkedHashMap<Key,List<Update>> newer = new LinkedHashMap<Key,List<Update>>(queued);
+		queued.clear();
+		for (final Map.Entry<Key,List<Update>> e : failed.entrySet()) {
+			if (!newer.containsKey(e.getKey())) queued.put(e.getKey(), e.getValue());
+		}
+		queued.putAll(newer);
+		if (queued.size() > max_queued) max_queued = queued.size();
+	}
+
+	void recordFlush(final int n, final int failed, final long elapsed) {
+		++n_flushes;
+		n_flushed += n;
+		n_failed += failed;
+		flush_ms_last = elapsed;
+		flush_ms_total += elapsed;
+		if (elapsed > flush_ms_max) flush_ms_max = elapsed;
+	}
+
+	/** Queue depth, coalescing and flush latency. */
+	String getStatistics() {
+		return new StringBuilder("DBLoader write-behind: ").append(queued.size()).append(" queued (max ").append(max_queued)
+			.append("), ").append(n_enqueued).append(" updates of which ").append(n_coalesced).append(" coalesced, ")
+			.append(n_flushed).append(" written in ").append(n_flushes).append(" flushes (").append(n_failed).append(" failed); flush time last ")
+			.append(flush_ms_last).append(" ms, mean ").append(0 == n_flushes ? 0 : flush_ms_total / n_flushes)
+			.append(" ms, max ").append(flush_ms_max).append(" ms").toString();
+	}
+
+	/** Execute all statements of {@code updates} in order, in a single transaction: consecutive statements without parameter
+	 * go into one batch, and consecutive statements with the same parameterized SQL into another.
+	 * If {@code c} is in autocommit mode, the transaction is committed here, or rolled back entirely if any statement fails,
+	 * and autocommit is then restored. Otherwise the statements become part of the ongoing transaction of {@code c}.
+	 * Returns the number of statements executed. */
+	static int write(final Connection c, final Collection<List<Update>> updates) throws SQLException {
+		final boolean own_transaction = c.getAutoCommit();
+		if (own_transaction) c.setAutoCommit(false);
+		Statement plain = null;
+		PreparedStatement prepared = null;
+		String prepared_sql = null;
+		int n = 0;
+		try {
+			for (final List<Update> statements : updates) {
+				for (final Update u : statements) {
+					if (null == u.param) {
+						if (null != prepared) {
+							prepared.executeBatch();
+							prepared.close();
+							prepared = null;
+						}
+						if (null == plain) plain = c.createStatement();
+						plain.addBatch(u.sql);
+					} else {
+						if (null != plain) {
+							plain.executeBatch();
+							plain.close();
+							plain = null;
+						}
+						if (null != prepared && !u.sql.equals(prepared_sql)) {
+							prepared.executeBatch();
+							prepared.close();
+							prepared = null;
+						}
+						if (null == prepared) {
+							prepared = c.prepareStatement(u.sql);
+							prepared_sql = u.sql;
+						}
+						prepared.setObject(1, u.param);
+						prepared.addBatch();
+					}
+					++n;
+				}
+			}
+			if (null != plain) plain.executeBatch();
+			if (null != prepared) prepared.executeBatch();
+			if (own_transaction) c.commit();
+			return n;
+		} catch (final SQLException sqle) {
+			if (own_transaction) c.rollback();
+			throw sqle;
+		} finally {
+			if (null != plain) try { plain.close(); } catch (final SQLException e) {}
+			if (null != prepared) try { prepared.close(); } catch (final SQLException e) {}
+			if (own_transaction) c.setAutoCommit(true);
+		}
+	}
+}
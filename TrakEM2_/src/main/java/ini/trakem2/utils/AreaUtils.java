@@ -7,9 +7,9 @@ import java.awt.geom.Area;
 import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -27,6 +27,8 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.imaging.BinaryInterpolation2D;
+import ini.trakem2.imaging.DistanceInterpolation2D;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.SkinMaker;
 import ini.trakem2.vector.VectorString2D;
@@ -53,6 +55,15 @@ public final class AreaUtils {
 	 *  @param areas
 	 *  @return The List of triangles involved, specified as three consecutive vertices. A list of Point3f vertices. */
 	static public List<Point3f> generateTriangles(final Displayable d, final double scale, final int resample_, final Map<Layer,Area> areas) {
+		return generateTriangles(d, scale, resample_, areas, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/** Like {@link #generateTriangles(Displayable, double, int, Map)}, but only for the cubes from {@code first_cube} (inclusive) to {@code last_cube} (exclusive).
+	 *  Cube i spans from the section i to the section i+1, where section 0 is the first {@link Layer} with an area, and cube -1 is the one before it.
+	 *  Meshes of adjacent ranges of cubes of the same areas fit together without gaps nor overlaps, as if meshed at once,
+	 *  provided that the bounding box and transform of {@code d} and the first and last layers with an area are the same for all.
+	 *  Only the areas of the sections within the range of cubes are read. */
+	static public List<Point3f> generateTriangles(final Displayable d, final double scale, final int resample_, final Map<Layer,Area> areas, final int first_cube, final int last_cube) {
 		// in the LayerSet, layers are ordered by Z already.
 		try {
 
@@ -121,28 +132,19 @@ public final class AreaUtils {
 				Utils.log("WARNING could not find all areas for " + d);
 			}
 
-			// No zero-padding: Marching Cubes now can handle edges
-			final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{w, h, depth}, new ByteType(), 32);
-			final Image<ByteType> shapeListImage = new Image<ByteType>(shapeList, shapeList.getBackground(), "ShapeListContainer");
-			final ByteType intensity = new ByteType((byte)127); // 255 or -1 don't work !? So, giving the highest value (127) that is both a byte and an int.
-
-			for (final Map.Entry<Integer,Area> e : ma.entrySet()) {
-				Area a = e.getValue();
-				if (!aff.isIdentity()) {
-					a = M.areaInIntsByRounding(a.createTransformedArea(aff));
-				}
-				shapeList.addShape(a, intensity, new int[]{e.getKey()});
+			// The sections of the cubes to mesh
+			final int cz0 = Math.max(-1, first_cube),
+			          cz1 = Math.min(depth, last_cube);
+			if (cz0 >= cz1) return new ArrayList<Point3f>();
+			for (final Iterator<Map.Entry<Integer,Area>> it = ma.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<Integer,Area> e = it.next();
+				if (e.getKey() < cz0 || e.getKey() > cz1) it.remove();
+				else if (!aff.isIdentity()) e.setValue(M.areaInIntsByRounding(e.getValue().createTransformedArea(aff)));
 			}
 
-			//debug:
-			//ImagePlus imp = ImageJFunctions.displayAsVirtualStack(shapeListImage);
-			//imp.getProcessor().setMinAndMax( 0, 255 );
-			//imp.show();
-
-			//Utils.log2("Using imglib Shape List Image Container");
-
-			// Now marching cubes
-			final List<Point3f> list = new MCTriangulator().getTriangles(shapeListImage, 1, new float[3]); // origins at 0,0,0: uncalibrated
+			// Now marching cubes, in blocks
+			final List<Point3f> list = triangulate(ma, w, h, depth, cz0, cz1);
+			if (null == list) return null; // interrupted
 
 
 			// The list of triangles has coordinates:
@@ -192,70 +194,47 @@ public final class AreaUtils {
 
 			//Utils.log2("Number of slices: " + imp.getNSlices());
 
-			// Fix all points:
-			// Read from list, modify and put into verts
-			// and don't modify it if the verts already has it (it's just coincident)
-
-			final Point3f[] verts = new Point3f[list.size()];
-
-			//Utils.log("number of verts: " + verts.length + " mod 3: " + (verts.length % 3));
-
-			final TreeMap<Integer,Point3f> output = new TreeMap<Integer,Point3f>();
-
-
-			// The first section generates vertices at -1 and 0
-			// The last section generates them at last_section_index and last_section_index +1
-
-			// Capture from -1 to 0
-			fix3DPoints(list, output, verts, first_layer.getZ(), 0, -1, dx, dy, rsw, rsh, sz, 1);
-
-			int slice_index = 0;
-
-			for (final Layer la : layer_set.getLayers().subList(i_first_layer, i_first_layer + depth)) {
-
-				// If layer is empty, continue
-				/* // YEAH don't! At least the immediate next layer would have points, like the extra Z level after last layer, to account for the thickness of the layer!
-				if (empty_layers.contains(la)) {
-					slice_index++;
+			// Fix all points, each according to the layer of its slice index.
+			// The first section generates vertices at -1 and 0;
+			// the last section generates them at last_section_index and last_section_index +1
+			final List<Layer> layers = layer_set.getLayers().subList(i_first_layer, i_first_layer + depth);
+			final Layer last = null == last_layer ? layers.get(depth - 1) : last_layer;
+			final double first_z = first_layer.getZ(),
+			             end_z = last.getZ() + last.getThickness();
+			final ArrayList<Point3f> output = new ArrayList<Point3f>(list.size());
+			for (final Point3f p : list) {
+				final int pz = (int)(p.z + 0.05f);
+				final double la_z, la_thickness;
+				final int layer_index;
+				if (-1 == pz) {
+					la_z = first_z;
+					la_thickness = 0;
+					layer_index = -1;
+				} else if (pz >= 0 && pz < depth) {
+					final Layer la = layers.get(pz);
+					la_z = la.getZ();
+					la_thickness = la.getThickness();
+					layer_index = pz;
+				} else if (pz == depth || pz == depth + 1) {
+					// The last layer has two Z planes in which it has pixels
+					la_z = end_z;
+					la_thickness = 0;
+					layer_index = depth;
+				} else {
+					Utils.log2("Unprocessed point: " + p.x + ", " + p.y + ", " + p.z + "  p.z as int: " + pz);
 					continue;
 				}
-				*/
-
-				fix3DPoints(list, output, verts, la.getZ(), la.getThickness(), slice_index, dx, dy, rsw, rsh, sz, 1);
-
-				slice_index++;
-			}
-
-			// The last set of vertices to process:
-			// Do the last layer again. The last layer has two Z planes in which it has pixels:
-			try {
-				// Capture from last_section_index to last_section_index+1, inclusive
-				fix3DPoints(list, output, verts, last_layer.getZ() + last_layer.getThickness(), 0, slice_index, dx, dy, rsw, rsh, sz, 2);
-			} catch (final Exception ee) {
-				IJError.print(ee);
+				// correct pixel position:
+				// -- The 'rsw','rsh' scales back to LayerSet coords
+				// -- The 'dx','dy' translates back to this AreaList bounding box
+				p.x = p.x * rsw + dx;
+				p.y = p.y * rsh + dy;
+				// The Z is more complicated: the Z of the layer, scaled relative to the layer thickness
+				p.z = (float)((la_z + la_thickness * (p.z - layer_index)) * sz); // using pixelWidth, not pixelDepth!
+				output.add(p);
 			}
 
-			//Utils.log("number of verts in output: " + output.size() + " mod 3: " + (output.size() % 3));
-
-
-			// debug:
-			//Utils.log2("Remaining p.z to process: ");
-			//for (final Float pz : ts) Utils.log2("remains:   z: " + pz);
-
-
-			// Handle potential errors:
-			if (0 != list.size() - output.size()) {
-				Utils.log2("Unprocessed/unused points: " + (list.size() - output.size()));
-				for (int i=0; i<verts.length; i++) {
-					if (null == verts[i]) {
-						final Point3f p = (Point3f) list.get(i);
-						Utils.log2("verts[" + i + "] = " + p.x + ", " + p.y + ", " + p.z + "  p.z as int: " + ((int)(p.z + 0.05f)));
-					}
-				}
-				return new ArrayList<Point3f>(output.values());
-			} else {
-				return java.util.Arrays.asList(verts);
-			}
+			return output;
 
 		} catch (final Exception e) {
 			e.printStackTrace();
@@ -263,38 +242,119 @@ public final class AreaUtils {
 		return null;
 	}
 
-	/**
-	 * @param list The original points
-	 * @param output The accumulated list of modified points to construct a mesh from
-	 * @param verts The array of vertices, each index is filled if the point has been processed already.
-	 * @param la_Z The Layer to process points for.
-	 * @param la_thickness the thickness of that layer
-	 * @param layer_index The stack slice index corresponding to the Layer @param la.
-	 */
-	static private final void fix3DPoints(final List<Point3f> list, final TreeMap<Integer,Point3f> output, final Point3f[] verts, final double la_z, final double la_thickness, final int layer_index, final float dx, final float dy, final float rsw, final float rsh, final double sz, final int n_slices) {
-		int fixed = 0;
-		// Find all pixels that belong to the layer, and transform them back:
-		for (int i=0; i<verts.length; i++) {
-			if (null != verts[i]) continue; // already processed! The unprocessed Z is merely coincident with a processed Z.
-			final Point3f p = list.get(i);
-			final int pz = (int)(p.z + 0.05f);
-			//final int pz = (int)(p.z + (0.5f * Math.signum(p.z)));
-			if ( pz >= layer_index && pz < layer_index + n_slices) {
-				// correct pixel position:
-				// -- The 'rsw','rsh' scales back to LayerSet coords
-				// -- The 'dx','dy' translates back to this AreaList bounding box
-				p.x = p.x * rsw + dx;
-				p.y = p.y * rsh + dy;
-
-				// The Z is more complicated: the Z of the layer, scaled relative to the layer thickness
-				p.z = (float)((la_z + la_thickness * (p.z - layer_index)) * sz); // using pixelWidth, not pixelDepth!
+	/** Side, in voxels, and depth, in sections, of the blocks of the volume that {@link #generateTriangles(Displayable, double, int, Map)}
+	 *  meshes in parallel; volumes that fit in one block are meshed in a single pass. */
+	static public int MESH_BLOCK_SIDE = 1024,
+	                  MESH_BLOCK_DEPTH = 64;
+
+	/** Marching cubes over the volume of {@code w * h * depth} voxels whose section at each index of {@code ma} is filled by its {@link Area},
+	 *  for the cubes from {@code cz0} (inclusive) to {@code cz1} (exclusive) in Z, in blocks of at most {@link #MESH_BLOCK_SIDE} and {@link #MESH_BLOCK_DEPTH} voxels that are meshed in parallel.
+	 *
+	 *  Marching cubes visits one cube more than the volume on each side, assuming zero outside. Each block is meshed with
+	 *  the voxels of the cubes it owns and keeps only the triangles of those cubes, recognized by their centroid, so that seams
+	 *  have neither gaps nor duplicated triangles, and vertices along seams are computed identically by the blocks on both sides.
+	 *
+	 *  @return The triangles in voxel coordinates as if meshed in a single pass, or null if interrupted. */
+	static private List<Point3f> triangulate(final Map<Integer,Area> ma, final int w, final int h, final int depth, final int cz0, final int cz1) throws Exception {
+		// Cubes of each dimension range from -1 to the size minus one: each block owns cubes from c0 (inclusive) to c1 (exclusive)
+		final ArrayList<int[]> blocks = new ArrayList<int[]>();
+		for (int cz = cz0; cz < cz1; cz += MESH_BLOCK_DEPTH) {
+			for (int cy = -1; cy < h; cy += MESH_BLOCK_SIDE) {
+				for (int cx = -1; cx < w; cx += MESH_BLOCK_SIDE) {
+					blocks.add(new int[]{cx, cy, cz, Math.min(w, cx + MESH_BLOCK_SIDE), Math.min(h, cy + MESH_BLOCK_SIDE), Math.min(cz1, cz + MESH_BLOCK_DEPTH)});
+				}
+			}
+		}
+		if (1 == blocks.size()) return triangulate(ma, blocks.get(0), w, h, depth, -1 != cz0 || depth != cz1);
+
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Meshing blocks");
+		final ArrayList<Future<List<Point3f>>> fus = new ArrayList<Future<List<Point3f>>>(blocks.size());
+		for (final int[] block : blocks) {
+			fus.add(job.submit(new Callable<List<Point3f>>() {
+				@Override
+				public List<Point3f> call() throws Exception {
+					return triangulate(ma, block, w, h, depth, true);
+				}
+			}));
+		}
+		job.shutdown();
+		try {
+			final ArrayList<Point3f> list = new ArrayList<Point3f>();
+			for (final Future<List<Point3f>> fu : fus) {
+				list.addAll(fu.get());
+			}
+			return list;
+		} catch (final InterruptedException ie) {
+			job.cancel();
+			return null;
+		} catch (final ExecutionException ee) {
+			job.cancel();
+			throw new Exception(ee.getCause());
+		}
+	}
 
-				verts[i] = p;
-				output.put(i, p);
-				fixed++;
+	/** Mesh one block of owned cubes {c0x, c0y, c0z, c1x, c1y, c1z}; see {@link #triangulate(Map, int, int, int, int, int)}. */
+	static private List<Point3f> triangulate(final Map<Integer,Area> ma, final int[] block, final int w, final int h, final int depth, final boolean filter) throws Exception {
+		// The voxels of the owned cubes, inclusive
+		final int x0 = Math.max(0, block[0]),
+		          y0 = Math.max(0, block[1]),
+		          z0 = Math.max(0, block[2]),
+		          x1 = Math.min(w - 1, block[3]),
+		          y1 = Math.min(h - 1, block[4]),
+		          z1 = Math.min(depth - 1, block[5]);
+
+		// No zero-padding: Marching Cubes now can handle edges
+		final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{x1 - x0 + 1, y1 - y0 + 1, z1 - z0 + 1}, new ByteType(), 32);
+		final Image<ByteType> shapeListImage = new Image<ByteType>(shapeList, shapeList.getBackground(), "ShapeListContainer");
+		final ByteType intensity = new ByteType((byte)127); // 255 or -1 don't work !? So, giving the highest value (127) that is both a byte and an int.
+
+		final AffineTransform toBlock = new AffineTransform(1, 0, 0, 1, -x0, -y0);
+		int n = 0;
+		for (int z = z0; z <= z1; ++z) {
+			final Area a = ma.get(z);
+			if (null == a) continue;
+			shapeList.addShape(toBlock.isIdentity() ? a : a.createTransformedArea(toBlock), intensity, new int[]{z - z0});
+			++n;
+		}
+		if (0 == n) return new ArrayList<Point3f>();
+
+		final List<Point3f> list = new MCTriangulator().getTriangles(shapeListImage, 1, new float[3]); // origins at 0,0,0: uncalibrated
+		if (!filter && 0 == x0 && 0 == y0 && 0 == z0) return list;
+
+		final ArrayList<Point3f> kept = new ArrayList<Point3f>(list.size());
+		for (int i = 0; i < list.size(); i += 3) {
+			final Point3f p1 = list.get(i),
+			              p2 = list.get(i+1),
+			              p3 = list.get(i+2);
+			// Translate to the coordinates of the whole volume
+			p1.x += x0; p1.y += y0; p1.z += z0;
+			p2.x += x0; p2.y += y0; p2.z += z0;
+			p3.x += x0; p3.y += y0; p3.z += z0;
+			if (filter) {
+				final int cx = (int)Math.floor((p1.x + p2.x + p3.x) / 3),
+				          cy = (int)Math.floor((p1.y + p2.y + p3.y) / 3),
+				          cz = (int)Math.floor((p1.z + p2.z + p3.z) / 3);
+				if (cx < block[0] || cx >= block[3]
+				 || cy < block[1] || cy >= block[4]
+				 || cz < block[2] || cz >= block[5]) continue;
 			}
+			kept.add(p1);
+			kept.add(p2);
+			kept.add(p3);
+		}
+		return kept;
+	}
+
+	/** Meshes of the same areas at decreasing resolution, for showing a coarse mesh first or far away:
+	 *  level i is meshed with a resampling of {@code resample * 2^i}.
+	 *  @return A list of {@code n_levels} triangle lists, from the finest to the coarsest; a level is null if it could not be meshed.
+	 *  @see #generateTriangles(Displayable, double, int, Map) */
+	static public List<List<Point3f>> generateTriangleLevels(final Displayable d, final double scale, final int resample, final Map<Layer,Area> areas, final int n_levels) {
+		final ArrayList<List<Point3f>> levels = new ArrayList<List<Point3f>>(n_levels);
+		for (int i = 0; i < n_levels; ++i) {
+			levels.add(generateTriangles(d, scale, Math.max(1, resample) << i, areas));
 		}
-		//Utils.log("fix between " + layer_index + " and " + (layer_index + n_slices) + " (" + fixed + ")");
+		return levels;
 	}
 
 	/** Extracts all non-background areas. */
@@ -471,7 +531,46 @@ public final class AreaUtils {
 		return a;
 	}
 
+	/** Interpolate {@code nInterpolates} areas between {@code a1} and {@code a2}, of any number of shapes each,
+	 * from the exact signed distance to the outline of each, in parallel.
+	 * Assumes that areas are in the same coordinate system.
+	 * @see DistanceInterpolation2D */
 	static public final Area[] manyToManyInterpolation(final Area a1, final Area a2, final int nInterpolates) throws InterruptedException, ExecutionException {
+		final DistanceInterpolation2D interpol = new DistanceInterpolation2D(a1, a2);
+		final float inc = 1.0f / (nInterpolates + 1);
+		final Area[] as = new Area[nInterpolates];
+
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Interpolating areas");
+		final ArrayList<Future<Area>> fus = new ArrayList<Future<Area>>();
+
+		try {
+			for (int i=1; i<=nInterpolates; i++) {
+				final float weight = 1 - inc * i;
+				fus.add(job.submit(new Callable<Area>() {
+					@Override
+					public Area call() {
+						return interpol.interpolate(weight);
+					}
+				}));
+			}
+			job.shutdown();
+
+			int i = 0;
+			for (final Future<Area> fu : fus) {
+				as[i++] = fu.get();
+			}
+
+		} catch (final Throwable t) {
+			job.cancel();
+			IJError.print(t);
+		}
+
+		return as;
+	}
+
+	/** The former {@link #manyToManyInterpolation(Area, Area, int)}, from an approximate chamfer distance
+	 * on images of the full extent of both areas; kept for comparison. */
+	static public final Area[] manyToManyChamferInterpolation(final Area a1, final Area a2, final int nInterpolates) throws InterruptedException, ExecutionException {
 		final Rectangle b = a1.getBounds();
 		b.add(a2.getBounds());
 		final AffineTransform translate = new AffineTransform(1, 0, 0, 1, -b.x, -b.y);
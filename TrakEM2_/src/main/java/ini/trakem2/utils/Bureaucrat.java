@@ -24,6 +24,7 @@ package ini.trakem2.utils;
 
 import ini.trakem2.ControlWindow;
 import ini.trakem2.Project;
+import ini.trakem2.parallel.Scheduler;
 
 import java.util.ArrayList;
 
@@ -37,6 +38,8 @@ public class Bureaucrat extends Thread {
 	/** A list of tasks to run when the Worker finishes--but not when it quits. */
 	private ArrayList<Runnable> post_tasks = new ArrayList<Runnable>();
 
+	static private final Metrics.Histogram TASK_DURATION = Metrics.histogram("bureaucrat.task");
+
 	/** Registers itself in the project loader job queue. */
 	private Bureaucrat(ThreadGroup tg, Worker worker, Project project) {
 		this(tg, worker, new Project[]{project});
@@ -135,6 +138,7 @@ public class Bureaucrat extends Thread {
 		}
 		ControlWindow.endWaitingCursor();
 		final long elapsed = System.currentTimeMillis() - onset;
+		TASK_DURATION.record(elapsed * 1000000L);
 		final String done = "Done " + worker.getTaskName() + " (" + Utils.cutNumber(elapsed/1000.0, 2) + "s approx.)";
 		Utils.showStatus(done, false); // don't steal focus;
 		Utils.log2(done);
@@ -184,6 +188,8 @@ public class Bureaucrat extends Thread {
 			// Set flag to each thread and thread in subgroup to quit:
 			worker.quit();
 			getThreadGroup().interrupt();
+			// The threads of the shared pool are in a ThreadGroup of their own: cancel the jobs created from this one
+			Scheduler.getInstance().cancelJobs(getThreadGroup());
 
 		} catch (Exception e) {
 			IJError.print(e);
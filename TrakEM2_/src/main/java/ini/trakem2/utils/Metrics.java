@@ -0,0 +1,345 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2005-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt)
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+**/
+
+package ini.trakem2.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/** A registry of counters, gauges and latency histograms for the hot paths of the Loader, its cache and the rendering.
+ *
+ * Recording is off by default: then every counter increment and every timed section costs a single volatile read.
+ * Turn it on with -Dtrakem2.metrics=true, or from any JMX client (e.g. jconsole) by setting the "Enabled" attribute
+ * of the MBean "ini.trakem2:type=Metrics", where all metrics are listed as attributes.
+ * With -Dtrakem2.metrics.log=&lt;seconds&gt; the metrics are also printed to the log every that many seconds.
+ *
+ * Timing a section:
+ * <pre>
+ * final long t = HISTOGRAM.start();
+ * ... // the section
+ * HISTOGRAM.stop(t);
+ * </pre>
+ */
+public final class Metrics {
+
+	static private volatile boolean enabled = Boolean.getBoolean("trakem2.metrics");
+
+	static private final Map<String,Object> registry = new ConcurrentSkipListMap<String,Object>();
+
+	static private ScheduledExecutorService dumper = null;
+
+	static {
+		registerMBean();
+		final long seconds = Long.getLong("trakem2.metrics.log", 0);
+		if (seconds > 0) {
+			enabled = true;
+			startLogging(seconds);
+		}
+	}
+
+	private Metrics() {}
+
+	static public final boolean isEnabled() { return enabled; }
+
+	static public final void setEnabled(final boolean b) { enabled = b; }
+
+	/** A monotonically increasing count of events. */
+	static public final class Counter {
+		private final AtomicLong count = new AtomicLong();
+		private Counter() {}
+		public final void inc() {
+			if (enabled) count.incrementAndGet();
+		}
+		public final void add(final long n) {
+			if (enabled) count.addAndGet(n);
+		}
+		public final long get() { return count.get(); }
+		private final void reset() { count.set(0); }
+	}
+
+	/** A value read on demand, such as a queue length or the bytes held by a cache; costs nothing until read. */
+	public interface Gauge {
+		public long value();
+	}
+
+	/** Durations in power-of-two nanosecond buckets, plus their count, sum and maximum. */
+	static public final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong(),
+		                         sum = new AtomicLong(),
+		                         max = new AtomicLong();
+		private Histogram() {}
+
+		/** Returns the time to pass to {@link #stop(long)}, or zero when metrics are disabled. */
+		public final long start() {
+			return enabled ? System.nanoTime() : 0;
+		}
+
+		/** Records the time elapsed since {@code start}, unless {@code start} is zero. */
+		public final void stop(final long start) {
+			if (0 != start) record(System.nanoTime() - start);
+		}
+
+		public final void record(final long nanos) {
+			if (!enabled || nanos < 0) return;
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (0 == nanos ? 0 : 1));
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+			long m;
+			while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {}
+		}
+
+		public final long getCount() { return count.get(); }
+
+		public final double getMeanMillis() {
+			final long n = count.get();
+			return 0 == n ? 0 : sum.get() / (n * 1000000.0);
+		}
+
+		public final double getMaxMillis() { return max.get() / 1000000.0; }
+
+		/** The upper bound, in milliseconds, of the bucket holding the {@code q} quantile; at most twice the true value. */
+		public final double getQuantileMillis(final double q) {
+			final long n = count.get();
+			if (0 == n) return 0;
+			final long target = (long)Math.ceil(q * n);
+			long cumulative = 0;
+			for (int i=0; i<64; i++) {
+				cumulative += buckets.get(i);
+				if (cumulative >= target) return Math.min((1L << (i + 1)), max.get()) / 1000000.0;
+			}
+			return getMaxMillis();
+		}
+
+		private final void reset() {
+			for (int i=0; i<64; i++) buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	/** Returns the counter of that name, creating it if necessary. */
+	static public final Counter counter(final String name) {
+		synchronized (registry) {
+			final Object o = registry.get(name);
+			if (o instanceof Counter) return (Counter)o;
+			final Counter c = new Counter();
+			registry.put(name, c);
+			return c;
+		}
+	}
+
+	/** Returns the histogram of that name, creating it if necessary. */
+	static public final Histogram histogram(final String name) {
+		synchronized (registry) {
+			final Object o = registry.get(name);
+			if (o instanceof Histogram) return (Histogram)o;
+			final Histogram h = new Histogram();
+			registry.put(name, h);
+			return h;
+		}
+	}
+
+	/** Registers, or replaces, the gauge of that name. */
+	static public final void gauge(final String name, final Gauge gauge) {
+		registry.put(name, gauge);
+	}
+
+	/** Sets all counters and histograms back to zero. */
+	static public final void reset() {
+		for (final Object o : registry.values()) {
+			if (o instanceof Counter) ((Counter)o).reset();
+			else if (o instanceof Histogram) ((Histogram)o).reset();
+		}
+	}
+
+	/** One line per metric. */
+	static public final String dump() {
+		final StringBuilder sb = new StringBuilder("TrakEM2 metrics").append(enabled ? "" : " (disabled)").append(':');
+		for (final Map.Entry<String,Object> e : registry.entrySet()) {
+			sb.append("\n  ").append(e.getKey()).append(": ");
+			final Object o = e.getValue();
+			if (o instanceof Histogram) {
+				final Histogram h = (Histogram)o;
+				sb.append(h.getCount()).append(" in ").append(Utils.cutNumber(h.getMeanMillis(), 3))
+				  .append(" ms mean, p50 ").append(Utils.cutNumber(h.getQuantileMillis(0.5), 3))
+				  .append(" ms, p99 ").append(Utils.cutNumber(h.getQuantileMillis(0.99), 3))
+				  .append(" ms, max ").append(Utils.cutNumber(h.getMaxMillis(), 3)).append(" ms");
+			} else {
+				sb.append(valueOf(o));
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Print the metrics to the log every {@code seconds}; stops any previous periodic dump. Zero or less just stops it. */
+	static synchronized public final void startLogging(final long seconds) {
+		if (null != dumper) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+		if (seconds <= 0) return;
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "T2-Metrics");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					Utils.log2(dump());
+				} catch (Throwable t) {
+					IJError.print(t);
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	static private final long valueOf(final Object o) {
+		if (o instanceof Counter) return ((Counter)o).get();
+		if (o instanceof Gauge) {
+			try {
+				return ((Gauge)o).value();
+			} catch (Throwable t) {
+				return -1;
+			}
+		}
+		return 0;
+	}
+
+	static private final String[] HISTOGRAM_FIELDS = {"count", "mean_ms", "p50_ms", "p99_ms", "max_ms"};
+
+	static private final Object histogramField(final Histogram h, final String field) {
+		if ("count".equals(field)) return h.getCount();
+		if ("mean_ms".equals(field)) return h.getMeanMillis();
+		if ("p50_ms".equals(field)) return h.getQuantileMillis(0.5);
+		if ("p99_ms".equals(field)) return h.getQuantileMillis(0.99);
+		if ("max_ms".equals(field)) return h.getMaxMillis();
+		return null;
+	}
+
+	static private final void registerMBean() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName("ini.trakem2:type=Metrics");
+			if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+		} catch (Throwable t) {
+			Utils.log2("Could not register the metrics MBean: " + t);
+		}
+	}
+
+	/** Exposes the registry: counters and gauges as one attribute each, histograms as one attribute per field,
+	 *  e.g. "fetch.awt.db_lock_wait.p99_ms", plus the writable "Enabled" and the operations "reset" and "dump". */
+	static private final class MetricsMBean implements DynamicMBean {
+
+		public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+			if ("Enabled".equals(attribute)) return enabled;
+			final Object o = registry.get(attribute);
+			if (null != o) return valueOf(o);
+			final int dot = attribute.lastIndexOf('.');
+			if (dot > 0) {
+				final Object h = registry.get(attribute.substring(0, dot));
+				if (h instanceof Histogram) {
+					final Object value = histogramField((Histogram)h, attribute.substring(dot + 1));
+					if (null != value) return value;
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+			if (!"Enabled".equals(attribute.getName())) throw new AttributeNotFoundException(attribute.getName());
+			enabled = Boolean.TRUE.equals(attribute.getValue());
+		}
+
+		public AttributeList getAttributes(final String[] attributes) {
+			final AttributeList list = new AttributeList();
+			for (final String a : attributes) {
+				try {
+					list.add(new Attribute(a, getAttribute(a)));
+				} catch (AttributeNotFoundException anfe) {}
+			}
+			return list;
+		}
+
+		public AttributeList setAttributes(final AttributeList attributes) {
+			final AttributeList list = new AttributeList();
+			for (final Object o : attributes) {
+				try {
+					setAttribute((Attribute)o);
+					list.add(o);
+				} catch (AttributeNotFoundException anfe) {}
+			}
+			return list;
+		}
+
+		public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+			if ("reset".equals(actionName)) {
+				Metrics.reset();
+				return null;
+			}
+			if ("dump".equals(actionName)) return dump();
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			final ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			attributes.add(new MBeanAttributeInfo("Enabled", "boolean", "Whether metrics are being recorded", true, true, true));
+			for (final Map.Entry<String,Object> e : registry.entrySet()) {
+				if (e.getValue() instanceof Histogram) {
+					for (final String field : HISTOGRAM_FIELDS) {
+						attributes.add(new MBeanAttributeInfo(e.getKey() + "." + field, "count".equals(field) ? "long" : "double", field, true, false, false));
+					}
+				} else {
+					attributes.add(new MBeanAttributeInfo(e.getKey(), "long", e.getValue() instanceof Gauge ? "gauge" : "counter", true, false, false));
+				}
+			}
+			return new MBeanInfo(Metrics.class.getName(), "TrakEM2 runtime metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+					new MBeanOperationInfo[]{
+						new MBeanOperationInfo("reset", "Set all counters and histograms to zero", null, "void", MBeanOperationInfo.ACTION),
+						new MBeanOperationInfo("dump", "All metrics as text", null, "java.lang.String", MBeanOperationInfo.INFO)},
+					null);
+		}
+	}
+}
@@ -323,6 +323,16 @@ public class Search {
 		public boolean contains(Object ob) {
 			return v_obs.contains(ob);
 		}
+
+		/** Must be called from the event dispatch thread. */
+		void append(Vector<DBObject> obs, Vector<String> txt,
+				Vector<Coordinate<?>> co) {
+			final int first = v_obs.size();
+			v_obs.addAll(obs);
+			v_txt.addAll(txt);
+			v_co.addAll(co);
+			fireTableRowsInserted(first, v_obs.size() - 1);
+		}
 	}
 
 	private void executeSearch() {
@@ -362,6 +372,13 @@ public class Search {
 				// Utils.log2("found labels: " + al.size());
 				if (0 == al.size())
 					return;
+				// Skip the objects without the words that a match must contain
+				final SearchIndex index = SearchIndex.get(project);
+				index.update(al);
+				final Set<Displayable> candidates = index
+						.candidates(typed_pattern);
+				final ResultBatches results = new ResultBatches(project,
+						typed_pattern);
 				final Vector<DBObject> v_obs = new Vector<DBObject>();
 				final Vector<String> v_txt = new Vector<String>();
 				final Vector<Coordinate<?>> v_co = new Vector<Coordinate<?>>();
@@ -370,6 +387,12 @@ public class Search {
 					if (Thread.currentThread().isInterrupted()) {
 						return;
 					}
+					results.offer(v_obs, v_txt, v_co);
+					if (null != candidates && dbo instanceof Displayable
+							&& !candidates.contains(dbo)
+							&& !(dbo instanceof Tree<?> && hasMatchingTag(
+									(Tree<?>) dbo, pat)))
+						continue;
 					boolean matched = false;
 					// Search in its title
 					Displayable d = null;
@@ -478,55 +501,130 @@ public class Search {
 					v_co.add(co);
 				}
 
-				if (0 == v_obs.size()) {
+				results.flush(v_obs, v_txt, v_co);
+				if (0 == results.count) {
 					Utils.showMessage("Nothing found.");
-					return;
 				}
-				final JPanel result = new JPanel();
-				GridBagLayout gb = new GridBagLayout();
-				result.setLayout(gb);
-				GridBagConstraints c = new GridBagConstraints();
-				c.anchor = GridBagConstraints.NORTHWEST;
-				c.fill = GridBagConstraints.HORIZONTAL;
-				c.insets = new Insets(5, 10, 5, 10);
-				String xml = "";
-				if (project.getLoader() instanceof FSLoader) {
-					String path = ((FSLoader) project.getLoader())
-							.getProjectXMLPath();
-					if (null != path) {
-						xml = " [" + new File(path).getName() + "]";
-					}
-				}
-				JLabel projectTitle = new JLabel(project.getTitle() + xml);
-				gb.setConstraints(projectTitle, c);
-				result.add(projectTitle);
-				c.insets = new Insets(0, 0, 0, 0);
-				JPanel padding = new JPanel();
-				c.weightx = 1;
-				gb.setConstraints(padding, c);
-				result.add(padding);
-				c.gridy = 1;
-				c.gridwidth = 2;
-				c.fill = GridBagConstraints.BOTH;
-				c.weighty = 1;
-				JScrollPane jsp = makeTable(new DisplayableTableModel(v_obs,
-						v_txt, v_co), project);
-				gb.setConstraints(jsp, c);
-				result.add(jsp);
-				search_tabs.addTab(typed_pattern, result);
-				search_tabs.setSelectedComponent(result);
-
-				synchronized (tabMap) {
-					List<JPanel> cs = tabMap.get(project);
-					if (null == cs) {
-						cs = new ArrayList<JPanel>();
-						tabMap.put(project, cs);
+			}
+		}, project);
+	}
+
+	/** Whether any node of {@code tree} has a tag matching {@code pat}. */
+	private boolean hasMatchingTag(final Tree<?> tree, final Pattern pat) {
+		final Node<?> root = tree.getRoot();
+		if (null == root)
+			return false;
+		for (final Node<?> nd : root.getSubtreeNodes()) {
+			final Set<Tag> tags = nd.getTags();
+			if (null == tags)
+				continue;
+			for (final Tag tag : tags) {
+				if (pat.matcher(tag.toString()).matches())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Shows the rows of one search in a new tab, in batches as they are
+	 * found, so that the first results show up while searching continues.
+	 */
+	private class ResultBatches {
+		static final int BATCH_SIZE = 256;
+		static final long BATCH_MS = 250;
+		private final Project project;
+		private final String typed_pattern;
+		private DisplayableTableModel model = null;
+		private int count = 0;
+		private long last = System.currentTimeMillis();
+
+		ResultBatches(final Project project, final String typed_pattern) {
+			this.project = project;
+			this.typed_pattern = typed_pattern;
+		}
+
+		/** Flush if enough rows have accumulated or enough time has passed. */
+		void offer(final Vector<DBObject> v_obs, final Vector<String> v_txt,
+				final Vector<Coordinate<?>> v_co) {
+			if (v_obs.isEmpty())
+				return;
+			if (v_obs.size() >= BATCH_SIZE
+					|| System.currentTimeMillis() - last > BATCH_MS)
+				flush(v_obs, v_txt, v_co);
+		}
+
+		/** Hand the rows over to the table, emptying the given vectors. */
+		void flush(final Vector<DBObject> v_obs, final Vector<String> v_txt,
+				final Vector<Coordinate<?>> v_co) {
+			last = System.currentTimeMillis();
+			if (v_obs.isEmpty())
+				return;
+			final Vector<DBObject> obs = new Vector<DBObject>(v_obs);
+			final Vector<String> txt = new Vector<String>(v_txt);
+			final Vector<Coordinate<?>> co = new Vector<Coordinate<?>>(v_co);
+			v_obs.clear();
+			v_txt.clear();
+			v_co.clear();
+			count += obs.size();
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					if (null == search_tabs)
+						return; // the window was closed
+					if (null == model) {
+						model = new DisplayableTableModel(obs, txt, co);
+						addResultTab(project, typed_pattern, model);
+					} else {
+						model.append(obs, txt, co);
 					}
-					cs.add(result);
 				}
+			});
+		}
+	}
 
+	private void addResultTab(final Project project, final String typed_pattern,
+			final DisplayableTableModel model) {
+		final JPanel result = new JPanel();
+		GridBagLayout gb = new GridBagLayout();
+		result.setLayout(gb);
+		GridBagConstraints c = new GridBagConstraints();
+		c.anchor = GridBagConstraints.NORTHWEST;
+		c.fill = GridBagConstraints.HORIZONTAL;
+		c.insets = new Insets(5, 10, 5, 10);
+		String xml = "";
+		if (project.getLoader() instanceof FSLoader) {
+			String path = ((FSLoader) project.getLoader())
+					.getProjectXMLPath();
+			if (null != path) {
+				xml = " [" + new File(path).getName() + "]";
 			}
-		}, project);
+		}
+		JLabel projectTitle = new JLabel(project.getTitle() + xml);
+		gb.setConstraints(projectTitle, c);
+		result.add(projectTitle);
+		c.insets = new Insets(0, 0, 0, 0);
+		JPanel padding = new JPanel();
+		c.weightx = 1;
+		gb.setConstraints(padding, c);
+		result.add(padding);
+		c.gridy = 1;
+		c.gridwidth = 2;
+		c.fill = GridBagConstraints.BOTH;
+		c.weighty = 1;
+		JScrollPane jsp = makeTable(model, project);
+		gb.setConstraints(jsp, c);
+		result.add(jsp);
+		search_tabs.addTab(typed_pattern, result);
+		search_tabs.setSelectedComponent(result);
+
+		synchronized (tabMap) {
+			List<JPanel> cs = tabMap.get(project);
+			if (null == cs) {
+				cs = new ArrayList<JPanel>();
+				tabMap.put(project, cs);
+			}
+			cs.add(result);
+		}
 	}
 
 	private Coordinate<Node<?>> createCoordinate(Tree<?> tree, Node<?> nd) {
@@ -0,0 +1,396 @@
+package ini.trakem2.utils;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.DBObject;
+import ini.trakem2.tree.ProjectThing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Inverted index of the words in the text fields that {@link Search} matches for each {@link Displayable}:
+ * its (meaningful) title, annotation, {@link Object#toString()}, id, and the keys and values of its properties and linked properties.
+ * A word is a maximal run of letters or digits, with ASCII letters lowercased, as the search is case-insensitive.
+ *
+ * For a search pattern, {@link #candidates(String)} extracts the literal text that any match has to contain and returns
+ * the objects that contain all of its words, or null when the pattern is too general to narrow the search.
+ * The candidates are then matched against the pattern as before, so that results are identical.
+ *
+ * The index is created on first use for a project, and kept up to date incrementally from
+ * {@link DBObject#addToDatabase()}, {@link DBObject#updateInDatabase(String)} and {@link DBObject#removeFromDatabase()},
+ * and from edits to properties and annotations. Renaming a {@link ProjectThing} reindexes the objects under it,
+ * whose meaningful titles depend on it. Node tags are not indexed: {@link Search} reads them directly.
+ */
+public final class SearchIndex
+{
+	static private final Map<Project,SearchIndex> indices = new WeakHashMap<Project,SearchIndex>();
+
+	/** Returns the index for {@code project}, creating an empty one if necessary. */
+	static public SearchIndex get(final Project project) {
+		synchronized (indices) {
+			SearchIndex index = indices.get(project);
+			if (null == index) {
+				index = new SearchIndex(project);
+				indices.put(project, index);
+			}
+			return index;
+		}
+	}
+
+	static public void remove(final Project project) {
+		synchronized (indices) {
+			indices.remove(project);
+		}
+	}
+
+	/** Reindex {@code ob} before the next search, if its project has an index. */
+	static public void changed(final DBObject ob) {
+		if (null == ob) return;
+		final Project project = ob.getProject();
+		if (null == project) return;
+		final SearchIndex index;
+		synchronized (indices) {
+			if (indices.isEmpty()) return;
+			index = indices.get(project);
+		}
+		if (null == index) return;
+		if (ob instanceof Displayable) {
+			index.dirty.put((Displayable)ob, Boolean.TRUE);
+		} else if (ob instanceof ProjectThing) {
+			// The meaningful titles of all objects under it may have changed
+			index.markSubtree((ProjectThing)ob);
+		}
+	}
+
+	static private final class IntList {
+		int[] a = new int[2];
+		int n = 0;
+		final void add(final int v) {
+			if (a.length == n) {
+				final int[] b = new int[n + (n >> 1) + 1];
+				System.arraycopy(a, 0, b, 0, n);
+				a = b;
+			}
+			a[n++] = v;
+		}
+	}
+
+	private final Project project;
+
+	/** Indexed objects by slot; reindexing an object gives it a new slot and leaves the old one dead. */
+	private final ArrayList<Displayable> slots = new ArrayList<Displayable>();
+	private final BitSet alive = new BitSet();
+	private final HashMap<Displayable,Integer> slot_of = new HashMap<Displayable,Integer>();
+	/** For each word, the ascending slots of the objects that contain it. */
+	private final TreeMap<String,IntList> words = new TreeMap<String,IntList>();
+
+	private final ConcurrentHashMap<Displayable,Boolean> dirty = new ConcurrentHashMap<Displayable,Boolean>();
+
+	private SearchIndex(final Project project) {
+		this.project = project;
+	}
+
+	private void markSubtree(final ProjectThing pt) {
+		final Object ob = pt.getObject();
+		if (ob instanceof Displayable) dirty.put((Displayable)ob, Boolean.TRUE);
+		final ArrayList<ProjectThing> children = pt.getChildren();
+		if (null == children) return;
+		for (final ProjectThing child : children) markSubtree(child);
+	}
+
+	/** The text fields that {@link Search} matches, except node tags. */
+	static private List<String> fields(final Displayable d) {
+		final ArrayList<String> f = new ArrayList<String>(4);
+		f.add(Patch.class == d.getClass() ? d.getTitle() : d.getProject().getMeaningfulTitle(d));
+		f.add(d.getAnnotation());
+		f.add(d.toString());
+		final Map<String,String> props = d.getProperties();
+		if (null != props) {
+			for (final Map.Entry<String,String> e : props.entrySet()) {
+				f.add(e.getKey());
+				f.add(e.getValue());
+			}
+		}
+		final Map<Displayable,Map<String,String>> linked_props = d.getLinkedProperties();
+		if (null != linked_props) {
+			for (final Map<String,String> m : linked_props.values()) {
+				for (final Map.Entry<String,String> e : m.entrySet()) {
+					f.add(e.getKey());
+					f.add(e.getValue());
+				}
+			}
+		}
+		return f;
+	}
+
+	static private final char fold(final char c) {
+		return c >= 'A' && c <= 'Z' ? (char)(c + 32) : c;
+	}
+
+	/** Adds the words of {@code s} to {@code set}; the id is matched separately, so that ids don't fill the dictionary. */
+	static private void words(final String s, final String id, final Set<String> set) {
+		if (null == s) return;
+		final int len = s.length();
+		int i = 0;
+		while (i < len) {
+			while (i < len && !Character.isLetterOrDigit(s.charAt(i))) ++i;
+			final int start = i;
+			while (i < len && Character.isLetterOrDigit(s.charAt(i))) ++i;
+			if (i > start) {
+				final char[] w = new char[i - start];
+				for (int k=start; k<i; ++k) w[k - start] = fold(s.charAt(k));
+				final String word = new String(w);
+				if (!word.equals(id)) set.add(word);
+			}
+		}
+	}
+
+	static private Set<String> words(final Displayable d) {
+		final HashSet<String> set = new HashSet<String>();
+		final String id = Long.toString(d.getId());
+		for (final String s : fields(d)) words(s, id, set);
+		return set;
+	}
+
+	private void insert(final Displayable d, final Set<String> ws) {
+		final Integer old = slot_of.get(d);
+		if (null != old) alive.clear(old);
+		final int slot = slots.size();
+		slots.add(d);
+		alive.set(slot);
+		slot_of.put(d, slot);
+		for (final String w : ws) {
+			IntList list = words.get(w);
+			if (null == list) {
+				list = new IntList();
+				words.put(w, list);
+			}
+			list.add(slot);
+		}
+	}
+
+	/** Index the given objects if not yet indexed, and reindex those that changed. */
+	public synchronized void update(final Collection<? extends DBObject> obs) {
+		final LinkedHashSet<Displayable> set = new LinkedHashSet<Displayable>();
+		for (final DBObject ob : obs) {
+			if (ob instanceof Displayable && !slot_of.containsKey(ob)) set.add((Displayable)ob);
+		}
+		for (final Displayable d : dirty.keySet()) {
+			dirty.remove(d);
+			if (slot_of.containsKey(d)) set.add(d);
+		}
+		if (set.isEmpty()) return;
+
+		// Drop dead slots once they are the majority
+		if (slots.size() > 65536 && alive.cardinality() < slots.size() / 2) {
+			set.addAll(slot_of.keySet());
+			slots.clear();
+			alive.clear();
+			slot_of.clear();
+			words.clear();
+		}
+
+		// Meaningful titles are the costly part: compute words in parallel, insert in order
+		final ArrayList<Displayable> todo = new ArrayList<Displayable>(set);
+		final int chunk = 4096;
+		final Scheduler.Job job = Scheduler.getInstance().newJob("Indexing for search");
+		final ArrayList<Future<List<Set<String>>>> fus = new ArrayList<Future<List<Set<String>>>>();
+		int next = 0;
+		try {
+			for (int i=0; i<todo.size(); i+=chunk) {
+				final List<Displayable> part = todo.subList(i, Math.min(todo.size(), i + chunk));
+				fus.add(job.submit(new Callable<List<Set<String>>>() {
+					@Override
+					public List<Set<String>> call() {
+						final ArrayList<Set<String>> ws = new ArrayList<Set<String>>(part.size());
+						for (final Displayable d : part) ws.add(words(d));
+						return ws;
+					}
+				}));
+			}
+			job.shutdown();
+			for (final Future<List<Set<String>>> fu : fus) {
+				for (final Set<String> ws : fu.get()) {
+					insert(todo.get(next++), ws);
+				}
+			}
+		} catch (final InterruptedException ie) {
+			job.cancel();
+			Thread.currentThread().interrupt();
+			// Those not yet indexed at all are picked up by the next update
+			for (int i=next; i<todo.size(); ++i) dirty.put(todo.get(i), Boolean.TRUE);
+		} catch (final Exception e) {
+			IJError.print(e);
+		}
+	}
+
+	/**
+	 * The indexed objects that may match {@code pattern}, as typed into the {@link Search} window,
+	 * in the fields described in the class documentation; or null if the pattern does not narrow down the search.
+	 */
+	public synchronized Set<Displayable> candidates(final String pattern) {
+		final List<String> literals = literals(pattern);
+		if (null == literals) return null;
+		BitSet result = null;
+		for (final String literal : literals) {
+			final BitSet bs = match(literal);
+			if (null == bs) continue;
+			if (null == result) result = bs;
+			else result.and(bs);
+		}
+		if (null == result) return null;
+		result.and(alive);
+		final HashSet<Displayable> set = new HashSet<Displayable>();
+		for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i+1)) {
+			set.add(slots.get(i));
+		}
+		return set;
+	}
+
+	/** The slots whose objects contain the words of {@code literal}, or null if it has none. */
+	private BitSet match(final String literal) {
+		BitSet result = null;
+		final int len = literal.length();
+		int i = 0;
+		while (i < len) {
+			while (i < len && !Character.isLetterOrDigit(literal.charAt(i))) ++i;
+			final int start = i;
+			while (i < len && Character.isLetterOrDigit(literal.charAt(i))) ++i;
+			if (i == start) break;
+			final char[] w = new char[i - start];
+			for (int k=start; k<i; ++k) w[k - start] = fold(literal.charAt(k));
+			// A word of the literal bounded by other characters of the literal must be a whole word of the text
+			final BitSet bs = match(new String(w), start > 0, i < len);
+			if (null == result) result = bs;
+			else result.and(bs);
+		}
+		return result;
+	}
+
+	private BitSet match(final String w, final boolean starts, final boolean ends) {
+		final BitSet bs = new BitSet(slots.size());
+		if (starts && ends) {
+			add(words.get(w), bs);
+		} else if (starts) {
+			for (final IntList list : words.subMap(w, w + Character.MAX_VALUE).values()) add(list, bs);
+		} else {
+			for (final Map.Entry<String,IntList> e : words.entrySet()) {
+				final String k = e.getKey();
+				if (ends ? k.endsWith(w) : k.contains(w)) add(e.getValue(), bs);
+			}
+		}
+		// Ids are not in the dictionary
+		boolean digits = true;
+		for (int i=0; i<w.length() && digits; ++i) digits = Character.isDigit(w.charAt(i));
+		if (digits) {
+			for (int i = alive.nextSetBit(0); i >= 0; i = alive.nextSetBit(i+1)) {
+				final String id = Long.toString(slots.get(i).getId());
+				if (starts && ends ? id.equals(w) : starts ? id.startsWith(w) : ends ? id.endsWith(w) : id.contains(w)) bs.set(i);
+			}
+		}
+		return bs;
+	}
+
+	static private void add(final IntList list, final BitSet bs) {
+		if (null == list) return;
+		for (int i=0; i<list.n; ++i) bs.set(list.a[i]);
+	}
+
+	/**
+	 * The literal strings that any text matching {@code pattern} must contain, or null if the pattern
+	 * is one that this method does not analyze, such as one with alternatives or flags.
+	 * Characters that are optional, repeated, or part of a group or class end a literal.
+	 */
+	static List<String> literals(final String pattern) {
+		if (null == pattern || -1 != pattern.indexOf('|') || pattern.contains("(?") || pattern.contains("\\Q")) return null;
+		final ArrayList<String> literals = new ArrayList<String>();
+		final StringBuilder sb = new StringBuilder();
+		int depth = 0;
+		final int len = pattern.length();
+		for (int i=0; i<len; ++i) {
+			final char c = pattern.charAt(i);
+			switch (c) {
+				case '\\':
+					if (i + 1 < len && !Character.isLetterOrDigit(pattern.charAt(i+1))) {
+						++i;
+						if (0 == depth) {
+							sb.append(pattern.charAt(i));
+							continue;
+						}
+					} else {
+						++i; // a character class such as \d, or a back reference
+						end(sb, literals);
+					}
+					continue;
+				case '[':
+					end(sb, literals);
+					// skip to the closing bracket, which may be escaped or come first
+					++i;
+					if (i < len && '^' == pattern.charAt(i)) ++i;
+					if (i < len && ']' == pattern.charAt(i)) ++i;
+					int nested = 0;
+					for (; i < len; ++i) {
+						final char k = pattern.charAt(i);
+						if ('\\' == k) ++i;
+						else if ('[' == k) ++nested;
+						else if (']' == k && 0 == nested--) break;
+					}
+					continue;
+				case '(':
+					end(sb, literals);
+					++depth;
+					continue;
+				case ')':
+					end(sb, literals);
+					--depth;
+					continue;
+				case '*':
+				case '?':
+				case '{':
+					// the previous character is optional
+					if (sb.length() > 0) sb.setLength(sb.length() -1);
+					end(sb, literals);
+					if ('{' == c) {
+						while (i < len && '}' != pattern.charAt(i)) ++i;
+					}
+					continue;
+				case '+':
+				case '.':
+				case '^':
+				case '$':
+					end(sb, literals);
+					continue;
+				default:
+					if (0 == depth) sb.append(c);
+			}
+		}
+		end(sb, literals);
+		return literals;
+	}
+
+	static private void end(final StringBuilder sb, final List<String> literals) {
+		if (sb.length() > 0) literals.add(sb.toString());
+		sb.setLength(0);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return new StringBuilder("SearchIndex for ").append(project).append(": ").append(alive.cardinality()).append(" objects, ")
+				.append(words.size()).append(" words, ").append(slots.size() - alive.cardinality()).append(" stale slots").toString();
+	}
+}
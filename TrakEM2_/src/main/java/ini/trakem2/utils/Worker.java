@@ -24,6 +24,7 @@ package ini.trakem2.utils;
 
 import ij.IJ;
 import ini.trakem2.ControlWindow;
+import ini.trakem2.parallel.Scheduler;
 
 import java.util.HashMap;
 
@@ -69,11 +70,15 @@ public abstract class Worker implements Runnable {
 	public void setPriority(int priority) {
 		if (null != this.thread) thread.setPriority(priority);
 	}
-	/** If interrupt_on_quit, then it will call thread.getThreadGroup().interrupt() to set a quit flag to each child thread. */
+	/** If interrupt_on_quit, then it will call thread.getThreadGroup().interrupt() to set a quit flag to each child thread,
+	 *  and cancel the {@link Scheduler} jobs created from this worker's thread group. */
 	public void quit() {
 		this.quit = true;
 		if (interrupt_on_quit) {
-			if (null != thread) thread.getThreadGroup().interrupt();
+			if (null != thread) {
+				thread.getThreadGroup().interrupt();
+				Scheduler.getInstance().cancelJobs(thread.getThreadGroup());
+			}
 		}
 	}
 	public void join() throws InterruptedException {
@@ -10,6 +10,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
@@ -19,6 +20,7 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Selection;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -256,7 +258,7 @@ final public class DistortionCorrectionTask
 		@Override
 		final public void run()
 		{
-			for ( int i = ai.getAndIncrement(); i < patches.size() && !isInterrupted(); i = ai.getAndIncrement() )
+			for ( int i = ai.getAndIncrement(); i < patches.size() && !Thread.currentThread().isInterrupted(); i = ai.getAndIncrement() )
 			{
 				final Patch patch = patches.get( i );
 //				Utils.log( "Setting transform \"" + transform + "\" for patch \"" + patch.getTitle() + "\"." );
@@ -275,21 +277,19 @@ final public class DistortionCorrectionTask
 			final int numThreads )
 	{
 		final AtomicInteger ai = new AtomicInteger( 0 );
-		final List< SetCoordinateTransformThread > threads = new ArrayList< SetCoordinateTransformThread >();
+		final Scheduler.Job job = Scheduler.getInstance().newJob( "SetCoordinateTransformThread", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, numThreads );
+		final List< Future< ? > > futures = new ArrayList< Future< ? > >();
 
 		for ( int i = 0; i < numThreads; ++i )
-		{
-			final SetCoordinateTransformThread thread = new SetCoordinateTransformThread( patches, transform, ai );
-			threads.add( thread );
-			thread.start();
-		}
+			futures.add( job.submit( new SetCoordinateTransformThread( patches, transform, ai ) ) );
+		job.shutdown();
 		try
 		{
-			for ( final Thread thread : threads )
-				thread.join();
+			job.join( futures );
 		}
 		catch ( final InterruptedException e )
 		{
+			job.cancel();
 			Utils.log( "Setting CoordinateTransform failed.\n" + e.getMessage() + "\n" + e.getStackTrace() );
 		}
 	}
@@ -317,7 +317,7 @@ final public class DistortionCorrectionTask
 		@Override
 		final public void run()
 		{
-			for ( int i = ai.getAndIncrement(); i < patches.size() && !isInterrupted(); i = ai.getAndIncrement() )
+			for ( int i = ai.getAndIncrement(); i < patches.size() && !Thread.currentThread().isInterrupted(); i = ai.getAndIncrement() )
 			{
 				final Patch patch = patches.get( i );
 				patch.appendCoordinateTransform( transform );
@@ -334,21 +334,19 @@ final public class DistortionCorrectionTask
 			final int numThreads )
 	{
 		final AtomicInteger ai = new AtomicInteger( 0 );
-		final List< AppendCoordinateTransformThread > threads = new ArrayList< AppendCoordinateTransformThread >();
+		final Scheduler.Job job = Scheduler.getInstance().newJob( "AppendCoordinateTransformThread", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, numThreads );
+		final List< Future< ? > > futures = new ArrayList< Future< ? > >();
 
 		for ( int i = 0; i < numThreads; ++i )
-		{
-			final AppendCoordinateTransformThread thread = new AppendCoordinateTransformThread( patches, transform, ai );
-			threads.add( thread );
-			thread.start();
-		}
+			futures.add( job.submit( new AppendCoordinateTransformThread( patches, transform, ai ) ) );
+		job.shutdown();
 		try
 		{
-			for ( final Thread thread : threads )
-				thread.join();
+			job.join( futures );
 		}
 		catch ( final InterruptedException e )
 		{
+			job.cancel();
 			Utils.log( "Appending CoordinateTransform failed.\n" + e.getMessage() + "\n" + e.getStackTrace() );
 		}
 	}
@@ -1,5 +1,7 @@
 package mpi.fruitfly.general;
 
+import ini.trakem2.utils.IJError;
+
 /**
  * <p>Title: MultiThreading </p>
  *
@@ -86,11 +88,25 @@ public class MultiThreading
       return new Thread[numThreads];
     }
 
+    /**
+     * Starts the given threads and waits for all of them to finish. Errors thrown by any
+     * of them are reported through {@link IJError}; if the calling thread is interrupted,
+     * the threads are interrupted as well.
+     */
     public static void startAndJoin(Thread[] threads)
     {
+        final Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler()
+        {
+            public void uncaughtException(final Thread t, final Throwable e)
+            {
+                IJError.print(e);
+            }
+        };
+
         for (int ithread = 0; ithread < threads.length; ++ithread)
         {
             threads[ithread].setPriority(Thread.NORM_PRIORITY);
+            threads[ithread].setUncaughtExceptionHandler(handler);
             threads[ithread].start();
         }
 
@@ -100,6 +116,8 @@ public class MultiThreading
                 threads[ithread].join();
         } catch (InterruptedException ie)
         {
+            for (int ithread = 0; ithread < threads.length; ++ithread)
+                threads[ithread].interrupt();
             throw new RuntimeException(ie);
         }
     }
@@ -30,13 +30,13 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import ij.process.ByteProcessor;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
 import mpicbg.models.Affine2D;
 import mpicbg.models.Model;
 import mpicbg.models.NoninvertibleModelException;
@@ -310,8 +310,7 @@ abstract public class AbstractAffineTile2D< A extends Model< A > & Affine2D< A >
 			tilePairs.addAll( tilePairCandidates );
 		else
 		{
-			// TODO Fix this and use what the user wants to provide
-			final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+			final ExecutorService exec = Scheduler.getInstance().newJob( "pairOverlappingTiles" );
 			final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
 
 			for ( final AbstractAffineTile2D< ? >[] tatb : tilePairCandidates )
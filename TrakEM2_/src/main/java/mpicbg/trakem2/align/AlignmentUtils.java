@@ -152,20 +152,20 @@ final public class AlignmentUtils
 		{
 			Utils.log( "Feature extraction interrupted." );
 			siftTasks.clear();
-			//exec.shutdownNow();
+			exec.shutdownNow();
 			throw e;
 		}
 		catch ( final ExecutionException e )
 		{
 			Utils.log( "Execution exception during feature extraction." );
 			siftTasks.clear();
-			//exec.shutdownNow();
+			exec.shutdownNow();
 			throw e;
 		}
 
 		siftTasks.clear();
         IJ.log("Extracted features in " + (System.currentTimeMillis() - sTime) + "ms");
-		//exec.shutdown();
+		exec.shutdown();
 	}
 
     private static class LayerFeatureCallable implements Callable<ArrayList<Feature>>, Serializable
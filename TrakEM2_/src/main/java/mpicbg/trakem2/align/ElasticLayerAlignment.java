@@ -19,12 +19,15 @@ package mpicbg.trakem2.align;
 
 import java.awt.Rectangle;
 import java.awt.geom.Area;
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -33,11 +36,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 import ij.IJ;
 import ij.gui.GenericDialog;
 import ini.trakem2.Project;
+import ini.trakem2.display.AreaList;
+import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
+import ini.trakem2.display.Tree;
 import ini.trakem2.display.VectorData;
+import ini.trakem2.display.ZDisplayable;
 import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
@@ -60,6 +68,7 @@ import mpicbg.models.Transforms;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.Vertex;
 import mpicbg.trakem2.align.concurrent.BlockMatchPairCallable;
+import mpicbg.trakem2.align.concurrent.RenderedLayers;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.ThinPlateSplineTransform;
 import mpicbg.trakem2.util.Triple;
@@ -95,6 +104,11 @@ public class ElasticLayerAlignment
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		/** Relax the spring meshes in parallel and coarse to fine, with {@link SpringMeshOptimizer}. */
+		public boolean useParallelOptimizer = false;
+
+		/** Save the layers rendered for block matching into the storage folder, to be read back when restarting. */
+		public boolean cacheRenderedLayers = false;
 
 		public boolean setup( final Rectangle box )
 		{
@@ -128,6 +142,7 @@ public class ElasticLayerAlignment
 			gdBlockMatching.addMessage( "Miscellaneous:" );
 			gdBlockMatching.addCheckbox( "layers_are_pre-aligned", isAligned );
 			gdBlockMatching.addNumericField( "test_maximally :", maxNumNeighbors, 0, 6, "layers" );
+			gdBlockMatching.addCheckbox( "save_rendered_layers_to_disk", cacheRenderedLayers );
 
 			gdBlockMatching.showDialog();
 
@@ -148,6 +163,7 @@ public class ElasticLayerAlignment
 			maxLocalTrust = ( float )gdBlockMatching.getNextNumber();
 			isAligned = gdBlockMatching.getNextBoolean();
 			maxNumNeighbors = ( int )gdBlockMatching.getNextNumber();
+			cacheRenderedLayers = gdBlockMatching.getNextBoolean();
 
 
 			if ( !isAligned )
@@ -196,6 +212,7 @@ public class ElasticLayerAlignment
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdOptimize.addCheckbox("use_legacy_optimizer :", useLegacyOptimizer);
+			gdOptimize.addCheckbox("use_parallel_multigrid_optimizer :", useParallelOptimizer);
 
 			gdOptimize.showDialog();
 
@@ -211,6 +228,7 @@ public class ElasticLayerAlignment
 			maxIterationsSpringMesh = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdOptimize.getNextNumber();
 			useLegacyOptimizer = gdOptimize.getNextBoolean();
+			useParallelOptimizer = gdOptimize.getNextBoolean();
 
 			return true;
 		}
@@ -315,7 +333,7 @@ public class ElasticLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param p = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -362,6 +380,9 @@ public class ElasticLayerAlignment
 					searchRadius,
 					stiffnessSpringMesh,
 					useLocalSmoothnessFilter );
+			p.cacheRenderedLayers = cacheRenderedLayers;
+			p.useParallelOptimizer = useParallelOptimizer;
+			return p;
 		}
 	}
 
@@ -402,8 +423,6 @@ public class ElasticLayerAlignment
 			final boolean propagateTransformAfter,
 			final Filter< Patch > filter ) throws Exception
 	{
-        final ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
-
 
 		/* create tiles and models for all layers */
 		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
@@ -483,131 +502,166 @@ public class ElasticLayerAlignment
         final ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>> futures =
                 new ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>>(pairs.size());
 
-
+		/* render each layer once for all the pairs that include it */
+		final RenderedLayers rendered = new RenderedLayers( layerRange, box, param.layerScale, filter,
+				param.cacheRenderedLayers ? new File( project.getLoader().getStorageFolder(), "trakem2.elastic.layers" ) : null );
 		for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : pairs )
 		{
-			/* free memory */
-			project.getLoader().releaseAll();
+			if ( !( fixedLayers.contains( layerRange.get( pair.a ) ) && fixedLayers.contains( layerRange.get( pair.b ) ) ) )
+			{
+				rendered.retain( pair.a );
+				rendered.retain( pair.b );
+			}
+		}
 
-			final SpringMesh m1 = meshes.get( pair.a );
-			final SpringMesh m2 = meshes.get( pair.b );
+		/* free memory */
+		project.getLoader().releaseAll();
 
+		final ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
+		try
+		{
+			/* the first layer of each submitted pair, and the index of the first submitted pair not yet known to be done */
+			final ArrayList< Integer > firstLayers = new ArrayList< Integer >( pairs.size() );
+			int done = 0;
 
-			final ArrayList< Vertex > v1 = m1.getVertices();
-			final ArrayList< Vertex > v2 = m2.getVertices();
+			for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : pairs )
+			{
+				/* keep in memory only the rendered layers of a window of pairs:
+				 * wait for the pairs that start more than one layer before this one */
+				for ( ; done < futures.size(); ++done )
+				{
+					final Future<BlockMatchPairCallable.BlockMatchResults> future = futures.get( done );
+					if ( future.isDone() ) continue;
+					if ( firstLayers.get( done ) >= pair.a - 1 ) break;
+					future.get();
+				}
 
-			final Layer layer1 = layerRange.get( pair.a );
-			final Layer layer2 = layerRange.get( pair.b );
+				final SpringMesh m1 = meshes.get( pair.a );
+				final SpringMesh m2 = meshes.get( pair.b );
 
-			final boolean layer1Fixed = fixedLayers.contains(layer1);
-			final boolean layer2Fixed = fixedLayers.contains(layer2);
 
+				final ArrayList< Vertex > v1 = m1.getVertices();
+				final ArrayList< Vertex > v2 = m2.getVertices();
 
-			if ( !( layer1Fixed && layer2Fixed ) )
-			{
-                final BlockMatchPairCallable bmpc = new BlockMatchPairCallable(
-                        pair,
-                        layerRange,
-                        layer1Fixed, layer2Fixed,
-                        filter,
-                        param,
-                        v1, v2,
-                        box);
-                futures.add(service.submit(bmpc));
-            }
-        }
+				final Layer layer1 = layerRange.get( pair.a );
+				final Layer layer2 = layerRange.get( pair.b );
 
-        for (final Future<BlockMatchPairCallable.BlockMatchResults> future : futures)
-        {
-            final BlockMatchPairCallable.BlockMatchResults results = future.get();
-            final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
-            final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
-            final Tile< ? > t1 = tiles.get( pair.a );
-            final Tile< ? > t2 = tiles.get( pair.b );
-            final SpringMesh m1 = meshes.get( pair.a );
-            final SpringMesh m2 = meshes.get( pair.b );
-            final double springConstant  = 1.0 / ( pair.b - pair.a );
-            final boolean layer1Fixed = results.layer1Fixed;
-            final boolean layer2Fixed = results.layer2Fixed;
-
-            if (layer1Fixed)
-            {
-                initMeshes.fixTile( t1 );
+				final boolean layer1Fixed = fixedLayers.contains(layer1);
+				final boolean layer2Fixed = fixedLayers.contains(layer2);
+
+
+				if ( !( layer1Fixed && layer2Fixed ) )
+				{
+                    final BlockMatchPairCallable bmpc = new BlockMatchPairCallable(
+                            pair,
+                            layerRange,
+                            layer1Fixed, layer2Fixed,
+                            filter,
+                            param,
+                            v1, v2,
+                            box,
+                            rendered);
+                    futures.add(service.submit(bmpc));
+                    firstLayers.add(pair.a);
+                }
             }
-            else
+
+            for (final Future<BlockMatchPairCallable.BlockMatchResults> future : futures)
             {
-                if ( param.useLocalSmoothnessFilter )
+                final BlockMatchPairCallable.BlockMatchResults results = future.get();
+                final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
+                final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
+                final Tile< ? > t1 = tiles.get( pair.a );
+                final Tile< ? > t2 = tiles.get( pair.b );
+                final SpringMesh m1 = meshes.get( pair.a );
+                final SpringMesh m2 = meshes.get( pair.b );
+                final double springConstant  = 1.0 / ( pair.b - pair.a );
+                final boolean layer1Fixed = results.layer1Fixed;
+                final boolean layer2Fixed = results.layer2Fixed;
+
+                if (layer1Fixed)
                 {
-                    Utils.log( pair.a + " > " + pair.b + ": " + pm12.size() +
-                            " candidates passed local smoothness filter." );
+                    initMeshes.fixTile( t1 );
                 }
                 else
                 {
-                    Utils.log( pair.a + " > " + pair.b + ": found " + pm12.size() +
-                            " correspondences." );
-                }
+                    if ( param.useLocalSmoothnessFilter )
+                    {
+                        Utils.log( pair.a + " > " + pair.b + ": " + pm12.size() +
+                                " candidates passed local smoothness filter." );
+                    }
+                    else
+                    {
+                        Utils.log( pair.a + " > " + pair.b + ": found " + pm12.size() +
+                                " correspondences." );
+                    }
 
-                for ( final PointMatch pm : pm12 )
-                {
-                    final Vertex p1 = ( Vertex )pm.getP1();
-                    final Vertex p2 = new Vertex( pm.getP2() );
-                    p1.addSpring( p2, new Spring( 0, springConstant ) );
-                    m2.addPassiveVertex( p2 );
-                }
+                    for ( final PointMatch pm : pm12 )
+                    {
+                        final Vertex p1 = ( Vertex )pm.getP1();
+                        final Vertex p2 = new Vertex( pm.getP2() );
+                        p1.addSpring( p2, new Spring( 0, springConstant ) );
+                        m2.addPassiveVertex( p2 );
+                    }
 
-                /*
-                * adding Tiles to the initialing TileConfiguration, adding a Tile
-                * multiple times does not harm because the TileConfiguration is
-                * backed by a Set.
-                */
-                if ( pm12.size() > pair.c.getMinNumMatches() )
-                {
-                    initMeshes.addTile( t1 );
-                    initMeshes.addTile( t2 );
-                    t1.connect( t2, pm12 );
+                    /*
+                    * adding Tiles to the initialing TileConfiguration, adding a Tile
+                    * multiple times does not harm because the TileConfiguration is
+                    * backed by a Set.
+                    */
+                    if ( pm12.size() > pair.c.getMinNumMatches() )
+                    {
+                        initMeshes.addTile( t1 );
+                        initMeshes.addTile( t2 );
+                        t1.connect( t2, pm12 );
+                    }
                 }
-            }
 
 
-            if ( layer2Fixed )
-                initMeshes.fixTile( t2 );
-            else
-            {
-                if ( param.useLocalSmoothnessFilter )
-                {
-                    Utils.log( pair.a + " < " + pair.b + ": " + pm21.size() +
-                            " candidates passed local smoothness filter." );
-                }
+                if ( layer2Fixed )
+                    initMeshes.fixTile( t2 );
                 else
                 {
-                    Utils.log( pair.a + " < " + pair.b + ": found " + pm21.size() +
-                            " correspondences." );
-                }
+                    if ( param.useLocalSmoothnessFilter )
+                    {
+                        Utils.log( pair.a + " < " + pair.b + ": " + pm21.size() +
+                                " candidates passed local smoothness filter." );
+                    }
+                    else
+                    {
+                        Utils.log( pair.a + " < " + pair.b + ": found " + pm21.size() +
+                                " correspondences." );
+                    }
 
-                for ( final PointMatch pm : pm21 )
-                {
-                    final Vertex p1 = ( Vertex )pm.getP1();
-                    final Vertex p2 = new Vertex( pm.getP2() );
-                    p1.addSpring( p2, new Spring( 0, springConstant ) );
-                    m1.addPassiveVertex( p2 );
-                }
+                    for ( final PointMatch pm : pm21 )
+                    {
+                        final Vertex p1 = ( Vertex )pm.getP1();
+                        final Vertex p2 = new Vertex( pm.getP2() );
+                        p1.addSpring( p2, new Spring( 0, springConstant ) );
+                        m1.addPassiveVertex( p2 );
+                    }
 
-                /*
-                * adding Tiles to the initialing TileConfiguration, adding a Tile
-                * multiple times does not harm because the TileConfiguration is
-                * backed by a Set.
-                */
-                if ( pm21.size() > pair.c.getMinNumMatches() )
-                {
-                    initMeshes.addTile( t1 );
-                    initMeshes.addTile( t2 );
-                    t2.connect( t1, pm21 );
+                    /*
+                    * adding Tiles to the initialing TileConfiguration, adding a Tile
+                    * multiple times does not harm because the TileConfiguration is
+                    * backed by a Set.
+                    */
+                    if ( pm21.size() > pair.c.getMinNumMatches() )
+                    {
+                        initMeshes.addTile( t1 );
+                        initMeshes.addTile( t2 );
+                        t2.connect( t1, pm21 );
+                    }
                 }
-            }
 
-            Utils.log( pair.a + " <> " + pair.b + " spring constant = " + springConstant );
+                Utils.log( pair.a + " <> " + pair.b + " spring constant = " + springConstant );
 
-        }
+            }
+		}
+		finally
+		{
+			service.shutdown();
+		}
 
         /* pre-align by optimizing a piecewise linear model */
 		initMeshes.optimize(
@@ -623,7 +677,17 @@ public class ElasticLayerAlignment
 			final long t0 = System.currentTimeMillis();
 			Utils.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+			if ( param.useParallelOptimizer )
+			{
+				Utils.log( "  ...using parallel multigrid optimizer...");
+				SpringMeshOptimizer.optimizeMeshes(
+						meshes,
+						param.maxEpsilon * param.layerScale,
+						param.maxIterationsSpringMesh,
+						param.maxPlateauwidthSpringMesh,
+						param.maxNumThreads );
+			}
+			else if ( param.useLegacyOptimizer )
 			{
 				Utils.log( "  ...using legacy optimizer...");
 				SpringMesh.optimizeMeshes2(
@@ -675,16 +739,8 @@ public class ElasticLayerAlignment
 		final Layer first = layerRange.get( 0 );
 		final List< Layer > layers = first.getParent().getLayers();
 
-        final LayerSet ls = first.getParent();
-        final Area infArea = AreaUtils.infiniteArea();
-        final List<VectorData> vectorData = new ArrayList<VectorData>();
-        for (final Layer layer : ls.getLayers()) {
-            vectorData.addAll(
-                    Utils.castCollection(layer.getDisplayables(VectorData.class, false, true),
-                            VectorData.class, true));
-        }
-        vectorData.addAll(Utils.castCollection(ls.getZDisplayables(VectorData.class, true),
-                VectorData.class, true));
+		/* the transform of each layer, made once for both its patches and its vector data */
+		final HashMap< Layer, CoordinateTransform > transforms = new HashMap< Layer, CoordinateTransform >();
 
 		/* transfer layer transform into patch transforms and append to patches */
 		if ( propagateTransformBefore || propagateTransformAfter )
@@ -694,13 +750,10 @@ public class ElasticLayerAlignment
 				final ThinPlateSplineTransform tps = makeTPS( meshes.get( 0 ).getVA().keySet() );
 				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
 				for ( int i = 0; i < firstLayerIndex; ++i )
-                {
+				{
 					applyTransformToLayer( layers.get( i ), tps, filter );
-                    for (final VectorData vd : vectorData)
-                    {
-                        vd.apply(layers.get(i), infArea, tps);
-                    }
-                }
+					transforms.put( layers.get( i ), tps );
+				}
 
 			}
 			if ( propagateTransformAfter )
@@ -709,13 +762,10 @@ public class ElasticLayerAlignment
 				final ThinPlateSplineTransform tps = makeTPS( meshes.get( meshes.size() - 1 ).getVA().keySet() );
 				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
 				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
-                {
-                    applyTransformToLayer( layers.get( i ), tps, filter );
-                    for (final VectorData vd : vectorData)
-                    {
-                        vd.apply(layers.get(i), infArea, tps);
-                    }
-                }
+				{
+					applyTransformToLayer( layers.get( i ), tps, filter );
+					transforms.put( layers.get( i ), tps );
+				}
 			}
 		}
 		for ( int l = 0; l < layerRange.size(); ++l )
@@ -726,10 +776,7 @@ public class ElasticLayerAlignment
 			final Layer layer = layerRange.get( l );
 			final ThinPlateSplineTransform tps = makeTPS( meshes.get( l ).getVA().keySet() );
 			applyTransformToLayer( layer, tps, filter );
-            for (final VectorData vd : vectorData)
-            {
-                vd.apply(layer, infArea, tps);
-            }
+			transforms.put( layer, tps );
 
 			if ( Thread.interrupted() )
 			{
@@ -739,6 +786,9 @@ public class ElasticLayerAlignment
 			IJ.showProgress( l + 1, layerRange.size() );
 		}
 
+		IJ.showStatus( "Applying transformation to vector data ..." );
+		applyTransformToVectorData( first.getParent(), transforms );
+
 		/* update patch mipmaps */
 		final int firstLayerIndex;
 		final int lastLayerIndex;
@@ -801,11 +851,12 @@ public class ElasticLayerAlignment
 		 */
 		final List< Patch > patches = AlignmentUtils.filterPatches( layer, filter );
 
-		final ArrayList< Thread > applyThreads = new ArrayList< Thread >( p.maxNumThreads );
+		final Scheduler.Job job = Scheduler.getInstance().newJob( "ElasticLayerAlignment-apply", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, p.maxNumThreads );
+		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >( p.maxNumThreads );
 		final AtomicInteger ai = new AtomicInteger( 0 );
 		for ( int t = 0; t < p.maxNumThreads; ++t )
 		{
-			final Thread thread = new Thread(
+			futures.add( job.submit(
 					new Runnable()
 					{
 						@Override
@@ -821,13 +872,139 @@ public class ElasticLayerAlignment
 								e.printStackTrace();
 							}
 						}
-					} );
-			applyThreads.add( thread );
-			thread.start();
+					} ) );
 		}
+		job.shutdown();
 
-		for ( final Thread thread : applyThreads )
-			thread.join();
+		try
+		{
+			job.join( futures );
+		}
+		catch ( final InterruptedException e )
+		{
+			job.cancel();
+			throw e;
+		}
+	}
+
+	/**
+	 * Apply to the {@link VectorData} of each layer of {@code transforms} the transform of that layer.
+	 *
+	 * Visits only the data that is present in those layers: the {@link Displayable}s of each layer, and each
+	 * {@link ZDisplayable} once for all the layers in which it has data, so that {@link AreaList} and
+	 * {@link Tree} recalculate their bounding box once rather than once per layer. These are independent
+	 * of each other and transformed in parallel, each thread with its own copy of the transform of a layer,
+	 * made the first time that the thread needs it.
+	 */
+	final static protected void applyTransformToVectorData( final LayerSet ls, final Map< Layer, CoordinateTransform > transforms ) throws InterruptedException
+	{
+		final Area infArea = AreaUtils.infiniteArea();
+
+		/* the layers with vector data, and the vector data spanning layers with the layers in which it has data */
+		final ArrayList< Layer > layers = new ArrayList< Layer >();
+		for ( final Layer layer : transforms.keySet() )
+			if ( !layer.getDisplayables( VectorData.class, false, true ).isEmpty() )
+				layers.add( layer );
+		final ArrayList< ZDisplayable > zds = new ArrayList< ZDisplayable >();
+		final ArrayList< List< Layer > > zdLayers = new ArrayList< List< Layer > >();
+		for ( final ZDisplayable zd : ls.getZDisplayables( VectorData.class, true ) )
+		{
+			final ArrayList< Layer > withData = new ArrayList< Layer >();
+			for ( final Layer layer : zd.getLayersWithData() )
+				if ( transforms.containsKey( layer ) )
+					withData.add( layer );
+			if ( withData.isEmpty() ) continue;
+			zds.add( zd );
+			zdLayers.add( withData );
+		}
+
+		final int n = layers.size() + zds.size();
+		final Scheduler.Job job = Scheduler.getInstance().newJob( "ElasticLayerAlignment-applyVectorData", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, p.maxNumThreads );
+		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >( p.maxNumThreads );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		for ( int t = 0; t < p.maxNumThreads; ++t )
+		{
+			futures.add( job.submit(
+					new Runnable()
+					{
+						final HashMap< Layer, mpicbg.models.CoordinateTransform > copies = new HashMap< Layer, mpicbg.models.CoordinateTransform >();
+
+						final mpicbg.models.CoordinateTransform copy( final Layer layer )
+						{
+							mpicbg.models.CoordinateTransform ct = copies.get( layer );
+							if ( null == ct )
+							{
+								ct = transforms.get( layer ).copy();
+								copies.put( layer, ct );
+							}
+							return ct;
+						}
+
+						@Override
+						final public void run()
+						{
+							for ( int i = ai.getAndIncrement(); i < n && !Thread.interrupted(); i = ai.getAndIncrement() )
+							{
+								if ( i < layers.size() )
+								{
+									final Layer layer = layers.get( i );
+									for ( final Displayable d : layer.getDisplayables( VectorData.class, false, true ) )
+										apply( d, layer );
+								}
+								else
+								{
+									final ZDisplayable zd = zds.get( i - layers.size() );
+									final List< Layer > withData = zdLayers.get( i - layers.size() );
+									try
+									{
+										if ( zd instanceof AreaList || zd instanceof Tree )
+										{
+											final HashMap< Layer, mpicbg.models.CoordinateTransform > cts = new HashMap< Layer, mpicbg.models.CoordinateTransform >();
+											for ( final Layer layer : withData )
+												cts.put( layer, copy( layer ) );
+											if ( zd instanceof AreaList ) ( ( AreaList )zd ).apply( cts, infArea );
+											else ( ( Tree< ? > )zd ).apply( cts, infArea );
+										}
+										else
+										{
+											for ( final Layer layer : withData )
+												( ( VectorData )zd ).apply( layer, infArea, copy( layer ) );
+										}
+									}
+									catch ( final Exception e )
+									{
+										Utils.log( "ERROR transformation failed for " + zd );
+										e.printStackTrace();
+									}
+								}
+							}
+						}
+
+						final void apply( final Displayable d, final Layer layer )
+						{
+							try
+							{
+								( ( VectorData )d ).apply( layer, infArea, copy( layer ) );
+							}
+							catch ( final Exception e )
+							{
+								Utils.log( "ERROR transformation failed for " + d + " at layer " + layer );
+								e.printStackTrace();
+							}
+						}
+					} ) );
+		}
+		job.shutdown();
+
+		try
+		{
+			job.join( futures );
+		}
+		catch ( final InterruptedException e )
+		{
+			job.cancel();
+			throw e;
+		}
 	}
 
 
@@ -922,11 +1099,13 @@ public class ElasticLayerAlignment
         /* match and filter feature correspondences */
         int numFailures = 0;
 
+        final Scheduler.Job job = Scheduler.getInstance().newJob( "ElasticLayerAlignment-match", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, param.maxNumThreads );
+
         final double pointMatchScale = param.layerScale / scale;
 
         for ( int i = 0; i < layerRange.size(); ++i )
         {
-            final ArrayList< Thread > threads = new ArrayList< Thread >( param.maxNumThreads );
+            final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >( param.maxNumThreads );
 
             final int sliceA = i;
             final Layer layerA = layerRange.get( i );
@@ -951,7 +1130,7 @@ J:            {
 
                     final String layerNameB = layerName( layerB );
 
-                    final Thread thread = new Thread()
+                    final Runnable task = new Runnable()
                     {
                         @Override
                         public void run()
@@ -1071,30 +1250,21 @@ J:            {
                             }
                         }
                     };
-                    threads.add( thread );
-                    thread.start();
+                    futures.add( job.submit( task ) );
                 }
 
                 try
                 {
-                    for ( final Thread thread : threads )
-                        thread.join();
+                    job.join( futures );
                 }
                 catch ( final InterruptedException e )
                 {
                     Utils.log( "Establishing feature correspondences interrupted." );
-                    for ( final Thread thread : threads )
-                        thread.interrupt();
-                    try
-                    {
-                        for ( final Thread thread : threads )
-                            thread.join();
-                    }
-                    catch ( final InterruptedException f ) {}
+                    job.cancel();
                     return;
                 }
 
-                threads.clear();
+                futures.clear();
 
                 /* collect successfully matches pairs and break the search on gaps */
                 for ( int t = 0; t < models.size(); ++t )
@@ -1115,6 +1285,8 @@ J:            {
                 }
             }
         }
+
+        job.shutdown();
     }
 
 
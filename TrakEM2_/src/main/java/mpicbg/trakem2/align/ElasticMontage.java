@@ -112,6 +112,8 @@ public class ElasticMontage
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		/** Relax the spring meshes in parallel and coarse to fine, with {@link SpringMeshOptimizer}. */
+		public boolean useParallelOptimizer = false;
 
 		/**
 		 * Visualize spring mesh optimization
@@ -182,6 +184,7 @@ public class ElasticMontage
 			gdSpringMesh.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdSpringMesh.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdSpringMesh.addCheckbox( "use_legacy_optimizer :", useLegacyOptimizer );
+			gdSpringMesh.addCheckbox( "use_parallel_multigrid_optimizer :", useParallelOptimizer );
 
 
 			gdSpringMesh.showDialog();
@@ -195,6 +198,7 @@ public class ElasticMontage
 			maxIterationsSpringMesh = ( int )gdSpringMesh.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdSpringMesh.getNextNumber();
 			useLegacyOptimizer = gdSpringMesh.getNextBoolean();
+			useParallelOptimizer = gdSpringMesh.getNextBoolean();
 
 			if ( isAligned )
 				po.desiredModelIndex = 3;
@@ -242,6 +246,7 @@ public class ElasticMontage
 			clone.maxIterationsSpringMesh = maxIterationsSpringMesh;
 			clone.maxPlateauwidthSpringMesh = maxPlateauwidthSpringMesh;
 			clone.useLegacyOptimizer = useLegacyOptimizer;
+			clone.useParallelOptimizer = useParallelOptimizer;
 
 			clone.visualize = visualize;
 
@@ -656,7 +661,17 @@ public class ElasticMontage
 			final long t0 = System.currentTimeMillis();
 			IJ.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+			if ( param.useParallelOptimizer )
+			{
+				Utils.log( "  ...using parallel multigrid optimizer...");
+				SpringMeshOptimizer.optimizeMeshes(
+						meshes,
+						param.po.maxEpsilon,
+						param.maxIterationsSpringMesh,
+						param.maxPlateauwidthSpringMesh,
+						param.maxNumThreads );
+			}
+			else if ( param.useLegacyOptimizer )
 			{
 				Utils.log( "  ...using legacy optimizer...");
 				SpringMesh.optimizeMeshes2(
@@ -276,8 +276,6 @@ public class RegularizedAffineLayerAlignment
 	{
 		final double scale = Math.min( 1.0, Math.min( ( double )param.ppm.sift.maxOctaveSize / ( double )box.width, ( double )param.ppm.sift.maxOctaveSize / ( double )box.height ) );
 
-        final ExecutorService exec = ExecutorProvider.getExecutorService(1.0f / (float)param.maxNumThreads);
-
 		/* create tiles and models for all layers */
 		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
 		final AbstractAffineModel2D< ? > m = ( AbstractAffineModel2D< ? > )Util.createModel( param.desiredModelIndex );
@@ -312,56 +310,64 @@ public class RegularizedAffineLayerAlignment
         final ArrayList<Future<Triple<Integer, Integer, Collection<PointMatch>>>> modelFutures =
                 new ArrayList<Future<Triple<Integer, Integer, Collection<PointMatch>>>>();
 
-		for ( int i = 0; i < layerRange.size(); ++i )
-		{
-			final int range = Math.min( layerRange.size(), i + param.maxNumNeighbors + 1 );
-
-			for ( int j = i + 1; j < range; ++j)
+        final ExecutorService exec = ExecutorProvider.getExecutorService(1.0f / (float)param.maxNumThreads);
+        try
+        {
+			for ( int i = 0; i < layerRange.size(); ++i )
 			{
-                    modelFutures.add(exec.submit(
-                            new CorrespondenceCallable(
-                                    param,
-                                    layerRange.get(i), layerRange.get(j),
-                                    pointMatchScale,
-                                    i, j)));
-
+				final int range = Math.min( layerRange.size(), i + param.maxNumNeighbors + 1 );
+
+				for ( int j = i + 1; j < range; ++j)
+				{
+                        modelFutures.add(exec.submit(
+                                new CorrespondenceCallable(
+                                        param,
+                                        layerRange.get(i), layerRange.get(j),
+                                        pointMatchScale,
+                                        i, j)));
+
+				}
 			}
-		}
 
-        // Assume that futures are ordered in Triple.a
-        try
-        {
-            for (final Future<Triple<Integer, Integer, Collection<PointMatch>>> future :
-                    modelFutures)
+            // Assume that futures are ordered in Triple.a
+            try
             {
-                final Triple<Integer, Integer, Collection<PointMatch>> pair = future.get();
-
-                if (lastA != pair.a)
+                for (final Future<Triple<Integer, Integer, Collection<PointMatch>>> future :
+                        modelFutures)
                 {
-                    numFailures = 0;
-                    lastA = pair.a;
-                }
+                    final Triple<Integer, Integer, Collection<PointMatch>> pair = future.get();
 
-                if (pair.c == null)
-                {
-                    numFailures++;
-                    //TODO: Cancel futures associated with pair.a
+                    if (lastA != pair.a)
+                    {
+                        numFailures = 0;
+                        lastA = pair.a;
+                    }
+
+                    if (pair.c == null)
+                    {
+                        numFailures++;
+                        //TODO: Cancel futures associated with pair.a
+                    }
+                    else if (numFailures < param.maxNumFailures)
+                    {
+                        pairs.add(pair);
+                    }
                 }
-                else if (numFailures < param.maxNumFailures)
+            }
+            catch (final InterruptedException ie)
+            {
+                Utils.log( "Establishing feature correspondences interrupted." );
+                for (final Future<Triple<Integer, Integer, Collection<PointMatch>>> future :
+                        modelFutures)
                 {
-                    pairs.add(pair);
+                    future.cancel(true);
                 }
+                return;
             }
         }
-        catch (final InterruptedException ie)
+        finally
         {
-            Utils.log( "Establishing feature correspondences interrupted." );
-            for (final Future<Triple<Integer, Integer, Collection<PointMatch>>> future :
-                    modelFutures)
-            {
-                future.cancel(true);
-            }
-            return;
+            exec.shutdown();
         }
 
         /* collect successfully matches pairs and break the search on gaps */
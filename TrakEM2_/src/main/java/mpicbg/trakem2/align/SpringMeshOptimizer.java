@@ -0,0 +1,504 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.Spring;
+import mpicbg.models.SpringMesh;
+import mpicbg.models.Vertex;
+
+/**
+ * Relaxes {@link SpringMesh SpringMeshes} that are connected to each other by springs to passive
+ * vertices, as {@link SpringMesh#optimizeMeshes(Collection, double, int, int, boolean)} does, but in
+ * parallel and coarse to fine.
+ *
+ * Each iteration moves the vertices towards the positions at which their springs would be at rest.
+ * At the coarser levels the vertices of a mesh move together, in square blocks, by the translation that
+ * best rests the springs that leave each block; each finer level halves the blocks, down to single vertices.
+ * A deformation larger than the spacing of the vertices then converges in few iterations, rather than
+ * in as many as the vertices that it spans.
+ *
+ * The meshes are split into as many contiguous chunks as threads, each relaxed by a task of a {@link Scheduler} job.
+ * Each task reads the passive vertices of the meshes of other chunks as those are being updated, and runs ahead
+ * of the slowest chunk by at most {@code staleness} iterations: a chunk that gets that far ahead ends its task,
+ * without holding a thread of the pool, and is submitted again once the slowest chunk catches up.
+ */
+public class SpringMeshOptimizer
+{
+	/** Iterations by which a chunk of meshes may run ahead of the slowest one. */
+	final static public int DEFAULT_STALENESS = 2;
+
+	/** Fraction of the step to the rest position taken at each iteration, for neighbours that move at once not to overshoot. */
+	final static private double OMEGA = 2.0 / 3.0;
+
+	/** Iterations over which the average force is observed to decide whether a coarse level has converged. */
+	final static private int COARSE_PLATEAUWIDTH = 10;
+
+	/** A coarse level has converged when the average force decreases by less than this fraction per iteration. */
+	final static private double COARSE_MIN_DECREASE = 0.001;
+
+	final private List< SpringMesh > meshes;
+	final private int numThreads;
+	final private int staleness;
+
+	/* For each mesh its vertices, and for each vertex the partners of its springs, their index in the mesh or -1 when passive, and the springs' weight and length. */
+	final private Vertex[][] vertices;
+	final private Vertex[][][] partners;
+	final private int[][][] partnerIndices;
+	final private double[][][] weights;
+	final private double[][][] lengths;
+
+	/* For each mesh, the block of each vertex at the current level, and the number of blocks. */
+	final private int[][] blocks;
+	final private int[] numBlocks;
+
+	/** Levels that move the vertices in blocks, before moving them one by one. */
+	final private int numCoarseLevels;
+
+	public SpringMeshOptimizer( final List< SpringMesh > meshes, final int numThreads, final int staleness )
+	{
+		this.meshes = meshes;
+		this.numThreads = Math.max( 1, Math.min( numThreads, meshes.size() ) );
+		this.staleness = Math.max( 1, staleness );
+
+		final int n = meshes.size();
+		vertices = new Vertex[ n ][];
+		partners = new Vertex[ n ][][];
+		partnerIndices = new int[ n ][][];
+		weights = new double[ n ][][];
+		lengths = new double[ n ][][];
+		blocks = new int[ n ][];
+		numBlocks = new int[ n ];
+
+		int maxSide = 1;
+		for ( int m = 0; m < n; ++m )
+		{
+			final ArrayList< Vertex > vs = meshes.get( m ).getVertices();
+			vertices[ m ] = vs.toArray( new Vertex[ vs.size() ] );
+			blocks[ m ] = new int[ vs.size() ];
+			final HashMap< Vertex, Integer > index = new HashMap< Vertex, Integer >();
+			for ( int j = 0; j < vertices[ m ].length; ++j )
+				index.put( vertices[ m ][ j ], j );
+
+			partners[ m ] = new Vertex[ vs.size() ][];
+			partnerIndices[ m ] = new int[ vs.size() ][];
+			weights[ m ] = new double[ vs.size() ][];
+			lengths[ m ] = new double[ vs.size() ][];
+			for ( int j = 0; j < vertices[ m ].length; ++j )
+			{
+				final Vertex v = vertices[ m ][ j ];
+				final Collection< Vertex > connected = v.getConnectedVertices();
+				partners[ m ][ j ] = connected.toArray( new Vertex[ connected.size() ] );
+				partnerIndices[ m ][ j ] = new int[ connected.size() ];
+				weights[ m ][ j ] = new double[ connected.size() ];
+				lengths[ m ][ j ] = new double[ connected.size() ];
+				for ( int i = 0; i < partners[ m ][ j ].length; ++i )
+				{
+					final Vertex partner = partners[ m ][ j ][ i ];
+					final Spring spring = v.getSpring( partner );
+					final Integer k = index.get( partner );
+					partnerIndices[ m ][ j ][ i ] = null == k ? -1 : k;
+					weights[ m ][ j ][ i ] = spring.getWeight();
+					lengths[ m ][ j ][ i ] = spring.getLength();
+				}
+			}
+			maxSide = Math.max( maxSide, ( int )Math.ceil( Math.sqrt( vs.size() ) ) );
+		}
+
+		/* halve the blocks while they would span at least two vertices on each side */
+		int levels = 0;
+		while ( ( 2 << levels ) <= maxSide )
+			++levels;
+		numCoarseLevels = levels;
+	}
+
+	/**
+	 * Relax the meshes with {@code numThreads} threads and the {@link #DEFAULT_STALENESS default staleness}.
+	 *
+	 * @see #optimize(double, int, int)
+	 */
+	static public void optimizeMeshes(
+			final List< SpringMesh > meshes,
+			final double maxError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		new SpringMeshOptimizer( meshes, numThreads, DEFAULT_STALENESS ).optimize( maxError, maxIterations, maxPlateauwidth );
+	}
+
+	/**
+	 * Relax the meshes coarse to fine, for at most {@code maxIterations} over all levels. The finest level,
+	 * of single vertices, stops as {@link SpringMesh#optimizeMeshes(Collection, double, int, int, boolean)} does:
+	 * when, after {@code maxPlateauwidth} iterations, the average force on the vertices is below {@code maxError}
+	 * and has ceased to change. Reports the average, minimal and maximal force on the vertices at the end.
+	 *
+	 * @throws ExecutionException if relaxing any chunk of the meshes failed, with that failure as its cause;
+	 * the meshes are then left partially relaxed.
+	 */
+	public void optimize( final double maxError, final int maxIterations, final int maxPlateauwidth ) throws InterruptedException, ExecutionException
+	{
+		final Scheduler.Job job = Scheduler.getInstance().newJob( "Optimizing spring meshes", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, numThreads );
+		int iterations = 0;
+		try
+		{
+			for ( int level = 0; level < numCoarseLevels && iterations < maxIterations; ++level )
+			{
+				final Progress progress = relax( job, 1 << level, maxError, maxIterations - iterations, Math.min( COARSE_PLATEAUWIDTH, maxPlateauwidth ), true );
+				iterations += progress.completed;
+				Utils.log( "  level " + level + " (" + ( 1 << level ) + "x" + ( 1 << level ) + " blocks per mesh): " + progress.completed + " iterations, average force: " + progress.force );
+			}
+			if ( iterations < maxIterations )
+				iterations += relax( job, 0, maxError, maxIterations - iterations, maxPlateauwidth, false ).completed;
+		}
+		finally
+		{
+			job.shutdown();
+		}
+
+		final double[] stats = newStats();
+		for ( int m = 0; m < meshes.size(); ++m )
+			relax( m, stats, false );
+
+		Utils.log( "Successfully optimized " + meshes.size() + " meshes after " + iterations + " iterations:\n" +
+				"  average force: " + ( stats[ 1 ] > 0 ? stats[ 0 ] / stats[ 1 ] : 0 ) + "\n" +
+				"  minimal force: " + ( stats[ 1 ] > 0 ? stats[ 2 ] : 0 ) + "\n" +
+				"  maximal force: " + stats[ 3 ] );
+	}
+
+	/** Sum, count, minimum and maximum of the force on the vertices. */
+	static private double[] newStats()
+	{
+		return new double[]{ 0, 0, Double.MAX_VALUE, 0 };
+	}
+
+	/**
+	 * Assign each vertex of each mesh to one of {@code side} x {@code side} square blocks over the mesh,
+	 * by its position in the mesh; or, when {@code side} is 0, each to a block of its own.
+	 */
+	private void assignBlocks( final int side )
+	{
+		for ( int m = 0; m < vertices.length; ++m )
+		{
+			final Vertex[] vs = vertices[ m ];
+			final int[] bs = blocks[ m ];
+			if ( 0 == side )
+			{
+				for ( int j = 0; j < vs.length; ++j )
+					bs[ j ] = j;
+				numBlocks[ m ] = vs.length;
+				continue;
+			}
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			for ( final Vertex v : vs )
+			{
+				final double[] l = v.getL();
+				minX = Math.min( minX, l[ 0 ] );
+				minY = Math.min( minY, l[ 1 ] );
+				maxX = Math.max( maxX, l[ 0 ] );
+				maxY = Math.max( maxY, l[ 1 ] );
+			}
+			final double bw = ( maxX - minX ) / side;
+			final double bh = ( maxY - minY ) / side;
+			for ( int j = 0; j < vs.length; ++j )
+			{
+				final double[] l = vs[ j ].getL();
+				final int bx = bw > 0 ? Math.min( side - 1, ( int )( ( l[ 0 ] - minX ) / bw ) ) : 0;
+				final int by = bh > 0 ? Math.min( side - 1, ( int )( ( l[ 1 ] - minY ) / bh ) ) : 0;
+				bs[ j ] = by * side + bx;
+			}
+			numBlocks[ m ] = side * side;
+		}
+	}
+
+	/**
+	 * Add to {@code stats} the force on each vertex of mesh {@code m} and then, if {@code move}, move
+	 * each block of vertices by {@link #OMEGA} of the translation that best rests the springs leaving it.
+	 */
+	private void relax( final int m, final double[] stats, final boolean move )
+	{
+		final Vertex[] vs = vertices[ m ];
+		final int[] bs = blocks[ m ];
+		final int nb = numBlocks[ m ];
+		final double[] tx = new double[ nb ];
+		final double[] ty = new double[ nb ];
+		final double[] tw = new double[ nb ];
+
+		for ( int j = 0; j < vs.length; ++j )
+		{
+			final double[] w = vs[ j ].getW();
+			final Vertex[] ps = partners[ m ][ j ];
+			final int[] pis = partnerIndices[ m ][ j ];
+			final double[] ks = weights[ m ][ j ];
+			final double[] ls = lengths[ m ][ j ];
+			double fx = 0, fy = 0;
+			for ( int i = 0; i < ps.length; ++i )
+			{
+				final double[] pw = ps[ i ].getW();
+				final double dx = w[ 0 ] - pw[ 0 ];
+				final double dy = w[ 1 ] - pw[ 1 ];
+				final double d = Math.sqrt( dx * dx + dy * dy );
+				/* from w to where the spring would be at rest */
+				final double s = d > 0 ? ls[ i ] / d : 0;
+				final double rx = pw[ 0 ] + s * dx - w[ 0 ];
+				final double ry = pw[ 1 ] + s * dy - w[ 1 ];
+				fx += ks[ i ] * rx;
+				fy += ks[ i ] * ry;
+				if ( -1 != pis[ i ] && bs[ pis[ i ] ] == bs[ j ] )
+					continue; // within the block
+				tx[ bs[ j ] ] += ks[ i ] * rx;
+				ty[ bs[ j ] ] += ks[ i ] * ry;
+				tw[ bs[ j ] ] += ks[ i ];
+			}
+			final double f = Math.sqrt( fx * fx + fy * fy );
+			stats[ 0 ] += f;
+			stats[ 1 ] += 1;
+			if ( f < stats[ 2 ] ) stats[ 2 ] = f;
+			if ( f > stats[ 3 ] ) stats[ 3 ] = f;
+		}
+
+		if ( !move ) return;
+
+		for ( int j = 0; j < vs.length; ++j )
+		{
+			final int b = bs[ j ];
+			if ( 0 == tw[ b ] ) continue;
+			final double[] w = vs[ j ].getW();
+			w[ 0 ] += OMEGA * tx[ b ] / tw[ b ];
+			w[ 1 ] += OMEGA * ty[ b ] / tw[ b ];
+		}
+
+		final SpringMesh mesh = meshes.get( m );
+		mesh.updateAffines();
+		mesh.updatePassiveVertices();
+	}
+
+	/** Relax all meshes at one level, in blocks of {@code side} x {@code side} per mesh or, when 0, vertex by vertex,
+	 *  with one task of {@code job} per chunk of meshes. */
+	private Progress relax(
+			final Scheduler.Job job,
+			final int side,
+			final double maxError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final boolean coarse ) throws InterruptedException, ExecutionException
+	{
+		assignBlocks( side );
+
+		final Progress progress = new Progress( job, maxError, maxIterations, maxPlateauwidth, coarse );
+		final int n = meshes.size();
+		for ( int t = 0; t < numThreads; ++t )
+			progress.relaxers[ t ] = new Relaxer( t, ( int )( ( long )n * t / numThreads ), ( int )( ( long )n * ( t + 1 ) / numThreads ), progress );
+		try
+		{
+			progress.start();
+			progress.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			progress.stop();
+			throw e;
+		}
+		return progress;
+	}
+
+	/** Relaxes a contiguous chunk of the meshes, once per iteration, for as long as the {@link Progress} lets it. */
+	final private class Relaxer implements Runnable
+	{
+		final private int index, first, last;
+		final private Progress progress;
+
+		Relaxer( final int index, final int first, final int last, final Progress progress )
+		{
+			this.index = index;
+			this.first = first;
+			this.last = last;
+			this.progress = progress;
+		}
+
+		@Override
+		final public void run()
+		{
+			try
+			{
+				for ( int i = progress.next( index ); -1 != i; i = progress.next( index ) )
+				{
+					final double[] stats = newStats();
+					for ( int m = first; m < last; ++m )
+						relax( m, stats, true );
+					progress.complete( index, i, stats );
+				}
+			}
+			catch ( final Throwable t )
+			{
+				progress.fail( t );
+			}
+		}
+	}
+
+	/**
+	 * The iterations completed by each chunk, and the forces of the iterations that not all chunks
+	 * have completed yet. When all have completed an iteration, its average force decides whether to proceed.
+	 */
+	final private class Progress
+	{
+		final private Scheduler.Job job;
+		final private Relaxer[] relaxers = new Relaxer[ numThreads ];
+		final private int[] done = new int[ numThreads ];
+		/** The chunks that got {@code staleness} iterations ahead of the slowest one, and wait to be submitted again. */
+		final private boolean[] parked = new boolean[ numThreads ];
+		final private double[][] pending = new double[ staleness ][];
+		final private ErrorStatistic observer;
+		final private double maxError;
+		final private int maxIterations, maxPlateauwidth;
+		final private boolean coarse;
+
+		/** Iterations completed by all chunks. */
+		private int completed = 0;
+		private boolean proceed;
+		/** Average force of the last iteration completed by all chunks. */
+		private double force = 0;
+		/** Chunks submitted or being relaxed. */
+		private int running = 0;
+		/** The first failure of any chunk. */
+		private Throwable failure = null;
+
+		Progress( final Scheduler.Job job, final double maxError, final int maxIterations, final int maxPlateauwidth, final boolean coarse )
+		{
+			this.job = job;
+			this.maxError = maxError;
+			this.maxIterations = maxIterations;
+			this.maxPlateauwidth = maxPlateauwidth;
+			this.coarse = coarse;
+			this.observer = new ErrorStatistic( maxPlateauwidth + 1 );
+			this.proceed = maxIterations > 0;
+			for ( int i = 0; i < pending.length; ++i )
+				pending[ i ] = newStats();
+		}
+
+		synchronized void start()
+		{
+			for ( int t = 0; t < relaxers.length; ++t )
+				submit( t );
+		}
+
+		/** Must be called while synchronized. */
+		private void submit( final int thread )
+		{
+			parked[ thread ] = false;
+			++running;
+			try
+			{
+				job.submit( relaxers[ thread ] );
+			}
+			catch ( final RuntimeException e )
+			{
+				--running;
+				throw e;
+			}
+		}
+
+		/** Wait until no chunk is being relaxed; then throw the failure of any. */
+		synchronized void join() throws InterruptedException, ExecutionException
+		{
+			while ( running > 0 )
+				wait();
+			if ( null != failure )
+				throw new ExecutionException( failure );
+		}
+
+		/** @return The iteration that the chunk is to do next; or -1 when done, or when too far ahead of the slowest chunk,
+		 *  in which case it is submitted again once the slowest catches up. */
+		synchronized int next( final int thread )
+		{
+			final int i = done[ thread ];
+			if ( proceed )
+			{
+				if ( i - completed < staleness )
+					return i;
+				parked[ thread ] = true;
+			}
+			--running;
+			notifyAll();
+			return -1;
+		}
+
+		synchronized void complete( final int thread, final int i, final double[] stats ) throws Exception
+		{
+			final double[] p = pending[ i % staleness ];
+			p[ 0 ] += stats[ 0 ];
+			p[ 1 ] += stats[ 1 ];
+			p[ 2 ] = Math.min( p[ 2 ], stats[ 2 ] );
+			p[ 3 ] = Math.max( p[ 3 ], stats[ 3 ] );
+			done[ thread ] = i + 1;
+
+			int min = Integer.MAX_VALUE;
+			for ( final int d : done )
+				min = Math.min( min, d );
+			for ( ; proceed && completed < min; ++completed )
+			{
+				final double[] c = pending[ completed % staleness ];
+				force = c[ 1 ] > 0 ? c[ 0 ] / c[ 1 ] : 0;
+				System.arraycopy( newStats(), 0, c, 0, c.length );
+				observer.add( force );
+				proceed = proceedAfter( completed + 1 );
+			}
+			for ( int t = 0; t < parked.length; ++t )
+				if ( proceed && parked[ t ] && done[ t ] - completed < staleness )
+					submit( t );
+		}
+
+		/** Record the first failure of a chunk, which is no longer being relaxed, and stop all others. */
+		synchronized void fail( final Throwable t )
+		{
+			if ( null == failure )
+				failure = t;
+			proceed = false;
+			--running;
+			notifyAll();
+		}
+
+		synchronized void stop()
+		{
+			proceed = false;
+			notifyAll();
+		}
+
+		/** The convergence criteria of {@link SpringMesh#optimizeMeshes(Collection, double, int, int, boolean)};
+		 *  or, at a coarse level, that the average force still decreases by a fraction of itself. */
+		private boolean proceedAfter( final int iterations ) throws Exception
+		{
+			if ( iterations >= maxIterations ) return false;
+			if ( iterations <= maxPlateauwidth ) return true;
+			if ( coarse )
+				return -observer.getWideSlope( maxPlateauwidth ) > COARSE_MIN_DECREASE * force;
+			if ( force > maxError ) return true;
+			for ( int d = maxPlateauwidth; d >= 1; d /= 2 )
+				if ( Math.abs( observer.getWideSlope( d ) ) > 0.0001 ) return true;
+			return false;
+		}
+	}
+}
@@ -66,6 +66,8 @@ public class BlockMatchPairCallable implements
     private final Collection<? extends Point> v1, v2;
     private final Rectangle box;
     private final Triple<Integer, Integer, AbstractModel<?>> pair;
+    /** Shared with the other pairs of the same range of layers, or null to render both layers here. */
+    private final transient RenderedLayers rendered;
 
 
     public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
@@ -78,6 +80,25 @@ public class BlockMatchPairCallable implements
                                   final Collection< ? extends Point > sourcePoints2,
                                   final Rectangle box)
     {
+        this(pair, layerRange, layer1Fixed, layer2Fixed, filter, param, sourcePoints1, sourcePoints2, box, null);
+    }
+
+    /**
+     * @param rendered Where to acquire both layers from, already rendered, and release them to when done;
+     *                 the caller must have retained each layer in it for this pair.
+     */
+    public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
+                                  final List<Layer> layerRange,
+                                  final boolean layer1Fixed,
+                                  final boolean layer2Fixed,
+                                  final Filter<Patch> filter,
+                                  final ElasticLayerAlignment.Param param,
+                                  final Collection< ? extends Point > sourcePoints1,
+                                  final Collection< ? extends Point > sourcePoints2,
+                                  final Rectangle box,
+                                  final RenderedLayers rendered)
+    {
+        this.rendered = rendered;
         this.pair = pair;
         layer1 = layerRange.get(pair.a);
         layer2 = layerRange.get(pair.b);
@@ -93,12 +114,32 @@ public class BlockMatchPairCallable implements
     @Override
     public BlockMatchResults call() throws Exception
     {
-        final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
-        final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
-        final Project project = layer1.getProject();
-
         System.out.println("BMC rev 0: " + pair.a + " " + pair.b);
 
+        if (null == rendered)
+        {
+            final FloatProcessor[] ips = render();
+            return match(ips[0], ips[1], ips[2], ips[3]);
+        }
+
+        try
+        {
+            final RenderedLayers.Render r1 = rendered.acquire(pair.a);
+            final RenderedLayers.Render r2 = rendered.acquire(pair.b);
+            return match(r1.ip, r2.ip, r1.mask, r2.mask);
+        }
+        finally
+        {
+            rendered.release(pair.a);
+            rendered.release(pair.b);
+        }
+    }
+
+    /** Render both layers and return them as images and masks: {ip1, ip2, ip1Mask, ip2Mask}. */
+    private FloatProcessor[] render()
+    {
+        final Project project = layer1.getProject();
+
         final Image img1 = project.getLoader().getFlatAWTImage(
                 layer1,
                 box,
@@ -124,14 +165,28 @@ public class BlockMatchPairCallable implements
         final int width = img1.getWidth( null );
         final int height = img1.getHeight( null );
 
-        final AbstractModel< ? > localSmoothnessFilterModel =
-                Util.createModel(param.localModelIndex);
-
         final FloatProcessor ip1 = new FloatProcessor( width, height );
         final FloatProcessor ip2 = new FloatProcessor( width, height );
         final FloatProcessor ip1Mask = new FloatProcessor( width, height );
         final FloatProcessor ip2Mask = new FloatProcessor( width, height );
 
+        mpicbg.trakem2.align.Util.imageToFloatAndMask( img1, ip1, ip1Mask );
+        mpicbg.trakem2.align.Util.imageToFloatAndMask( img2, ip2, ip2Mask );
+
+        return new FloatProcessor[]{ ip1, ip2, ip1Mask, ip2Mask };
+    }
+
+    private BlockMatchResults match(final FloatProcessor ip1,
+                                    final FloatProcessor ip2,
+                                    final FloatProcessor ip1Mask,
+                                    final FloatProcessor ip2Mask) throws Exception
+    {
+        final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
+        final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
+
+        final AbstractModel< ? > localSmoothnessFilterModel =
+                Util.createModel(param.localModelIndex);
+
         final int blockRadius =
                 Math.max( 16, mpicbg.util.Util.roundPos( param.layerScale * param.blockRadius ) );
 
@@ -140,9 +195,6 @@ public class BlockMatchPairCallable implements
         final double localRegionSigma = param.layerScale * param.localRegionSigma;
         final double maxLocalEpsilon = param.layerScale * param.maxLocalEpsilon;
 
-        mpicbg.trakem2.align.Util.imageToFloatAndMask( img1, ip1, ip1Mask );
-        mpicbg.trakem2.align.Util.imageToFloatAndMask( img2, ip2, ip2Mask );
-
         if (!layer1Fixed)
         {
 
@@ -0,0 +1,267 @@
+package mpicbg.trakem2.align.concurrent;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.trakem2.align.AlignmentUtils;
+import mpicbg.trakem2.align.Util;
+
+/**
+ * Renders each {@link Layer} of a range once, as the float image and mask that block matching compares,
+ * for all the {@link BlockMatchPairCallable} that match it against its neighbours, and forgets it
+ * when the last of them has released it. Pairs of layers consumed in order, as in a sliding window,
+ * keep only the layers of that window in memory.
+ *
+ * Optionally, rendered layers are also saved to a folder, and read from it instead of rendered again when
+ * none of the images of the layer have changed: an interrupted alignment, when restarted, doesn't
+ * have to render again the layers that it had already rendered.
+ */
+public class RenderedLayers
+{
+    public static class Render
+    {
+        public final FloatProcessor ip, mask;
+
+        public Render(final FloatProcessor ip, final FloatProcessor mask)
+        {
+            this.ip = ip;
+            this.mask = mask;
+        }
+    }
+
+    private static final int MAGIC = 0x54324c52; // "T2LR"
+
+    private final List<Layer> layerRange;
+    private final Rectangle box;
+    private final double scale;
+    private final Filter<Patch> filter;
+    private final File folder;
+    /** For each layer, how many more times it will be acquired. */
+    private final int[] refs;
+    private final HashMap<Integer, FutureTask<Render>> renders = new HashMap<Integer, FutureTask<Render>>();
+
+    /**
+     * @param folder Where to save and look for rendered layers, or null to not save them.
+     */
+    public RenderedLayers(final List<Layer> layerRange,
+                          final Rectangle box,
+                          final double scale,
+                          final Filter<Patch> filter,
+                          final File folder)
+    {
+        this.layerRange = layerRange;
+        this.box = box;
+        this.scale = scale;
+        this.filter = filter;
+        this.folder = folder;
+        this.refs = new int[layerRange.size()];
+        if (null != folder && !folder.exists() && !folder.mkdirs())
+        {
+            Utils.log("Could not create folder for rendered layers: " + folder);
+        }
+    }
+
+    /** Announce that the layer at index {@code i} of the range will be acquired once more. */
+    public synchronized void retain(final int i)
+    {
+        ++refs[i];
+    }
+
+    /** Get the rendered layer at index {@code i} of the range, rendering it if no other thread has done so yet. */
+    public Render acquire(final int i) throws Exception
+    {
+        FutureTask<Render> task;
+        boolean run = false;
+        synchronized (this)
+        {
+            task = renders.get(i);
+            if (null == task)
+            {
+                task = new FutureTask<Render>(new Callable<Render>()
+                {
+                    @Override
+                    public Render call() throws Exception
+                    {
+                        return load(layerRange.get(i));
+                    }
+                });
+                renders.put(i, task);
+                run = true;
+            }
+        }
+        if (run) task.run();
+        try
+        {
+            return task.get();
+        }
+        catch (final ExecutionException ee)
+        {
+            synchronized (this)
+            {
+                // Let the next one try again
+                if (task == renders.get(i)) renders.remove(i);
+            }
+            throw ee;
+        }
+    }
+
+    /** Release the layer at index {@code i} of the range, forgetting it if it won't be acquired again. */
+    public synchronized void release(final int i)
+    {
+        if (--refs[i] <= 0)
+        {
+            refs[i] = 0;
+            renders.remove(i);
+        }
+    }
+
+    private Render load(final Layer layer) throws IOException
+    {
+        final List<Patch> patches = AlignmentUtils.filterPatches(layer, filter);
+        final File file = null == folder ? null : new File(folder,
+                layer.getId() + "-" + Long.toHexString(fingerprint(layer.getProject().getLoader(), patches)) + ".layer");
+
+        if (null != file && file.exists())
+        {
+            try
+            {
+                return read(file);
+            }
+            catch (final IOException ioe)
+            {
+                Utils.log("Could not read rendered layer " + file + ", rendering it again.");
+            }
+        }
+
+        final Image img = layer.getProject().getLoader().getFlatAWTImage(
+                layer,
+                box,
+                scale,
+                0xffffffff,
+                ImagePlus.COLOR_RGB,
+                Patch.class,
+                patches,
+                true,
+                new Color(0x00ffffff, true));
+
+        final int width = img.getWidth(null);
+        final int height = img.getHeight(null);
+        final FloatProcessor ip = new FloatProcessor(width, height);
+        final FloatProcessor mask = new FloatProcessor(width, height);
+        Util.imageToFloatAndMask(img, ip, mask);
+        img.flush();
+
+        final Render render = new Render(ip, mask);
+        if (null != file) write(render, file);
+        return render;
+    }
+
+    /** A hash of everything that changes the rendering of {@code patches} within the {@link #box} at {@link #scale}. */
+    private long fingerprint(final Loader loader, final List<Patch> patches)
+    {
+        long h = 1125899906842597L;
+        h = 31 * h + box.hashCode();
+        h = 31 * h + Double.doubleToLongBits(scale);
+        final double[] m = new double[6];
+        for (final Patch patch : patches)
+        {
+            h = 31 * h + patch.getId();
+            patch.getAffineTransform().getMatrix(m);
+            for (final double d : m) h = 31 * h + Double.doubleToLongBits(d);
+            h = 31 * h + patch.getCoordinateTransformId();
+            h = 31 * h + patch.getAlphaMaskId();
+            h = 31 * h + Double.doubleToLongBits(patch.getMin());
+            h = 31 * h + Double.doubleToLongBits(patch.getMax());
+            h = 31 * h + patch.getOWidth();
+            h = 31 * h + patch.getOHeight();
+            h = 31 * h + Float.floatToIntBits(patch.getAlpha());
+            final String path = loader.getAbsolutePath(patch);
+            if (null != path)
+            {
+                h = 31 * h + path.hashCode();
+                h = 31 * h + new File(path).lastModified();
+            }
+            final String script = patch.getPreprocessorScriptPath();
+            if (null != script) h = 31 * h + script.hashCode();
+            final IFilter[] filters = patch.getFilters();
+            if (null != filters)
+            {
+                for (final IFilter f : filters) h = 31 * h + f.toXML("").hashCode();
+            }
+        }
+        return h;
+    }
+
+    private static Render read(final File file) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try
+        {
+            if (MAGIC != in.readInt()) throw new IOException("Not a rendered layer: " + file);
+            final int width = in.readInt();
+            final int height = in.readInt();
+            final float[] ip = new float[width * height];
+            final float[] mask = new float[width * height];
+            for (int k = 0; k < ip.length; ++k) ip[k] = in.readFloat();
+            for (int k = 0; k < mask.length; ++k) mask[k] = in.readFloat();
+            return new Render(new FloatProcessor(width, height, ip, null), new FloatProcessor(width, height, mask, null));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /** Write to a temporary file that then replaces {@code file}, so that an interrupted write leaves no partial file behind. */
+    private static void write(final Render render, final File file)
+    {
+        final File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try
+        {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(render.ip.getWidth());
+                out.writeInt(render.ip.getHeight());
+                for (final float f : (float[]) render.ip.getPixels()) out.writeFloat(f);
+                for (final float f : (float[]) render.mask.getPixels()) out.writeFloat(f);
+            }
+            finally
+            {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final IOException ioe)
+        {
+            Utils.log("Could not save rendered layer to " + file);
+            tmp.delete();
+        }
+    }
+}
@@ -8,13 +8,23 @@ import ij.process.ShortProcessor;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.parallel.Scheduler;
 
 import java.awt.Rectangle;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import mpicbg.models.CoordinateTransform;
 import mpicbg.models.CoordinateTransformList;
@@ -24,20 +34,182 @@ import mpicbg.trakem2.util.Triple;
 
 public class ExportUnsignedShort
 {
+	/** The range of pixel values of the image of each {@link Patch}, by its id, so that it is measured only once;
+	 * each with the stamp of the image file, its preprocessor script, its filters and its mipmaps at the time of measuring. */
+	static private final Map< Long, PixelRange > pixelRanges = Collections.synchronizedMap( new HashMap< Long, PixelRange >() );
+
+	static private final class PixelRange
+	{
+		final double min, max;
+		final String stamp;
+
+		PixelRange( final double min, final double max, final String stamp )
+		{
+			this.min = min;
+			this.max = max;
+			this.stamp = stamp;
+		}
+	}
+
+	/** How many bytes of source images with mapped intensities to keep for reuse by neighbouring tiles, by default. */
+	static public long CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
 	static protected class PatchIntensityRange
 	{
 		final public Patch patch;
 		final public double a, min, max;
 
 		PatchIntensityRange( final Patch patch )
+		{
+			this( patch, getPixelRange( patch ) );
+		}
+
+		PatchIntensityRange( final Patch patch, final double[] pixelRange )
 		{
 			this.patch = patch;
 			a = patch.getMax() - patch.getMin();
-			final ImageProcessor ip = patch.getImageProcessor();
-			ip.resetMinAndMax();
-			min = ( ip.getMin() - patch.getMin() ) / a;
-			max = ( ip.getMax() - patch.getMin() ) / a;
-			ip.setMinAndMax( patch.getMin(), patch.getMax() );
+			min = ( pixelRange[ 0 ] - patch.getMin() ) / a;
+			max = ( pixelRange[ 1 ] - patch.getMin() ) / a;
+		}
+	}
+
+	static private final String makeStamp( final Patch patch )
+	{
+		final StringBuilder sb = new StringBuilder();
+		final String path = patch.getImageFilePath();
+		if ( null != path )
+		{
+			final File f = new File( path );
+			sb.append( path ).append( ' ' ).append( f.lastModified() ).append( ' ' ).append( f.length() );
+		}
+		sb.append( ' ' ).append( patch.getPreprocessorScriptPath() );
+		final IFilter[] filters = patch.getFilters();
+		if ( null != filters )
+			for ( final IFilter filter : filters )
+				sb.append( filter.toXML( "" ) );
+		sb.append( ' ' ).append( patch.getProject().getLoader().getMipMapTimestamp( patch ) );
+		long h = 17;
+		for ( int i = 0; i < sb.length(); ++i )
+			h = 31 * h + sb.charAt( i );
+		return Long.toHexString( h );
+	}
+
+	/** The minimum and maximum pixel values of the image of {@code patch}, as measured before
+	 * if its image, preprocessor script, filters and mipmaps are unchanged since, or else measured from its image. */
+	static public final double[] getPixelRange( final Patch patch )
+	{
+		final String stamp = makeStamp( patch );
+		final PixelRange recorded = pixelRanges.get( patch.getId() );
+		if ( null != recorded && stamp.equals( recorded.stamp ) )
+			return new double[]{ recorded.min, recorded.max };
+		final ImageProcessor ip = patch.getImageProcessor();
+		ip.resetMinAndMax();
+		final double[] range = new double[]{ ip.getMin(), ip.getMax() };
+		ip.setMinAndMax( patch.getMin(), patch.getMax() );
+		pixelRanges.put( patch.getId(), new PixelRange( range[ 0 ], range[ 1 ], stamp ) );
+		return range;
+	}
+
+	/** The intensity ranges of all {@code patches}, in the same order, measuring in parallel those not yet recorded. */
+	static protected final ArrayList< PatchIntensityRange > createIntensityRanges( final List< ? extends Displayable > patches )
+	{
+		final Scheduler.Job job = Scheduler.getInstance().newJob( "Measuring intensity ranges" );
+		final ArrayList< Future< PatchIntensityRange > > fus = new ArrayList< Future< PatchIntensityRange > >( patches.size() );
+		for ( final Displayable d : patches )
+		{
+			fus.add( job.submit( new Callable< PatchIntensityRange >()
+			{
+				@Override
+				public PatchIntensityRange call()
+				{
+					return new PatchIntensityRange( ( Patch )d );
+				}
+			} ) );
+		}
+		job.shutdown();
+		final ArrayList< PatchIntensityRange > pirs = new ArrayList< PatchIntensityRange >( patches.size() );
+		try
+		{
+			for ( final Future< PatchIntensityRange > fu : fus )
+				pirs.add( fu.get() );
+		}
+		catch ( final InterruptedException ie )
+		{
+			job.cancel();
+			throw new RuntimeException( ie );
+		}
+		catch ( final ExecutionException ee )
+		{
+			job.cancel();
+			throw new RuntimeException( ee.getCause() );
+		}
+		return pirs;
+	}
+
+	/** Source images of {@link Patch} instances with their intensities mapped to the 16-bit range of an export,
+	 * shared by the tiles of the export and kept for reuse by neighbouring tiles up to a number of bytes,
+	 * dropping first the least recently used. Each image is mapped once even when requested by several threads at a time. */
+	static protected class MappedIntensities
+	{
+		final private double min, max;
+		final private long maxBytes;
+		private long bytes = 0;
+		final private LinkedHashMap< Patch, FutureTask< ShortProcessor > > cache = new LinkedHashMap< Patch, FutureTask< ShortProcessor > >( 16, 0.75f, true );
+
+		MappedIntensities( final double min, final double max, final long maxBytes )
+		{
+			this.min = min;
+			this.max = max;
+			this.maxBytes = maxBytes;
+		}
+
+		final ShortProcessor get( final PatchIntensityRange pir ) throws Exception
+		{
+			FutureTask< ShortProcessor > task;
+			boolean run = false;
+			synchronized ( this )
+			{
+				task = cache.get( pir.patch );
+				if ( null == task )
+				{
+					task = new FutureTask< ShortProcessor >( new Callable< ShortProcessor >()
+					{
+						@Override
+						public ShortProcessor call()
+						{
+							return mapIntensities( pir, min, max );
+						}
+					} );
+					cache.put( pir.patch, task );
+					bytes += 2L * pir.patch.getOWidth() * pir.patch.getOHeight();
+					run = true;
+					// Drop the least recently used, but never the one just added
+					for ( final Iterator< Patch > it = cache.keySet().iterator(); bytes > maxBytes && cache.size() > 1; )
+					{
+						final Patch p = it.next();
+						it.remove();
+						bytes -= 2L * p.getOWidth() * p.getOHeight();
+					}
+				}
+			}
+			if ( run )
+				task.run();
+			try
+			{
+				return task.get();
+			}
+			catch ( final ExecutionException ee )
+			{
+				synchronized ( this )
+				{
+					if ( cache.get( pir.patch ) == task )
+					{
+						cache.remove( pir.patch );
+						bytes -= 2L * pir.patch.getOWidth() * pir.patch.getOHeight();
+					}
+				}
+				throw ee;
+			}
 		}
 	}
 
@@ -165,6 +337,19 @@ public class ExportUnsignedShort
 	 * the X and the Y (both in world pixel uncalibrated coordinates).
 	 */
 	final static public Iterable<Callable<ExportedTile>> exportTiles( final Layer layer, final int tileWidth, final int tileHeight, final boolean visible_only )
+	{
+		return exportTiles( layer, tileWidth, tileHeight, visible_only, CACHE_BYTES );
+	}
+
+	/** See {@link #exportTiles(Layer, int, int, boolean)}.
+	 *
+	 * The intensity range of each image is measured only the first time and kept for later exports;
+	 * the images of each tile are found with the buckets of the {@code layer}; and the source images,
+	 * with their intensities mapped, are shared by the tiles that overlap them.
+	 *
+	 * @param cacheBytes How many bytes of source images with mapped intensities to keep for reuse by neighbouring tiles.
+	 */
+	final static public Iterable<Callable<ExportedTile>> exportTiles( final Layer layer, final int tileWidth, final int tileHeight, final boolean visible_only, final long cacheBytes )
 	{
 		final ArrayList< Displayable > patches = layer.getDisplayables( Patch.class, visible_only );
 		// If the Layer lacks images, return an empty sequence.
@@ -174,22 +359,33 @@ public class ExportUnsignedShort
 		}
 
 		/* calculate intensity transfer */
-		final ArrayList< PatchIntensityRange > patchIntensityRanges = new ArrayList< PatchIntensityRange >();
+		final ArrayList< PatchIntensityRange > patchIntensityRanges = createIntensityRanges( patches );
 		double min_ = Double.MAX_VALUE;
 		double max_ = -Double.MAX_VALUE;
-		for ( final Displayable d : patches )
+		// The intensity range of each Patch and its position in the stack
+		final HashMap< Displayable, PatchIntensityRange > pirs_ = new HashMap< Displayable, PatchIntensityRange >();
+		final HashMap< PatchIntensityRange, Integer > order = new HashMap< PatchIntensityRange, Integer >();
+		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			final Patch patch = ( Patch )d;
-			final PatchIntensityRange pir = new PatchIntensityRange( patch );
 			if ( pir.min < min_ )
 				min_ = pir.min;
 			if ( pir.max > max_ )
 				max_ = pir.max;
-			patchIntensityRanges.add( pir );
+			pirs_.put( pir.patch, pir );
+			order.put( pir, order.size() );
 		}
 
 		final double min = min_;
 		final double max = max_;
+		final MappedIntensities mapped = new MappedIntensities( min, max, cacheBytes );
+		final Comparator< PatchIntensityRange > stackOrder = new Comparator< PatchIntensityRange >()
+		{
+			@Override
+			public int compare( final PatchIntensityRange a, final PatchIntensityRange b )
+			{
+				return order.get( a ) - order.get( b );
+			}
+		};
 
 		/* Create lazy sequence that creates Callable instances. */
 
@@ -233,13 +429,15 @@ public class ExportUnsignedShort
 							y0 = box.y + row * tileHeight;
 							final Rectangle tileBounds = new Rectangle( x0, y0, tileWidth, tileHeight );
 
-							for ( final PatchIntensityRange pir : patchIntensityRanges )
+							for ( final Displayable d : layer.find( Patch.class, tileBounds, visible_only ) )
 							{
-								if ( pir.patch.getBoundingBox().intersects( tileBounds ) )
+								final PatchIntensityRange pir = pirs_.get( d );
+								if ( null != pir )
 								{
 									ps.add( pir );
 								}
 							}
+							Collections.sort( ps, stackOrder );
 
 							// Prepare next iteration
 							col += 1;
@@ -283,7 +481,7 @@ public class ExportUnsignedShort
 
 								for ( final PatchIntensityRange pir : pirs )
 								{
-									map( new PatchTransform( pir ), x, y, mapIntensities( pir, min, max ), sp );
+									map( new PatchTransform( pir ), x, y, mapped.get( pir ), sp );
 								}
 
 								return new ExportedTile( sp, x, y, minI, maxI );
@@ -311,19 +509,17 @@ public class ExportUnsignedShort
 		return makeFlatImage(patches, roi, 0);
 	}
 
+	/** The intensity range spans that of all {@code patches}, but only those that intersect the {@code roi} are loaded and mapped. */
 	static public final ShortProcessor makeFlatImage(final List<Patch> patches, final Rectangle roi, final double backgroundValue) {
-		final ArrayList< PatchIntensityRange > patchIntensityRanges = new ArrayList< PatchIntensityRange >();
+		final ArrayList< PatchIntensityRange > patchIntensityRanges = createIntensityRanges( patches );
 		double min = Double.MAX_VALUE;
 		double max = -Double.MAX_VALUE;
-		for ( final Displayable d : patches )
+		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			final Patch patch = ( Patch )d;
-			final PatchIntensityRange pir = new PatchIntensityRange( patch );
 			if ( pir.min < min )
 				min = pir.min;
 			if ( pir.max > max )
 				max = pir.max;
-			patchIntensityRanges.add( pir );
 		}
 
 		final double minI = -min * 65535.0 / ( max - min );
@@ -339,7 +535,8 @@ public class ExportUnsignedShort
 
 		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			map( new PatchTransform( pir ), roi.x, roi.y, mapIntensities( pir, min, max ), sp );
+			if ( pir.patch.getBoundingBox().intersects( roi ) )
+				map( new PatchTransform( pir ), roi.x, roi.y, mapIntensities( pir, min, max ), sp );
 		}
 
 		return sp;
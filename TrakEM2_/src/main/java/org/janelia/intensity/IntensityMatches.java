@@ -0,0 +1,234 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.intensity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Intensity correspondences <em>p</em>&rarr;<em>q</em> with weight
+ * <em>w</em>, stored in growable primitive arrays instead of one
+ * {@link PointMatch} per sample.  Offers weighted least-squares fitting and
+ * RANSAC filtering of the 1d affine model <em>q</em>=<em>ap</em>+<em>b</em>
+ * equivalent to what {@link mpicbg.models.AffineModel1D} does on
+ * {@link PointMatch PointMatches}.
+ *
+ * Not thread-safe.
+ */
+public class IntensityMatches
+{
+	private float[] p, q, w;
+	private int size = 0;
+
+	public IntensityMatches()
+	{
+		this( 64 );
+	}
+
+	public IntensityMatches( final int capacity )
+	{
+		p = new float[ capacity ];
+		q = new float[ capacity ];
+		w = new float[ capacity ];
+	}
+
+	final public void add( final float pi, final float qi, final float wi )
+	{
+		if ( size == p.length )
+		{
+			final int capacity = Math.max( 16, size + ( size >> 1 ) );
+			p = Arrays.copyOf( p, capacity );
+			q = Arrays.copyOf( q, capacity );
+			w = Arrays.copyOf( w, capacity );
+		}
+		p[ size ] = pi;
+		q[ size ] = qi;
+		w[ size ] = wi;
+		++size;
+	}
+
+	final public int size() { return size; }
+
+	final public float getP( final int i ) { return p[ i ]; }
+
+	final public float getQ( final int i ) { return q[ i ]; }
+
+	final public float getWeight( final int i ) { return w[ i ]; }
+
+	final public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Create {@link PointMatch PointMatches} for the samples at the given
+	 * indices, or for all samples if indices is null.
+	 */
+	public ArrayList< PointMatch > toPointMatches( final int[] indices, final int n )
+	{
+		final int m = null == indices ? size : n;
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( m );
+		for ( int k = 0; k < m; ++k )
+		{
+			final int i = null == indices ? k : indices[ k ];
+			matches.add( new PointMatch( new Point( new double[]{ p[ i ] } ), new Point( new double[]{ q[ i ] } ), w[ i ] ) );
+		}
+		return matches;
+	}
+
+	/**
+	 * Weighted least-squares fit of <em>q</em>=<em>ap</em>+<em>b</em> over
+	 * the samples at the first n indices.
+	 *
+	 * @param ab receives (<em>a</em>, <em>b</em>)
+	 * @return false if the samples are ill-defined, i.e. all <em>p</em> are
+	 * equal or the sum of weights is zero
+	 */
+	final public boolean fit( final int[] indices, final int n, final double[] ab )
+	{
+		double ws = 0, pc = 0, qc = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			final int i = indices[ k ];
+			final double wi = w[ i ];
+			ws += wi;
+			pc += wi * p[ i ];
+			qc += wi * q[ i ];
+		}
+		if ( ws == 0 )
+			return false;
+		pc /= ws;
+		qc /= ws;
+
+		double pp = 0, pq = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			final int i = indices[ k ];
+			final double wi = w[ i ];
+			final double dp = p[ i ] - pc;
+			pp += wi * dp * dp;
+			pq += wi * dp * ( q[ i ] - qc );
+		}
+		if ( pp == 0 )
+			return false;
+
+		ab[ 0 ] = pq / pp;
+		ab[ 1 ] = qc - ab[ 0 ] * pc;
+		return true;
+	}
+
+	final private double distance( final int i, final double a, final double b )
+	{
+		return Math.abs( a * p[ i ] + b - q[ i ] );
+	}
+
+	/**
+	 * RANSAC followed by iterative outlier removal by median residual, as
+	 * {@link mpicbg.models.AbstractModel#filterRansac(java.util.List, java.util.Collection, int, double, double, int, double)}.
+	 *
+	 * @param inliers receives the indices of the inliers, must be at least
+	 * {@link #size()} long
+	 * @param ab receives the model fitted to the inliers
+	 * @return the number of inliers, or 0 if no model was found
+	 */
+	public int filterRansac(
+			final int[] inliers,
+			final double[] ab,
+			final int iterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final double maxTrust )
+	{
+		if ( size < 2 )
+			return 0;
+
+		final Random rnd = new Random( 69997 );
+		final int[] sample = new int[ 2 ];
+		final double[] candidate = new double[ 2 ];
+		int numInliers = 0;
+		for ( int it = 0; it < iterations; ++it )
+		{
+			sample[ 0 ] = rnd.nextInt( size );
+			do
+				sample[ 1 ] = rnd.nextInt( size );
+			while ( sample[ 1 ] == sample[ 0 ] );
+
+			if ( !fit( sample, 2, candidate ) )
+				continue;
+
+			int n = 0;
+			for ( int i = 0; i < size; ++i )
+				if ( distance( i, candidate[ 0 ], candidate[ 1 ] ) < maxEpsilon )
+					++n;
+
+			if ( n > numInliers )
+			{
+				numInliers = n;
+				ab[ 0 ] = candidate[ 0 ];
+				ab[ 1 ] = candidate[ 1 ];
+			}
+		}
+
+		if ( numInliers < minNumInliers || numInliers < minInlierRatio * size )
+			return 0;
+
+		/* collect RANSAC inliers */
+		final int[] candidates = new int[ numInliers ];
+		for ( int i = 0, k = 0; i < size; ++i )
+			if ( distance( i, ab[ 0 ], ab[ 1 ] ) < maxEpsilon )
+				candidates[ k++ ] = i;
+		System.arraycopy( candidates, 0, inliers, 0, numInliers );
+
+		/* remove outliers by trust in the median residual */
+		final double[] residuals = new double[ numInliers ];
+		int n;
+		do
+		{
+			n = numInliers;
+			if ( !fit( inliers, n, ab ) )
+				return 0;
+			for ( int k = 0; k < n; ++k )
+				residuals[ k ] = distance( inliers[ k ], ab[ 0 ], ab[ 1 ] );
+			final double median = median( residuals, n );
+			numInliers = 0;
+			for ( int k = 0; k < candidates.length; ++k )
+			{
+				final int i = candidates[ k ];
+				if ( distance( i, ab[ 0 ], ab[ 1 ] ) <= median * maxTrust )
+					inliers[ numInliers++ ] = i;
+			}
+		}
+		while ( n > numInliers );
+
+		if ( numInliers < minNumInliers )
+			return 0;
+
+		return numInliers;
+	}
+
+	final static private double median( final double[] values, final int n )
+	{
+		final double[] sorted = Arrays.copyOf( values, n );
+		Arrays.sort( sorted );
+		return sorted[ n / 2 ];
+	}
+}
@@ -18,6 +18,7 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.plugin.TPlugIn;
 import ini.trakem2.utils.Utils;
@@ -25,14 +26,13 @@ import ini.trakem2.utils.Utils;
 import java.awt.Rectangle;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import mpicbg.models.Affine1D;
@@ -47,8 +47,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
 import mpicbg.models.TranslationModel1D;
-import net.imglib2.img.list.ListImg;
-import net.imglib2.img.list.ListRandomAccess;
 import net.imglib2.util.ValuePair;
 
 /**
@@ -64,6 +62,7 @@ public class MatchIntensities implements TPlugIn
 		final private ValuePair< Patch, Patch > patchPair;
 		final private HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles;
 		final private PointMatchFilter filter;
+		final private RenderCache cache;
 		final private double scale;
 		final private int numCoefficients;
 
@@ -72,6 +71,7 @@ public class MatchIntensities implements TPlugIn
 				final ValuePair< Patch, Patch > patchPair,
 				final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
 				final PointMatchFilter filter,
+				final RenderCache cache,
 				final double scale,
 				final int numCoefficients )
 		{
@@ -79,6 +79,7 @@ public class MatchIntensities implements TPlugIn
 			this.patchPair = patchPair;
 			this.coefficientsTiles = coefficientsTiles;
 			this.filter = filter;
+			this.cache = cache;
 			this.scale = scale;
 			this.numCoefficients = numCoefficients;
 		}
@@ -109,18 +110,33 @@ public class MatchIntensities implements TPlugIn
 			final FloatProcessor weights2 = new FloatProcessor( w, h );
 			final ColorProcessor coefficients2 = new ColorProcessor( w, h );
 
-			Render.render( p1, numCoefficients, numCoefficients, pixels1, weights1, coefficients1, box.x, box.y, scale );
-			Render.render( p2, numCoefficients, numCoefficients, pixels2, weights2, coefficients2, box.x, box.y, scale );
+			try
+			{
+				Render.render( cache.get( p1 ), pixels1, weights1, coefficients1, box.x, box.y, scale );
+				Render.render( cache.get( p2 ), pixels2, weights2, coefficients2, box.x, box.y, scale );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+			finally
+			{
+				cache.release( p1 );
+				cache.release( p2 );
+			}
 
 			/*
 			 * generate a matrix of all coefficients in p1 to all
-			 * coefficients in p2 to store matches
+			 * coefficients in p2 to store matches, allocated only
+			 * for the coefficient pairs that actually overlap
 			 */
-			final ArrayList< ArrayList< PointMatch > > list = new ArrayList< ArrayList< PointMatch > >();
-			for ( int i = 0; i < numCoefficients * numCoefficients * numCoefficients * numCoefficients; ++i )
-				list.add( new ArrayList< PointMatch >() );
-			final ListImg< ArrayList< PointMatch > > matrix = new ListImg< ArrayList< PointMatch > >( list, numCoefficients * numCoefficients, numCoefficients * numCoefficients );
-			final ListRandomAccess< ArrayList< PointMatch > > ra = matrix.randomAccess();
+			final int numCoefficients2 = numCoefficients * numCoefficients;
+			final IntensityMatches[] matrix = new IntensityMatches[ numCoefficients2 * numCoefficients2 ];
 
 			/*
 			 * iterate over all pixels and feed matches into the match
@@ -134,55 +150,51 @@ public class MatchIntensities implements TPlugIn
 					final int c2 = coefficients2.get( i );
 					if ( c2 > 0 )
 					{
-						final double w1 = weights1.getf( i );
+						final float w1 = weights1.getf( i );
 						if ( w1 > 0 )
 						{
-							final double w2 = weights2.getf( i );
+							final float w2 = weights2.getf( i );
 							if ( w2 > 0 )
 							{
-								final double p = pixels1.getf( i );
-								final double q = pixels2.getf( i );
-								final PointMatch pq = new PointMatch( new Point( new double[] { p } ), new Point( new double[] { q } ), w1 * w2 );
-
 								/* first label is 1 */
-								ra.setPosition( c1 - 1, 0 );
-								ra.setPosition( c2 - 1, 1 );
-								ra.get().add( pq );
+								final int k = ( c1 - 1 ) * numCoefficients2 + c2 - 1;
+								IntensityMatches matches = matrix[ k ];
+								if ( matches == null )
+								{
+									matches = new IntensityMatches();
+									matrix[ k ] = matches;
+								}
+								matches.add( pixels1.getf( i ), pixels2.getf( i ), w1 * w2 );
 							}
 						}
 					}
 				}
 			}
 
-			/* filter matches */
-			final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
-			for ( final ArrayList< PointMatch > candidates : matrix )
-			{
-				inliers.clear();
-				filter.filter( candidates, inliers );
-				candidates.clear();
-				candidates.addAll( inliers );
-			}
-
 			/* get the coefficient tiles of p2 */
 			final ArrayList< Tile< ? > > p2CoefficientsTiles = coefficientsTiles.get( p2 );
 
-			/* connect tiles across patches */
-			for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
+			/* filter matches and connect tiles across patches */
+			for ( int i = 0; i < numCoefficients2; ++i )
 			{
 				final Tile< ? > t1 = p1CoefficientsTiles.get( i );
-				ra.setPosition( i, 0 );
-				for ( int j = 0; j < numCoefficients * numCoefficients; ++j )
+				for ( int j = 0; j < numCoefficients2; ++j )
 				{
-					ra.setPosition( j, 1 );
-					final ArrayList< PointMatch > matches = ra.get();
-					if ( matches.size() > 0 )
+					final IntensityMatches candidates = matrix[ i * numCoefficients2 + j ];
+					if ( candidates == null )
+						continue;
+
+					final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
+					filter.filter( candidates, inliers );
+					matrix[ i * numCoefficients2 + j ] = null;
+
+					if ( inliers.size() > 0 )
 					{
 						final Tile< ? > t2 = p2CoefficientsTiles.get( j );
 						synchronized ( MatchIntensities.this )
 						{
-							t1.connect( t2, ra.get() );
-							IJ.log( "Connected patch " + p1.getId() + ", coefficient " + i + "  +  patch " + p2.getId() + ", coefficient " + j + " by " + matches.size() + " samples." );
+							t1.connect( t2, inliers );
+							IJ.log( "Connected patch " + p1.getId() + ", coefficient " + i + "  +  patch " + p2.getId() + ", coefficient " + j + " by " + inliers.size() + " samples." );
 						}
 					}
 				}
@@ -199,6 +211,7 @@ public class MatchIntensities implements TPlugIn
 	static protected int radius = 5;
 	static protected int iterations = 2000;
 	static protected double scale = -1;
+	static protected boolean useMipMaps = true;
 
 	private Layer currentLayer( final Object... params )
 	{
@@ -316,6 +329,7 @@ public class MatchIntensities implements TPlugIn
         gd.addNumericField( "scale : ", scale > 0 ? scale : suggestScale( layerset.getLayers() ), 3, 6, "" );
         gd.addNumericField( "coefficient resolution : ", numCoefficients, 0, 6, "" );
         gd.addNumericField( "test_maximally :", radius, 0, 6, "layers" );
+        gd.addCheckbox( "use_existing_mipmaps", useMipMaps );
         gd.addMessage( "Optimizer :" );
         gd.addNumericField( "iterations :", iterations, 0, 6, "" );
         gd.addNumericField( "scale_regularization :", lambda1, 2, 6, "" );
@@ -331,6 +345,7 @@ public class MatchIntensities implements TPlugIn
         scale = gd.getNextNumber();
         numCoefficients = ( int )gd.getNextNumber();
         radius = ( int ) gd.getNextNumber();
+        useMipMaps = gd.getNextBoolean();
         iterations = ( int )gd.getNextNumber();
         lambda1 = gd.getNextNumber();
         lambda2 = gd.getNextNumber();
@@ -393,10 +408,12 @@ public class MatchIntensities implements TPlugIn
 		for ( final Layer layer : layers )
 			patches.addAll( ( Collection )layer.getDisplayables( Patch.class, roi ) );
 
-		/* delete existing intensity coefficients */
+		/* delete existing intensity coefficients, the mipmaps of those patches are now stale */
 		Utils.log( "Clearing existing intensity maps ... " );
+		final HashSet< Patch > staleMipMaps = new HashSet< Patch >();
 		for ( final Patch p : patches )
-			p.clearIntensityMap();
+			if ( p.clearIntensityMap() )
+				staleMipMaps.add( p );
 
 		/* generate coefficient tiles for all patches
 		 * TODO consider offering alternative models */
@@ -453,7 +470,13 @@ public class MatchIntensities implements TPlugIn
 
 		Utils.log( "Matching intensities using " + numThreads + " threads ... " );
 
-		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		/* each patch is prepared for rendering once, and dropped after its last pair */
+		final RenderCache cache = new RenderCache( scale, numCoefficients, numCoefficients, useMipMaps, staleMipMaps );
+		for ( final ValuePair< Patch, Patch > patchPair : patchPairs )
+			cache.reference( Arrays.asList( patchPair.getA(), patchPair.getB() ) );
+
+		final long t0 = System.currentTimeMillis();
+		final Scheduler.Job exec = Scheduler.getInstance().newJob( "MatchIntensities", Scheduler.Lane.CPU, Scheduler.NORM_PRIORITY, numThreads );
 		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
 		for ( final ValuePair< Patch, Patch > patchPair : patchPairs )
 		{
@@ -464,12 +487,26 @@ public class MatchIntensities implements TPlugIn
 									patchPair,
 									( HashMap )coefficientsTiles,
 									filter,
+									cache,
 									scale,
 									numCoefficients ) ) );
 		}
+		exec.shutdown();
+
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			exec.cancel();
+			throw e;
+		}
 
-		for ( final Future< ? > future : futures )
-			future.get();
+		Utils.log( "Matched " + patchPairs.size() + " patch pairs in " + ( System.currentTimeMillis() - t0 ) + " ms, rendering " +
+				cache.getNumFromMipMaps() + " patches from mipmaps and " + cache.getNumFromOriginals() + " from original images, holding at most " +
+				( cache.getMaxBytes() >> 20 ) + " MB of rendered sources." );
 
 		/* connect tiles within patches */
 		Utils.log( "Connecting coefficient tiles in the same patch  ... " );
@@ -17,4 +17,13 @@ public interface PointMatchFilter
 	public void filter(
 			final List< PointMatch > candidates,
 			final Collection< PointMatch > inliers );
+
+	/**
+	 * Same as {@link #filter(List, Collection)} but for samples stored in
+	 * primitive arrays.  Only the inliers are converted into
+	 * {@link PointMatch PointMatches}.
+	 */
+	public void filter(
+			final IntensityMatches candidates,
+			final Collection< PointMatch > inliers );
 }
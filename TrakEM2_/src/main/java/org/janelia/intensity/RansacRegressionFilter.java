@@ -45,4 +45,21 @@ public class RansacRegressionFilter implements PointMatchFilter
 		}
 	}
 
+	@Override
+	public void filter( final IntensityMatches candidates, final Collection< PointMatch > inliers )
+	{
+		inliers.clear();
+		final int[] indices = new int[ candidates.size() ];
+		final int n = candidates.filterRansac(
+				indices,
+				new double[ 2 ],
+				iterations,
+				maxEpsilon,
+				minInlierRatio,
+				minNumInliers,
+				maxTrust );
+		if ( n > 0 )
+			inliers.addAll( candidates.toPointMatches( indices, n ) );
+	}
+
 }
@@ -80,4 +80,39 @@ public class RansacRegressionReduceFilter implements PointMatchFilter
 		}
 	}
 
+	@Override
+	public void filter( final IntensityMatches candidates, final Collection< PointMatch > inliers )
+	{
+		inliers.clear();
+		final int[] indices = new int[ candidates.size() ];
+		final double[] ab = new double[ 2 ];
+		final int n = candidates.filterRansac(
+				indices,
+				ab,
+				iterations,
+				maxEpsilon,
+				minInlierRatio,
+				minNumInliers,
+				maxTrust );
+		if ( n == 0 )
+			return;
+
+		double min = candidates.getP( indices[ 0 ] ), max = min;
+		for ( int k = 1; k < n; ++k )
+		{
+			final double x = candidates.getP( indices[ k ] );
+			if ( x < min )
+				min = x;
+			else if ( x > max )
+				max = x;
+		}
+
+		final Point p1 = new Point( new double[]{ min } );
+		final Point p2 = new Point( new double[]{ max } );
+		p1.getW()[ 0 ] = ab[ 0 ] * min + ab[ 1 ];
+		p2.getW()[ 0 ] = ab[ 0 ] * max + ab[ 1 ];
+		inliers.add( new PointMatch( p1, new Point( p1.getW().clone() ) ) );
+		inliers.add( new PointMatch( p2, new Point( p2.getW().clone() ) ) );
+	}
+
 }
@@ -154,6 +154,144 @@ public class Render
 		return a;
 	}
 
+	/**
+	 * A {@link Patch} prepared for rendering at a given scale: its
+	 * downsampled pixels, alpha mask and coefficients map.  Preparing
+	 * is the expensive part of rendering and can be done once per patch
+	 * and then reused for every box the patch is rendered into.
+	 */
+	final static public class Source
+	{
+		final public Patch patch;
+		final public int mipmapLevel;
+		final public ImageProcessor ip;
+		final public ByteProcessor mask;
+		final public ColorProcessor coefficients;
+		/** intensities [min, max] of ip that map to [0, 1] */
+		final public double min, max;
+
+		public Source(
+				final Patch patch,
+				final int mipmapLevel,
+				final ImageProcessor ip,
+				final ByteProcessor mask,
+				final ColorProcessor coefficients,
+				final double min,
+				final double max )
+		{
+			this.patch = patch;
+			this.mipmapLevel = mipmapLevel;
+			this.ip = ip;
+			this.mask = mask;
+			this.coefficients = coefficients;
+			this.min = min;
+			this.max = max;
+		}
+
+		/** Approximate number of bytes held by this source. */
+		public long size()
+		{
+			final long n = ( long )ip.getWidth() * ip.getHeight();
+			return n * ( ip.getBitDepth() == 24 ? 4 : ip.getBitDepth() / 8 ) + n * 4 + ( null == mask ? 0 : n );
+		}
+	}
+
+	/**
+	 * Create an affine transformation that maps the patch into a target box
+	 * at offset (x, y) in world coordinates and at the given scale.
+	 */
+	final static protected CoordinateTransformList< CoordinateTransform > createTargetTransform(
+			final Patch patch,
+			final double x,
+			final double y,
+			final double scale )
+	{
+		final CoordinateTransformList< CoordinateTransform > ctl = new CoordinateTransformList< CoordinateTransform >();
+		ctl.add( patch.getFullCoordinateTransform() );
+		final AffineModel2D affineScale = new AffineModel2D();
+		affineScale.set( scale, 0, 0, scale, -x * scale, -y * scale );
+		ctl.add( affineScale );
+		return ctl;
+	}
+
+	/**
+	 * Estimate the mipmap level at which a patch is best rendered at the given
+	 * target scale.
+	 */
+	final static public int bestMipmapLevel( final Patch patch, final double scale )
+	{
+		final int width = patch.getOWidth(), height = patch.getOHeight();
+		final double s = sampleAverageScale( createTargetTransform( patch, 0, 0, scale ), width, height, width / patch.getMeshResolution() );
+		return bestMipmapLevel( s );
+	}
+
+	/**
+	 * Create a coefficients map for a source of the given size, labeling each
+	 * pixel with 1 + the index of its coefficient.
+	 */
+	final static protected ColorProcessor createCoefficientsMap(
+			final int w,
+			final int h,
+			final int coefficientsWidth,
+			final int coefficientsHeight )
+	{
+		final ColorProcessor cp = new ColorProcessor( w, h );
+		for ( int yi = 0; yi < h; ++yi )
+		{
+			final int yc = yi * coefficientsHeight / h;
+			final int ic = yc * coefficientsWidth;
+			final int iyi = yi * w;
+			for ( int xi = 0; xi < w; ++xi )
+				cp.set( iyi + xi, ic + ( xi * coefficientsWidth / w ) + 1 );
+		}
+		return cp;
+	}
+
+	/**
+	 * Prepare a patch for rendering at the given mipmap level by downsampling
+	 * its full resolution pixels.
+	 */
+	final static public Source prepare(
+			final Patch patch,
+			final int coefficientsWidth,
+			final int coefficientsHeight,
+			final int mipmapLevel )
+	{
+		final ImageProcessor ipMipmap = Downsampler.downsampleImageProcessor( patch.getImageProcessor(), mipmapLevel );
+		final ByteProcessor bpMask = patch.getAlphaMask();
+		final ByteProcessor bpMaskMipmap = bpMask == null ? null : Downsampler.downsampleByteProcessor( bpMask, mipmapLevel );
+		return new Source(
+				patch,
+				mipmapLevel,
+				ipMipmap,
+				bpMaskMipmap,
+				createCoefficientsMap( ipMipmap.getWidth(), ipMipmap.getHeight(), coefficientsWidth, coefficientsHeight ),
+				patch.getMin(),
+				patch.getMax() );
+	}
+
+	/**
+	 * Prepare a patch for rendering at the given mipmap level from pixels
+	 * that are already downsampled to that level and mapped to
+	 * [min, max] &rarr; [0, 255], as is the case for 8-bit mipmaps.
+	 */
+	final static public Source prepare(
+			final Patch patch,
+			final int coefficientsWidth,
+			final int coefficientsHeight,
+			final int mipmapLevel,
+			final ByteProcessor bpMipmap )
+	{
+		return new Source(
+				patch,
+				mipmapLevel,
+				bpMipmap,
+				null,
+				createCoefficientsMap( bpMipmap.getWidth(), bpMipmap.getHeight(), coefficientsWidth, coefficientsHeight ),
+				0,
+				255 );
+	}
+
 	/**
 	 * Renders a patch, mapping its intensities [min, max] &rarr; [0, 1]
 	 *
@@ -175,68 +313,60 @@ public class Render
 			final double y,
 			final double scale )
 	{
-		/* assemble coordinate transformations and add bounding box offset */
-		final CoordinateTransformList< CoordinateTransform > ctl = new CoordinateTransformList< CoordinateTransform >();
-		ctl.add( patch.getFullCoordinateTransform() );
-		final AffineModel2D affineScale = new AffineModel2D();
-		affineScale.set( scale, 0, 0, scale, -x * scale, -y * scale );
-		ctl.add( affineScale );
+		render(
+				prepare( patch, coefficientsWidth, coefficientsHeight, bestMipmapLevel( patch, scale ) ),
+				targetImage,
+				targetWeight,
+				targetCoefficients,
+				x,
+				y,
+				scale );
+	}
 
-		/* estimate average scale and generate downsampled source */
-		final int width = patch.getOWidth(), height = patch.getOHeight();
-		final double s = sampleAverageScale( ctl, width, height, width / patch.getMeshResolution() );
-		final int mipmapLevel = bestMipmapLevel( s );
-		final ImageProcessor ipMipmap = Downsampler.downsampleImageProcessor( patch.getImageProcessor(), mipmapLevel );
+	/**
+	 * Renders a prepared patch, mapping its intensities [min, max] &rarr; [0, 1]
+	 *
+	 * @param source the prepared patch to be rendered
+	 * @param targetImage target pixels, specifies the target box
+	 * @param targetWeight target weight pixels, depending on alpha
+	 * @param x target box offset in world coordinates
+	 * @param y target box offset in world coordinates
+	 * @param scale target scale
+	 */
+	final static public void render(
+			final Source source,
+			final FloatProcessor targetImage,
+			final FloatProcessor targetWeight,
+			final ColorProcessor targetCoefficients,
+			final double x,
+			final double y,
+			final double scale )
+	{
+		final Patch patch = source.patch;
+		final ImageProcessor ipMipmap = source.ip;
 
 		/* create a target */
 		final ImageProcessor tp = ipMipmap.createProcessor( targetImage.getWidth(), targetImage.getHeight() );
 
-		/* prepare and downsample alpha mask if there is one */
-		final ByteProcessor bpMaskMipmap;
-		final ByteProcessor bpMaskTarget;
-
-		final ByteProcessor bpMask = patch.getAlphaMask();
-
-		if ( bpMask == null )
-		{
-			bpMaskMipmap = null;
-			bpMaskTarget = null;
-		}
-		else
-		{
-			bpMaskMipmap  = bpMask == null ? null : Downsampler.downsampleByteProcessor( bpMask, mipmapLevel );
-			bpMaskTarget = new ByteProcessor( tp.getWidth(), tp.getHeight() );
-		}
-
-		/* create coefficients map */
-		final ColorProcessor cp = new ColorProcessor( ipMipmap.getWidth(), ipMipmap.getHeight() );
-		final int w = cp.getWidth();
-		final int h = cp.getHeight();
-		for ( int yi = 0; yi < h; ++yi )
-		{
-			final int yc = yi * coefficientsHeight / h;
-			final int ic = yc * coefficientsWidth;
-			final int iyi = yi * w;
-			for ( int xi = 0; xi < w; ++xi )
-				cp.set( iyi + xi, ic + ( xi * coefficientsWidth / w ) + 1 );
-		}
+		/* prepare alpha mask if there is one */
+		final ByteProcessor bpMaskTarget = source.mask == null ? null : new ByteProcessor( tp.getWidth(), tp.getHeight() );
 
 		/* attach mipmap transformation */
 		final CoordinateTransformList< CoordinateTransform > ctlMipmap = new CoordinateTransformList< CoordinateTransform >();
-		ctlMipmap.add( createScaleLevelTransform( mipmapLevel ) );
-		ctlMipmap.add( ctl );
+		ctlMipmap.add( createScaleLevelTransform( source.mipmapLevel ) );
+		ctlMipmap.add( createTargetTransform( patch, x, y, scale ) );
 
 		/* create mesh */
 		final CoordinateTransformMesh mesh = new CoordinateTransformMesh( ctlMipmap,  patch.getMeshResolution(), ipMipmap.getWidth(), ipMipmap.getHeight() );
 
 		/* render */
-		final ImageProcessorWithMasks source = new ImageProcessorWithMasks( ipMipmap, bpMaskMipmap, null );
+		final ImageProcessorWithMasks src = new ImageProcessorWithMasks( ipMipmap, source.mask, null );
 		final ImageProcessorWithMasks target = new ImageProcessorWithMasks( tp, bpMaskTarget, null );
 		final TransformMeshMappingWithMasks< TransformMesh > mapping = new TransformMeshMappingWithMasks< TransformMesh >( mesh );
-		mapping.mapInterpolated( source, target, 1 );
+		mapping.mapInterpolated( src, target, 1 );
 
 		final TransformMeshMapping< TransformMesh > coefficientsMapMapping = new TransformMeshMapping< TransformMesh >( mesh );
-		coefficientsMapMapping.map( cp, targetCoefficients, 1 );
+		coefficientsMapMapping.map( source.coefficients, targetCoefficients, 1 );
 
 		/* set alpha channel */
 		final byte[] alphaPixels;
@@ -247,8 +377,8 @@ public class Render
 			alphaPixels = ( byte[] )target.outside.getPixels();
 
 		/* convert */
-		final double min = patch.getMin();
-		final double max = patch.getMax();
+		final double min = source.min;
+		final double max = source.max;
 		final double a = 1.0 / ( max - min );
 		final double b = 1.0 / 255.0;
 
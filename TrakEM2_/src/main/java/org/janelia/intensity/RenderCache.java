@@ -0,0 +1,218 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.intensity;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ini.trakem2.display.MipMapImage;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares each {@link Patch} for {@link Render rendering} only once, no
+ * matter into how many overlap boxes it is rendered.  Each patch is
+ * referenced as many times as it will be requested; once all its
+ * references are {@link #release(Patch) released}, its
+ * {@link Render.Source} is dropped, so that memory is bounded by the
+ * patches whose pairs are in flight rather than by all patches.
+ *
+ * When possible, the downsampled pixels are read from the existing
+ * lossless (i.e. not JPEG) mipmaps of the {@link FSLoader} instead of
+ * loading and downsampling the full resolution image.  That is only done
+ * for greyscale patches without coordinate transform, alpha mask or
+ * intensity map, whose
+ * mipmaps are geometrically and radiometrically the downsampled original
+ * mapped to [min, max] &rarr; [0, 255].
+ */
+public class RenderCache
+{
+	final private class Entry
+	{
+		final private AtomicInteger references = new AtomicInteger( 0 );
+		private FutureTask< Render.Source > source;
+	}
+
+	final private double scale;
+	final private int coefficientsWidth, coefficientsHeight;
+	final private boolean useMipMaps;
+	final private Set< Patch > staleMipMaps;
+	final private HashMap< Patch, Entry > entries = new HashMap< Patch, Entry >();
+
+	final private AtomicInteger numFromMipMaps = new AtomicInteger( 0 );
+	final private AtomicInteger numFromOriginals = new AtomicInteger( 0 );
+	final private AtomicLong bytes = new AtomicLong( 0 );
+	final private AtomicLong maxBytes = new AtomicLong( 0 );
+
+	/**
+	 * @param useMipMaps whether to read downsampled pixels from the mipmaps when possible
+	 * @param staleMipMaps patches whose mipmaps do not represent the current state of the patch, e.g. because an intensity map was removed; may be null
+	 */
+	public RenderCache(
+			final double scale,
+			final int coefficientsWidth,
+			final int coefficientsHeight,
+			final boolean useMipMaps,
+			final Set< Patch > staleMipMaps )
+	{
+		this.scale = scale;
+		this.coefficientsWidth = coefficientsWidth;
+		this.coefficientsHeight = coefficientsHeight;
+		this.useMipMaps = useMipMaps;
+		this.staleMipMaps = staleMipMaps;
+	}
+
+	/** Announce that {@link #get(Patch)} will be called once more for each of the given patches. */
+	public void reference( final Collection< Patch > patches )
+	{
+		synchronized ( entries )
+		{
+			for ( final Patch patch : patches )
+			{
+				Entry entry = entries.get( patch );
+				if ( null == entry )
+				{
+					entry = new Entry();
+					entries.put( patch, entry );
+				}
+				entry.references.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Get the prepared source of a patch, preparing it if necessary.  When
+	 * several threads ask for the same patch at once, only one prepares it
+	 * and the others wait.
+	 */
+	public Render.Source get( final Patch patch ) throws InterruptedException, ExecutionException
+	{
+		final FutureTask< Render.Source > task;
+		boolean run = false;
+		synchronized ( entries )
+		{
+			Entry entry = entries.get( patch );
+			if ( null == entry )
+			{
+				/* not referenced in advance, keep until released */
+				entry = new Entry();
+				entry.references.incrementAndGet();
+				entries.put( patch, entry );
+			}
+			if ( null == entry.source )
+			{
+				entry.source = new FutureTask< Render.Source >( new java.util.concurrent.Callable< Render.Source >()
+				{
+					@Override
+					public Render.Source call()
+					{
+						return prepare( patch );
+					}
+				} );
+				run = true;
+			}
+			task = entry.source;
+		}
+		if ( run )
+		{
+			task.run();
+			final long b = bytes.addAndGet( task.get().size() );
+			long max;
+			do
+				max = maxBytes.get();
+			while ( b > max && !maxBytes.compareAndSet( max, b ) );
+		}
+		return task.get();
+	}
+
+	/** Release one reference to the patch, dropping its source if there are none left. */
+	public void release( final Patch patch )
+	{
+		FutureTask< Render.Source > task = null;
+		synchronized ( entries )
+		{
+			final Entry entry = entries.get( patch );
+			if ( null == entry || entry.references.decrementAndGet() > 0 )
+				return;
+			entries.remove( patch );
+			task = entry.source;
+		}
+		if ( null != task && task.isDone() )
+		{
+			try
+			{
+				bytes.addAndGet( -task.get().size() );
+			}
+			catch ( final Exception e ) {}
+		}
+	}
+
+	protected Render.Source prepare( final Patch patch )
+	{
+		final int mipmapLevel = Render.bestMipmapLevel( patch, scale );
+		if ( useMipMaps && mipmapLevel > 0 && canUseMipMaps( patch ) )
+		{
+			final FSLoader loader = ( FSLoader )patch.getProject().getLoader();
+			final MipMapImage mipMap = loader.fetchMipMap( patch, mipmapLevel, 0 );
+			/* the requested level may not exist, or be clamped to the highest existing one */
+			if ( null != mipMap && !Loader.isSignalImage( mipMap.image ) && mipMap.scaleX == ( 1 << mipmapLevel ) )
+			{
+				final ByteProcessor bp = new ByteProcessor( mipMap.image );
+				mipMap.image.flush();
+				numFromMipMaps.incrementAndGet();
+				return Render.prepare( patch, coefficientsWidth, coefficientsHeight, mipmapLevel, bp );
+			}
+		}
+		numFromOriginals.incrementAndGet();
+		return Render.prepare( patch, coefficientsWidth, coefficientsHeight, mipmapLevel );
+	}
+
+	protected boolean canUseMipMaps( final Patch patch )
+	{
+		if ( !( patch.getProject().getLoader() instanceof FSLoader ) )
+			return false;
+		if ( FSLoader.MIPMAP_JPEG == patch.getProject().getLoader().getMipMapFormat() )
+			return false;
+		if ( null != staleMipMaps && staleMipMaps.contains( patch ) )
+			return false;
+		switch ( patch.getType() )
+		{
+		case ImagePlus.GRAY8:
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
+			break;
+		default:
+			return false;
+		}
+		return !patch.hasCoordinateTransform() && !patch.hasAlphaChannel() && !patch.paintsWithFalseColor();
+	}
+
+	public int getNumFromMipMaps() { return numFromMipMaps.get(); }
+
+	public int getNumFromOriginals() { return numFromOriginals.get(); }
+
+	/** The largest number of bytes held at once by prepared sources. */
+	public long getMaxBytes() { return maxBytes.get(); }
+}